@@ -0,0 +1,78 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * POST /multiply/batch without the network: parsing the JSON and the binary
+ * body, multiplying (split across threads above BatchMultiply.SPLIT pairs)
+ * and writing the JSON result. Divide by the batch size for the cost per
+ * pair, and compare with HandlerBenchmark -p route=multiply for one pair
+ * per request.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BatchMultiplyBenchmark {
+  @Param({"1000", "65536"})
+  int pairs;
+
+  private ByteBuffer json;
+  private ByteBuffer binary;
+  private BatchMultiply parsed;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(16);
+    StringBuilder text = new StringBuilder("[");
+    binary = ByteBuffer.allocate(16 * pairs);
+    for (int i = 0; i < pairs; i++) {
+      long a = random.nextInt();
+      long b = random.nextInt(1000);
+      text.append(i == 0 ? "" : ",").append('[').append(a).append(',').append(b).append(']');
+      binary.putLong(a).putLong(b);
+    }
+    json = ByteBuffer.wrap(text.append(']').toString().getBytes(StandardCharsets.US_ASCII));
+    binary.flip();
+    parsed = BatchMultiply.fromBinary(binary);
+  }
+
+  @Benchmark
+  public BatchMultiply parseJson() {
+    return BatchMultiply.fromJson(json.duplicate());
+  }
+
+  @Benchmark
+  public BatchMultiply parseBinary() {
+    return BatchMultiply.fromBinary(binary.duplicate());
+  }
+
+  @Benchmark
+  public BatchMultiply compute() {
+    return parsed.compute();
+  }
+
+  @Benchmark
+  public void writeJson() throws IOException {
+    parsed.compute().writeJson(OutputStream.nullOutputStream());
+  }
+}
@@ -0,0 +1,83 @@
+package funHttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The file list of the root page from the DirectoryIndex against listing
+ * the directory on every call like buildFileList() used to, and rendering a
+ * /files page sorted by size, on a temporary directory of empty files. The
+ * server caches the rendered bytes on top of this, so a repeated request
+ * costs a cache lookup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DirectoryIndexBenchmark {
+  @Param({"100", "20000"})
+  int files;
+
+  private Path directory;
+  private DirectoryIndex index;
+  private DirectoryIndex.Query bySize;
+
+  @Setup
+  public void setup() throws IOException {
+    directory = Files.createTempDirectory("index-benchmark");
+    for (int i = 0; i < files; i++) {
+      Files.createFile(directory.resolve("file-" + i + ".html"));
+    }
+    index = new DirectoryIndex(directory, true);
+    bySize = DirectoryIndex.Query.parse(Map.of("sort", "size", "order", "desc"));
+  }
+
+  @TearDown
+  public void deleteDirectory() throws IOException {
+    try (Stream<Path> paths = Files.walk(directory)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  @Benchmark
+  public String listDirectory() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("<ul>\n");
+    for (String filename : directory.toFile().list()) {
+      builder.append("<li>" + filename + "</li>");
+    }
+    builder.append("</ul>\n");
+    return builder.toString();
+  }
+
+  @Benchmark
+  public String indexFileList() throws IOException {
+    return index.fileList();
+  }
+
+  @Benchmark
+  public byte[] renderSortedPage() throws IOException {
+    return index.render(bySize, "/file/www/");
+  }
+}
@@ -0,0 +1,92 @@
+package funHttpServer;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One request through createResponse(): parse, route, handler and the
+ * response bytes, for every route. The request is a canned browser request
+ * read from memory, so no socket is involved. /github talks to a local stub
+ * and is mostly answered from the response cache, like in production.
+ *
+ * Must run in the project directory, the file routes read www/.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandlerBenchmark {
+  private static final String REPOS = "[{\"full_name\":\"a/b\",\"id\":1,\"owner\":{\"login\":\"a\"}}]";
+
+  @Param({"root", "json", "random", "file", "multiply", "convertCurrency", "greet", "github", "unknown"})
+  String route;
+
+  private HttpServer stub;
+  private WebServer server;
+  private byte[] request;
+
+  @Setup
+  public void setup() throws IOException {
+    stub = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    stub.createContext("/", exchange -> {
+      byte[] body = REPOS.getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    stub.start();
+
+    // no console output and no rate limits, they would be measured instead of the handler
+    server = new WebServer(ServerConfig.fromArgs(new String[] {"log=false", "routeRates=",
+        "githubUrl=http://localhost:" + stub.getAddress().getPort() + "/"}));
+
+    String target;
+    switch (route) {
+      case "root": target = ""; break;
+      case "file": target = "file/index.html"; break;
+      case "multiply": target = "multiply?num1=3&num2=4"; break;
+      case "convertCurrency": target = "convertCurrency?amount=100&from=USD&to=EUR"; break;
+      case "greet": target = "greet?name=Ann&language=French"; break;
+      case "github": target = "github?query=users/a/repos"; break;
+      case "unknown": target = "nothing/here"; break;
+      default: target = route;
+    }
+    request = ("GET /" + target + " HTTP/1.1\r\n"
+        + "Host: localhost:9000\r\n"
+        + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0 Safari/537.36\r\n"
+        + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+        + "Accept-Encoding: gzip, deflate\r\n"
+        + "\r\n").getBytes(StandardCharsets.US_ASCII);
+  }
+
+  @TearDown
+  public void stopStub() {
+    stub.stop(0);
+  }
+
+  @Benchmark
+  public byte[] createResponse() {
+    return server.createResponse(new ByteArrayInputStream(request));
+  }
+}
@@ -0,0 +1,74 @@
+package funHttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The static helpers of WebServer on their own: splitQuery() with a short
+ * and a long escaped query and readFileInBytes() for a range of file sizes.
+ * The file list of the root page is in DirectoryIndexBenchmark.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HelpersBenchmark {
+  private static final String SHORT_QUERY = "num1=3&num2=4";
+  private static final String LONG_QUERY = "q=hello+world%2Fme&name=J%C3%BCrgen+M%C3%BCller"
+      + "&language=French&amount=12.5&from=USD&to=EUR%2CGBP%2CJPY&page=2&sort=name&order=desc";
+
+  /** A file of random bytes, only the file benchmark depends on its size */
+  @State(Scope.Benchmark)
+  public static class FileState {
+    @Param({"1024", "65536", "1048576"})
+    int fileSize;
+
+    File file;
+
+    @Setup
+    public void setup() throws IOException {
+      file = File.createTempFile("helpers-benchmark", ".bin");
+      byte[] content = new byte[fileSize];
+      new Random(1).nextBytes(content);
+      Files.write(file.toPath(), content);
+    }
+
+    @TearDown
+    public void deleteFile() {
+      file.delete();
+    }
+  }
+
+  @Benchmark
+  public Map<String, String> splitQueryShort() {
+    return WebServer.splitQuery(SHORT_QUERY);
+  }
+
+  @Benchmark
+  public Map<String, String> splitQueryLong() {
+    return WebServer.splitQuery(LONG_QUERY);
+  }
+
+  @Benchmark
+  public byte[] readFileInBytes(FileState state) throws IOException {
+    return WebServer.readFileInBytes(state.file);
+  }
+}
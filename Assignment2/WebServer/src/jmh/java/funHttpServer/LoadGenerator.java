@@ -0,0 +1,253 @@
+package funHttpServer;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Closed loop load generator for a running server. Every connection sends a
+ * request, reads the complete response and sends the next request right
+ * away, so the offered load follows the server: a slow server gets fewer
+ * requests instead of a growing queue. That also means latency spikes delay
+ * the requests that would have come during them, so the percentiles are a
+ * lower bound for what an open stream of users would see.
+ *
+ * Usage: LoadGenerator [host=localhost] [port=9000] [connections=16]
+ *   [duration=10] [warmup=2] [paths=/json,/multiply?num1=3&amp;num2=4]
+ *   [keepAlive=true]
+ *
+ * Responses of the warmup seconds are not counted. Latencies go into the
+ * same log-linear Histogram the server uses for /metrics.
+ */
+public class LoadGenerator {
+  private String host = "localhost";
+  private int port = 9000;
+  private int connections = 16;
+  private int duration = 10;
+  private int warmup = 2;
+  private String[] paths = {"/json"};
+  private boolean keepAlive = true;
+
+  private final Histogram latencies = new Histogram();
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+  private final LongAdder failedStatus = new LongAdder();
+  private final LongAdder ioErrors = new LongAdder();
+  private long measureFrom;
+  private long end;
+
+  public static void main(String[] args) throws InterruptedException {
+    LoadGenerator generator = new LoadGenerator();
+    try {
+      for (String arg : args) {
+        generator.set(arg);
+      }
+    } catch (IllegalArgumentException e) {
+      System.out.println(e.getMessage());
+      System.out.println("Usage: LoadGenerator [host=localhost] [port=9000] [connections=16]"
+          + " [duration=seconds] [warmup=seconds] [paths=/a,/b?x=1] [keepAlive=true|false]");
+      System.exit(1);
+    }
+    generator.run();
+  }
+
+  private void set(String arg) {
+    int idx = arg.indexOf('=');
+    String name = idx < 0 ? arg : arg.substring(0, idx);
+    String value = idx < 0 ? "" : arg.substring(idx + 1);
+    try {
+      switch (name) {
+        case "host": host = value; break;
+        case "port": port = Integer.parseInt(value); break;
+        case "connections": connections = Integer.parseInt(value); break;
+        case "duration": duration = Integer.parseInt(value); break;
+        case "warmup": warmup = Integer.parseInt(value); break;
+        case "paths": paths = value.split(","); break;
+        case "keepAlive": keepAlive = Boolean.parseBoolean(value); break;
+        default: throw new IllegalArgumentException("Unknown option " + name);
+      }
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Option " + name + " must be an integer");
+    }
+  }
+
+  private void run() throws InterruptedException {
+    byte[][] requests = new byte[paths.length][];
+    for (int i = 0; i < paths.length; i++) {
+      String path = paths[i].startsWith("/") ? paths[i] : "/" + paths[i];
+      requests[i] = ("GET " + path + " HTTP/1.1\r\nHost: " + host + ":" + port + "\r\n"
+          + (keepAlive ? "" : "Connection: close\r\n") + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    System.out.println("Running " + connections + " connections against " + host + ":" + port
+        + " for " + warmup + " s warmup and " + duration + " s");
+    long start = System.nanoTime();
+    measureFrom = start + warmup * 1_000_000_000L;
+    end = measureFrom + duration * 1_000_000_000L;
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < connections; i++) {
+      int first = i;
+      Thread thread = new Thread(() -> connection(requests, first), "load-" + i);
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    report();
+  }
+
+  // one connection in the loop, reconnects when the server closes it
+  private void connection(byte[][] requests, int first) {
+    Socket sock = null;
+    InputStream in = null;
+    OutputStream out = null;
+    int next = first;
+    while (System.nanoTime() < end) {
+      try {
+        if (sock == null) {
+          sock = new Socket(host, port);
+          sock.setTcpNoDelay(true);
+          in = new BufferedInputStream(sock.getInputStream());
+          out = sock.getOutputStream();
+        }
+        byte[] request = requests[next++ % requests.length];
+        long sent = System.nanoTime();
+        out.write(request);
+        out.flush();
+        int result = readResponse(in);
+        long received = System.nanoTime();
+        int status = Math.abs(result);
+        if (sent >= measureFrom && received <= end) {
+          latencies.record(received - sent);
+          max.accumulate(received - sent);
+          if (status >= 400) {
+            failedStatus.increment();
+          }
+        }
+        if (result < 0) {
+          // the server closes the connection after this response
+          sock.close();
+          sock = null;
+        }
+      } catch (IOException e) {
+        if (System.nanoTime() >= measureFrom) {
+          ioErrors.increment();
+        }
+        close(sock);
+        sock = null;
+      }
+    }
+    close(sock);
+  }
+
+  private static void close(Socket sock) {
+    if (sock != null) {
+      try {
+        sock.close();
+      } catch (IOException e) {
+        // nothing to do
+      }
+    }
+  }
+
+  /**
+   * Reads one response and skips its body.
+   * @return the status code, negated if the connection closes after it
+   */
+  static int readResponse(InputStream in) throws IOException {
+    String statusLine = readLine(in);
+    if (statusLine == null) {
+      throw new EOFException("Connection closed before the response");
+    }
+    int status = Integer.parseInt(statusLine.substring(9, 12));
+    long contentLength = -1;
+    boolean chunked = false;
+    boolean close = statusLine.startsWith("HTTP/1.0");
+    String line;
+    while ((line = readLine(in)) != null && !line.isEmpty()) {
+      int colon = line.indexOf(':');
+      if (colon < 0) {
+        continue;
+      }
+      String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+      String value = line.substring(colon + 1).trim();
+      if (name.equals("content-length")) {
+        contentLength = Long.parseLong(value);
+      } else if (name.equals("transfer-encoding")) {
+        chunked = value.equalsIgnoreCase("chunked");
+      } else if (name.equals("connection")) {
+        close = value.equalsIgnoreCase("close");
+      }
+    }
+
+    if (chunked) {
+      long size;
+      do {
+        String sizeLine = readLine(in);
+        if (sizeLine == null) {
+          throw new EOFException("Connection closed in a chunked body");
+        }
+        int semicolon = sizeLine.indexOf(';');
+        size = Long.parseLong(semicolon < 0 ? sizeLine.trim() : sizeLine.substring(0, semicolon).trim(), 16);
+        in.skipNBytes(size);
+        if (size > 0) {
+          readLine(in);
+        }
+      } while (size > 0);
+      // trailers up to the empty line
+      while ((line = readLine(in)) != null && !line.isEmpty()) {
+        // skipped
+      }
+    } else if (contentLength >= 0) {
+      in.skipNBytes(contentLength);
+    } else if (status != 204 && status != 304) {
+      // the body ends with the connection
+      in.transferTo(OutputStream.nullOutputStream());
+      close = true;
+    }
+    return close ? -status : status;
+  }
+
+  // a CRLF terminated line without the line break, null at the end of the stream
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int b;
+    while ((b = in.read()) != -1) {
+      if (b == '\n') {
+        int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r') {
+          line.setLength(length - 1);
+        }
+        return line.toString();
+      }
+      line.append((char) b);
+    }
+    return line.length() == 0 ? null : line.toString();
+  }
+
+  private void report() {
+    long count = latencies.getCount();
+    System.out.println("requests:    " + count + " (" + String.format(Locale.ROOT, "%.1f", count / (double) duration)
+        + "/s), status >= 400: " + failedStatus.sum() + ", I/O errors: " + ioErrors.sum());
+    if (count == 0) {
+      return;
+    }
+    System.out.println(String.format(Locale.ROOT,
+        "latency ms:  mean %.3f  p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f",
+        latencies.getSum() / (double) count / 1e6,
+        latencies.quantile(0.5) / 1e6,
+        latencies.quantile(0.9) / 1e6,
+        latencies.quantile(0.99) / 1e6,
+        latencies.quantile(0.999) / 1e6,
+        max.get() / 1e6));
+  }
+}
@@ -0,0 +1,108 @@
+package funHttpServer;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing a typical browser request: the byte level HttpRequest parser
+ * against the String based one it replaced. Run with "-prof gc" to see the
+ * bytes allocated per request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+  private byte[] head;
+
+  @Setup
+  public void setup() {
+    head = ("GET /convertCurrency?amount=12.5&from=USD&to=EUR HTTP/1.1\r\n"
+        + "Host: localhost:9000\r\n"
+        + "Connection: keep-alive\r\n"
+        + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0 Safari/537.36\r\n"
+        + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,*/*;q=0.8\r\n"
+        + "Accept-Encoding: gzip, deflate, br\r\n"
+        + "Accept-Language: en-US,en;q=0.9\r\n"
+        + "Cookie: session=0123456789abcdef0123456789abcdef\r\n"
+        + "\r\n").getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /** What the handler stage needs for the routing decision and the framing */
+  @Benchmark
+  public void bytes(Blackhole bh) {
+    HttpRequest request = HttpRequest.parse(head);
+    bh.consume(request.getPath());
+    bh.consume(request.isKeepAlive());
+  }
+
+  /** Same as bytes() plus decoding the query parameters */
+  @Benchmark
+  public Map<String, String> bytesWithParameters() {
+    return HttpRequest.parse(head).getParameters();
+  }
+
+  /** The String based parser, without the System.out output it had */
+  @Benchmark
+  public void strings(Blackhole bh) {
+    String target = null;
+    String version = null;
+    Map<String, String> headers = new LinkedHashMap<>();
+    boolean requestLine = true;
+    for (String line : new String(head, StandardCharsets.UTF_8).split("\n")) {
+      if (line.endsWith("\r")) {
+        line = line.substring(0, line.length() - 1);
+      }
+      if (line.equals("")) {
+        break;
+      }
+      if (requestLine) {
+        int firstSpace = line.indexOf(" ");
+        int secondSpace = line.indexOf(" ", firstSpace + 1);
+        version = line.substring(secondSpace + 1).trim();
+        target = line.substring(firstSpace + 2, secondSpace);
+        requestLine = false;
+      } else {
+        int colon = line.indexOf(':');
+        if (colon > 0) {
+          headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+        }
+      }
+    }
+    bh.consume(target);
+    bh.consume("HTTP/1.1".equals(version) && !"close".equalsIgnoreCase(headers.get("connection")));
+  }
+
+  /** strings() plus String.split and URLDecoder for the query */
+  @Benchmark
+  public Map<String, String> stringsWithParameters(Blackhole bh) throws UnsupportedEncodingException {
+    strings(bh);
+    String target = "convertCurrency?amount=12.5&from=USD&to=EUR";
+    Map<String, String> pairs = new LinkedHashMap<>();
+    for (String pair : target.substring(target.indexOf('?') + 1).split("&")) {
+      int idx = pair.indexOf("=");
+      if (idx > 0) {
+        pairs.put(URLDecoder.decode(pair.substring(0, idx), "UTF-8"), URLDecoder.decode(pair.substring(idx + 1), "UTF-8"));
+      }
+    }
+    return pairs;
+  }
+}
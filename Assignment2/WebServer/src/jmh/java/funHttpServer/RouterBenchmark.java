@@ -0,0 +1,80 @@
+package funHttpServer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of finding the handler for a request: the Router against the chain of
+ * request.contains("name?") tests the handler stage used before, for a
+ * growing number of routes. The request hits the first or the last route of
+ * the chain, or none at all.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouterBenchmark {
+  @Param({"8", "64", "256", "512"})
+  int routes;
+
+  @Param({"first", "last", "none"})
+  String hit;
+
+  private Router router;
+  private String[] chain;
+  private HttpResponse[] responses;
+  private HttpResponse notFound;
+  private String target;
+  private byte[] head;
+
+  @Setup
+  public void setup() {
+    router = new Router();
+    chain = new String[routes];
+    responses = new HttpResponse[routes];
+    for (int i = 0; i < routes; i++) {
+      String name = "route" + i;
+      HttpResponse response = HttpResponse.html(200, name);
+      chain[i] = name + "?";
+      responses[i] = response;
+      router.add(name, request -> response);
+    }
+    notFound = HttpResponse.html(400, "none");
+
+    String name = hit.equals("first") ? "route0" : hit.equals("last") ? "route" + (routes - 1) : "unknown";
+    target = name + "?num1=3&num2=4";
+    head = ("GET /" + target + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+  }
+
+  @Benchmark
+  public HttpResponse containsChain() {
+    for (int i = 0; i < chain.length; i++) {
+      if (target.contains(chain[i])) {
+        return responses[i];
+      }
+    }
+    return notFound;
+  }
+
+  @Benchmark
+  public HttpResponse router() throws Exception {
+    // parsing is part of the cost, it finds where the query starts
+    HttpRequest request = HttpRequest.parse(head);
+    Router.Route route = router.find(request.getPath());
+    return route == null ? notFound : route.handle(request);
+  }
+}
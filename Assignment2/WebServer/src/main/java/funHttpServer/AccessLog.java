@@ -0,0 +1,351 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access log with one JSON object per line:
+ *
+ * {"time":"2024-06-01T12:00:00.123Z","client":"127.0.0.1","method":"GET",
+ *  "target":"/multiply?num1=3&num2=4","route":"/multiply","status":200,"bytes":13,"handle_ms":0.21}
+ *
+ * handle_ms is the time of the handler stage, from the parsed request to its
+ * response, including admission and compression. Reading the request and
+ * writing the response are not part of it; their times are in the parse and
+ * write histograms of /metrics.
+ *
+ * Request threads put entries into a bounded ring and never wait: claiming a
+ * slot is one compare-and-set, and if the ring is full the entry is dropped
+ * and counted. A single writer thread takes the entries out in order,
+ * formats them and writes them to a FileChannel in batches of up to
+ * BATCH_BYTES. The file is rolled over to name.yyyyMMdd-HHmmss when it
+ * would grow past maxSize or is older than rollMillis.
+ */
+class AccessLog {
+  /** Entries the ring holds, a power of two */
+  static final int CAPACITY = 16 * 1024;
+
+  /** Bytes formatted before they are written */
+  static final int BATCH_BYTES = 64 * 1024;
+
+  // how long the writer sleeps when the ring is empty, entries are batched meanwhile
+  private static final long IDLE_NANOS = 10_000_000;
+
+  private static final DateTimeFormatter ROLLED = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss").withZone(ZoneOffset.UTC);
+
+  /** One request, everything in it is taken from the request before it is reused */
+  private static final class Entry {
+    final long time;
+    final InetAddress client;
+    final String method;
+    final String target;
+    final String route;
+    final int status;
+    final long bytes;
+    final long nanos;
+
+    Entry(long time, InetAddress client, String method, String target, String route, int status, long bytes,
+        long nanos) {
+      this.time = time;
+      this.client = client;
+      this.method = method;
+      this.target = target;
+      this.route = route;
+      this.status = status;
+      this.bytes = bytes;
+      this.nanos = nanos;
+    }
+  }
+
+  // the ring: slot i may be claimed for position p when sequence[i] == p and
+  // read by the writer when sequence[i] == p + 1, see offer() and poll()
+  private final Entry[] slots;
+  private final AtomicLongArray sequence;
+  private final int mask;
+  private final AtomicLong tail = new AtomicLong();
+
+  // only used by the writer thread
+  private long head;
+  private final ByteBuffer batch = ByteBuffer.allocate(BATCH_BYTES);
+  private int batched;
+  private final StringBuilder line = new StringBuilder(256);
+  private FileChannel channel;
+  private long fileSize;
+  private long openedAt;
+
+  // entries written or dropped by the writer, for flush()
+  private volatile long done;
+
+  private final Path file;
+  private final long maxSize;
+  private final long rollMillis;
+  private final Metrics metrics;
+  private final Thread writer;
+  private volatile boolean closed;
+
+  /**
+   * Opens the file and starts the writer thread.
+   * @param file log file, appended to if it exists
+   * @param maxSize bytes after which the file is rolled over, 0 for no limit
+   * @param rollMillis age after which the file is rolled over, 0 for no limit
+   * @param metrics counts the dropped entries
+   * @throws IOException if the file cannot be opened
+   */
+  AccessLog(Path file, long maxSize, long rollMillis, Metrics metrics) throws IOException {
+    this(file, maxSize, rollMillis, CAPACITY, metrics);
+  }
+
+  AccessLog(Path file, long maxSize, long rollMillis, int capacity, Metrics metrics) throws IOException {
+    if (Integer.bitCount(capacity) != 1) {
+      throw new IllegalArgumentException("Capacity must be a power of two, got " + capacity);
+    }
+    this.file = file;
+    this.maxSize = maxSize;
+    this.rollMillis = rollMillis;
+    this.metrics = metrics;
+    this.slots = new Entry[capacity];
+    this.sequence = new AtomicLongArray(capacity);
+    this.mask = capacity - 1;
+    for (int i = 0; i < capacity; i++) {
+      sequence.set(i, i);
+    }
+    open();
+    writer = new Thread(this::run, "access-log");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Logs a handled request, never blocks.
+   * @param request the parsed request
+   * @param route name of the route, as in the metrics
+   * @param status status code of the response
+   * @param bytes body bytes of the response, -1 if not known up front
+   * @param handleNanos time of the handler stage, logged as handle_ms
+   */
+  void request(HttpRequest request, String route, int status, long bytes, long handleNanos) {
+    Entry entry = new Entry(System.currentTimeMillis(), request.getClient(), request.getMethod(),
+        "/" + (request.getTarget() == null ? "" : request.getTarget()), route, status, bytes, handleNanos);
+    if (closed || !offer(entry)) {
+      metrics.accessLogDropped(1);
+    }
+  }
+
+  private boolean offer(Entry entry) {
+    long position = tail.get();
+    while (true) {
+      int index = (int) position & mask;
+      long difference = sequence.get(index) - position;
+      if (difference == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          slots[index] = entry;
+          // publishes the slot to the writer
+          sequence.set(index, position + 1);
+          return true;
+        }
+        position = tail.get();
+      } else if (difference < 0) {
+        // the writer has not taken the entry a lap ago yet
+        return false;
+      } else {
+        // another producer claimed this position
+        position = tail.get();
+      }
+    }
+  }
+
+  // next entry or null if there is none yet, writer thread only
+  private Entry poll() {
+    int index = (int) head & mask;
+    if (sequence.get(index) != head + 1) {
+      return null;
+    }
+    Entry entry = slots[index];
+    slots[index] = null;
+    // free for the producers of the next lap
+    sequence.set(index, head + slots.length);
+    head++;
+    return entry;
+  }
+
+  private void run() {
+    try {
+      while (true) {
+        boolean stopping = closed;
+        long taken = 0;
+        Entry entry;
+        while ((entry = poll()) != null) {
+          append(entry);
+          taken++;
+        }
+        write();
+        done = head;
+        if (stopping && taken == 0) {
+          return;
+        }
+        if (taken == 0) {
+          LockSupport.parkNanos(IDLE_NANOS);
+        }
+      }
+    } finally {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // nothing left to write
+      }
+    }
+  }
+
+  // formats an entry into the batch, writing the batch first if it is full
+  private void append(Entry entry) {
+    line.setLength(0);
+    line.append("{\"time\":\"").append(Instant.ofEpochMilli(entry.time)).append("\",\"client\":");
+    if (entry.client == null) {
+      line.append("null");
+    } else {
+      line.append('"').append(entry.client.getHostAddress()).append('"');
+    }
+    line.append(",\"method\":");
+    string(entry.method);
+    line.append(",\"target\":");
+    string(entry.target);
+    line.append(",\"route\":");
+    string(entry.route);
+    line.append(",\"status\":").append(entry.status).append(",\"bytes\":");
+    if (entry.bytes < 0) {
+      line.append("null");
+    } else {
+      line.append(entry.bytes);
+    }
+    line.append(",\"handle_ms\":").append(entry.nanos / 10000 / 100.0).append("}\n");
+
+    byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+    if (bytes.length > batch.remaining()) {
+      write();
+    }
+    if (bytes.length > batch.capacity()) {
+      // longer than a whole batch, only with absurd targets
+      metrics.accessLogDropped(1);
+      return;
+    }
+    batch.put(bytes);
+    batched++;
+  }
+
+  // a JSON string, the target comes from the client and may contain anything
+  private void string(String value) {
+    if (value == null) {
+      line.append("null");
+      return;
+    }
+    line.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        line.append('\\').append(c);
+      } else if (c < 0x20 || c == 0x7f) {
+        line.append(String.format("\\u%04x", (int) c));
+      } else {
+        line.append(c);
+      }
+    }
+    line.append('"');
+  }
+
+  // writes the batch, rolling the file over first if it is due
+  private void write() {
+    if (batch.position() == 0) {
+      return;
+    }
+    batch.flip();
+    try {
+      long now = System.currentTimeMillis();
+      boolean full = maxSize > 0 && fileSize > 0 && fileSize + batch.remaining() > maxSize;
+      boolean old = rollMillis > 0 && fileSize > 0 && now - openedAt >= rollMillis;
+      if (full || old) {
+        roll(now);
+      }
+      while (batch.hasRemaining()) {
+        fileSize += channel.write(batch);
+      }
+    } catch (IOException e) {
+      System.out.println("Cannot write the access log " + file + ": " + e.getMessage());
+      metrics.accessLogDropped(batched);
+    } finally {
+      batch.clear();
+      batched = 0;
+    }
+  }
+
+  private void open() throws IOException {
+    channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    fileSize = channel.size();
+    openedAt = System.currentTimeMillis();
+  }
+
+  private void roll(long now) throws IOException {
+    channel.close();
+    try {
+      String name = file.getFileName() + "." + ROLLED.format(Instant.ofEpochMilli(now));
+      Path rolled = file.resolveSibling(name);
+      for (int i = 1; Files.exists(rolled); i++) {
+        rolled = file.resolveSibling(name + "-" + i);
+      }
+      Files.move(file, rolled);
+    } finally {
+      // if the move failed the old file is written on
+      open();
+    }
+  }
+
+  /**
+   * Waits until the entries logged so far are written, e.g. before the JVM
+   * exits or in tests.
+   * @param maxMillis how long to wait at most
+   * @return true if everything was written in time
+   */
+  boolean flush(long maxMillis) {
+    long target = tail.get();
+    long deadline = System.currentTimeMillis() + maxMillis;
+    while (done < target) {
+      if (System.currentTimeMillis() >= deadline) {
+        return false;
+      }
+      LockSupport.unpark(writer);
+      try {
+        Thread.sleep(1);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Writes what is left and closes the file, entries logged afterwards are
+   * dropped.
+   * @param maxMillis how long to wait for the writer at most
+   */
+  void close(long maxMillis) {
+    closed = true;
+    LockSupport.unpark(writer);
+    try {
+      writer.join(maxMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
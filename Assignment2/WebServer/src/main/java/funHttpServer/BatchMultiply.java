@@ -0,0 +1,322 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Products of many pairs of numbers for POST /multiply/batch. The factors are
+ * parsed straight from the body into primitive long arrays, nothing is boxed,
+ * and the loop over them has no branch: overflow is detected by comparing the
+ * high half of the 128 bit product with the sign of the low half, which the
+ * JIT turns into a single multiply instruction. Batches of more than SPLIT
+ * pairs are cut into slices that run on the common ForkJoinPool.
+ *
+ * Two body formats are accepted:
+ * - JSON, an array of pairs: [[3,4],[5,6]]
+ * - binary, application/octet-stream: pairs of big-endian 64 bit integers
+ *
+ * Results are written in the format of the request, see writeJson and
+ * writeBinary.
+ */
+final class BatchMultiply {
+  /** Pairs multiplied on one thread, larger batches are split */
+  static final int SPLIT = 16 * 1024;
+
+  private final long[] left;
+  private final long[] right;
+  private final int size;
+  private long[] products;
+  private boolean[] overflow;
+  private int overflows;
+
+  private BatchMultiply(long[] left, long[] right, int size) {
+    this.left = left;
+    this.right = right;
+    this.size = size;
+  }
+
+  /**
+   * @param body pairs of big-endian 64 bit integers
+   * @throws IllegalArgumentException if the body is not made of whole pairs
+   */
+  static BatchMultiply fromBinary(ByteBuffer body) {
+    if (body.remaining() % 16 != 0) {
+      throw new IllegalArgumentException("Binary batches must be pairs of 8 byte integers, got "
+          + body.remaining() + " bytes");
+    }
+    int size = body.remaining() / 16;
+    long[] left = new long[size];
+    long[] right = new long[size];
+    int base = body.position();
+    for (int i = 0; i < size; i++) {
+      left[i] = body.getLong(base + 16 * i);
+      right[i] = body.getLong(base + 16 * i + 8);
+    }
+    return new BatchMultiply(left, right, size);
+  }
+
+  /**
+   * @param body UTF-8 JSON array of pairs of integers, e.g. [[3,4],[5,6]]
+   * @throws IllegalArgumentException if the body is not such an array
+   */
+  static BatchMultiply fromJson(ByteBuffer body) {
+    return new JsonPairs(body).parse();
+  }
+
+  /**
+   * Multiplies all pairs, on several threads if the batch is large.
+   * @return this batch for chaining
+   */
+  BatchMultiply compute() {
+    products = new long[size];
+    overflow = new boolean[size];
+    Slice all = new Slice(this, 0, size);
+    overflows = size > SPLIT ? ForkJoinPool.commonPool().invoke(all) : all.compute();
+    return this;
+  }
+
+  int size() {
+    return size;
+  }
+
+  long product(int i) {
+    return products[i];
+  }
+
+  boolean overflowed(int i) {
+    return overflow[i];
+  }
+
+  /**
+   * @return number of pairs whose product does not fit into a long
+   */
+  int getOverflows() {
+    return overflows;
+  }
+
+  // products of left[from, to) times right[from, to), returns the overflows
+  private int multiply(int from, int to) {
+    long[] l = left;
+    long[] r = right;
+    long[] p = products;
+    boolean[] o = overflow;
+    int count = 0;
+    for (int i = from; i < to; i++) {
+      long low = l[i] * r[i];
+      // the product fits if the high half is just the sign extension of the low half
+      boolean lost = Math.multiplyHigh(l[i], r[i]) != (low >> 63);
+      p[i] = low;
+      o[i] = lost;
+      count += lost ? 1 : 0;
+    }
+    return count;
+  }
+
+  /**
+   * Half of the pairs of a slice are forked until a slice has SPLIT pairs or
+   * fewer, those are multiplied in one loop.
+   */
+  private static final class Slice extends RecursiveTask<Integer> {
+    private static final long serialVersionUID = 1L;
+
+    private final BatchMultiply batch;
+    private final int from;
+    private final int to;
+
+    Slice(BatchMultiply batch, int from, int to) {
+      this.batch = batch;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected Integer compute() {
+      if (to - from <= SPLIT) {
+        return batch.multiply(from, to);
+      }
+      int middle = (from + to) >>> 1;
+      Slice upper = new Slice(batch, middle, to);
+      upper.fork();
+      int lower = new Slice(batch, from, middle).compute();
+      return lower + upper.join();
+    }
+  }
+
+  /**
+   * Writes {"count":2,"overflows":1,"results":[12,null]}, null for products
+   * that do not fit into a long. Goes out in chunks of about
+   * HttpResponse.CHUNK_SIZE bytes, the text is never held in memory at once.
+   */
+  void writeJson(OutputStream out) throws IOException {
+    StringBuilder text = new StringBuilder(HttpResponse.CHUNK_SIZE + 32);
+    text.append("{\"count\":").append(size).append(",\"overflows\":").append(overflows).append(",\"results\":[");
+    for (int i = 0; i < size; i++) {
+      if (i > 0) {
+        text.append(',');
+      }
+      if (overflow[i]) {
+        text.append("null");
+      } else {
+        text.append(products[i]);
+      }
+      if (text.length() >= HttpResponse.CHUNK_SIZE) {
+        out.write(text.toString().getBytes(StandardCharsets.US_ASCII));
+        text.setLength(0);
+      }
+    }
+    text.append("]}");
+    out.write(text.toString().getBytes(StandardCharsets.US_ASCII));
+  }
+
+  /**
+   * Writes the products as big-endian 64 bit integers, followed by a bitmap
+   * of ceil(count / 8) bytes in which bit i % 8 of byte i / 8 is set if
+   * product i overflowed and must be ignored.
+   */
+  void writeBinary(OutputStream out) throws IOException {
+    ByteBuffer chunk = ByteBuffer.allocate(HttpResponse.CHUNK_SIZE);
+    for (int i = 0; i < size; i++) {
+      if (chunk.remaining() < Long.BYTES) {
+        out.write(chunk.array(), 0, chunk.position());
+        chunk.clear();
+      }
+      chunk.putLong(products[i]);
+    }
+    for (int i = 0; i < size; i += 8) {
+      if (!chunk.hasRemaining()) {
+        out.write(chunk.array(), 0, chunk.position());
+        chunk.clear();
+      }
+      int bits = 0;
+      for (int j = i; j < Math.min(i + 8, size); j++) {
+        bits |= (overflow[j] ? 1 : 0) << (j - i);
+      }
+      chunk.put((byte) bits);
+    }
+    out.write(chunk.array(), 0, chunk.position());
+  }
+
+  /**
+   * Reads [[a,b],...] byte by byte into the factor arrays. Only what the
+   * format needs is accepted: integers without fraction or exponent and
+   * JSON whitespace between the tokens.
+   */
+  private static final class JsonPairs {
+    private final ByteBuffer body;
+    private final int end;
+    private int pos;
+
+    JsonPairs(ByteBuffer body) {
+      this.body = body;
+      this.pos = body.position();
+      this.end = body.limit();
+    }
+
+    BatchMultiply parse() {
+      // "[1,2]," is the shortest pair, more cannot be in the body
+      int capacity = Math.min((end - pos) / 6 + 1, 1024);
+      long[] left = new long[capacity];
+      long[] right = new long[capacity];
+      int size = 0;
+
+      expect('[');
+      if (peek() == ']') {
+        pos++;
+      } else {
+        while (true) {
+          if (size == left.length) {
+            left = Arrays.copyOf(left, size * 2);
+            right = Arrays.copyOf(right, size * 2);
+          }
+          expect('[');
+          left[size] = number();
+          expect(',');
+          right[size] = number();
+          expect(']');
+          size++;
+          int next = next();
+          if (next == ']') {
+            break;
+          }
+          if (next != ',') {
+            throw error("',' or ']'");
+          }
+        }
+      }
+      if (peek() != -1) {
+        throw error("the end of the body");
+      }
+      return new BatchMultiply(left, right, size);
+    }
+
+    private long number() {
+      skipSpace();
+      boolean negative = pos < end && body.get(pos) == '-';
+      if (negative) {
+        pos++;
+      }
+      int start = pos;
+      // accumulated negatively, Long.MIN_VALUE has no positive counterpart
+      long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+      long value = 0;
+      while (pos < end) {
+        int digit = body.get(pos) - '0';
+        if (digit < 0 || digit > 9) {
+          break;
+        }
+        if (value < limit / 10 || value * 10 < limit + digit) {
+          throw new IllegalArgumentException("Number at byte " + (start - body.position()) + " does not fit into 64 bits");
+        }
+        value = value * 10 - digit;
+        pos++;
+      }
+      if (pos == start) {
+        throw error("an integer");
+      }
+      if (pos < end && (body.get(pos) == '.' || (body.get(pos) | 0x20) == 'e')) {
+        throw new IllegalArgumentException("Number at byte " + (start - body.position()) + " is not an integer");
+      }
+      return negative ? value : -value;
+    }
+
+    private void expect(char c) {
+      if (next() != c) {
+        throw error("'" + c + "'");
+      }
+    }
+
+    // next byte that is not whitespace, consumed, -1 at the end
+    private int next() {
+      int b = peek();
+      if (b != -1) {
+        pos++;
+      }
+      return b;
+    }
+
+    private int peek() {
+      skipSpace();
+      return pos < end ? body.get(pos) : -1;
+    }
+
+    private void skipSpace() {
+      while (pos < end) {
+        byte b = body.get(pos);
+        if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+          break;
+        }
+        pos++;
+      }
+    }
+
+    private IllegalArgumentException error(String expected) {
+      return new IllegalArgumentException("Expected " + expected + " at byte " + (pos - body.position())
+          + " of the batch, e.g. [[3,4],[5,6]]");
+    }
+  }
+}
@@ -0,0 +1,111 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blocking mode of the fun web server: one thread accepts a socket and serves
+ * it before it accepts the next one.
+ */
+class BlockingServer implements ServerLoop {
+  private final WebServer server;
+  private final int port;
+  private final boolean reusePort;
+
+  private ServerSocket serverSocket;
+  // the socket being served, null between connections
+  private volatile Socket current;
+  private volatile boolean stopping;
+  private final CountDownLatch stopped = new CountDownLatch(1);
+
+  /**
+   * @param server provides the connection handling
+   * @param config port and socket options
+   */
+  BlockingServer(WebServer server, ServerConfig config) {
+    this.server = server;
+    this.port = config.port;
+    this.reusePort = config.reusePort;
+  }
+
+  @Override
+  public void bind() throws IOException {
+    // a channel backed socket, so files can be sent with transferTo
+    serverSocket = ServerSocketChannel.open().socket();
+    serverSocket.setReuseAddress(true);
+    if (reusePort) {
+      WebServer.reusePort(serverSocket);
+    }
+    serverSocket.bind(new InetSocketAddress(port));
+  }
+
+  @Override
+  public int getLocalPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  @Override
+  public void run() throws IOException {
+    System.out.println("Blocking server listening on port " + getLocalPort());
+    try {
+      while (!stopping) {
+        Socket sock;
+        try {
+          sock = serverSocket.accept();
+        } catch (IOException e) {
+          if (stopping) {
+            return;
+          }
+          throw e;
+        }
+        current = sock;
+        // only one thread, so an idle client must not hold on to it
+        server.serveConnection(sock, false);
+        current = null;
+      }
+    } finally {
+      serverSocket.close();
+      stopped.countDown();
+    }
+  }
+
+  @Override
+  public boolean shutdown(long drainMillis) {
+    stopping = true;
+    try {
+      serverSocket.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    Socket sock = current;
+    if (sock != null) {
+      try {
+        // the response being handled still goes out, nothing is read after it
+        sock.shutdownInput();
+      } catch (IOException e) {
+        // already closed
+      }
+    }
+    boolean drained;
+    try {
+      drained = stopped.await(drainMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      drained = false;
+    }
+    sock = current;
+    if (!drained && sock != null) {
+      try {
+        sock.close();
+      } catch (IOException e) {
+        // already closed
+      }
+    }
+    return drained;
+  }
+}
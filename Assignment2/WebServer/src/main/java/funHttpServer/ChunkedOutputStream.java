@@ -0,0 +1,77 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a body with chunked transfer encoding. Data is buffered and sent as
+ * one chunk when the buffer is full or flush() is called. finish() writes
+ * the last, empty chunk but leaves the underlying stream open so the
+ * connection can be reused.
+ */
+class ChunkedOutputStream extends OutputStream {
+  private static final byte[] CRLF = {'\r', '\n'};
+  private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+  private final OutputStream out;
+  private final byte[] buffer;
+  private int count;
+
+  /**
+   * @param out connection stream
+   * @param chunkSize maximum data bytes per chunk
+   */
+  ChunkedOutputStream(OutputStream out, int chunkSize) {
+    this.out = out;
+    this.buffer = new byte[chunkSize];
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (count == buffer.length) {
+      writeChunk();
+    }
+    buffer[count++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      if (count == buffer.length) {
+        writeChunk();
+      }
+      int n = Math.min(len, buffer.length - count);
+      System.arraycopy(b, off, buffer, count, n);
+      count += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    writeChunk();
+    out.flush();
+  }
+
+  /**
+   * Sends the remaining data and the terminating chunk
+   */
+  public void finish() throws IOException {
+    writeChunk();
+    out.write(LAST_CHUNK);
+    out.flush();
+  }
+
+  private void writeChunk() throws IOException {
+    if (count == 0) {
+      return;
+    }
+    out.write(Integer.toHexString(count).getBytes(StandardCharsets.US_ASCII));
+    out.write(CRLF);
+    out.write(buffer, 0, count);
+    out.write(CRLF);
+    count = 0;
+  }
+}
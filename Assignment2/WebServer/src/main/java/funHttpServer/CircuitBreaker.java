@@ -0,0 +1,69 @@
+package funHttpServer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stops calls to a failing dependency. After a number of failures in a row
+ * the breaker opens and rejects all calls for a cool down period. Then a
+ * single trial call is let through: if it succeeds the breaker closes again,
+ * if it fails the breaker stays open for another period.
+ */
+class CircuitBreaker {
+  private final int failureThreshold;
+  private final long coolDownNanos;
+
+  private final AtomicInteger failures = new AtomicInteger();
+  private final AtomicBoolean trialRunning = new AtomicBoolean();
+  private volatile boolean open;
+  private volatile long openUntil;
+
+  /**
+   * @param failureThreshold failures in a row that open the breaker
+   * @param coolDownMillis how long the breaker rejects calls once open
+   */
+  CircuitBreaker(int failureThreshold, long coolDownMillis) {
+    this.failureThreshold = failureThreshold;
+    this.coolDownNanos = coolDownMillis * 1_000_000L;
+  }
+
+  /**
+   * @return true if a call may be made now, the caller must then report the
+   *         outcome with onSuccess() or onFailure()
+   */
+  public boolean allowRequest() {
+    if (!open) {
+      return true;
+    }
+    if (System.nanoTime() - openUntil < 0) {
+      return false;
+    }
+    // cool down is over, let exactly one trial call through
+    return trialRunning.compareAndSet(false, true);
+  }
+
+  public void onSuccess() {
+    failures.set(0);
+    open = false;
+    trialRunning.set(false);
+  }
+
+  public void onFailure() {
+    if (failures.incrementAndGet() >= failureThreshold || trialRunning.get()) {
+      openUntil = System.nanoTime() + coolDownNanos;
+      open = true;
+      trialRunning.set(false);
+    }
+  }
+
+  /**
+   * @return seconds until a trial call will be allowed, 0 if closed
+   */
+  public long retryAfterSeconds() {
+    if (!open) {
+      return 0;
+    }
+    long remaining = openUntil - System.nanoTime();
+    return Math.max(1, (remaining + 999_999_999L) / 1_000_000_000L);
+  }
+}
@@ -0,0 +1,155 @@
+package funHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content-Encoding of response bodies. The encoding is picked from the
+ * Accept-Encoding header of the request; byte bodies are compressed if they
+ * are at least minSize bytes, streamed bodies always because their size is
+ * not known. Bodies that are already compressed (images, or responses that
+ * set their own Content-Encoding) are left alone.
+ */
+class Compression {
+  static final String GZIP = "gzip";
+  static final String DEFLATE = "deflate";
+
+  private final int minSize;
+
+  /**
+   * @param minSize smallest byte body worth compressing
+   */
+  Compression(int minSize) {
+    this.minSize = minSize;
+  }
+
+  /**
+   * @param contentType value of the Content-Type header, may be null
+   * @return true for text formats, compressing images or archives again
+   *         only costs time
+   */
+  static boolean isCompressible(String contentType) {
+    if (contentType == null) {
+      return false;
+    }
+    return contentType.startsWith("text/")
+        || contentType.startsWith("application/json")
+        || contentType.startsWith("application/javascript")
+        || contentType.startsWith("image/svg+xml");
+  }
+
+  /**
+   * Picks the encoding with the highest quality value, gzip if it is a tie.
+   * @param acceptEncoding Accept-Encoding header of the request, may be null
+   * @return gzip, deflate or null if the body has to be sent as is
+   */
+  static String negotiate(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return null;
+    }
+    double gzip = quality(acceptEncoding, GZIP);
+    double deflate = quality(acceptEncoding, DEFLATE);
+    if (gzip > 0 && gzip >= deflate) {
+      return GZIP;
+    }
+    return deflate > 0 ? DEFLATE : null;
+  }
+
+  /**
+   * @param acceptEncoding Accept-Encoding header of the request, may be null
+   * @param coding content coding, e.g. gzip
+   * @return true if the client takes the coding
+   */
+  static boolean accepts(String acceptEncoding, String coding) {
+    return acceptEncoding != null && quality(acceptEncoding, coding) > 0;
+  }
+
+  // q value of the coding, of "*" if the coding is not listed, 0 if neither is
+  private static double quality(String acceptEncoding, String coding) {
+    double wildcard = 0;
+    for (String element : acceptEncoding.split(",")) {
+      int semicolon = element.indexOf(';');
+      String name = (semicolon < 0 ? element : element.substring(0, semicolon)).trim();
+      double q = 1;
+      if (semicolon >= 0) {
+        String param = element.substring(semicolon + 1).trim();
+        if (param.startsWith("q=")) {
+          try {
+            q = Double.parseDouble(param.substring(2));
+          } catch (NumberFormatException e) {
+            q = 0;
+          }
+        }
+      }
+      if (name.equalsIgnoreCase(coding)) {
+        return q;
+      }
+      if (name.equals("*")) {
+        wildcard = q;
+      }
+    }
+    return wildcard;
+  }
+
+  /**
+   * Compresses the body of a response if the client accepts it and it pays
+   * off.
+   * @param request the request, for the Accept-Encoding header
+   * @param response the response of the handler stage
+   * @return the response or a compressed copy of it
+   */
+  HttpResponse apply(HttpRequest request, HttpResponse response) {
+    if (response.getHeader("Content-Encoding") != null
+        || !isCompressible(response.getHeader("Content-Type"))) {
+      return response;
+    }
+    // caches must not hand a compressed copy to a client that cannot read it
+    response.header("Vary", "Accept-Encoding");
+    byte[] body = response.getBody();
+    if (!response.hasStreamBody() && (body == null || body.length < minSize)) {
+      return response;
+    }
+    String encoding = negotiate(request.getHeader("Accept-Encoding"));
+    if (encoding == null) {
+      return response;
+    }
+    if (response.hasStreamBody()) {
+      return response.encodeStream(encoding);
+    }
+    return response.withBody(encode(encoding, body)).header("Content-Encoding", encoding);
+  }
+
+  /**
+   * @param encoding gzip or deflate
+   * @param body bytes to compress
+   * @return the compressed bytes
+   */
+  static byte[] encode(String encoding, byte[] body) {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4 + 64);
+    try (DeflaterOutputStream out = wrap(encoding, compressed)) {
+      out.write(body);
+    } catch (IOException e) {
+      // cannot happen, nothing but memory is written to
+      throw new UncheckedIOException(e);
+    }
+    return compressed.toByteArray();
+  }
+
+  /**
+   * Wraps a stream in a compressor whose flush() sends everything written so
+   * far, so flushing a streamed body still gets the data to the client.
+   * Closing it also closes out.
+   * @param encoding gzip or deflate
+   * @param out receives the compressed bytes
+   */
+  static DeflaterOutputStream wrap(String encoding, OutputStream out) throws IOException {
+    if (encoding.equals(GZIP)) {
+      return new GZIPOutputStream(out, 8 * 1024, true);
+    }
+    return new DeflaterOutputStream(out, true);
+  }
+}
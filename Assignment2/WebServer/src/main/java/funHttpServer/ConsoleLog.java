@@ -0,0 +1,69 @@
+package funHttpServer;
+
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * One line per request on the console, written by a background thread so
+ * request threads never wait for the terminal. If the console cannot keep
+ * up, lines are dropped and counted instead of slowing the server down.
+ */
+class ConsoleLog {
+  private static final int CAPACITY = 4096;
+
+  private final BlockingQueue<String> lines = new ArrayBlockingQueue<>(CAPACITY);
+  private final Metrics metrics;
+
+  /**
+   * Starts the writer thread.
+   * @param out where the lines go, usually System.out
+   * @param metrics counts the dropped lines
+   */
+  ConsoleLog(PrintStream out, Metrics metrics) {
+    this.metrics = metrics;
+    Thread writer = new Thread(() -> {
+      try {
+        while (true) {
+          out.println(lines.take());
+        }
+      } catch (InterruptedException e) {
+        // the server is exiting
+      }
+    }, "console-log");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Waits until the writer thread has printed the lines logged so far, e.g.
+   * before the JVM exits.
+   * @param maxMillis how long to wait at most
+   */
+  void flush(long maxMillis) {
+    long deadline = System.currentTimeMillis() + maxMillis;
+    while (!lines.isEmpty() && System.currentTimeMillis() < deadline) {
+      try {
+        Thread.sleep(10);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Logs a handled request, e.g. "Received: GET /multiply?num1=3&num2=4 -> 200 (0.21 ms)"
+   * @param request the parsed request
+   * @param status status code of the response
+   * @param handleNanos time spent in the handler
+   */
+  void request(HttpRequest request, int status, long handleNanos) {
+    // the strings are made here, the request buffer is reused after the response
+    String line = "Received: " + request.getMethod() + " /" + (request.getTarget() == null ? "" : request.getTarget())
+        + " -> " + status + " (" + handleNanos / 10000 / 100.0 + " ms)";
+    if (!lines.offer(line)) {
+      metrics.logDropped();
+    }
+  }
+}
@@ -0,0 +1,102 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache for file contents and rendered pages, bounded by the total number of
+ * bytes it holds. The least recently used entries are evicted first. Entries
+ * are removed by the owner when the underlying files change.
+ */
+class ContentCache {
+  /**
+   * Produces the bytes for a key on a cache miss
+   */
+  interface Loader {
+    byte[] load() throws IOException;
+  }
+
+  private final long maxBytes;
+  private long totalBytes;
+
+  // access order, so iteration starts at the least recently used entry
+  private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  // bumped on every invalidation so loads that raced with it are not stored
+  private long generation;
+
+  /**
+   * @param maxBytes upper bound for the sum of all cached values, 0 disables caching
+   */
+  ContentCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Returns the cached bytes or loads and caches them. The loader runs
+   * without holding the lock, so two threads may load the same key at once.
+   * @param key cache key
+   * @param loader creates the value on a miss
+   * @return the cached or loaded value
+   */
+  public byte[] get(String key, Loader loader) throws IOException {
+    long loadGeneration;
+    synchronized (this) {
+      byte[] value = entries.get(key);
+      if (value != null) {
+        return value;
+      }
+      loadGeneration = generation;
+    }
+
+    byte[] value = loader.load();
+    if (value.length > maxBytes) {
+      return value;
+    }
+
+    synchronized (this) {
+      if (loadGeneration == generation) {
+        byte[] previous = entries.put(key, value);
+        if (previous != null) {
+          totalBytes -= previous.length;
+        }
+        totalBytes += value.length;
+        evict();
+      }
+    }
+    return value;
+  }
+
+  /**
+   * @return false if the cache was created with a size of 0
+   */
+  public boolean isEnabled() {
+    return maxBytes > 0;
+  }
+
+  /**
+   * Drops all entries, used when the files behind them changed
+   */
+  public synchronized void invalidateAll() {
+    entries.clear();
+    totalBytes = 0;
+    generation++;
+  }
+
+  /**
+   * @return number of bytes currently cached
+   */
+  public synchronized long size() {
+    return totalBytes;
+  }
+
+  private void evict() {
+    Iterator<Map.Entry<String, byte[]>> eldest = entries.entrySet().iterator();
+    while (totalBytes > maxBytes && eldest.hasNext()) {
+      totalBytes -= eldest.next().getValue().length;
+      eldest.remove();
+    }
+  }
+}
@@ -0,0 +1,403 @@
+package funHttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The files and directories below a directory with their size, modification
+ * time and MIME type, so listings do not touch the file system. The tree is
+ * scanned once; after that the owner passes in every changed path from a
+ * DirectoryWatcher and only that path is looked at again. Without a watcher
+ * (live false) every listing scans the tree, as nothing would tell the index
+ * that it is out of date.
+ *
+ * Readers work on an immutable snapshot, an array of all entries sorted by
+ * path, which is built on the first read after a change.
+ */
+final class DirectoryIndex {
+  /** Entries on one page of a listing if the request does not say */
+  static final int PAGE_SIZE = 100;
+
+  /** Most entries on one page */
+  static final int MAX_PAGE_SIZE = 1000;
+
+  /** Order of a listing */
+  enum Sort {
+    NAME(Comparator.comparing((Entry e) -> e.path)),
+    SIZE(Comparator.comparingLong((Entry e) -> e.size).thenComparing(e -> e.path)),
+    MODIFIED(Comparator.comparingLong((Entry e) -> e.modified).thenComparing(e -> e.path));
+
+    final Comparator<Entry> order;
+
+    Sort(Comparator<Entry> order) {
+      this.order = order;
+    }
+  }
+
+  /**
+   * A file or directory, path is relative to the indexed directory with /
+   * as separator
+   */
+  static final class Entry {
+    final String path;
+    final boolean directory;
+    final long size;
+    final long modified;
+    final String type;
+
+    Entry(String path, BasicFileAttributes attributes) {
+      this.path = path;
+      this.directory = attributes.isDirectory();
+      this.size = directory ? 0 : attributes.size();
+      this.modified = attributes.lastModifiedTime().toMillis();
+      this.type = directory ? "directory" : StaticFiles.mimeType(path);
+    }
+
+    /**
+     * @return the last path element
+     */
+    String name() {
+      return path.substring(path.lastIndexOf('/') + 1);
+    }
+  }
+
+  /**
+   * What to list, parsed from the query of a /files request. The string
+   * form has all options in a fixed order, for use as a cache key.
+   */
+  static final class Query {
+    final String dir;
+    final boolean recursive;
+    final Sort sort;
+    final boolean descending;
+    final int page;
+    final int pageSize;
+
+    Query(String dir, boolean recursive, Sort sort, boolean descending, int page, int pageSize) {
+      this.dir = dir;
+      this.recursive = recursive;
+      this.sort = sort;
+      this.descending = descending;
+      this.page = page;
+      this.pageSize = pageSize;
+    }
+
+    /**
+     * @param parameters dir (default the top), recursive=true|false,
+     *        sort=name|size|modified, order=asc|desc, page (from 1) and size
+     * @throws IllegalArgumentException if a value is not one of the above
+     */
+    static Query parse(Map<String, String> parameters) {
+      String dir = parameters.getOrDefault("dir", "");
+      // trimmed of slashes, ".." and "." are never in the index anyway
+      while (dir.startsWith("/")) {
+        dir = dir.substring(1);
+      }
+      while (dir.endsWith("/")) {
+        dir = dir.substring(0, dir.length() - 1);
+      }
+      Sort sort;
+      switch (parameters.getOrDefault("sort", "name")) {
+        case "name":
+          sort = Sort.NAME;
+          break;
+        case "size":
+          sort = Sort.SIZE;
+          break;
+        case "modified":
+          sort = Sort.MODIFIED;
+          break;
+        default:
+          throw new IllegalArgumentException("sort must be name, size or modified");
+      }
+      String order = parameters.getOrDefault("order", "asc");
+      if (!order.equals("asc") && !order.equals("desc")) {
+        throw new IllegalArgumentException("order must be asc or desc");
+      }
+      int page;
+      int size;
+      try {
+        page = Integer.parseInt(parameters.getOrDefault("page", "1"));
+        size = Integer.parseInt(parameters.getOrDefault("size", String.valueOf(PAGE_SIZE)));
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("page and size must be numbers");
+      }
+      if (page < 1 || size < 1 || size > MAX_PAGE_SIZE) {
+        throw new IllegalArgumentException("page must be 1 or more and size between 1 and " + MAX_PAGE_SIZE);
+      }
+      return new Query(dir, Boolean.parseBoolean(parameters.get("recursive")), sort, order.equals("desc"), page, size);
+    }
+
+    // the query string of this listing with another page
+    String link(int otherPage) {
+      return "dir=" + url(dir) + "&recursive=" + recursive + "&sort=" + sort.name().toLowerCase()
+          + "&order=" + (descending ? "desc" : "asc") + "&page=" + otherPage + "&size=" + pageSize;
+    }
+
+    @Override
+    public String toString() {
+      return link(page);
+    }
+  }
+
+  private final Path root;
+  private final boolean live;
+
+  // all entries by path, guarded by this
+  private final TreeMap<String, Entry> entries = new TreeMap<>();
+
+  // entries sorted by path, null after a change until the next read
+  private volatile Entry[] snapshot;
+
+  /**
+   * Scans the directory.
+   * @param root directory to index
+   * @param live true if every change below root is passed to changed()
+   * @throws IOException if the directory cannot be read
+   */
+  DirectoryIndex(Path root, boolean live) throws IOException {
+    this.root = root.toAbsolutePath().normalize();
+    this.live = live;
+    synchronized (this) {
+      scan(this.root);
+    }
+  }
+
+  /**
+   * Updates the index for a changed path, to be called by the watcher.
+   * @param changed created, modified or deleted file or directory, root
+   *        itself to scan everything again
+   */
+  void changed(Path changed) {
+    Path path = changed.toAbsolutePath().normalize();
+    if (!path.startsWith(root)) {
+      return;
+    }
+    try {
+      synchronized (this) {
+        if (path.equals(root)) {
+          entries.clear();
+          scan(root);
+        } else {
+          update(path);
+        }
+        snapshot = null;
+      }
+    } catch (IOException e) {
+      System.out.println("Cannot index " + path + ": " + e.getMessage());
+    }
+  }
+
+  // caller holds the lock
+  private void update(Path path) throws IOException {
+    String key = relative(path);
+    BasicFileAttributes attributes;
+    try {
+      attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+    } catch (NoSuchFileException e) {
+      // deleted, and with a directory everything in it
+      entries.remove(key);
+      entries.subMap(key + "/", key + "0").clear();
+      return;
+    }
+    Entry previous = entries.put(key, new Entry(key, attributes));
+    // a new directory may have filled up before the watcher got to it
+    if (attributes.isDirectory() && (previous == null || !previous.directory)) {
+      scan(path);
+    }
+  }
+
+  // adds everything below start, caller holds the lock
+  private void scan(Path start) throws IOException {
+    Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+        if (!dir.equals(root)) {
+          String key = relative(dir);
+          entries.put(key, new Entry(key, attributes));
+        }
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+        String key = relative(file);
+        entries.put(key, new Entry(key, attributes));
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+        // the root must be readable, files below it may vanish while we walk
+        if (file.equals(start)) {
+          throw e;
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  private String relative(Path path) {
+    return root.relativize(path).toString().replace(File.separatorChar, '/');
+  }
+
+  /**
+   * @return all entries sorted by path
+   */
+  Entry[] snapshot() throws IOException {
+    Entry[] current = snapshot;
+    if (current != null && live) {
+      return current;
+    }
+    synchronized (this) {
+      if (!live) {
+        entries.clear();
+        scan(root);
+        return entries.values().toArray(new Entry[0]);
+      }
+      if (snapshot == null) {
+        snapshot = entries.values().toArray(new Entry[0]);
+      }
+      return snapshot;
+    }
+  }
+
+  /**
+   * @param dir directory relative to the root, "" for the root itself
+   * @param recursive true for everything below dir, false for its direct children
+   * @return the entries sorted by path
+   */
+  Entry[] list(String dir, boolean recursive) throws IOException {
+    Entry[] all = snapshot();
+    // everything below dir is one run in path order: from "dir/" to just before "dir0"
+    String prefix = dir.isEmpty() ? "" : dir + "/";
+    int from = dir.isEmpty() ? 0 : lowerBound(all, prefix);
+    int to = dir.isEmpty() ? all.length : lowerBound(all, dir + "0");
+    if (recursive) {
+      return Arrays.copyOfRange(all, from, to);
+    }
+    return Arrays.stream(all, from, to)
+        .filter(entry -> entry.path.indexOf('/', prefix.length()) < 0)
+        .toArray(Entry[]::new);
+  }
+
+  // index of the first entry whose path is not less than path
+  private static int lowerBound(Entry[] entries, String path) {
+    int low = 0;
+    int high = entries.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (entries[middle].path.compareTo(path) < 0) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * The names in the top directory as an HTML list, for the root page.
+   */
+  String fileList() throws IOException {
+    Entry[] top = list("", false);
+    if (top.length == 0) {
+      return "No files in directory";
+    }
+    StringBuilder builder = new StringBuilder();
+    builder.append("<ul>\n");
+    for (Entry entry : top) {
+      builder.append("<li>").append(escape(entry.name())).append("</li>");
+    }
+    builder.append("</ul>\n");
+    return builder.toString();
+  }
+
+  /**
+   * Renders one page of a listing as an HTML table with a link to every
+   * file and directory and to the neighbouring pages. Pages past the end
+   * render the last page.
+   * @param query what to list
+   * @param filePrefix prefix of the links to files, e.g. /file/www/
+   * @return the page as UTF-8 bytes
+   */
+  byte[] render(Query query, String filePrefix) throws IOException {
+    Entry[] listed = list(query.dir, query.recursive);
+    if (query.sort != Sort.NAME || query.descending) {
+      Arrays.sort(listed, query.descending ? query.sort.order.reversed() : query.sort.order);
+    }
+    // a page past the end shows the last one, its links then lead back into the listing
+    int lastPage = Math.max(1, (listed.length + query.pageSize - 1) / query.pageSize);
+    int page = Math.min(query.page, lastPage);
+    int from = (page - 1) * query.pageSize;
+    int to = Math.min(from + query.pageSize, listed.length);
+
+    StringBuilder html = new StringBuilder(256 + 160 * (to - from));
+    html.append("<html><head><meta charset=\"utf-8\"></head><body>\n<h3>www/").append(escape(query.dir)).append("</h3>\n");
+    if (listed.length == 0) {
+      html.append("<p>No files in directory</p>\n");
+    } else {
+      html.append("<p>").append(from + 1).append(" to ").append(to).append(" of ").append(listed.length)
+          .append(", by ").append(query.sort.name().toLowerCase()).append("</p>\n");
+    }
+    html.append("<table>\n<tr><th>Name</th><th>Size</th><th>Modified</th><th>Type</th></tr>\n");
+    for (int i = from; i < to; i++) {
+      Entry entry = listed[i];
+      String shown = escape(query.dir.isEmpty() ? entry.path : entry.path.substring(query.dir.length() + 1));
+      html.append("<tr><td><a href=\"");
+      if (entry.directory) {
+        html.append("/files?dir=").append(url(entry.path)).append("\">").append(shown).append("/</a></td><td></td>");
+      } else {
+        html.append(filePrefix).append(url(entry.path)).append("\">").append(shown).append("</a></td><td>")
+            .append(entry.size).append("</td>");
+      }
+      html.append("<td>").append(Instant.ofEpochMilli(entry.modified).truncatedTo(ChronoUnit.SECONDS))
+          .append("</td><td>").append(entry.type).append("</td></tr>\n");
+    }
+    html.append("</table>\n<p>");
+    if (page > 1) {
+      html.append("<a href=\"/files?").append(query.link(page - 1)).append("\">previous</a> ");
+    }
+    if (to < listed.length) {
+      html.append("<a href=\"/files?").append(query.link(page + 1)).append("\">next</a>");
+    }
+    html.append("</p>\n</body></html>");
+    return html.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  // percent encoded path for links, slashes are kept
+  private static String url(String path) {
+    return URLEncoder.encode(path, StandardCharsets.UTF_8).replace("+", "%20").replace("%2F", "/");
+  }
+
+  // file names may contain anything that is not a slash
+  private static String escape(String text) {
+    StringBuilder escaped = null;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      String replacement = c == '&' ? "&amp;" : c == '<' ? "&lt;" : c == '>' ? "&gt;" : c == '"' ? "&quot;" : null;
+      if (replacement != null && escaped == null) {
+        escaped = new StringBuilder(text.length() + 16).append(text, 0, i);
+      }
+      if (escaped != null) {
+        escaped.append(replacement != null ? replacement : String.valueOf(c));
+      }
+    }
+    return escaped == null ? text : escaped.toString();
+  }
+}
@@ -0,0 +1,136 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Watches a directory and all directories below it with a WatchService on a
+ * background thread and tells the listeners about every created, changed or
+ * deleted file. Directories created later are watched as well; they are
+ * registered before the listeners hear about them, so a listener that scans
+ * a new directory does not miss files created in it afterwards. Each watcher
+ * holds a WatchService (an inotify instance on Linux) until close().
+ */
+class DirectoryWatcher {
+  private final Path directory;
+  private final WatchService watchService;
+  private final List<Consumer<Path>> listeners = new CopyOnWriteArrayList<>();
+
+  // watched directory of every key, events only carry the file name
+  private final Map<WatchKey, Path> directories = new ConcurrentHashMap<>();
+
+  /**
+   * Starts watching the directory.
+   * @param directory directory to watch
+   * @throws IOException if the directory cannot be watched
+   */
+  DirectoryWatcher(Path directory) throws IOException {
+    this.directory = directory;
+    this.watchService = FileSystems.getDefault().newWatchService();
+    register(directory);
+
+    Thread thread = new Thread(this::run, "watch-" + directory);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * @param listener called with the changed path, or with the directory
+   *        itself if events were lost
+   */
+  public void addListener(Consumer<Path> listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Stops watching and ends the background thread. Listeners are not called
+   * any more once a change being reported right now is through.
+   */
+  public void close() {
+    try {
+      watchService.close();
+    } catch (IOException e) {
+      System.out.println("Cannot stop watching " + directory + ": " + e.getMessage());
+    }
+  }
+
+  // watches the directory and the ones below it, symbolic links are not followed
+  private void register(Path start) throws IOException {
+    Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+        WatchKey key = dir.register(watchService,
+            StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_DELETE,
+            StandardWatchEventKinds.ENTRY_MODIFY);
+        directories.put(key, dir);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+        // the start directory must be watchable, the ones below may vanish meanwhile
+        if (file.equals(start)) {
+          throw e;
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  private void run() {
+    try {
+      while (true) {
+        WatchKey key = watchService.take();
+        Path dir = directories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+          Path changed = dir == null || event.kind() == StandardWatchEventKinds.OVERFLOW
+              ? directory
+              : dir.resolve((Path) event.context());
+          if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+              && Files.isDirectory(changed, LinkOption.NOFOLLOW_LINKS)) {
+            try {
+              register(changed);
+            } catch (IOException e) {
+              // deleted again already, its delete event follows
+            }
+          }
+          for (Consumer<Path> listener : listeners) {
+            // one failing listener must neither stop the others nor the thread
+            try {
+              listener.accept(changed);
+            } catch (RuntimeException e) {
+              System.out.println("Listener failed for " + changed + ": " + e);
+            }
+          }
+        }
+        if (!key.reset()) {
+          // the directory is gone, for one below the top its parent reports that
+          directories.remove(key);
+          if (directory.equals(dir)) {
+            System.out.println("Stopped watching " + directory);
+            return;
+          }
+        }
+      }
+    } catch (InterruptedException | ClosedWatchServiceException e) {
+      // shutting down
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The current exchange rates. Readers get an immutable RateTable and use it
+ * without locking; a refresh builds a complete new table from the provider
+ * and swaps it in, so a conversion never sees half updated rates.
+ */
+class ExchangeRates {
+  private final RateProvider provider;
+  private final AtomicReference<RateTable> table = new AtomicReference<>();
+
+  /**
+   * Loads the rates once.
+   * @param provider source of the rates
+   * @throws IOException if the first load fails
+   */
+  ExchangeRates(RateProvider provider) throws IOException {
+    this.provider = provider;
+    refresh();
+  }
+
+  /**
+   * Loads the rates and replaces the table. The old table stays in use if
+   * loading fails.
+   * @throws IOException if the rates cannot be read or are malformed
+   */
+  void refresh() throws IOException {
+    try {
+      table.set(RateTable.build(provider.load()));
+    } catch (IllegalArgumentException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * @return the latest table, keep using the same one for one request
+   */
+  RateTable current() {
+    return table.get();
+  }
+
+  /**
+   * Refreshes the rates on a background thread.
+   * @param millis time between two refreshes
+   */
+  void refreshEvery(long millis) {
+    ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "exchange-rates");
+      thread.setDaemon(true);
+      return thread;
+    });
+    timer.scheduleWithFixedDelay(() -> {
+      try {
+        refresh();
+      } catch (IOException e) {
+        System.out.println("Keeping the old exchange rates: " + e.getMessage());
+      }
+    }, millis, millis, TimeUnit.MILLISECONDS);
+  }
+}
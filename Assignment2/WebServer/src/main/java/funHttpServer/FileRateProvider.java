@@ -0,0 +1,49 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Reads exchange rates from a JSON file, re-read on every load so the file
+ * can be replaced while the server runs. The format is the one common rate
+ * APIs use, plus optional direct quotes for pairs that should not be
+ * derived through the base currency:
+ * <pre>
+ * {"base": "USD", "rates": {"EUR": 0.85, "GBP": 0.75}, "pairs": {"EUR/USD": 1.18}}
+ * </pre>
+ */
+class FileRateProvider implements RateProvider {
+  private final Path file;
+
+  FileRateProvider(Path file) {
+    this.file = file;
+  }
+
+  @Override
+  public Map<String, Double> load() throws IOException {
+    try {
+      JSONObject json = new JSONObject(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+      Map<String, Double> quotes = new LinkedHashMap<>();
+      String base = json.getString("base");
+      JSONObject rates = json.getJSONObject("rates");
+      for (String currency : rates.keySet()) {
+        quotes.put(base + "/" + currency, rates.getDouble(currency));
+      }
+      JSONObject pairs = json.optJSONObject("pairs");
+      if (pairs != null) {
+        for (String pair : pairs.keySet()) {
+          quotes.put(pair, pairs.getDouble(pair));
+        }
+      }
+      return quotes;
+    } catch (JSONException e) {
+      throw new IOException("Malformed rates file " + file + ": " + e.getMessage(), e);
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package funHttpServer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streaming version of the "/github" page: reads the repository list from
+ * the GitHub response token by token and writes an HTML list item as soon as
+ * one repository is complete. Only full_name, id and owner.login are kept.
+ */
+class GithubRepos {
+  /**
+   * Receives one repository at a time
+   */
+  interface RepoConsumer {
+    void accept(String fullName, String id, String ownerLogin) throws IOException;
+  }
+
+  // list items written before the output is flushed as one chunk
+  private static final int ITEMS_PER_CHUNK = 50;
+
+  /**
+   * Calls the consumer for every repository in a GitHub repository array.
+   * @param json the JSON text
+   * @param consumer called in document order
+   * @throws IOException if the stream fails or is not a repository array
+   */
+  static void forEach(JsonStreamParser json, RepoConsumer consumer) throws IOException {
+    if (json.next() != JsonStreamParser.Token.BEGIN_ARRAY) {
+      throw new IOException("Expected a JSON array");
+    }
+    JsonStreamParser.Token token;
+    while ((token = json.next()) != JsonStreamParser.Token.END_ARRAY) {
+      if (token != JsonStreamParser.Token.BEGIN_OBJECT) {
+        throw new IOException("Expected a repository object");
+      }
+      String fullName = null;
+      String id = null;
+      String ownerLogin = null;
+      while ((token = json.next()) == JsonStreamParser.Token.NAME) {
+        String name = json.text();
+        if (name.equals("full_name") && json.next() == JsonStreamParser.Token.STRING) {
+          fullName = json.text();
+        } else if (name.equals("id") && json.next() == JsonStreamParser.Token.NUMBER) {
+          id = json.text();
+        } else if (name.equals("owner")) {
+          ownerLogin = login(json);
+        } else {
+          json.skipValue();
+        }
+      }
+      if (token != JsonStreamParser.Token.END_OBJECT || fullName == null || id == null || ownerLogin == null) {
+        throw new IOException("Repository without full_name, id or owner.login");
+      }
+      consumer.accept(fullName, id, ownerLogin);
+    }
+  }
+
+  // reads the owner object and returns its login
+  private static String login(JsonStreamParser json) throws IOException {
+    if (json.next() != JsonStreamParser.Token.BEGIN_OBJECT) {
+      return null;
+    }
+    String login = null;
+    while (json.next() == JsonStreamParser.Token.NAME) {
+      if (json.text().equals("login") && json.next() == JsonStreamParser.Token.STRING) {
+        login = json.text();
+      } else {
+        json.skipValue();
+      }
+    }
+    return login;
+  }
+
+  /**
+   * Writes the repository page while reading the upstream body.
+   * @param body the GitHub response body, closed when done
+   * @param out response body stream, flushed after every few repositories
+   */
+  static void render(InputStream body, OutputStream out) throws IOException {
+    Writer html = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    try (InputStream upstream = body) {
+      JsonStreamParser json = new JsonStreamParser(
+          new BufferedReader(new InputStreamReader(upstream, StandardCharsets.UTF_8)));
+      html.write("<html><body><h2>GitHub Repositories</h2><ul>");
+
+      int[] items = {0};
+      try {
+        forEach(json, (fullName, id, ownerLogin) -> {
+          html.append("<li>")
+              .append("Repository: ").append(fullName).append("<br>")
+              .append("ID: ").append(id).append("<br>")
+              .append("Owner: ").append(ownerLogin).append("<br><br>")
+              .append("</li>");
+          if (++items[0] % ITEMS_PER_CHUNK == 0) {
+            html.flush();
+          }
+        });
+      } catch (IOException e) {
+        // the status line is already out, so report the problem in the page
+        html.write("<li>Error parsing GitHub API response.</li>");
+      }
+      html.write("</ul></body></html>");
+    }
+    html.flush();
+  }
+}
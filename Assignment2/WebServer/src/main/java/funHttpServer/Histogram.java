@@ -0,0 +1,98 @@
+package funHttpServer;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with log-linear buckets, in the style of HdrHistogram:
+ * every power of two range is split into 8 equal buckets, so any recorded
+ * value is known within 12.5% no matter whether it is 3 microseconds or 3
+ * seconds. Recording is lock free and does not allocate.
+ */
+class Histogram {
+  // 2^SUB_BITS linear buckets per power of two
+  private static final int SUB_BITS = 3;
+  private static final int SUB_COUNT = 1 << SUB_BITS;
+  private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+
+  /**
+   * @param nanos duration to record, negative values count as 0
+   */
+  void record(long nanos) {
+    long value = Math.max(0, nanos);
+    counts.incrementAndGet(bucket(value));
+    count.increment();
+    sum.add(value);
+  }
+
+  static int bucket(long value) {
+    if (value < SUB_COUNT) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+    return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+  }
+
+  /**
+   * @return the smallest value that falls into the bucket after the given one
+   */
+  static long upperBound(int bucket) {
+    if (bucket < SUB_COUNT) {
+      return bucket + 1;
+    }
+    int exponent = bucket / SUB_COUNT + SUB_BITS - 1;
+    int sub = bucket % SUB_COUNT;
+    long width = 1L << (exponent - SUB_BITS);
+    long bound = (1L << exponent) + (sub + 1) * width;
+    // the last bucket ends at 2^63
+    return bound < 0 ? Long.MAX_VALUE : bound;
+  }
+
+  long getCount() {
+    return count.sum();
+  }
+
+  long getSum() {
+    return sum.sum();
+  }
+
+  /**
+   * @param limit value in nanoseconds
+   * @return number of recorded values whose bucket lies entirely below limit
+   */
+  long countBelow(long limit) {
+    long below = 0;
+    for (int i = 0; i < BUCKETS && upperBound(i) <= limit; i++) {
+      below += counts.get(i);
+    }
+    return below;
+  }
+
+  /**
+   * @param quantile e.g. 0.99
+   * @return upper bound of the bucket that holds the quantile, 0 if nothing
+   *         was recorded
+   */
+  long quantile(double quantile) {
+    long total = 0;
+    long[] snapshot = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    long rank = (long) Math.ceil(quantile * total);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank && seen > 0) {
+        return upperBound(i) - 1;
+      }
+    }
+    return 0;
+  }
+}
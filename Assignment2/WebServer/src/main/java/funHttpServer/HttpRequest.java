@@ -0,0 +1,483 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Result of the parse stage: the request line, the headers and the body of a
+ * single HTTP request. The handler stage only ever looks at this object, so it does
+ * not matter whether the bytes came from a blocking socket stream or from a
+ * non-blocking channel.
+ *
+ * Parsing only records where method, target, query, version and each header
+ * start and end in the head bytes. Strings are created when a handler asks
+ * for a value, and the query is only percent-decoded when the parameters are
+ * read. The head bytes are not copied, so the buffer they are in must not be
+ * reused before the request has been answered.
+ */
+class HttpRequest {
+  /** Upper bound for the request line plus all headers */
+  static final int MAX_HEAD_SIZE = 64 * 1024;
+
+  private static final byte[] GET = {'G', 'E', 'T'};
+  private static final byte[] POST = {'P', 'O', 'S', 'T'};
+  private static final byte[] HTTP_1_1 = {'H', 'T', 'T', 'P', '/', '1', '.', '1'};
+
+  private final byte[] buf;
+
+  // offsets into buf, start inclusive and end exclusive, -1 if missing
+  private int methodStart = -1;
+  private int methodEnd = -1;
+  private int targetStart = -1;
+  private int targetEnd = -1;
+  private int queryStart = -1;
+  private int versionStart = -1;
+  private int versionEnd = -1;
+
+  // name start, name end, value start, value end for each header
+  private int[] headers = new int[4 * 8];
+  private int headerCount;
+
+  // created on first use
+  private String target;
+  private String path;
+  private Map<String, String> parameters;
+
+  // address of the client, set by the server after parsing
+  private InetAddress client;
+
+  // body as read by the connection, may share the buffer of the head
+  private byte[] body;
+  private int bodyStart;
+  private int bodyEnd;
+
+  private HttpRequest(byte[] buf) {
+    this.buf = buf;
+  }
+
+  /**
+   * @return the request method, e.g. GET
+   */
+  public String getMethod() {
+    return methodStart < 0 ? null : string(methodStart, methodEnd);
+  }
+
+  /**
+   * @return everything after the leading "/" up to the HTTP version, e.g.
+   *         "multiply?num1=3&num2=4", or null if there was no GET or POST line
+   */
+  public String getTarget() {
+    if (target == null && targetStart >= 0) {
+      target = string(targetStart, targetEnd);
+    }
+    return target;
+  }
+
+  /**
+   * @return the target without the query, e.g. "multiply", or null if there
+   *         was no GET or POST line
+   */
+  public String getPath() {
+    if (path == null && targetStart >= 0) {
+      path = string(targetStart, queryStart < 0 ? targetEnd : queryStart - 1);
+    }
+    return path;
+  }
+
+  /**
+   * @return the raw query after the "?", empty if there is none
+   */
+  public String getQuery() {
+    return queryStart < 0 ? "" : string(queryStart, targetEnd);
+  }
+
+  /**
+   * Decodes the query on first use, requests that never look at their
+   * parameters do not pay for decoding them.
+   * @return the decoded query parameters in the order they were sent
+   * @throws IllegalArgumentException if the query has a malformed escape
+   */
+  public Map<String, String> getParameters() {
+    if (parameters == null) {
+      parameters = queryStart < 0 ? new LinkedHashMap<>() : decodeQuery(buf, queryStart, targetEnd);
+    }
+    return parameters;
+  }
+
+  /**
+   * @return the protocol version, e.g. HTTP/1.1, or null if not given
+   */
+  public String getVersion() {
+    return versionStart < 0 ? null : string(versionStart, versionEnd);
+  }
+
+  /**
+   * @return the address the request came from, null if not known
+   */
+  public InetAddress getClient() {
+    return client;
+  }
+
+  /**
+   * @param client the address the request came from
+   * @return this request for chaining
+   */
+  HttpRequest setClient(InetAddress client) {
+    this.client = client;
+    return this;
+  }
+
+  /**
+   * @return the body, empty if the request has none. The bytes are not
+   *         copied, see the class comment.
+   */
+  public ByteBuffer getBody() {
+    return body == null ? ByteBuffer.allocate(0) : ByteBuffer.wrap(body, bodyStart, bodyEnd - bodyStart).slice();
+  }
+
+  /**
+   * @param buf buffer the connection read the body into
+   * @param from index of the first byte of the body
+   * @param to index after the last byte of the body
+   * @return this request for chaining
+   */
+  HttpRequest setBody(byte[] buf, int from, int to) {
+    this.body = buf;
+    this.bodyStart = from;
+    this.bodyEnd = to;
+    return this;
+  }
+
+  /**
+   * @return the Content-Length header, 0 if it was not sent, -1 if it is not
+   *         a decimal number that fits into a long
+   */
+  public long getContentLength() {
+    int header = findHeader("Content-Length");
+    if (header < 0) {
+      return 0;
+    }
+    int start = headers[header + 2];
+    int end = headers[header + 3];
+    if (end == start || end - start > 18) {
+      return -1;
+    }
+    long length = 0;
+    for (int i = start; i < end; i++) {
+      int digit = buf[i] - '0';
+      if (digit < 0 || digit > 9) {
+        return -1;
+      }
+      length = length * 10 + digit;
+    }
+    return length;
+  }
+
+  /**
+   * @return true if the client waits for "100 Continue" before it sends the body
+   */
+  public boolean expectsContinue() {
+    int expect = findHeader("Expect");
+    return expect >= 0 && valueEqualsIgnoreCase(expect, "100-continue");
+  }
+
+  /**
+   * HTTP/1.1 connections are persistent unless the client sends
+   * "Connection: close", HTTP/1.0 connections only if the client asks for it.
+   * @return true if the client wants to send more requests on this connection
+   */
+  public boolean isKeepAlive() {
+    int connection = findHeader("Connection");
+    if (versionStart >= 0 && regionMatches(versionStart, versionEnd, HTTP_1_1)) {
+      return connection < 0 || !valueEqualsIgnoreCase(connection, "close");
+    }
+    return connection >= 0 && valueEqualsIgnoreCase(connection, "keep-alive");
+  }
+
+  /**
+   * @param name header name, case insensitive
+   * @return the header value or null if the header was not sent
+   */
+  public String getHeader(String name) {
+    int header = findHeader(name);
+    return header < 0 ? null : string(headers[header + 2], headers[header + 3]);
+  }
+
+  // index of the header with the name in headers, -1 if not sent; if it was
+  // sent more than once the last one counts
+  private int findHeader(String name) {
+    for (int i = (headerCount - 1) * 4; i >= 0; i -= 4) {
+      int start = headers[i];
+      if (headers[i + 1] - start == name.length() && equalsIgnoreCase(start, name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private boolean valueEqualsIgnoreCase(int header, String value) {
+    int start = headers[header + 2];
+    return headers[header + 3] - start == value.length() && equalsIgnoreCase(start, value);
+  }
+
+  // compares ASCII letters without case, s is as long as the region
+  private boolean equalsIgnoreCase(int start, String s) {
+    for (int i = 0; i < s.length(); i++) {
+      int a = buf[start + i];
+      int b = s.charAt(i);
+      if (a != b && ((a | 0x20) != (b | 0x20) || (a | 0x20) < 'a' || (a | 0x20) > 'z')) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean regionMatches(int start, int end, byte[] expected) {
+    return end - start == expected.length && Arrays.equals(buf, start, end, expected, 0, expected.length);
+  }
+
+  private String string(int start, int end) {
+    return new String(buf, start, end - start, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Reads the request head (everything up to and including the empty line)
+   * from a blocking stream. Reads byte by byte so nothing after the head is
+   * consumed from the stream.
+   * @param in socket input stream
+   * @return the raw head bytes, possibly incomplete if the stream ended early
+   */
+  public static byte[] readHead(InputStream in) throws IOException {
+    ByteBuffer head = readHead(in, ByteBuffer.allocate(512));
+    return Arrays.copyOf(head.array(), head.position());
+  }
+
+  /**
+   * Reads the request head into a buffer that is reused for all requests of
+   * a connection, see readHead(InputStream).
+   * @param in socket input stream
+   * @param buf buffer of the previous request, its content is dropped
+   * @return buf or a larger buffer if the head did not fit, holding the head
+   *         between 0 and position(), which is 0 if the stream ended
+   */
+  public static ByteBuffer readHead(InputStream in, ByteBuffer buf) throws IOException {
+    buf.clear();
+    int newlines = 0;
+    int b;
+    while ((b = in.read()) != -1) {
+      if (!buf.hasRemaining()) {
+        if (buf.capacity() >= MAX_HEAD_SIZE) {
+          throw new IOException("Request head too large");
+        }
+        buf = ByteBuffer.allocate(buf.capacity() * 2).put(buf.flip());
+      }
+      buf.put((byte) b);
+      if (b == '\n') {
+        newlines++;
+        if (newlines == 2) {
+          break;
+        }
+      } else if (b != '\r') {
+        newlines = 0;
+      }
+    }
+    return buf;
+  }
+
+  /**
+   * Finds the end of the request head ("\r\n\r\n" or "\n\n") in a buffer.
+   * @param buf bytes received so far
+   * @param from first index to look at
+   * @param to index after the last received byte
+   * @return index just after the empty line or -1 if the head is not complete
+   */
+  public static int headEnd(byte[] buf, int from, int to) {
+    int newlines = 0;
+    for (int i = from; i < to; i++) {
+      byte b = buf[i];
+      if (b == '\n') {
+        newlines++;
+        if (newlines == 2) {
+          return i + 1;
+        }
+      } else if (b != '\r') {
+        newlines = 0;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Parses a request head into a request object.
+   * @param head raw bytes of the request line and headers
+   * @return the parsed request, never null
+   */
+  public static HttpRequest parse(byte[] head) {
+    return parse(head, 0, head.length);
+  }
+
+  /**
+   * Parses a request head in place, the request keeps referring to buf.
+   * @param buf buffer with the raw bytes of the request line and headers
+   * @param from index of the first byte of the head
+   * @param to index after the last byte of the head
+   * @return the parsed request, never null
+   */
+  public static HttpRequest parse(byte[] buf, int from, int to) {
+    HttpRequest request = new HttpRequest(buf);
+    boolean requestLine = true;
+    int lineStart = from;
+    while (lineStart < to) {
+      int newline = indexOf(buf, lineStart, to, (byte) '\n');
+      int next = newline < 0 ? to : newline + 1;
+      int lineEnd = newline < 0 ? to : newline;
+      if (lineEnd > lineStart && buf[lineEnd - 1] == '\r') {
+        lineEnd--;
+      }
+
+      // find end of header("\n\n")
+      if (lineEnd == lineStart) {
+        break;
+      }
+
+      if (requestLine) {
+        request.parseRequestLine(lineStart, lineEnd);
+        requestLine = false;
+      } else {
+        request.parseHeader(lineStart, lineEnd);
+      }
+      lineStart = next;
+    }
+    return request;
+  }
+
+  // parse request line ("GET /<path> HTTP/1.1")
+  private void parseRequestLine(int start, int end) {
+    int firstSpace = indexOf(buf, start, end, (byte) ' ');
+    int secondSpace = firstSpace < 0 ? -1 : indexOf(buf, firstSpace + 1, end, (byte) ' ');
+    if (firstSpace > start) {
+      methodStart = start;
+      methodEnd = firstSpace;
+    }
+    if (secondSpace > 0) {
+      versionStart = skipSpace(secondSpace + 1, end);
+      versionEnd = trimSpace(versionStart, end);
+    }
+    // extract the request, basically everything after the "GET /" up to HTTP/1.1
+    if (methodStart >= 0 && (regionMatches(methodStart, methodEnd, GET) || regionMatches(methodStart, methodEnd, POST))
+        && secondSpace > firstSpace + 1) {
+      targetStart = firstSpace + 2;
+      targetEnd = secondSpace;
+      int query = indexOf(buf, targetStart, targetEnd, (byte) '?');
+      queryStart = query < 0 ? -1 : query + 1;
+    }
+  }
+
+  private void parseHeader(int start, int end) {
+    int colon = indexOf(buf, start, end, (byte) ':');
+    if (colon <= start) {
+      return;
+    }
+    if (headerCount * 4 == headers.length) {
+      headers = Arrays.copyOf(headers, headers.length * 2);
+    }
+    int i = headerCount * 4;
+    headers[i] = skipSpace(start, colon);
+    headers[i + 1] = trimSpace(headers[i], colon);
+    headers[i + 2] = skipSpace(colon + 1, end);
+    headers[i + 3] = trimSpace(headers[i + 2], end);
+    headerCount++;
+  }
+
+  private int skipSpace(int start, int end) {
+    while (start < end && (buf[start] & 0xff) <= ' ') {
+      start++;
+    }
+    return start;
+  }
+
+  private int trimSpace(int start, int end) {
+    while (end > start && (buf[end - 1] & 0xff) <= ' ') {
+      end--;
+    }
+    return end;
+  }
+
+  private static int indexOf(byte[] buf, int from, int to, byte b) {
+    for (int i = from; i < to; i++) {
+      if (buf[i] == b) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Splits a query ("q=hello+world%2Fme&bob=5") into its decoded parameters.
+   * Pairs without a name or without "=" are skipped, a repeated name keeps
+   * the last value.
+   * @param buf bytes of the query, without the "?"
+   * @param from index of the first byte of the query
+   * @param to index after the last byte of the query
+   * @return the parameters in the order they were sent
+   * @throws IllegalArgumentException if an escape is malformed
+   */
+  static Map<String, String> decodeQuery(byte[] buf, int from, int to) {
+    Map<String, String> query_pairs = new LinkedHashMap<>();
+    int pairStart = from;
+    while (pairStart <= to) {
+      int amp = indexOf(buf, pairStart, to, (byte) '&');
+      int pairEnd = amp < 0 ? to : amp;
+      int eq = indexOf(buf, pairStart, pairEnd, (byte) '=');
+      if (eq > pairStart) {  // Ensure that the '=' exists and is not at the start
+        query_pairs.put(decode(buf, pairStart, eq), decode(buf, eq + 1, pairEnd));
+      }
+      pairStart = pairEnd + 1;
+    }
+    return query_pairs;
+  }
+
+  /**
+   * Decodes "+" and %XX escapes like URLDecoder with UTF-8, but copies the
+   * bytes only if there is something to decode.
+   * @throws IllegalArgumentException if an escape is malformed
+   */
+  static String decode(byte[] buf, int from, int to) {
+    int i = from;
+    while (i < to && buf[i] != '%' && buf[i] != '+') {
+      i++;
+    }
+    if (i == to) {
+      return new String(buf, from, to - from, StandardCharsets.UTF_8);
+    }
+
+    byte[] decoded = new byte[to - from];
+    int length = i - from;
+    System.arraycopy(buf, from, decoded, 0, length);
+    for (; i < to; i++) {
+      byte b = buf[i];
+      if (b == '+') {
+        b = ' ';
+      } else if (b == '%') {
+        if (i + 2 >= to) {
+          throw new IllegalArgumentException("Incomplete trailing escape (%) pattern");
+        }
+        int high = Character.digit(buf[i + 1], 16);
+        int low = Character.digit(buf[i + 2], 16);
+        if (high < 0 || low < 0) {
+          throw new IllegalArgumentException("Illegal hex characters in escape (%) pattern");
+        }
+        b = (byte) (high << 4 | low);
+        i += 2;
+      }
+      decoded[length++] = b;
+    }
+    return new String(decoded, 0, length, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,342 @@
+package funHttpServer;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Result of the handler stage. The status line, the framing headers
+ * (Content-Length and Connection) and the body are only put together when
+ * the response is written, because whether the connection stays open is
+ * decided by the connection and not by the handler.
+ *
+ * The body is either a byte array, a region of a file or a stream. File
+ * regions are sent with FileChannel.transferTo so they are not copied
+ * through the heap. Streams are written while they are produced, with
+ * chunked transfer encoding because their length is not known up front.
+ */
+class HttpResponse {
+  /**
+   * Produces a body of unknown length
+   */
+  interface BodyWriter {
+    void writeTo(OutputStream out) throws IOException;
+  }
+
+  /** Data bytes per chunk of a streamed body */
+  static final int CHUNK_SIZE = 8 * 1024;
+
+  static final String HTML = "text/html; charset=utf-8";
+  static final String JSON = "application/json; charset=utf-8";
+  static final String BINARY = "application/octet-stream";
+
+  /** Interim response for clients that wait before sending a request body */
+  static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+  private final int status;
+  private final Map<String, String> headers = new LinkedHashMap<>();
+  private final byte[] body;
+
+  // streamed body, only used if body is null
+  private BodyWriter stream;
+
+  // file body, only used if body and stream are null
+  private Path file;
+  private long fileOffset;
+  private long fileLength;
+
+  /**
+   * @param status HTTP status code, e.g. 200
+   * @param contentType value of the Content-Type header
+   * @param body response body
+   */
+  HttpResponse(int status, String contentType, byte[] body) {
+    this.status = status;
+    this.body = body;
+    headers.put("Content-Type", contentType);
+  }
+
+  /**
+   * Creates an HTML response
+   * @param status HTTP status code
+   * @param body HTML text
+   */
+  static HttpResponse html(int status, String body) {
+    return new HttpResponse(status, HTML, body.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Creates a response whose body is a region of a file
+   * @param status HTTP status code
+   * @param contentType value of the Content-Type header
+   * @param file file to send
+   * @param offset first byte to send
+   * @param length number of bytes to send
+   */
+  static HttpResponse file(int status, String contentType, Path file, long offset, long length) {
+    HttpResponse response = new HttpResponse(status, contentType, null);
+    response.file = file;
+    response.fileOffset = offset;
+    response.fileLength = length;
+    return response;
+  }
+
+  /**
+   * Creates a response whose body is written by the writer while the
+   * response is sent
+   * @param status HTTP status code
+   * @param contentType value of the Content-Type header
+   * @param writer produces the body
+   */
+  static HttpResponse stream(int status, String contentType, BodyWriter writer) {
+    HttpResponse response = new HttpResponse(status, contentType, null);
+    response.stream = writer;
+    return response;
+  }
+
+  /**
+   * Adds or replaces a header
+   * @return this response for chaining
+   */
+  HttpResponse header(String name, String value) {
+    headers.put(name, value);
+    return this;
+  }
+
+  /**
+   * @return a copy of this response with the same status and headers and a
+   *         different byte body
+   */
+  HttpResponse withBody(byte[] newBody) {
+    HttpResponse response = new HttpResponse(status, null, newBody);
+    response.headers.putAll(headers);
+    return response;
+  }
+
+  /**
+   * Compresses the streamed body while it is written and sets the
+   * Content-Encoding header.
+   * @param encoding gzip or deflate
+   * @return this response for chaining
+   */
+  HttpResponse encodeStream(String encoding) {
+    BodyWriter plain = stream;
+    stream = out -> {
+      // closing the compressor must not close the connection stream
+      DeflaterOutputStream compressed = Compression.wrap(encoding, new FilterOutputStream(out) {
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+          out.flush();
+        }
+      });
+      plain.writeTo(compressed);
+      compressed.close();
+    };
+    return header("Content-Encoding", encoding);
+  }
+
+  /**
+   * @param name header name as it was set, e.g. Content-Type
+   * @return the header value or null
+   */
+  public String getHeader(String name) {
+    return headers.get(name);
+  }
+
+  public int getStatus() {
+    return status;
+  }
+
+  /**
+   * @return the body bytes, null if the body is a file region or a stream
+   */
+  public byte[] getBody() {
+    return body;
+  }
+
+  /**
+   * @return true if the body has to be sent from a file
+   */
+  public boolean hasFileBody() {
+    return file != null;
+  }
+
+  /**
+   * @return true if the body is produced while it is sent
+   */
+  public boolean hasStreamBody() {
+    return stream != null;
+  }
+
+  /**
+   * @return number of body bytes, 0 for streamed bodies
+   */
+  public long getContentLength() {
+    return body != null ? body.length : fileLength;
+  }
+
+  /**
+   * Opens the file of a file body for reading. The region to transfer is
+   * given by getFileOffset() and getContentLength().
+   */
+  public FileChannel openFile() throws IOException {
+    return FileChannel.open(file, StandardOpenOption.READ);
+  }
+
+  public long getFileOffset() {
+    return fileOffset;
+  }
+
+  /**
+   * Streamed bodies go to HTTP/1.1 clients in chunks. Older clients do not
+   * know chunks, for them the body ends where the connection is closed.
+   * @param version HTTP version of the request, e.g. HTTP/1.0
+   * @return true if the connection has to be closed after this response
+   */
+  public boolean endsWithClose(String version) {
+    return stream != null && !"HTTP/1.1".equals(version);
+  }
+
+  /**
+   * Serializes the status line and headers.
+   * @param version HTTP version of the request, decides how a streamed body is framed
+   * @param keepAlive whether the connection stays open after this response,
+   *        ignored if endsWithClose(version)
+   * @return the byte encoded head including the empty line
+   */
+  public byte[] head(String version, boolean keepAlive) {
+    boolean untilClose = endsWithClose(version);
+    keepAlive &= !untilClose;
+    StringBuilder head = new StringBuilder();
+    head.append("HTTP/1.1 ").append(status).append(' ').append(reason(status)).append("\r\n");
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+    }
+    if (stream != null) {
+      // without chunks the body is framed by closing the connection
+      if (!untilClose) {
+        head.append("Transfer-Encoding: chunked\r\n");
+      }
+    } else if (status != 304) {
+      // a 304 has no body, its length would describe the unchanged file
+      head.append("Content-Length: ").append(getContentLength()).append("\r\n");
+    }
+    head.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+    head.append("\r\n");
+    return head.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Serializes status line, headers and body. File bodies are read into
+   * memory, use writeTo() to send them without copying.
+   * @param keepAlive whether the connection stays open after this response
+   * @return the byte encoded HTTP response
+   */
+  public byte[] toBytes(boolean keepAlive) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeTo(out, null, "HTTP/1.1", keepAlive);
+    return out.toByteArray();
+  }
+
+  /**
+   * Writes the response to a blocking connection.
+   * @param out socket output stream, flushed before a file body is sent
+   * @param channel channel of the socket for zero-copy file transfer, may be
+   *        null in which case the file goes through the output stream
+   * @param version HTTP version of the request
+   * @param keepAlive whether the connection stays open after this response
+   */
+  public void writeTo(OutputStream out, WritableByteChannel channel, String version, boolean keepAlive)
+      throws IOException {
+    out.write(head(version, keepAlive));
+    if (body != null) {
+      out.write(body);
+      out.flush();
+      return;
+    }
+    if (stream != null) {
+      writeStream(out, version);
+      return;
+    }
+
+    out.flush();
+    WritableByteChannel target = channel != null ? channel : Channels.newChannel(out);
+    try (FileChannel source = openFile()) {
+      long position = fileOffset;
+      long remaining = fileLength;
+      while (remaining > 0) {
+        long sent = source.transferTo(position, remaining, target);
+        if (sent <= 0 && position >= source.size()) {
+          throw new IOException("File shrank while sending " + file);
+        }
+        position += sent;
+        remaining -= sent;
+      }
+    }
+    out.flush();
+  }
+
+  /**
+   * Runs the body writer of a streamed body and encodes its output as chunks.
+   * @param out connection stream, also receives the terminating chunk
+   */
+  public void writeStream(OutputStream out) throws IOException {
+    writeStream(out, "HTTP/1.1");
+  }
+
+  /**
+   * Runs the body writer of a streamed body, its output is encoded as chunks
+   * unless endsWithClose(version).
+   * @param out connection stream
+   * @param version HTTP version of the request
+   */
+  public void writeStream(OutputStream out, String version) throws IOException {
+    if (endsWithClose(version)) {
+      BufferedOutputStream buffered = new BufferedOutputStream(out, CHUNK_SIZE);
+      stream.writeTo(buffered);
+      buffered.flush();
+      return;
+    }
+    ChunkedOutputStream chunked = new ChunkedOutputStream(out, CHUNK_SIZE);
+    stream.writeTo(chunked);
+    chunked.finish();
+  }
+
+  /**
+   * @return the reason phrase for the status codes this server uses
+   */
+  static String reason(int status) {
+    switch (status) {
+      case 200: return "OK";
+      case 206: return "Partial Content";
+      case 304: return "Not Modified";
+      case 400: return "Bad Request";
+      case 404: return "Not Found";
+      case 405: return "Method Not Allowed";
+      case 411: return "Length Required";
+      case 413: return "Content Too Large";
+      case 416: return "Range Not Satisfiable";
+      case 429: return "Too Many Requests";
+      case 500: return "Internal Server Error";
+      case 502: return "Bad Gateway";
+      case 503: return "Service Unavailable";
+      default: return "Unknown";
+    }
+  }
+}
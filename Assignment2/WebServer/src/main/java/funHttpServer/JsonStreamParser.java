@@ -0,0 +1,207 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Pull parser that reads JSON token by token from a stream, so a document
+ * can be processed while it is still arriving and without ever holding all
+ * of it in memory. Only the text of the current token is kept.
+ */
+class JsonStreamParser {
+  enum Token {
+    BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, TRUE, FALSE, NULL, END_DOCUMENT
+  }
+
+  private static final int MAX_DEPTH = 256;
+
+  private final Reader in;
+  private final StringBuilder text = new StringBuilder();
+
+  // true for each open object, false for each open array
+  private final boolean[] objects = new boolean[MAX_DEPTH];
+  private int depth;
+  private boolean expectName;
+  private int peeked = -2;
+
+  /**
+   * @param in JSON text, should be buffered
+   */
+  JsonStreamParser(Reader in) {
+    this.in = in;
+  }
+
+  /**
+   * @return the text of the last NAME, STRING or NUMBER token
+   */
+  public String text() {
+    return text.toString();
+  }
+
+  /**
+   * @return number of objects and arrays that are currently open
+   */
+  public int depth() {
+    return depth;
+  }
+
+  /**
+   * Reads the next token.
+   * @throws IOException if the stream fails or the JSON is malformed
+   */
+  public Token next() throws IOException {
+    return next(true);
+  }
+
+  /**
+   * Skips the value that follows a NAME token, including nested objects
+   * and arrays. Strings inside it are not materialized.
+   */
+  public void skipValue() throws IOException {
+    int start = depth;
+    do {
+      Token token = next(false);
+      if (token == Token.END_DOCUMENT) {
+        throw new IOException("Unexpected end of JSON");
+      }
+    } while (depth > start);
+  }
+
+  private Token next(boolean keepText) throws IOException {
+    while (true) {
+      int c = read();
+      switch (c) {
+        case -1:
+          return Token.END_DOCUMENT;
+        case ' ': case '\t': case '\n': case '\r': case ':':
+          continue;
+        case ',':
+          expectName = depth > 0 && objects[depth - 1];
+          continue;
+        case '{':
+          push(true);
+          expectName = true;
+          return Token.BEGIN_OBJECT;
+        case '[':
+          push(false);
+          return Token.BEGIN_ARRAY;
+        case '}':
+          pop(true);
+          expectName = false;
+          return Token.END_OBJECT;
+        case ']':
+          pop(false);
+          expectName = false;
+          return Token.END_ARRAY;
+        case '"':
+          readString(keepText);
+          if (expectName) {
+            expectName = false;
+            return Token.NAME;
+          }
+          return Token.STRING;
+        case 't':
+          literal("rue");
+          return Token.TRUE;
+        case 'f':
+          literal("alse");
+          return Token.FALSE;
+        case 'n':
+          literal("ull");
+          return Token.NULL;
+        default:
+          if (c == '-' || (c >= '0' && c <= '9')) {
+            readNumber(c);
+            return Token.NUMBER;
+          }
+          throw new IOException("Unexpected character '" + (char) c + "' in JSON");
+      }
+    }
+  }
+
+  private void push(boolean object) throws IOException {
+    if (depth == MAX_DEPTH) {
+      throw new IOException("JSON nested too deeply");
+    }
+    objects[depth++] = object;
+  }
+
+  private void pop(boolean object) throws IOException {
+    if (depth == 0 || objects[depth - 1] != object) {
+      throw new IOException("Unbalanced " + (object ? "}" : "]") + " in JSON");
+    }
+    depth--;
+  }
+
+  private void readString(boolean keep) throws IOException {
+    text.setLength(0);
+    while (true) {
+      int c = in.read();
+      if (c == -1) {
+        throw new IOException("Unterminated string in JSON");
+      }
+      if (c == '"') {
+        return;
+      }
+      if (c == '\\') {
+        c = in.read();
+        switch (c) {
+          case 'b': c = '\b'; break;
+          case 'f': c = '\f'; break;
+          case 'n': c = '\n'; break;
+          case 'r': c = '\r'; break;
+          case 't': c = '\t'; break;
+          case 'u':
+            int code = 0;
+            for (int i = 0; i < 4; i++) {
+              int digit = Character.digit(in.read(), 16);
+              if (digit < 0) {
+                throw new IOException("Bad unicode escape in JSON");
+              }
+              code = code * 16 + digit;
+            }
+            c = code;
+            break;
+          case '"': case '\\': case '/':
+            break;
+          default:
+            throw new IOException("Bad escape in JSON");
+        }
+      }
+      if (keep) {
+        text.append((char) c);
+      }
+    }
+  }
+
+  private void readNumber(int first) throws IOException {
+    text.setLength(0);
+    text.append((char) first);
+    while (true) {
+      int c = in.read();
+      if ((c >= '0' && c <= '9') || c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') {
+        text.append((char) c);
+      } else {
+        peeked = c;
+        return;
+      }
+    }
+  }
+
+  private void literal(String rest) throws IOException {
+    for (int i = 0; i < rest.length(); i++) {
+      if (in.read() != rest.charAt(i)) {
+        throw new IOException("Bad literal in JSON");
+      }
+    }
+  }
+
+  private int read() throws IOException {
+    if (peeked != -2) {
+      int c = peeked;
+      peeked = -2;
+      return c;
+    }
+    return in.read();
+  }
+}
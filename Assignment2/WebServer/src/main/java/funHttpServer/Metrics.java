@@ -0,0 +1,172 @@
+package funHttpServer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request counters and latency histograms of the server, rendered for
+ * /metrics in the Prometheus text format. Each request is timed in three
+ * stages: parse (request head to HttpRequest), handle (route handler,
+ * including the wait for GitHub) and write (response to the socket).
+ */
+class Metrics {
+  /** Stages a request is timed in */
+  enum Stage {
+    PARSE, HANDLE, WRITE;
+
+    final String label = name().toLowerCase(Locale.ROOT);
+  }
+
+  // bucket bounds of the exported histograms, in seconds
+  private static final double[] BUCKETS = {
+      0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+  private final Histogram[] stages = new Histogram[Stage.values().length];
+  private final Map<String, RouteMetrics> routes = new ConcurrentHashMap<>();
+  private final AtomicLongArray statuses = new AtomicLongArray(600);
+  private final LongAdder logDropped = new LongAdder();
+  private final LongAdder accessLogDropped = new LongAdder();
+  private final LongAdder fullHandshakes = new LongAdder();
+  private final LongAdder resumedHandshakes = new LongAdder();
+
+  private static final class RouteMetrics {
+    final LongAdder requests = new LongAdder();
+    final Histogram handle = new Histogram();
+  }
+
+  Metrics() {
+    for (int i = 0; i < stages.length; i++) {
+      stages[i] = new Histogram();
+    }
+  }
+
+  /**
+   * @param stage request stage
+   * @param nanos time spent in the stage
+   */
+  void record(Stage stage, long nanos) {
+    stages[stage.ordinal()].record(nanos);
+  }
+
+  /**
+   * Counts a handled request.
+   * @param route name of the route, e.g. "multiply"
+   * @param status status code of the response
+   * @param handleNanos time spent in the handler
+   */
+  void request(String route, int status, long handleNanos) {
+    RouteMetrics metrics = routes.computeIfAbsent(route, name -> new RouteMetrics());
+    metrics.requests.increment();
+    metrics.handle.record(handleNanos);
+    stages[Stage.HANDLE.ordinal()].record(handleNanos);
+    if (status >= 0 && status < statuses.length()) {
+      statuses.incrementAndGet(status);
+    }
+  }
+
+  /**
+   * Counts a console log line that was dropped because the log was behind
+   */
+  void logDropped() {
+    logDropped.increment();
+  }
+
+  /**
+   * Counts access log entries that were dropped because the writer was
+   * behind or the file could not be written
+   * @param entries number of entries lost
+   */
+  void accessLogDropped(int entries) {
+    accessLogDropped.add(entries);
+  }
+
+  /**
+   * Counts a completed TLS handshake
+   * @param resumed true if an earlier session was resumed
+   */
+  void tlsHandshake(boolean resumed) {
+    (resumed ? resumedHandshakes : fullHandshakes).increment();
+  }
+
+  /**
+   * @return all metrics in the Prometheus text exposition format
+   */
+  byte[] render() {
+    StringBuilder out = new StringBuilder(4096);
+
+    out.append("# HELP funhttp_requests_total Requests handled, by route\n");
+    out.append("# TYPE funhttp_requests_total counter\n");
+    Map<String, RouteMetrics> sorted = new TreeMap<>(routes);
+    for (Map.Entry<String, RouteMetrics> route : sorted.entrySet()) {
+      out.append("funhttp_requests_total{route=\"").append(route.getKey()).append("\"} ")
+          .append(route.getValue().requests.sum()).append('\n');
+    }
+
+    out.append("# HELP funhttp_responses_total Responses sent, by status code\n");
+    out.append("# TYPE funhttp_responses_total counter\n");
+    for (int status = 0; status < statuses.length(); status++) {
+      long count = statuses.get(status);
+      if (count > 0) {
+        out.append("funhttp_responses_total{status=\"").append(status).append("\"} ").append(count).append('\n');
+      }
+    }
+
+    out.append("# HELP funhttp_stage_seconds Time spent per request in each stage\n");
+    out.append("# TYPE funhttp_stage_seconds histogram\n");
+    for (Stage stage : Stage.values()) {
+      histogram(out, "funhttp_stage_seconds", "stage=\"" + stage.label + "\"", stages[stage.ordinal()]);
+    }
+
+    out.append("# HELP funhttp_handle_seconds Time spent in the route handler\n");
+    out.append("# TYPE funhttp_handle_seconds histogram\n");
+    for (Map.Entry<String, RouteMetrics> route : sorted.entrySet()) {
+      histogram(out, "funhttp_handle_seconds", "route=\"" + route.getKey() + "\"", route.getValue().handle);
+    }
+
+    out.append("# HELP funhttp_handle_quantile_seconds Handler time quantiles, within 12.5%\n");
+    out.append("# TYPE funhttp_handle_quantile_seconds gauge\n");
+    for (Map.Entry<String, RouteMetrics> route : sorted.entrySet()) {
+      for (double quantile : QUANTILES) {
+        out.append("funhttp_handle_quantile_seconds{route=\"").append(route.getKey())
+            .append("\",quantile=\"").append(quantile).append("\"} ")
+            .append(seconds(route.getValue().handle.quantile(quantile))).append('\n');
+      }
+    }
+
+    out.append("# HELP funhttp_log_dropped_total Console log lines dropped because the log was behind\n");
+    out.append("# TYPE funhttp_log_dropped_total counter\n");
+    out.append("funhttp_log_dropped_total ").append(logDropped.sum()).append('\n');
+
+    out.append("# HELP funhttp_access_log_dropped_total Access log entries dropped because the writer was behind\n");
+    out.append("# TYPE funhttp_access_log_dropped_total counter\n");
+    out.append("funhttp_access_log_dropped_total ").append(accessLogDropped.sum()).append('\n');
+
+    out.append("# HELP funhttp_tls_handshakes_total TLS handshakes, resumed ones skip the key exchange\n");
+    out.append("# TYPE funhttp_tls_handshakes_total counter\n");
+    out.append("funhttp_tls_handshakes_total{resumed=\"false\"} ").append(fullHandshakes.sum()).append('\n');
+    out.append("funhttp_tls_handshakes_total{resumed=\"true\"} ").append(resumedHandshakes.sum()).append('\n');
+
+    return out.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static void histogram(StringBuilder out, String name, String labels, Histogram histogram) {
+    for (double bound : BUCKETS) {
+      out.append(name).append("_bucket{").append(labels).append(",le=\"").append(bound).append("\"} ")
+          .append(histogram.countBelow((long) (bound * 1e9))).append('\n');
+    }
+    long count = histogram.getCount();
+    out.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(count).append('\n');
+    out.append(name).append("_sum{").append(labels).append("} ").append(seconds(histogram.getSum())).append('\n');
+    out.append(name).append("_count{").append(labels).append("} ").append(count).append('\n');
+  }
+
+  private static double seconds(long nanos) {
+    return nanos / 1e9;
+  }
+}
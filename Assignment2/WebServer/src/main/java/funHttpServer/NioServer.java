@@ -0,0 +1,676 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking mode of the fun web server. A single selector thread accepts
+ * connections, reads requests and writes responses for all clients. Only
+ * the handler stage runs on a small worker pool, and the GitHub route does
+ * not even occupy a worker while it waits for the upstream, so a slow
+ * handler never stops other connections from being served.
+ *
+ * Connections are persistent. Pipelined requests are buffered and handled one
+ * after the other so the responses go out in the order of the requests. File
+ * bodies are sent with FileChannel.transferTo as the socket becomes writable.
+ * Streamed bodies are produced by a worker and queued chunk by chunk.
+ */
+class NioServer implements ServerLoop {
+  // how often idle connections are looked for
+  private static final long SWEEP_INTERVAL = 1000;
+
+  // how often the connections are checked while draining on shutdown
+  private static final long DRAIN_POLL = 50;
+
+  // chunks of a streamed body that may wait for a slow client
+  private static final int MAX_QUEUED_CHUNKS = 16;
+
+  // markers for the end of a streamed body
+  private static final ByteBuffer END_OF_STREAM = ByteBuffer.allocate(0);
+  private static final ByteBuffer FAILED_STREAM = ByteBuffer.allocate(0);
+
+  private final WebServer server;
+  private final int port;
+  private final boolean reusePort;
+  private final int idleTimeout;
+  private final int maxRequests;
+  private final ExecutorService workers;
+  private final Metrics metrics;
+  // null for plain HTTP
+  private final TlsContext tls;
+
+  // connections whose response is ready, handed over from the workers
+  private final Queue<Connection> completed = new ConcurrentLinkedQueue<>();
+  // TLS connections whose handshake work finished on a worker
+  private final Queue<SocketChannel> handshaking = new ConcurrentLinkedQueue<>();
+  private Selector selector;
+  private ServerSocketChannel serverChannel;
+
+  // set by shutdown(), the selector thread drains until drainDeadline
+  private volatile boolean stopping;
+  private volatile long drainDeadline;
+  private volatile boolean drained;
+  private final CountDownLatch stopped = new CountDownLatch(1);
+
+  // connections accepted by this loop, only written by the selector thread
+  private volatile long accepted;
+
+  /**
+   * @param server provides the parse and handler stages
+   * @param config port, socket options, number of worker threads and connection limits
+   */
+  NioServer(WebServer server, ServerConfig config) {
+    this.server = server;
+    this.port = config.port;
+    this.reusePort = config.reusePort;
+    this.idleTimeout = config.idleTimeout;
+    this.maxRequests = config.maxRequests;
+    this.metrics = server.getMetrics();
+    this.tls = server.getTls();
+    AtomicInteger count = new AtomicInteger();
+    this.workers = Executors.newFixedThreadPool(config.workers, r -> {
+      Thread t = new Thread(r, "nio-worker-" + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  @Override
+  public void bind() throws IOException {
+    selector = Selector.open();
+    serverChannel = ServerSocketChannel.open();
+    if (reusePort) {
+      WebServer.reusePort(serverChannel.socket());
+    }
+    serverChannel.bind(new InetSocketAddress(port));
+    serverChannel.configureBlocking(false);
+    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+  }
+
+  @Override
+  public int getLocalPort() {
+    return serverChannel.socket().getLocalPort();
+  }
+
+  /**
+   * Event loop, runs until shutdown() has drained the connections or the
+   * selector or server channel fails.
+   */
+  @Override
+  public void run() throws IOException {
+    if (selector == null) {
+      bind();
+    }
+    System.out.println("NIO server listening on port " + getLocalPort());
+    try {
+      long lastSweep = System.currentTimeMillis();
+      while (true) {
+        selector.select(stopping ? DRAIN_POLL : SWEEP_INTERVAL);
+        registerCompleted();
+        resumeHandshakes();
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          try {
+            if (!key.isValid()) {
+              continue;
+            }
+            if (key.isAcceptable()) {
+              accept(serverChannel);
+              continue;
+            }
+            if (key.isReadable()) {
+              read(key);
+            }
+            if (key.isValid() && key.isWritable()) {
+              write(key);
+            }
+          } catch (IOException e) {
+            close(key);
+          }
+        }
+
+        long now = System.currentTimeMillis();
+        if (stopping && drain(now)) {
+          return;
+        }
+        if (now - lastSweep >= SWEEP_INTERVAL) {
+          closeIdle(now);
+          lastSweep = now;
+        }
+      }
+    } finally {
+      for (SelectionKey key : selector.keys()) {
+        close(key);
+      }
+      serverChannel.close();
+      workers.shutdownNow();
+      selector.close();
+      stopped.countDown();
+    }
+  }
+
+  @Override
+  public boolean shutdown(long drainMillis) {
+    if (selector == null) {
+      return true;
+    }
+    drainDeadline = System.currentTimeMillis() + drainMillis;
+    stopping = true;
+    selector.wakeup();
+    try {
+      // the selector thread gives up on busy connections at the deadline
+      stopped.await(drainMillis + SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return drained;
+  }
+
+  /**
+   * @return number of connections this loop has accepted
+   */
+  long getAccepted() {
+    return accepted;
+  }
+
+  /**
+   * Runs on the selector thread while stopping: stops accepting and closes
+   * connections that are not in the middle of a request. Connections close
+   * after their current response.
+   * @return true once no connection is left or the drain time is up
+   */
+  private boolean drain(long now) {
+    if (serverChannel.isOpen()) {
+      close(serverChannel.keyFor(selector));
+    }
+    boolean busy = false;
+    for (SelectionKey key : selector.keys()) {
+      if (key.attachment() instanceof Connection) {
+        Connection conn = (Connection) key.attachment();
+        if (conn.isIdle()) {
+          close(key);
+        } else {
+          busy = true;
+        }
+      }
+    }
+    drained = !busy;
+    return !busy || now >= drainDeadline;
+  }
+
+  private void accept(ServerSocketChannel serverChannel) throws IOException {
+    SocketChannel channel;
+    // drain the backlog, there may be more than one pending connection
+    while ((channel = serverChannel.accept()) != null) {
+      channel.configureBlocking(false);
+      // the head and a file body are separate writes, Nagle would hold back
+      // the second one until the client's delayed ACK
+      channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      accepted++;
+      // the key exchange and certificate work must not hold up the other connections
+      SocketChannel client = channel;
+      TlsChannel secure = tls == null ? null : tls.newChannel(channel, channel, workers, () -> {
+        handshaking.add(client);
+        selector.wakeup();
+      });
+      channel.register(selector, SelectionKey.OP_READ, new Connection(channel, secure));
+    }
+  }
+
+  private void read(SelectionKey key) throws IOException {
+    Connection conn = (Connection) key.attachment();
+    int read;
+    do {
+      if (!conn.in.hasRemaining()) {
+        conn.growInput();
+      }
+      read = conn.io.read(conn.in);
+      // TLS may have decrypted more than fit, the socket will not signal it again
+    } while (read > 0 && !conn.in.hasRemaining() && conn.tls != null && conn.tls.hasBufferedInput());
+    if (read == -1) {
+      close(key);
+      return;
+    }
+    conn.lastActive = System.currentTimeMillis();
+    dispatch(key, conn);
+    if (conn.tls != null && !conn.tls.flush()) {
+      // handshake bytes the socket did not take yet, write() sends them
+      key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+    }
+  }
+
+  /**
+   * Hands the next complete request of a connection to a worker, unless one
+   * is still being handled. The head is parsed here, it only records
+   * offsets, so the connection knows how many body bytes to wait for.
+   */
+  private void dispatch(SelectionKey key, Connection conn) {
+    if (conn.inFlight) {
+      return;
+    }
+    if (conn.request == null) {
+      int end = HttpRequest.headEnd(conn.in.array(), 0, conn.in.position());
+      if (end < 0) {
+        key.interestOps(SelectionKey.OP_READ);
+        return;
+      }
+      long parseStart = System.nanoTime();
+      HttpRequest request = HttpRequest.parse(conn.in.array(), 0, end).setClient(conn.client);
+      metrics.record(Metrics.Stage.PARSE, System.nanoTime() - parseStart);
+      conn.served++;
+      HttpResponse rejected = server.rejectBody(request);
+      if (rejected != null) {
+        // the body is not read, so the connection cannot be used any more
+        conn.inFlight = true;
+        conn.setResponse(rejected, request.getVersion(), false);
+        conn.responding = true;
+        key.interestOps(SelectionKey.OP_WRITE);
+        return;
+      }
+      conn.request = request;
+      conn.headLength = end;
+      conn.requestLength = end + (int) request.getContentLength();
+      if (conn.in.position() < conn.requestLength && request.expectsContinue()) {
+        conn.out = ByteBuffer.wrap(HttpResponse.CONTINUE);
+        conn.interim = true;
+        conn.responding = true;
+        key.interestOps(SelectionKey.OP_WRITE);
+        return;
+      }
+    }
+    if (conn.in.position() < conn.requestLength) {
+      // the body is not complete yet
+      key.interestOps(SelectionKey.OP_READ);
+      return;
+    }
+
+    // stop reading until this request has been answered, so the head and
+    // body stay in place and are only dropped from the buffer after the response
+    HttpRequest request = conn.request.setBody(conn.in.array(), conn.headLength, conn.requestLength);
+    conn.request = null;
+    conn.inFlight = true;
+    boolean keepAlive = request.isKeepAlive() && conn.served < maxRequests && !stopping;
+    key.interestOps(0);
+    workers.execute(() -> {
+      CompletableFuture<HttpResponse> future;
+      try {
+        future = server.handleAsync(request);
+      } catch (RuntimeException e) {
+        future = CompletableFuture.failedFuture(e);
+      }
+      // asynchronous routes complete on another thread, the worker is free right away
+      future.whenComplete((handled, error) -> {
+        // handleAsync answers failures itself; should it fail anyway the
+        // connection still gets an answer instead of staying in flight
+        if (error != null) {
+          error.printStackTrace();
+        }
+        HttpResponse response = error == null ? handled
+            : HttpResponse.html(500, "<html>ERROR: the request could not be handled</html>");
+        conn.setResponse(response, request.getVersion(), keepAlive && error == null);
+        completed.add(conn);
+        selector.wakeup();
+        if (response.hasStreamBody()) {
+          workers.execute(() -> produce(conn, response, request.getVersion()));
+        }
+      });
+    });
+  }
+
+  /**
+   * Runs the body writer of a streamed response on a worker and hands the
+   * encoded chunks to the selector thread. Blocks while the connection has
+   * too many chunks queued, so a slow client slows down the producer.
+   */
+  private void produce(Connection conn, HttpResponse response, String version) {
+    ByteBuffer last = END_OF_STREAM;
+    try {
+      response.writeStream(new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+          write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          queueChunk(conn, ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len)));
+        }
+      }, version);
+    } catch (IOException e) {
+      last = FAILED_STREAM;
+    }
+    try {
+      queueChunk(conn, last);
+    } catch (IOException e) {
+      // connection is gone already
+    }
+  }
+
+  private void queueChunk(Connection conn, ByteBuffer chunk) throws IOException {
+    try {
+      while (!conn.chunks.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+        if (conn.closed) {
+          throw new IOException("Connection closed");
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+    completed.add(conn);
+    selector.wakeup();
+  }
+
+  private void registerCompleted() {
+    Connection conn;
+    while ((conn = completed.poll()) != null) {
+      SelectionKey key = conn.channel.keyFor(selector);
+      if (key != null && key.isValid()) {
+        if (!conn.responding) {
+          // the idle timeout for writing starts with the response
+          conn.lastActive = System.currentTimeMillis();
+        }
+        conn.responding = true;
+        key.interestOps(SelectionKey.OP_WRITE);
+      }
+    }
+  }
+
+  // the client waits for the handshake messages that the finished tasks made
+  // possible, so it sends nothing that would make the key readable
+  private void resumeHandshakes() {
+    SocketChannel channel;
+    while ((channel = handshaking.poll()) != null) {
+      SelectionKey key = channel.keyFor(selector);
+      if (key == null || !key.isValid()) {
+        continue;
+      }
+      try {
+        if (((Connection) key.attachment()).responding) {
+          key.interestOps(SelectionKey.OP_WRITE);
+        } else {
+          read(key);
+        }
+      } catch (IOException e) {
+        close(key);
+      }
+    }
+  }
+
+  private void write(SelectionKey key) throws IOException {
+    Connection conn = (Connection) key.attachment();
+    if (conn.tls != null && !conn.tls.flush()) {
+      return;
+    }
+    if (!conn.responding) {
+      // only TLS handshake bytes were waiting
+      key.interestOps(conn.inFlight ? 0 : SelectionKey.OP_READ);
+      return;
+    }
+    if (conn.out.hasRemaining()) {
+      wrote(conn, conn.io.write(conn.out));
+      if (conn.out.hasRemaining()) {
+        return;
+      }
+    }
+    if (conn.interim) {
+      // 100 Continue is out, now the client sends the body
+      if (conn.tls != null && !conn.tls.flush()) {
+        return;
+      }
+      conn.interim = false;
+      conn.responding = false;
+      conn.out = null;
+      dispatch(key, conn);
+      return;
+    }
+    while (conn.chunks != null) {
+      ByteBuffer chunk = conn.chunks.poll();
+      if (chunk == null) {
+        // wait until the producer queued the next chunk
+        key.interestOps(0);
+        return;
+      }
+      if (chunk == FAILED_STREAM) {
+        // the status line is out already, all we can do is cut the connection
+        close(key);
+        return;
+      }
+      if (chunk == END_OF_STREAM) {
+        conn.chunks = null;
+        break;
+      }
+      conn.out = chunk;
+      wrote(conn, conn.io.write(conn.out));
+      if (conn.out.hasRemaining()) {
+        return;
+      }
+    }
+    if (conn.file != null) {
+      // zero-copy, the kernel moves the file pages to the socket; with TLS
+      // the pages are copied through the encryption instead
+      long sent = conn.file.transferTo(conn.filePosition, conn.fileRemaining, conn.io);
+      if (sent == 0 && conn.filePosition >= conn.file.size()) {
+        // the file shrank while sending, the promised length cannot be met
+        close(key);
+        return;
+      }
+      wrote(conn, sent);
+      conn.filePosition += sent;
+      conn.fileRemaining -= sent;
+      if (conn.fileRemaining > 0) {
+        return;
+      }
+      conn.closeFile();
+    }
+
+    if (conn.tls != null && !conn.tls.flush()) {
+      return;
+    }
+
+    // from the response being ready to its last byte handed to the socket
+    metrics.record(Metrics.Stage.WRITE, System.nanoTime() - conn.responseReady);
+    conn.responding = false;
+    if (conn.closeAfterWrite || stopping) {
+      close(key);
+      return;
+    }
+    conn.out = null;
+    conn.dropRequest();
+    conn.inFlight = false;
+    conn.lastActive = System.currentTimeMillis();
+    // answer the next pipelined request or wait for more input
+    if (conn.tls != null && conn.tls.hasBufferedInput()) {
+      read(key);
+    } else {
+      dispatch(key, conn);
+    }
+  }
+
+  // a client that takes the response is active, one that stopped reading is not
+  private static void wrote(Connection conn, long bytes) {
+    if (bytes > 0) {
+      conn.lastActive = System.currentTimeMillis();
+    }
+  }
+
+  // closes connections idle between requests, and those whose client has not
+  // taken any of the response for the idle timeout; a handler or a stream
+  // producer may take as long as it needs
+  private void closeIdle(long now) {
+    for (SelectionKey key : selector.keys()) {
+      Object attachment = key.attachment();
+      if (attachment instanceof Connection) {
+        Connection conn = (Connection) attachment;
+        boolean stalled = conn.responding && (key.interestOps() & SelectionKey.OP_WRITE) != 0;
+        if ((!conn.inFlight || stalled) && now - conn.lastActive > idleTimeout) {
+          close(key);
+        }
+      }
+    }
+  }
+
+  private void close(SelectionKey key) {
+    key.cancel();
+    if (key.attachment() instanceof Connection) {
+      Connection conn = (Connection) key.attachment();
+      conn.closed = true;
+      conn.closeFile();
+      if (conn.tls != null) {
+        try {
+          conn.tls.close();
+        } catch (IOException e) {
+          // closing anyway
+        }
+      }
+    }
+    try {
+      key.channel().close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Per connection state. Only touched by the selector thread, except for the
+   * response fields which a worker sets before queueing the connection in
+   * completed (the queue makes them visible to the selector thread).
+   */
+  private static class Connection {
+    final SocketChannel channel;
+    // the channel itself or its TLS layer
+    final ByteChannel io;
+    final TlsChannel tls;
+    final InetAddress client;
+    ByteBuffer in = ByteBuffer.allocate(1024);
+    // head parsed while its body is being read, null otherwise
+    HttpRequest request;
+    ByteBuffer out;
+    FileChannel file;
+    long filePosition;
+    long fileRemaining;
+    // chunks of a streamed body, filled by a worker
+    BlockingQueue<ByteBuffer> chunks;
+    volatile boolean closed;
+    boolean closeAfterWrite;
+    boolean inFlight;
+    // a response is being written, set by the selector thread
+    boolean responding;
+    // length of the head at the start of in, and of head and body
+    int headLength;
+    int requestLength;
+    // 100 Continue is being written, not the response
+    boolean interim;
+    int served;
+    // System.nanoTime() when the response was handed over
+    long responseReady;
+    long lastActive = System.currentTimeMillis();
+
+    Connection(SocketChannel channel, TlsChannel tls) {
+      this.channel = channel;
+      this.tls = tls;
+      this.io = tls != null ? tls : channel;
+      this.client = channel.socket().getInetAddress();
+    }
+
+    /**
+     * Prepares the response for writing. Byte bodies are copied behind the
+     * head, file bodies are opened and sent from the file later, streamed
+     * bodies get a queue that a worker fills.
+     * @param version HTTP version of the request
+     */
+    void setResponse(HttpResponse response, String version, boolean keepAlive) {
+      responseReady = System.nanoTime();
+      if (response.hasStreamBody()) {
+        chunks = new ArrayBlockingQueue<>(MAX_QUEUED_CHUNKS);
+        closeAfterWrite = !keepAlive || response.endsWithClose(version);
+        out = ByteBuffer.wrap(response.head(version, keepAlive));
+        return;
+      }
+      if (response.hasFileBody()) {
+        try {
+          file = response.openFile();
+          filePosition = response.getFileOffset();
+          fileRemaining = response.getContentLength();
+          closeAfterWrite = !keepAlive;
+          out = ByteBuffer.wrap(response.head(version, keepAlive));
+          return;
+        } catch (IOException e) {
+          e.printStackTrace();
+          response = HttpResponse.html(500, "<html>ERROR: " + e.getMessage() + "</html>");
+        }
+      }
+      byte[] head = response.head(version, keepAlive);
+      byte[] body = response.getBody();
+      closeAfterWrite = !keepAlive;
+      out = ByteBuffer.allocate(head.length + body.length);
+      out.put(head).put(body).flip();
+    }
+
+    // nothing received of a next request and nothing being answered
+    boolean isIdle() {
+      return !inFlight && !responding && request == null && in.position() == 0;
+    }
+
+    void closeFile() {
+      if (file != null) {
+        try {
+          file.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+        file = null;
+      }
+    }
+
+    // keeps only what the client pipelined after the answered request
+    void dropRequest() {
+      in.flip();
+      in.position(requestLength);
+      in.compact();
+      headLength = 0;
+      requestLength = 0;
+      if (in.capacity() > HttpRequest.MAX_HEAD_SIZE && in.position() <= 1024) {
+        // a large body is done, do not keep its buffer for an idle connection
+        in = ByteBuffer.allocate(1024).put(in.flip());
+      }
+    }
+
+    // room for more input: the rest of the body, or more of the head up to its limit
+    void growInput() throws IOException {
+      if (requestLength <= in.capacity() && in.capacity() >= HttpRequest.MAX_HEAD_SIZE) {
+        throw new IOException("Request head too large");
+      }
+      ByteBuffer bigger = ByteBuffer.allocate(Math.max(in.capacity() * 2, requestLength));
+      in.flip();
+      bigger.put(in);
+      in = bigger;
+    }
+  }
+}
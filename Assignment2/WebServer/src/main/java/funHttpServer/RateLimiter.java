@@ -0,0 +1,65 @@
+package funHttpServer;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Token bucket limiter for many keys, e.g. client addresses. Keys are hashed
+ * onto a fixed number of stripes, each stripe is one bucket stored as a
+ * single long: the time at which the bucket will be full again. Taking a
+ * token is one compare-and-set on that long, there are no locks and nothing
+ * is allocated, and unlike a map of buckets the memory does not grow with
+ * the number of clients. Keys that share a stripe share its tokens, so a
+ * limiter is a little stricter than configured when many keys are active.
+ */
+class RateLimiter {
+  // longs per stripe, puts every stripe on its own cache line
+  private static final int PAD = 8;
+
+  private final long interval;
+  private final long tolerance;
+  private final int shift;
+  private final AtomicLongArray stripes;
+  private final long origin = System.nanoTime();
+
+  /**
+   * @param perSecond tokens added per second
+   * @param burst tokens the bucket holds, requests that may come at once
+   * @param stripes number of buckets, rounded up to a power of two
+   */
+  RateLimiter(double perSecond, int burst, int stripes) {
+    if (perSecond <= 0 || burst < 1 || stripes < 1) {
+      throw new IllegalArgumentException("Rate and burst must be positive");
+    }
+    this.interval = Math.max(1, (long) (1e9 / perSecond));
+    this.tolerance = interval * (burst - 1);
+    int bits = 32 - Integer.numberOfLeadingZeros(stripes - 1);
+    this.shift = 32 - bits;
+    this.stripes = new AtomicLongArray((1 << bits) * PAD);
+  }
+
+  /**
+   * Takes a token from the bucket of the key.
+   * @param key hash of the key, e.g. of the client address
+   * @return 0 if a token was taken, otherwise nanoseconds until the next
+   *         token is available
+   */
+  long tryAcquire(int key) {
+    return tryAcquire(key, System.nanoTime() - origin);
+  }
+
+  long tryAcquire(int key, long now) {
+    // multiplicative hash, the top bits select the stripe
+    int index = shift == 32 ? 0 : ((key * 0x9E3779B9) >>> shift) * PAD;
+    while (true) {
+      long full = stripes.get(index);
+      long start = Math.max(full, now);
+      // the bucket holds burst tokens, it is empty once it is full that far ahead
+      if (start - now > tolerance) {
+        return start - now - tolerance;
+      }
+      if (stripes.compareAndSet(index, full, start + interval)) {
+        return 0;
+      }
+    }
+  }
+}
@@ -0,0 +1,29 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Source of exchange rates for /convertCurrency. A provider only reports
+ * quotes, RateTable turns them into a matrix of all pairs.
+ */
+interface RateProvider {
+  /**
+   * @return exchange rates keyed by pair, e.g. "USD/EUR" -> 0.85 means one
+   *         USD buys 0.85 EUR
+   * @throws IOException if the rates cannot be read
+   */
+  Map<String, Double> load() throws IOException;
+
+  /**
+   * @return the rates the server had before rates could be configured
+   */
+  static RateProvider builtIn() {
+    Map<String, Double> quotes = new LinkedHashMap<>();
+    quotes.put("USD/EUR", 0.85);
+    quotes.put("EUR/USD", 1.18);
+    quotes.put("USD/GBP", 0.75);
+    return () -> quotes;
+  }
+}
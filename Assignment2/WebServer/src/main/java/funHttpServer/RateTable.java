@@ -0,0 +1,168 @@
+package funHttpServer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the exchange rates between all known currencies.
+ * Currency codes are packed into a number from their three letters, which
+ * indexes a small array holding the row of the currency in a dense rate
+ * matrix. Looking up a rate is two array reads: no locks, no maps and no
+ * string comparisons, and the code does not even have to be upper case.
+ *
+ * Rates of pairs that were not quoted are derived through the pivot, the
+ * base currency of the first quote: EUR to GBP is USD to GBP divided by
+ * USD to EUR. Quoted pairs keep their quoted rate.
+ */
+class RateTable {
+  // three letters, A to Z
+  private static final int CODES = 26 * 26 * 26;
+
+  private final String[] codes;
+  private final double[][] matrix;
+  // row of the currency + 1 by packed code, 0 for unknown currencies
+  private final short[] rows;
+
+  private RateTable(String[] codes, double[][] matrix, short[] rows) {
+    this.codes = codes;
+    this.matrix = matrix;
+    this.rows = rows;
+  }
+
+  /**
+   * @param quotes rates by pair, e.g. "USD/EUR" -> 0.85
+   * @return the table with all pairs that can be derived from the quotes
+   * @throws IllegalArgumentException on malformed pairs or rates
+   */
+  static RateTable build(Map<String, Double> quotes) {
+    List<String> codes = new ArrayList<>();
+    Map<String, Integer> rowOf = new HashMap<>();
+    int[][] pairs = new int[quotes.size()][];
+    double[] rates = new double[quotes.size()];
+    int q = 0;
+    for (Map.Entry<String, Double> quote : quotes.entrySet()) {
+      String pair = quote.getKey();
+      int slash = pair.indexOf('/');
+      String from = slash < 0 ? pair : pair.substring(0, slash).toUpperCase(Locale.ROOT);
+      String to = slash < 0 ? pair : pair.substring(slash + 1).toUpperCase(Locale.ROOT);
+      if (slash < 0 || pack(from, 0, from.length()) < 0 || pack(to, 0, to.length()) < 0) {
+        throw new IllegalArgumentException("Malformed currency pair " + pair);
+      }
+      double rate = quote.getValue();
+      if (!(rate > 0) || Double.isInfinite(rate)) {
+        throw new IllegalArgumentException("Malformed rate " + rate + " for " + pair);
+      }
+      for (String code : new String[] {from, to}) {
+        if (!rowOf.containsKey(code)) {
+          rowOf.put(code, codes.size());
+          codes.add(code);
+        }
+      }
+      pairs[q] = new int[] {rowOf.get(from), rowOf.get(to)};
+      rates[q++] = rate;
+    }
+    if (codes.size() >= Short.MAX_VALUE) {
+      throw new IllegalArgumentException("Too many currencies");
+    }
+
+    // units of each currency one unit of the pivot buys, spread out from the pivot
+    int n = codes.size();
+    double[] perPivot = new double[n];
+    Arrays.fill(perPivot, Double.NaN);
+    if (n > 0) {
+      perPivot[0] = 1;
+    }
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int i = 0; i < pairs.length; i++) {
+        int from = pairs[i][0];
+        int to = pairs[i][1];
+        if (!Double.isNaN(perPivot[from]) && Double.isNaN(perPivot[to])) {
+          perPivot[to] = perPivot[from] * rates[i];
+          changed = true;
+        } else if (!Double.isNaN(perPivot[to]) && Double.isNaN(perPivot[from])) {
+          perPivot[from] = perPivot[to] / rates[i];
+          changed = true;
+        }
+      }
+    }
+
+    double[][] matrix = new double[n][n];
+    for (int from = 0; from < n; from++) {
+      for (int to = 0; to < n; to++) {
+        // NaN if a currency is not connected to the pivot
+        matrix[from][to] = from == to ? 1 : perPivot[to] / perPivot[from];
+      }
+    }
+    for (int i = 0; i < pairs.length; i++) {
+      matrix[pairs[i][0]][pairs[i][1]] = rates[i];
+    }
+
+    short[] rows = new short[CODES];
+    for (int row = 0; row < n; row++) {
+      String code = codes.get(row);
+      rows[pack(code, 0, code.length())] = (short) (row + 1);
+    }
+    return new RateTable(codes.toArray(new String[0]), matrix, rows);
+  }
+
+  /**
+   * @return the three letters as a number below 26^3, case insensitive, or
+   *         -1 if the text is not three letters
+   */
+  static int pack(CharSequence text, int start, int end) {
+    if (end - start != 3) {
+      return -1;
+    }
+    int packed = 0;
+    for (int i = start; i < end; i++) {
+      // folds upper to lower case, anything but a letter ends up out of range
+      int letter = (text.charAt(i) | 0x20) - 'a';
+      if (letter < 0 || letter >= 26) {
+        return -1;
+      }
+      packed = packed * 26 + letter;
+    }
+    return packed;
+  }
+
+  /**
+   * @return the row of the currency, -1 if it is not known
+   */
+  int indexOf(CharSequence code) {
+    return indexOf(code, 0, code.length());
+  }
+
+  /**
+   * @return the row of the currency code between start and end, -1 if it is
+   *         not known
+   */
+  int indexOf(CharSequence text, int start, int end) {
+    int packed = pack(text, start, end);
+    return packed < 0 ? -1 : rows[packed] - 1;
+  }
+
+  /**
+   * @return units of the to currency one unit of the from currency buys,
+   *         NaN if there is no rate between the two
+   */
+  double rate(int from, int to) {
+    return matrix[from][to];
+  }
+
+  /**
+   * @return the upper case code of the currency in the row
+   */
+  String code(int row) {
+    return codes[row];
+  }
+
+  int size() {
+    return codes.length;
+  }
+}
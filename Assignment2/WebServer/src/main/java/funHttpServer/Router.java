@@ -0,0 +1,189 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Maps request paths to handlers. A path is looked up with one hash lookup,
+ * independent of how many routes there are, instead of testing each route in
+ * turn. The query is not part of the path, handlers read it from the request
+ * which only parses it when asked.
+ *
+ * Exact routes match the whole path and are case insensitive. Prefix routes
+ * match the first path segment, e.g. "file" matches "file/www/root.html", and
+ * are only tried if no exact route matches. Routes answer GET unless they are
+ * registered with addPost; the method is checked by the caller so a wrong
+ * one can be told apart from an unknown path.
+ */
+class Router {
+  /**
+   * Handles a request on the calling thread
+   */
+  interface Handler {
+    HttpResponse handle(HttpRequest request) throws IOException;
+  }
+
+  /**
+   * Handles a request without blocking the calling thread
+   */
+  interface AsyncHandler {
+    CompletableFuture<HttpResponse> handle(HttpRequest request);
+  }
+
+  /**
+   * A registered handler, either synchronous or asynchronous
+   */
+  static final class Route {
+    private final String name;
+    private final String method;
+    private final Handler handler;
+    private final AsyncHandler asyncHandler;
+    // token buckets per client for this route, null if it is not limited
+    private RateLimiter limiter;
+
+    private Route(String name, String method, Handler handler, AsyncHandler asyncHandler) {
+      this.name = name;
+      this.method = method;
+      this.handler = handler;
+      this.asyncHandler = asyncHandler;
+    }
+
+    /**
+     * @return the path the route was registered for, e.g. "/multiply" or
+     *         "/file/" for a prefix route
+     */
+    String getName() {
+      return name;
+    }
+
+    /**
+     * @return the method the route answers, GET or POST
+     */
+    String getMethod() {
+      return method;
+    }
+
+    /**
+     * @return true if the route answers the method of the request
+     */
+    boolean allows(String requestMethod) {
+      return method.equals(requestMethod);
+    }
+
+    /**
+     * @return the rate limiter of the route or null if it is not limited
+     */
+    RateLimiter getLimiter() {
+      return limiter;
+    }
+
+    /**
+     * Runs the handler and waits for asynchronous handlers to complete
+     */
+    HttpResponse handle(HttpRequest request) throws IOException {
+      if (handler != null) {
+        return handler.handle(request);
+      }
+      return asyncHandler.handle(request).join();
+    }
+
+    /**
+     * Runs the handler, synchronous handlers complete before this returns
+     */
+    CompletableFuture<HttpResponse> handleAsync(HttpRequest request) {
+      if (asyncHandler != null) {
+        return asyncHandler.handle(request);
+      }
+      try {
+        return CompletableFuture.completedFuture(handler.handle(request));
+      } catch (IOException e) {
+        return CompletableFuture.failedFuture(e);
+      }
+    }
+  }
+
+  private final Map<String, Route> exact = new HashMap<>();
+  private final Map<String, Route> prefixes = new HashMap<>();
+
+  /**
+   * Registers a handler for a path, e.g. "multiply" or "" for the root page
+   * @return this router for chaining
+   */
+  Router add(String path, Handler handler) {
+    return put(exact, path.toLowerCase(Locale.ROOT), new Route("/" + path, "GET", handler, null));
+  }
+
+  /**
+   * Registers a handler for POST requests to a path, e.g. "multiply/batch"
+   * @return this router for chaining
+   */
+  Router addPost(String path, Handler handler) {
+    return put(exact, path.toLowerCase(Locale.ROOT), new Route("/" + path, "POST", handler, null));
+  }
+
+  /**
+   * Registers an asynchronous handler for a path
+   * @return this router for chaining
+   */
+  Router addAsync(String path, AsyncHandler handler) {
+    return put(exact, path.toLowerCase(Locale.ROOT), new Route("/" + path, "GET", null, handler));
+  }
+
+  /**
+   * Registers a handler for all paths below the first segment, e.g. "file"
+   * for "file/anything"
+   * @return this router for chaining
+   */
+  Router addPrefix(String segment, Handler handler) {
+    return put(prefixes, segment, new Route("/" + segment + "/", "GET", handler, null));
+  }
+
+  /**
+   * Limits how often each client may call a route. Must be called before
+   * the router is used.
+   * @param path the path or prefix segment the route was registered for
+   * @param limiter token buckets keyed by client address
+   * @return this router for chaining
+   * @throws IllegalArgumentException if there is no such route
+   */
+  Router limit(String path, RateLimiter limiter) {
+    Route route = exact.get(path.toLowerCase(Locale.ROOT));
+    if (route == null) {
+      route = prefixes.get(path);
+    }
+    if (route == null) {
+      throw new IllegalArgumentException("No route " + path + " to limit");
+    }
+    route.limiter = limiter;
+    return this;
+  }
+
+  private Router put(Map<String, Route> routes, String key, Route route) {
+    if (routes.putIfAbsent(key, route) != null) {
+      throw new IllegalArgumentException("Route already registered: " + key);
+    }
+    return this;
+  }
+
+  /**
+   * @param path request path without the query
+   * @return the route for the path or null if no route matches
+   */
+  Route find(String path) {
+    Route route = exact.get(path);
+    if (route == null) {
+      // keys are lower case, only pay for the conversion on a miss
+      route = exact.get(path.toLowerCase(Locale.ROOT));
+    }
+    if (route == null) {
+      int slash = path.indexOf('/');
+      if (slash > 0) {
+        route = prefixes.get(path.substring(0, slash));
+      }
+    }
+    return route;
+  }
+}
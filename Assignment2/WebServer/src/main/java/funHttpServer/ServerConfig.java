@@ -0,0 +1,306 @@
+package funHttpServer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Startup options for the fun web server. Options are given on the command
+ * line as name=value pairs, e.g. "port=9000 mode=nio workers=8". A bare
+ * number is accepted as the port for compatibility with "WebServer <port>".
+ */
+class ServerConfig implements Cloneable {
+  /** Port to listen on */
+  int port = 9000;
+
+  /**
+   * blocking: one socket at a time, nio: selector event loop,
+   * virtual: a (virtual) thread per socket
+   */
+  String mode = "blocking";
+
+  /** Number of handler threads used by the nio mode */
+  int workers = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+  /**
+   * Selector loops of the nio mode, each with its own SO_REUSEPORT socket
+   * and its share of the workers
+   */
+  int loops = 1;
+
+  /** Sockets the virtual mode serves at once, more clients wait to be accepted */
+  int maxConnections = 1000;
+
+  /** Milliseconds busy connections may take to finish on shutdown */
+  long drainTimeout = 10 * 1000;
+
+  /** Bind with SO_REUSEPORT, so a new server can start on the port before the old one stops */
+  boolean reusePort = false;
+
+  /** Milliseconds a connection may stay idle, or its client not read a response, before it is closed */
+  int idleTimeout = 5000;
+
+  /** Requests served on one connection before it is closed */
+  int maxRequests = 100;
+
+  /** Bytes a request body may have, e.g. of POST /multiply/batch; larger ones get 413 */
+  int maxBodySize = 1024 * 1024;
+
+  /** Bytes of rendered pages and file contents kept in memory */
+  long cacheSize = 16 * 1024 * 1024;
+
+  /** Directory served by "/file/", nothing outside of it is sent */
+  String fileRoot = "www";
+
+  /** Compress responses for clients that accept gzip or deflate */
+  boolean compress = true;
+
+  /** Smaller bodies are sent uncompressed, it would not save a packet */
+  int compressMinSize = 1024;
+
+  /** Requests per second and burst allowed per client address over all routes, null for no limit */
+  Rate clientRate = null;
+
+  /** Requests per second and burst allowed per client address on a route, by route name */
+  Map<String, Rate> routeRates = Rate.parseRoutes("github:5:20");
+
+  /** Requests handled at once before new ones are turned away with 503, 0 for no limit */
+  int maxInFlight = 512;
+
+  /** Print a line per request on the console */
+  boolean log = true;
+
+  /** File for the JSON lines access log, empty for none */
+  String accessLog = "";
+
+  /** Bytes after which the access log is rolled over to a dated file, 0 for no limit */
+  long accessLogMaxSize = 64L * 1024 * 1024;
+
+  /** Milliseconds after which the access log is rolled over, 0 for no limit */
+  long accessLogRoll = 24L * 60 * 60 * 1000;
+
+  /** JSON file with exchange rates for /convertCurrency, empty for the built-in rates */
+  String rates = "";
+
+  /** Milliseconds between two reads of the rates file, 0 reads it only at startup */
+  long ratesRefresh = 60 * 1000;
+
+  /** Keystore (PKCS12 or JKS) with the server certificate, serves HTTPS if set */
+  String keystore = "";
+
+  /** Password of the keystore and its key, FUNHTTP_KEYSTORE_PASSWORD if not given */
+  String keystorePassword = System.getenv().getOrDefault("FUNHTTP_KEYSTORE_PASSWORD", "");
+
+  /** Comma separated TLS protocols to enable, e.g. TLSv1.3,TLSv1.2, empty for the JDK defaults */
+  String tlsProtocols = "";
+
+  /** Comma separated cipher suites to enable, empty for the JDK defaults */
+  String tlsCiphers = "";
+
+  /** TLS sessions kept for resumption */
+  int tlsSessionCache = 20000;
+
+  /** Seconds a TLS session can be resumed */
+  int tlsSessionTimeout = 24 * 60 * 60;
+
+  /** Base url of the GitHub API, changed for tests against a local stub */
+  String githubUrl = "https://api.github.com/";
+
+  /** Milliseconds a GitHub response is reused, 0 disables caching */
+  long githubCacheTtl = 60 * 1000;
+
+  /** Stream /github pages while the upstream body arrives instead of buffering it */
+  boolean githubStream = false;
+
+  /**
+   * Reads the options from the command line arguments.
+   * @param args name=value pairs
+   * @return the configuration with defaults for everything not given
+   * @throws IllegalArgumentException on unknown options or malformed values
+   */
+  static ServerConfig fromArgs(String[] args) {
+    ServerConfig config = new ServerConfig();
+    for (String arg : args) {
+      int idx = arg.indexOf('=');
+      if (idx < 0) {
+        config.set("port", arg);
+      } else {
+        config.set(arg.substring(0, idx), arg.substring(idx + 1));
+      }
+    }
+    return config;
+  }
+
+  /**
+   * @return a copy whose options can be changed without affecting this one
+   */
+  ServerConfig copy() {
+    try {
+      return (ServerConfig) clone();
+    } catch (CloneNotSupportedException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private void set(String name, String value) {
+    try {
+      switch (name) {
+        case "port":
+          port = Integer.parseInt(value);
+          break;
+        case "mode":
+          if (!value.equals("blocking") && !value.equals("nio") && !value.equals("virtual")) {
+            throw new IllegalArgumentException("Unknown mode " + value + ", use blocking, nio or virtual");
+          }
+          mode = value;
+          break;
+        case "workers":
+          workers = atLeastOne(name, value);
+          break;
+        case "loops":
+          loops = atLeastOne(name, value);
+          break;
+        case "maxConnections":
+          maxConnections = Integer.parseInt(value);
+          break;
+        case "drainTimeout":
+          drainTimeout = Long.parseLong(value);
+          break;
+        case "reusePort":
+          reusePort = Boolean.parseBoolean(value);
+          break;
+        case "idleTimeout":
+          idleTimeout = atLeastOne(name, value);
+          break;
+        case "maxRequests":
+          maxRequests = Integer.parseInt(value);
+          break;
+        case "maxBodySize":
+          maxBodySize = Integer.parseInt(value);
+          break;
+        case "cacheSize":
+          cacheSize = Long.parseLong(value);
+          break;
+        case "fileRoot":
+          fileRoot = value;
+          break;
+        case "compress":
+          compress = Boolean.parseBoolean(value);
+          break;
+        case "compressMinSize":
+          compressMinSize = Integer.parseInt(value);
+          break;
+        case "clientRate":
+          clientRate = value.equals("0") || value.isEmpty() ? null : Rate.parse(value);
+          break;
+        case "routeRates":
+          routeRates = Rate.parseRoutes(value);
+          break;
+        case "maxInFlight":
+          maxInFlight = Integer.parseInt(value);
+          break;
+        case "log":
+          log = Boolean.parseBoolean(value);
+          break;
+        case "accessLog":
+          accessLog = value;
+          break;
+        case "accessLogMaxSize":
+          accessLogMaxSize = Long.parseLong(value);
+          break;
+        case "accessLogRoll":
+          accessLogRoll = Long.parseLong(value);
+          break;
+        case "rates":
+          rates = value;
+          break;
+        case "ratesRefresh":
+          ratesRefresh = Long.parseLong(value);
+          break;
+        case "keystore":
+          keystore = value;
+          break;
+        case "keystorePassword":
+          keystorePassword = value;
+          break;
+        case "tlsProtocols":
+          tlsProtocols = value;
+          break;
+        case "tlsCiphers":
+          tlsCiphers = value;
+          break;
+        case "tlsSessionCache":
+          tlsSessionCache = Integer.parseInt(value);
+          break;
+        case "tlsSessionTimeout":
+          tlsSessionTimeout = Integer.parseInt(value);
+          break;
+        case "githubUrl":
+          githubUrl = value.endsWith("/") ? value : value + "/";
+          break;
+        case "githubCacheTtl":
+          githubCacheTtl = Long.parseLong(value);
+          break;
+        case "githubStream":
+          githubStream = Boolean.parseBoolean(value);
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option " + name);
+      }
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Option " + name + " must be a number");
+    }
+  }
+
+  // thread pools and timeouts of zero or less fail only once the server starts
+  private static int atLeastOne(String name, String value) {
+    int number = Integer.parseInt(value);
+    if (number < 1) {
+      throw new IllegalArgumentException("Option " + name + " must be 1 or more");
+    }
+    return number;
+  }
+
+  /**
+   * A token bucket rate, written as "requests per second:burst", e.g. "5:20"
+   */
+  static final class Rate {
+    final double perSecond;
+    final int burst;
+
+    Rate(double perSecond, int burst) {
+      if (perSecond <= 0 || burst < 1) {
+        throw new IllegalArgumentException("Rate and burst must be positive");
+      }
+      this.perSecond = perSecond;
+      this.burst = burst;
+    }
+
+    static Rate parse(String value) {
+      int colon = value.indexOf(':');
+      if (colon < 0) {
+        throw new IllegalArgumentException("Rate " + value + " must be given as perSecond:burst");
+      }
+      return new Rate(Double.parseDouble(value.substring(0, colon)),
+          Integer.parseInt(value.substring(colon + 1)));
+    }
+
+    /**
+     * @param value comma separated "route:perSecond:burst", e.g. "github:5:20,file:100:200"
+     * @return the rates by route name
+     */
+    static Map<String, Rate> parseRoutes(String value) {
+      Map<String, Rate> rates = new LinkedHashMap<>();
+      for (String route : value.split(",")) {
+        if (route.isEmpty()) {
+          continue;
+        }
+        int colon = route.indexOf(':');
+        if (colon < 0) {
+          throw new IllegalArgumentException("Route rate " + route + " must be given as route:perSecond:burst");
+        }
+        rates.put(route.substring(0, colon), parse(route.substring(colon + 1)));
+      }
+      return rates;
+    }
+  }
+}
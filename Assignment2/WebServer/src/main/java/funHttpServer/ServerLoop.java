@@ -0,0 +1,34 @@
+package funHttpServer;
+
+import java.io.IOException;
+
+/**
+ * Accepts and serves connections in one of the modes of the fun web server.
+ * The lifecycle is bind(), run() on a thread of its own, and shutdown() from
+ * any other thread, e.g. a shutdown hook.
+ */
+interface ServerLoop {
+  /**
+   * Opens the listening socket, call run() to start accepting
+   */
+  void bind() throws IOException;
+
+  /**
+   * @return the port the server listens on, useful if it was started on port 0
+   */
+  int getLocalPort();
+
+  /**
+   * Serves connections until shutdown() is called or accepting fails
+   */
+  void run() throws IOException;
+
+  /**
+   * Stops accepting and lets the requests being handled finish. Idle
+   * keep-alive connections are ended right away, connections that are still
+   * busy when the drain time is up are closed.
+   * @param drainMillis how long to wait for busy connections
+   * @return true if all connections finished in time
+   */
+  boolean shutdown(long drainMillis);
+}
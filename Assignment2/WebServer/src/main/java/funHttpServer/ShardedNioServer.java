@@ -0,0 +1,146 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Several nio selector loops on one port. Every loop binds its own socket
+ * with SO_REUSEPORT and the kernel spreads new connections over the sockets,
+ * so there is no acceptor thread handing connections around: a connection
+ * stays with the loop that accepted it, and each loop has its own selector,
+ * buffers and workers. What the loops share is the WebServer behind them
+ * (routes, caches, metrics), which is safe for concurrent use.
+ *
+ * Where SO_REUSEPORT is missing (e.g. Windows) a single loop is used.
+ */
+class ShardedNioServer implements ServerLoop {
+  private final WebServer server;
+  private final List<ServerConfig> shards = new ArrayList<>();
+  private final List<NioServer> loops = new ArrayList<>();
+
+  /**
+   * @param server provides the parse and handler stages
+   * @param config port, number of loops and the workers they share out
+   */
+  ShardedNioServer(WebServer server, ServerConfig config) {
+    this.server = server;
+    int count = Math.max(1, config.loops);
+    if (count > 1 && !reusePortSupported()) {
+      System.out.println("SO_REUSEPORT is not supported on this platform, using one selector loop");
+      count = 1;
+    }
+    for (int i = 0; i < count; i++) {
+      ServerConfig shard = config.copy();
+      // every loop gets its share, the first ones take the remainder
+      shard.workers = Math.max(1, config.workers / count + (i < config.workers % count ? 1 : 0));
+      shard.reusePort = config.reusePort || count > 1;
+      shards.add(shard);
+    }
+    loops.add(new NioServer(server, shards.get(0)));
+  }
+
+  private static boolean reusePortSupported() {
+    try (ServerSocket probe = new ServerSocket()) {
+      return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Binds the first loop, then the others to the port it got, which only
+   * differs from the configured one for port 0.
+   */
+  @Override
+  public void bind() throws IOException {
+    loops.get(0).bind();
+    for (int i = 1; i < shards.size(); i++) {
+      shards.get(i).port = loops.get(0).getLocalPort();
+      NioServer loop = new NioServer(server, shards.get(i));
+      loop.bind();
+      loops.add(loop);
+    }
+  }
+
+  @Override
+  public int getLocalPort() {
+    return loops.get(0).getLocalPort();
+  }
+
+  /**
+   * Runs the first loop on the calling thread and the others on threads of
+   * their own, until all of them have stopped.
+   */
+  @Override
+  public void run() throws IOException {
+    if (loops.size() < shards.size()) {
+      bind();
+    }
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 1; i < loops.size(); i++) {
+      NioServer loop = loops.get(i);
+      Thread thread = new Thread(() -> {
+        try {
+          loop.run();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }, "nio-loop-" + i);
+      threads.add(thread);
+      thread.start();
+    }
+    try {
+      loops.get(0).run();
+    } finally {
+      for (Thread thread : threads) {
+        try {
+          thread.join();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * Drains all loops at the same time, with the same deadline.
+   */
+  @Override
+  public boolean shutdown(long drainMillis) {
+    List<Thread> threads = new ArrayList<>();
+    boolean[] drained = new boolean[loops.size()];
+    for (int i = 0; i < loops.size(); i++) {
+      int index = i;
+      Thread thread = new Thread(() -> drained[index] = loops.get(index).shutdown(drainMillis));
+      threads.add(thread);
+      thread.start();
+    }
+    boolean all = true;
+    for (int i = 0; i < threads.size(); i++) {
+      try {
+        threads.get(i).join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+      all &= drained[i];
+    }
+    return all;
+  }
+
+  /**
+   * @return connections accepted by each loop, to see how evenly the kernel
+   *         spreads them
+   */
+  long[] getAccepted() {
+    long[] accepted = new long[loops.size()];
+    for (int i = 0; i < accepted.length; i++) {
+      accepted[i] = loops.get(i).getAccepted();
+    }
+    return accepted;
+  }
+}
@@ -0,0 +1,311 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serves files for the "/file/" route. The response only carries the path
+ * and the byte range; the bytes are sent with FileChannel.transferTo when the
+ * response is written, so they never pass through the heap.
+ *
+ * Supports conditional requests (If-None-Match, If-Modified-Since) and a
+ * single byte range (Range, If-Range).
+ *
+ * Text files are sent gzip compressed to clients that accept it. The
+ * compressed variant is a "name.gz" file next to the original if there is an
+ * up to date one, otherwise it is created on the first request in a variants
+ * directory and reused until the file changes.
+ */
+class StaticFiles {
+  private static final Map<String, String> MIME_TYPES = new HashMap<>() {
+    {
+      put("html", "text/html; charset=utf-8");
+      put("htm", "text/html; charset=utf-8");
+      put("txt", "text/plain; charset=utf-8");
+      put("css", "text/css; charset=utf-8");
+      put("js", "application/javascript; charset=utf-8");
+      put("json", "application/json; charset=utf-8");
+      put("png", "image/png");
+      put("jpg", "image/jpeg");
+      put("jpeg", "image/jpeg");
+      put("gif", "image/gif");
+      put("svg", "image/svg+xml");
+      put("ico", "image/x-icon");
+      put("pdf", "application/pdf");
+    }
+  };
+
+  // larger files are always sent as they are
+  private static final long MAX_COMPRESS_SIZE = 16 * 1024 * 1024;
+
+  private final Path root;
+  private final Path variants;
+  private final int minCompressSize;
+
+  /**
+   * @param root directory the file paths are resolved against, nothing
+   *        outside of it is served
+   */
+  StaticFiles(Path root) {
+    this(root, null, 0);
+  }
+
+  /**
+   * @param root directory the file paths are resolved against, nothing
+   *        outside of it is served
+   * @param variants directory for the compressed copies, null disables
+   *        compression
+   * @param minCompressSize smaller files are not compressed
+   */
+  StaticFiles(Path root, Path variants, int minCompressSize) {
+    this.root = root.toAbsolutePath().normalize();
+    this.variants = variants;
+    this.minCompressSize = minCompressSize;
+  }
+
+  /**
+   * @param fileName name of a file
+   * @return the Content-Type for the file extension
+   */
+  static String mimeType(String fileName) {
+    int dot = fileName.lastIndexOf('.');
+    String type = dot < 0 ? null : MIME_TYPES.get(fileName.substring(dot + 1).toLowerCase());
+    return type == null ? "application/octet-stream" : type;
+  }
+
+  /**
+   * Generates the response for a file request.
+   * @param request the parsed request, used for the conditional and range headers
+   * @param path the requested path relative to the root, may still be URL encoded
+   * @return 200, 206, 304, 404 or 416 response
+   */
+  public HttpResponse serve(HttpRequest request, String path) throws IOException {
+    int query = path.indexOf('?');
+    if (query >= 0) {
+      path = path.substring(0, query);
+    }
+    Path file = resolve(path);
+    if (file == null || !Files.isRegularFile(file)) {
+      return HttpResponse.html(404, "File not found: " + path);
+    }
+
+    BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+    long size = attributes.size();
+    long modified = attributes.lastModifiedTime().toMillis() / 1000 * 1000;
+    String version = Long.toHexString(size) + "-" + Long.toHexString(modified);
+    String contentType = mimeType(file.toString());
+    String lastModified = httpDate(modified);
+
+    // ranges refer to the uncompressed bytes, so they are served uncompressed
+    boolean compressible = variants != null && Compression.isCompressible(contentType)
+        && size >= minCompressSize && size <= MAX_COMPRESS_SIZE;
+    boolean gzip = compressible && request.getHeader("Range") == null
+        && Compression.accepts(request.getHeader("Accept-Encoding"), Compression.GZIP);
+    // the compressed variant is a different representation and needs its own tag
+    String etag = "\"" + version + (gzip ? "-gzip" : "") + "\"";
+
+    if (notModified(request, etag, modified)) {
+      HttpResponse response = new HttpResponse(304, contentType, new byte[0])
+          .header("ETag", etag)
+          .header("Last-Modified", lastModified);
+      return compressible ? response.header("Vary", "Accept-Encoding") : response;
+    }
+
+    HttpResponse response;
+    Path variant = gzip ? gzipVariant(file, version, modified) : null;
+    long[] range = variant != null ? null : range(request, etag, size);
+    if (variant != null) {
+      response = HttpResponse.file(200, contentType, variant, 0, Files.size(variant))
+          .header("Content-Encoding", Compression.GZIP);
+    } else if (range == null) {
+      response = HttpResponse.file(200, contentType, file, 0, size);
+    } else if (range.length == 0) {
+      return HttpResponse.html(416, "Requested range not satisfiable")
+          .header("Content-Range", "bytes */" + size);
+    } else {
+      response = HttpResponse.file(206, contentType, file, range[0], range[1] - range[0] + 1)
+          .header("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size);
+    }
+    if (compressible) {
+      response.header("Vary", "Accept-Encoding");
+    }
+    return response
+        .header("Accept-Ranges", "bytes")
+        .header("ETag", etag)
+        .header("Last-Modified", lastModified);
+  }
+
+  /**
+   * Deletes the compressed copies and their directory, once no more requests
+   * are served.
+   */
+  void deleteVariants() {
+    if (variants == null || !Files.isDirectory(variants)) {
+      return;
+    }
+    try (Stream<Path> paths = Files.walk(variants)) {
+      // children before their directories
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    } catch (IOException e) {
+      System.out.println("Cannot delete the compressed files in " + variants + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Finds or creates the gzip compressed copy of a file.
+   * @param file the original file
+   * @param version size and modification time of the file, part of the name
+   *        of the copy so a changed file gets a new one
+   * @param modified modification time of the file
+   * @return the compressed copy or null if it cannot be created
+   */
+  private Path gzipVariant(Path file, String version, long modified) {
+    try {
+      // precompressed by the deployment, e.g. "gzip -k www/*.html"
+      Path sibling = inside(file.resolveSibling(file.getFileName() + ".gz"));
+      if (sibling != null && Files.isRegularFile(sibling) && Files.getLastModifiedTime(sibling).toMillis() >= modified) {
+        return sibling;
+      }
+
+      Path variant = variants.resolve(root.toRealPath().relativize(file) + "." + version + ".gz");
+      if (Files.isRegularFile(variant)) {
+        return variant;
+      }
+      Files.createDirectories(variant.getParent());
+      // written under a temporary name, so a concurrent request never sends half a file
+      Path temp = Files.createTempFile(variant.getParent(), "gz", ".tmp");
+      try {
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(temp), 8 * 1024)) {
+          Files.copy(file, out);
+        }
+        Files.move(temp, variant, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+      return variant;
+    } catch (IOException e) {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  // decodes the path and makes sure it stays inside the root
+  private Path resolve(String path) {
+    try {
+      Path file = root.resolve(URLDecoder.decode(path, "UTF-8")).normalize();
+      return file.startsWith(root) ? inside(file) : null;
+    } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  // the real path of an existing file, null if it does not exist or a
+  // symbolic link on the way leads out of the root
+  private Path inside(Path file) {
+    try {
+      Path real = file.toRealPath();
+      return real.startsWith(root.toRealPath()) ? real : null;
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private static boolean notModified(HttpRequest request, String etag, long modified) {
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      for (String tag : ifNoneMatch.split(",")) {
+        tag = tag.trim();
+        if (tag.startsWith("W/")) {
+          tag = tag.substring(2);
+        }
+        if (tag.equals("*") || tag.equals(etag)) {
+          return true;
+        }
+      }
+      // If-Modified-Since is ignored when If-None-Match is present
+      return false;
+    }
+    String ifModifiedSince = request.getHeader("If-Modified-Since");
+    if (ifModifiedSince != null) {
+      try {
+        long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME)
+            .toInstant().toEpochMilli();
+        return modified <= since;
+      } catch (DateTimeParseException e) {
+        return false;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Parses a single "bytes=" range. Multiple ranges are not supported and
+   * answered with the full file, which the spec allows.
+   * @return null for the full file, an empty array if the range cannot be
+   *         satisfied, otherwise {first, last} byte positions
+   */
+  private static long[] range(HttpRequest request, String etag, long size) {
+    String range = request.getHeader("Range");
+    if (range == null || !range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+      return null;
+    }
+    String ifRange = request.getHeader("If-Range");
+    if (ifRange != null && !ifRange.equals(etag)) {
+      return null;
+    }
+
+    String spec = range.substring("bytes=".length()).trim();
+    int dash = spec.indexOf('-');
+    if (dash < 0) {
+      return null;
+    }
+    try {
+      long first;
+      long last;
+      if (dash == 0) {
+        // suffix range "-500": the last 500 bytes
+        long suffix = Long.parseLong(spec.substring(1));
+        if (suffix == 0) {
+          return new long[0];
+        }
+        first = Math.max(0, size - suffix);
+        last = size - 1;
+      } else {
+        first = Long.parseLong(spec.substring(0, dash));
+        last = dash == spec.length() - 1 ? size - 1 : Long.parseLong(spec.substring(dash + 1));
+        last = Math.min(last, size - 1);
+      }
+      if (first >= size || first > last) {
+        return new long[0];
+      }
+      return new long[] {first, last};
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @param millis epoch milliseconds
+   * @return the time in the format used by Last-Modified and Date headers
+   */
+  static String httpDate(long millis) {
+    return DateTimeFormatter.RFC_1123_DATE_TIME.format(
+        ZonedDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneOffset.UTC));
+  }
+}
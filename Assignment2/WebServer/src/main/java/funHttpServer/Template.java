@@ -0,0 +1,70 @@
+package funHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A page with ${name} placeholders, split once into a list of segments so
+ * rendering is a sequence of array copies instead of a search and replace
+ * over the whole page for every request.
+ */
+class Template {
+  // literal segments hold bytes, placeholder segments the variable name
+  private final List<Object> segments;
+  private final int literalLength;
+
+  private Template(List<Object> segments, int literalLength) {
+    this.segments = segments;
+    this.literalLength = literalLength;
+  }
+
+  /**
+   * Splits a page into literal text and placeholders.
+   * @param text page text containing ${name} placeholders
+   * @return the compiled template
+   */
+  static Template compile(String text) {
+    List<Object> segments = new ArrayList<>();
+    int literalLength = 0;
+    int start = 0;
+    while (start < text.length()) {
+      int open = text.indexOf("${", start);
+      int close = open < 0 ? -1 : text.indexOf('}', open + 2);
+      int literalEnd = close < 0 ? text.length() : open;
+      if (literalEnd > start) {
+        byte[] literal = text.substring(start, literalEnd).getBytes(StandardCharsets.UTF_8);
+        segments.add(literal);
+        literalLength += literal.length;
+      }
+      if (close < 0) {
+        break;
+      }
+      segments.add(text.substring(open + 2, close));
+      start = close + 1;
+    }
+    return new Template(segments, literalLength);
+  }
+
+  /**
+   * @param values replacement for each placeholder, unknown placeholders
+   *        are kept as they are
+   * @return the rendered page as UTF-8 bytes
+   */
+  byte[] render(Map<String, String> values) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(literalLength + 1024);
+    for (Object segment : segments) {
+      if (segment instanceof byte[]) {
+        byte[] literal = (byte[]) segment;
+        out.write(literal, 0, literal.length);
+      } else {
+        String value = values.get(segment);
+        byte[] bytes = (value != null ? value : "${" + segment + "}").getBytes(StandardCharsets.UTF_8);
+        out.write(bytes, 0, bytes.length);
+      }
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,163 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Virtual thread mode of the fun web server. Every accepted socket is served
+ * by the same blocking code as the blocking mode, but on its own thread, so
+ * a request waiting for GitHub no longer holds up everybody else. Virtual
+ * threads are used where the JVM has them (Java 21 and later), otherwise a
+ * platform thread per connection.
+ *
+ * At most maxConnections sockets are served at once; further clients wait in
+ * the listen backlog until a connection ends.
+ */
+class ThreadPerConnectionServer implements ServerLoop {
+  private final WebServer server;
+  private final int port;
+  private final boolean reusePort;
+  private final Semaphore permits;
+  private final ExecutorService threads = newThreadPerTaskExecutor();
+
+  // sockets being served, so shutdown() can end their keep-alive loops
+  private final Set<Socket> open = ConcurrentHashMap.newKeySet();
+  private ServerSocket serverSocket;
+  private volatile boolean stopping;
+
+  /**
+   * @param server provides the connection handling
+   * @param config port, socket options and connection limit
+   */
+  ThreadPerConnectionServer(WebServer server, ServerConfig config) {
+    this.server = server;
+    this.port = config.port;
+    this.reusePort = config.reusePort;
+    this.permits = new Semaphore(config.maxConnections);
+  }
+
+  @Override
+  public void bind() throws IOException {
+    // a channel backed socket, so files can be sent with transferTo
+    serverSocket = ServerSocketChannel.open().socket();
+    serverSocket.setReuseAddress(true);
+    if (reusePort) {
+      WebServer.reusePort(serverSocket);
+    }
+    serverSocket.bind(new InetSocketAddress(port));
+  }
+
+  @Override
+  public int getLocalPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * Accept loop, runs until shutdown() is called or accepting fails.
+   */
+  @Override
+  public void run() throws IOException {
+    System.out.println("Thread per connection server listening on port " + getLocalPort());
+    try {
+      while (!stopping) {
+        permits.acquireUninterruptibly();
+        Socket sock;
+        try {
+          sock = serverSocket.accept();
+        } catch (IOException e) {
+          permits.release();
+          if (stopping) {
+            return;
+          }
+          throw e;
+        }
+        open.add(sock);
+        threads.execute(() -> {
+          try {
+            server.serveConnection(sock, true);
+          } finally {
+            open.remove(sock);
+            permits.release();
+          }
+        });
+      }
+    } finally {
+      threads.shutdown();
+    }
+  }
+
+  /**
+   * Stops accepting and lets the requests being handled finish. Idle
+   * keep-alive connections are ended right away, connections that are still
+   * busy when the drain time is up are closed.
+   * @param drainMillis how long to wait for busy connections
+   * @return true if all connections finished in time
+   */
+  @Override
+  public boolean shutdown(long drainMillis) {
+    stopping = true;
+    try {
+      serverSocket.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    // the response to a request that is being handled still goes out, the
+    // next read of the connection sees the end of the stream
+    for (Socket sock : open) {
+      try {
+        sock.shutdownInput();
+      } catch (IOException e) {
+        // already closed
+      }
+    }
+
+    threads.shutdown();
+    boolean drained;
+    try {
+      drained = threads.awaitTermination(drainMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      drained = false;
+    }
+    if (!drained) {
+      for (Socket sock : open) {
+        try {
+          sock.close();
+        } catch (IOException e) {
+          // already closed
+        }
+      }
+      threads.shutdownNow();
+    }
+    return drained;
+  }
+
+  /**
+   * Executors.newVirtualThreadPerTaskExecutor() is only there from Java 21
+   * on, it is looked up at runtime so the server still builds and runs on 17.
+   */
+  static ExecutorService newThreadPerTaskExecutor() {
+    try {
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      AtomicInteger count = new AtomicInteger();
+      return Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "connection-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      });
+    }
+  }
+}
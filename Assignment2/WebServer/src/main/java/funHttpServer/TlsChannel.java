@@ -0,0 +1,306 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Plaintext view of a TLS connection, encrypting with an SSLEngine. Works on
+ * blocking channels (the socket streams of the blocking and virtual modes)
+ * as well as on a non-blocking SocketChannel (nio mode):
+ *
+ * - read() returns 0 when more encrypted bytes are needed, and drives the
+ *   handshake on the way. The handshake needs no separate call.
+ * - write() returns the number of plaintext bytes taken. Encrypted bytes
+ *   the transport did not accept stay buffered until flush() succeeds.
+ * - Decrypted bytes that did not fit into the caller's buffer, and
+ *   encrypted bytes read ahead, are kept. hasBufferedInput() tells a
+ *   selector loop that there is input the socket will not signal again.
+ *
+ * Delegated tasks (certificate checks, key exchange) run on the calling
+ * thread, or on an executor given to the constructor. A selector loop must
+ * not wait for them: meanwhile read() and write() make no progress, and
+ * the callback tells when to call read() again.
+ */
+class TlsChannel implements ByteChannel {
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+  private final SSLEngine engine;
+  private final ReadableByteChannel source;
+  private final WritableByteChannel sink;
+  private final Consumer<SSLSession> onHandshake;
+  // runs the delegated tasks, null to run them on the calling thread
+  private final Executor tasks;
+  private final Runnable onTasksDone;
+  private volatile boolean runningTasks;
+
+  // encrypted bytes read but not unwrapped yet, in write mode
+  private ByteBuffer netIn;
+  // decrypted bytes not handed out yet, in read mode
+  private ByteBuffer appIn;
+  // encrypted bytes not written yet, in read mode
+  private ByteBuffer netOut;
+  private boolean closed;
+
+  /**
+   * @param engine server mode engine for this connection
+   * @param source where encrypted bytes come from
+   * @param sink where encrypted bytes go to, may be the same channel
+   * @param onHandshake called with the session after every completed handshake
+   */
+  TlsChannel(SSLEngine engine, ReadableByteChannel source, WritableByteChannel sink,
+      Consumer<SSLSession> onHandshake) {
+    this(engine, source, sink, onHandshake, null, null);
+  }
+
+  /**
+   * @param engine server mode engine for this connection
+   * @param source where encrypted bytes come from
+   * @param sink where encrypted bytes go to, may be the same channel
+   * @param onHandshake called with the session after every completed handshake
+   * @param tasks runs the delegated tasks, null to run them on the calling thread
+   * @param onTasksDone called on the executor when the tasks are done, read()
+   *        goes on with the handshake from there
+   */
+  TlsChannel(SSLEngine engine, ReadableByteChannel source, WritableByteChannel sink,
+      Consumer<SSLSession> onHandshake, Executor tasks, Runnable onTasksDone) {
+    this.engine = engine;
+    this.source = source;
+    this.sink = sink;
+    this.onHandshake = onHandshake;
+    this.tasks = tasks;
+    this.onTasksDone = onTasksDone;
+    SSLSession session = engine.getSession();
+    netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+    appIn = ByteBuffer.allocate(session.getApplicationBufferSize()).flip();
+    netOut = ByteBuffer.allocate(session.getPacketBufferSize()).flip();
+  }
+
+  /**
+   * Reads decrypted bytes, handshaking first if needed.
+   * @return bytes read, 0 if the transport has nothing yet, -1 at the end
+   */
+  @Override
+  public int read(ByteBuffer dst) throws IOException {
+    int read = transfer(appIn, dst);
+    while (dst.hasRemaining()) {
+      if (!flush()) {
+        // handshake messages must go out before anything else can happen
+        return read;
+      }
+      if (runningTasks) {
+        // the engine is busy until onTasksDone
+        return read;
+      }
+      SSLEngineResult.HandshakeStatus handshake = engine.getHandshakeStatus();
+      if (handshake == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+        runTasks();
+        continue;
+      }
+      if (handshake == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+        wrap(EMPTY);
+        continue;
+      }
+
+      netIn.flip();
+      appIn.clear();
+      SSLEngineResult result;
+      try {
+        result = engine.unwrap(netIn, appIn);
+      } finally {
+        netIn.compact();
+        appIn.flip();
+      }
+      handshakeFinished(result);
+      switch (result.getStatus()) {
+        case OK:
+          read += transfer(appIn, dst);
+          break;
+        case BUFFER_UNDERFLOW:
+          // the record is not complete, only now go to the transport
+          if (read > 0) {
+            return read;
+          }
+          if (!netIn.hasRemaining()) {
+            netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+          }
+          int n = source.read(netIn);
+          if (n < 0) {
+            closed = true;
+            return -1;
+          }
+          if (n == 0) {
+            return 0;
+          }
+          break;
+        case BUFFER_OVERFLOW:
+          appIn = grow(appIn.compact(), engine.getSession().getApplicationBufferSize()).flip();
+          break;
+        case CLOSED:
+          // the client sent close_notify
+          closed = true;
+          return read > 0 ? read : -1;
+        default:
+          throw new SSLException("Unexpected unwrap status " + result.getStatus());
+      }
+    }
+    return read;
+  }
+
+  /**
+   * Encrypts bytes from src.
+   * @return plaintext bytes taken from src, 0 while earlier encrypted bytes
+   *         are still waiting for the transport
+   */
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    int written = 0;
+    while (src.hasRemaining() && flush() && !runningTasks) {
+      SSLEngineResult result = wrap(src);
+      written += result.bytesConsumed();
+      if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+        throw new SSLException("TLS connection closed");
+      }
+      if (result.bytesConsumed() == 0 && result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_UNWRAP) {
+        // a handshake is waiting for the client, nothing can be sent now
+        break;
+      }
+    }
+    flush();
+    return written;
+  }
+
+  // wraps into netOut, growing it as needed
+  private SSLEngineResult wrap(ByteBuffer src) throws IOException {
+    while (true) {
+      netOut.compact();
+      SSLEngineResult result;
+      try {
+        result = engine.wrap(src, netOut);
+      } finally {
+        netOut.flip();
+      }
+      handshakeFinished(result);
+      if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+        netOut = grow(netOut.compact(), engine.getSession().getPacketBufferSize()).flip();
+        continue;
+      }
+      if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+        runTasks();
+      }
+      return result;
+    }
+  }
+
+  private void handshakeFinished(SSLEngineResult result) {
+    if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED && onHandshake != null) {
+      onHandshake.accept(engine.getSession());
+    }
+  }
+
+  private void runTasks() {
+    if (tasks != null) {
+      runningTasks = true;
+      try {
+        tasks.execute(() -> {
+          try {
+            runDelegatedTasks();
+          } finally {
+            runningTasks = false;
+            onTasksDone.run();
+          }
+        });
+        return;
+      } catch (RejectedExecutionException e) {
+        // the server is shutting down, finish the handshake here
+        runningTasks = false;
+      }
+    }
+    runDelegatedTasks();
+  }
+
+  private void runDelegatedTasks() {
+    Runnable task;
+    while ((task = engine.getDelegatedTask()) != null) {
+      task.run();
+    }
+  }
+
+  /**
+   * Writes buffered encrypted bytes to the transport.
+   * @return true if nothing is left, false if a non-blocking transport did
+   *         not take everything
+   */
+  boolean flush() throws IOException {
+    while (netOut.hasRemaining()) {
+      if (sink.write(netOut) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return true if decrypted or encrypted input is buffered, which a
+   *         selector will not report as readable again
+   */
+  boolean hasBufferedInput() {
+    return appIn.hasRemaining() || netIn.position() > 0;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return !closed;
+  }
+
+  /**
+   * Sends close_notify if the transport takes it right away. The transport
+   * itself is left open, its owner closes it.
+   */
+  @Override
+  public void close() throws IOException {
+    if (engine.isOutboundDone()) {
+      return;
+    }
+    closed = true;
+    engine.closeOutbound();
+    try {
+      while (!engine.isOutboundDone() && !runningTasks) {
+        SSLEngineResult result = wrap(EMPTY);
+        if (result.bytesProduced() == 0) {
+          break;
+        }
+      }
+      flush();
+    } catch (IOException e) {
+      // the client is gone, there is nobody to notify
+    }
+  }
+
+  private static int transfer(ByteBuffer from, ByteBuffer to) {
+    int n = Math.min(from.remaining(), to.remaining());
+    if (n > 0) {
+      ByteBuffer slice = from.slice();
+      slice.limit(n);
+      to.put(slice);
+      from.position(from.position() + n);
+    }
+    return n;
+  }
+
+  // a bigger buffer in write mode with the content of buffer and room for at least size more bytes
+  private static ByteBuffer grow(ByteBuffer buffer, int size) {
+    ByteBuffer bigger = ByteBuffer.allocate(Math.max(2 * buffer.capacity(), buffer.position() + size));
+    buffer.flip();
+    return bigger.put(buffer);
+  }
+}
@@ -0,0 +1,98 @@
+package funHttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.Executor;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * TLS setup of the server: the certificate from a keystore, the enabled
+ * protocols and cipher suites, and the session cache. A client that comes
+ * back within the session timeout resumes its session with an abbreviated
+ * handshake, which skips the certificate and the expensive key agreement,
+ * so polling clients only pay for a full handshake once.
+ */
+class TlsContext {
+  private final SSLContext context;
+  private final String[] protocols;
+  private final String[] ciphers;
+  private final Metrics metrics;
+
+  /**
+   * @param config keystore, password, protocols, ciphers and cache settings
+   * @param metrics counts full and resumed handshakes
+   * @throws IOException if the keystore cannot be read
+   * @throws GeneralSecurityException if the keystore holds no usable key or
+   *         a protocol or cipher suite is not supported
+   */
+  TlsContext(ServerConfig config, Metrics metrics) throws IOException, GeneralSecurityException {
+    this.metrics = metrics;
+    char[] password = config.keystorePassword.toCharArray();
+    // the type, PKCS12 or JKS, is detected from the file
+    KeyStore keyStore = KeyStore.getInstance(new File(config.keystore), password);
+    KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    keyManagers.init(keyStore, password);
+
+    context = SSLContext.getInstance("TLS");
+    context.init(keyManagers.getKeyManagers(), null, null);
+    SSLSessionContext sessions = context.getServerSessionContext();
+    sessions.setSessionCacheSize(config.tlsSessionCache);
+    sessions.setSessionTimeout(config.tlsSessionTimeout);
+
+    protocols = config.tlsProtocols.isEmpty() ? null : config.tlsProtocols.split(",");
+    ciphers = config.tlsCiphers.isEmpty() ? null : config.tlsCiphers.split(",");
+    try {
+      // fail at startup, not on the first connection
+      newEngine();
+    } catch (IllegalArgumentException e) {
+      throw new GeneralSecurityException(e.getMessage(), e);
+    }
+  }
+
+  private SSLEngine newEngine() {
+    SSLEngine engine = context.createSSLEngine();
+    engine.setUseClientMode(false);
+    if (protocols != null) {
+      engine.setEnabledProtocols(protocols);
+    }
+    if (ciphers != null) {
+      engine.setEnabledCipherSuites(ciphers);
+    }
+    return engine;
+  }
+
+  /**
+   * Starts the server side of a TLS connection.
+   * @param source where the client's bytes are read from
+   * @param sink where the bytes for the client are written to
+   * @return the plaintext channel, the handshake happens on the first read
+   */
+  TlsChannel newChannel(ReadableByteChannel source, WritableByteChannel sink) {
+    return newChannel(source, sink, null, null);
+  }
+
+  /**
+   * Starts the server side of a TLS connection whose handshake work runs on
+   * an executor, for connections served by a selector thread.
+   * @param source where the client's bytes are read from
+   * @param sink where the bytes for the client are written to
+   * @param tasks runs the key exchange and certificate work of the handshake
+   * @param onTasksDone called when that work is done, the handshake goes on
+   *        with the next read
+   * @return the plaintext channel, the handshake happens on the first read
+   */
+  TlsChannel newChannel(ReadableByteChannel source, WritableByteChannel sink, Executor tasks,
+      Runnable onTasksDone) {
+    long start = System.currentTimeMillis();
+    return new TlsChannel(newEngine(), source, sink,
+        // a resumed session was created by an earlier connection
+        session -> metrics.tlsHandshake(session.getCreationTime() < start), tasks, onTasksDone);
+  }
+}
@@ -0,0 +1,243 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Non-blocking client for an upstream JSON API such as GitHub. Requests are
+ * made with java.net.http.HttpClient and never block the calling thread.
+ *
+ * Successful responses are cached for a fixed time in a small LRU cache.
+ * Concurrent requests for the same path share one upstream call. A circuit
+ * breaker stops calling the upstream while it keeps failing.
+ */
+class UpstreamClient {
+  /**
+   * The upstream call failed, either with an error status, a network error
+   * or because the circuit breaker is open.
+   */
+  static class UpstreamException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+    private final long retryAfterSeconds;
+
+    UpstreamException(String message, int status, long retryAfterSeconds) {
+      super(message);
+      this.status = status;
+      this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    UpstreamException(String message, Throwable cause) {
+      super(message, cause);
+      this.status = 0;
+      this.retryAfterSeconds = 0;
+    }
+
+    /**
+     * @return HTTP status of the upstream, 0 for network errors
+     */
+    public int getStatus() {
+      return status;
+    }
+
+    /**
+     * @return seconds until the upstream is called again, 0 unless the
+     *         circuit breaker rejected the call
+     */
+    public long getRetryAfterSeconds() {
+      return retryAfterSeconds;
+    }
+  }
+
+  private static final Duration TIMEOUT = Duration.ofSeconds(20);
+
+  private final String baseUrl;
+  private final long ttlNanos;
+  private final HttpClient client;
+  private final CircuitBreaker breaker;
+
+  // one future per path that is currently being fetched
+  private final Map<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+  private final Map<String, CachedBody> cache;
+
+  private static class CachedBody {
+    final String body;
+    final long expires;
+
+    CachedBody(String body, long expires) {
+      this.body = body;
+      this.expires = expires;
+    }
+  }
+
+  /**
+   * @param baseUrl prefix for all paths, e.g. https://api.github.com/
+   * @param ttlMillis how long a successful response is reused, 0 disables caching
+   * @param maxEntries number of responses kept in the cache
+   * @param breaker decides whether the upstream may be called
+   */
+  UpstreamClient(String baseUrl, long ttlMillis, int maxEntries, CircuitBreaker breaker) {
+    this.baseUrl = baseUrl;
+    this.ttlNanos = ttlMillis * 1_000_000L;
+    this.breaker = breaker;
+    this.client = HttpClient.newBuilder()
+        .connectTimeout(TIMEOUT)
+        .followRedirects(HttpClient.Redirect.NORMAL)
+        .build();
+    this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedBody> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Fetches baseUrl + path.
+   * @param path path and query below the base url
+   * @return future with the response body, completed exceptionally with an
+   *         UpstreamException if the call failed or was rejected
+   */
+  public CompletableFuture<String> fetch(String path) {
+    String cached = cached(path);
+    if (cached != null) {
+      return CompletableFuture.completedFuture(cached);
+    }
+
+    CompletableFuture<String> result = new CompletableFuture<>();
+    CompletableFuture<String> running = inFlight.putIfAbsent(path, result);
+    if (running != null) {
+      // somebody is already fetching this, wait for their result
+      return running;
+    }
+
+    HttpRequest request;
+    try {
+      request = newRequest(path);
+    } catch (IllegalArgumentException e) {
+      inFlight.remove(path, result);
+      result.completeExceptionally(new UpstreamException("Invalid path " + path, e));
+      return result;
+    }
+
+    if (!breaker.allowRequest()) {
+      inFlight.remove(path, result);
+      result.completeExceptionally(rejected());
+      return result;
+    }
+
+    client.sendAsync(request, java.net.http.HttpResponse.BodyHandlers.ofString())
+        .whenComplete((response, error) -> {
+          if (error != null) {
+            breaker.onFailure();
+            inFlight.remove(path, result);
+            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+            result.completeExceptionally(new UpstreamException("Upstream request failed", cause));
+            return;
+          }
+
+          int status = response.statusCode();
+          if (record(status)) {
+            store(path, response.body());
+            inFlight.remove(path, result);
+            result.complete(response.body());
+          } else {
+            inFlight.remove(path, result);
+            result.completeExceptionally(new UpstreamException("Upstream returned " + status, status, 0));
+          }
+        });
+    return result;
+  }
+
+  /**
+   * Fetches baseUrl + path and hands out the body as a stream as soon as the
+   * status line and headers arrived. Streamed responses are neither cached
+   * nor shared between callers.
+   * @param path path and query below the base url
+   * @return future with the body stream, the caller has to close it
+   */
+  public CompletableFuture<InputStream> stream(String path) {
+    HttpRequest request;
+    try {
+      request = newRequest(path);
+    } catch (IllegalArgumentException e) {
+      return CompletableFuture.failedFuture(new UpstreamException("Invalid path " + path, e));
+    }
+    if (!breaker.allowRequest()) {
+      return CompletableFuture.failedFuture(rejected());
+    }
+
+    return client.sendAsync(request, java.net.http.HttpResponse.BodyHandlers.ofInputStream())
+        .handle((response, error) -> {
+          if (error != null) {
+            breaker.onFailure();
+            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+            throw new CompletionException(new UpstreamException("Upstream request failed", cause));
+          }
+          int status = response.statusCode();
+          if (!record(status)) {
+            try {
+              response.body().close();
+            } catch (IOException e) {
+              // nothing to read anyway
+            }
+            throw new CompletionException(new UpstreamException("Upstream returned " + status, status, 0));
+          }
+          return response.body();
+        });
+  }
+
+  private HttpRequest newRequest(String path) {
+    return HttpRequest.newBuilder(URI.create(baseUrl + path))
+        .timeout(TIMEOUT)
+        .header("Accept", "application/json")
+        .GET()
+        .build();
+  }
+
+  private UpstreamException rejected() {
+    return new UpstreamException("Upstream unavailable", 503, breaker.retryAfterSeconds());
+  }
+
+  /**
+   * Tells the breaker about an upstream status. The upstream answering 4xx
+   * is healthy, only 5xx and 429 count as failures.
+   * @return true for a successful (2xx) status
+   */
+  private boolean record(int status) {
+    if (status >= 500 || status == 429) {
+      breaker.onFailure();
+    } else {
+      breaker.onSuccess();
+    }
+    return status >= 200 && status < 300;
+  }
+
+  private synchronized String cached(String path) {
+    CachedBody entry = cache.get(path);
+    if (entry == null) {
+      return null;
+    }
+    if (System.nanoTime() - entry.expires >= 0) {
+      cache.remove(path);
+      return null;
+    }
+    return entry.body;
+  }
+
+  private synchronized void store(String path, String body) {
+    if (ttlNanos > 0) {
+      cache.put(path, new CachedBody(body, System.nanoTime() + ttlNanos));
+    }
+  }
+}
@@ -1,505 +1,1022 @@
-/*
-Simple Web Server in Java which allows you to call 
-localhost:9000/ and show you the root.html webpage from the www/root.html folder
-You can also do some other simple GET requests:
-1) /random shows you a random picture (well random from the set defined)
-2) json shows you the response as JSON for /random instead the html page
-3) /file/filename shows you the raw file (not as HTML)
-4) /multiply?num1=3&num2=4 multiplies the two inputs and responses with the result
-5) /github?query=users/amehlhase316/repos (or other GitHub repo owners) will lead to receiving
-   JSON which will for now only be printed in the console. See the todo below
-
-The reading of the request is done "manually", meaning no library that helps making things a 
-little easier is used. This is done so you see exactly how to pars the request and 
-write a response back
-*/
-
-package funHttpServer;
-
-import org.json.JSONArray;
-import org.json.JSONObject;
-import org.json.JSONException;
-
-import java.io.*;
-import java.net.*;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Random;
-import java.util.Map;
-import java.util.LinkedHashMap;
-import java.nio.charset.Charset;
-
-class WebServer {
-  public static void main(String args[]) {
-    WebServer server = new WebServer(9000);
-  }
-
-  /**
-   * Main thread
-   * @param port to listen on
-   */
-  public WebServer(int port) {
-    ServerSocket server = null;
-    Socket sock = null;
-    InputStream in = null;
-    OutputStream out = null;
-
-    try {
-      server = new ServerSocket(port);
-      while (true) {
-        sock = server.accept();
-        out = sock.getOutputStream();
-        in = sock.getInputStream();
-        byte[] response = createResponse(in);
-        out.write(response);
-        out.flush();
-        in.close();
-        out.close();
-        sock.close();
-      }
-    } catch (IOException e) {
-      e.printStackTrace();
-    } finally {
-      if (sock != null) {
-        try {
-          server.close();
-        } catch (IOException e) {
-          // TODO Auto-generated catch block
-          e.printStackTrace();
-        }
-      }
-    }
-  }
-
-  /**
-   * Used in the "/random" endpoint
-   */
-  private final static HashMap<String, String> _images = new HashMap<>() {
-    {
-      put("streets", "https://iili.io/JV1pSV.jpg");
-      put("bread", "https://iili.io/Jj9MWG.jpg");
-    }
-  };
-
-  private Random random = new Random();
-
-  /**
-   * Reads in socket stream and generates a response
-   * @param inStream HTTP input stream from socket
-   * @return the byte encoded HTTP response
-   */
-  public byte[] createResponse(InputStream inStream) {
-
-    byte[] response = null;
-    BufferedReader in = null;
-
-    try {
-
-      // Read from socket's input stream. Must use an
-      // InputStreamReader to bridge from streams to a reader
-      in = new BufferedReader(new InputStreamReader(inStream, "UTF-8"));
-
-      // Get header and save the request from the GET line:
-      // example GET format: GET /index.html HTTP/1.1
-
-      String request = null;
-
-      boolean done = false;
-      while (!done) {
-        String line = in.readLine();
-
-        System.out.println("Received: " + line);
-
-        // find end of header("\n\n")
-        if (line == null || line.equals(""))
-          done = true;
-        // parse GET format ("GET <path> HTTP/1.1")
-        else if (line.startsWith("GET")) {
-          int firstSpace = line.indexOf(" ");
-          int secondSpace = line.indexOf(" ", firstSpace + 1);
-
-          // extract the request, basically everything after the GET up to HTTP/1.1
-          request = line.substring(firstSpace + 2, secondSpace);
-        }
-
-      }
-      System.out.println("FINISHED PARSING HEADER\n");
-
-      // Generate an appropriate response to the user
-      if (request == null) {
-        response = "<html>Illegal request: no GET</html>".getBytes();
-      } else {
-        // create output buffer
-        StringBuilder builder = new StringBuilder();
-        // NOTE: output from buffer is at the end
-
-        if (request.length() == 0) {
-          // shows the default directory page
-
-          // opens the root.html file
-          String page = new String(readFileInBytes(new File("www/root.html")));
-          // performs a template replacement in the page
-          page = page.replace("${links}", buildFileList());
-
-          // Generate response
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append(page);
-
-        } else if (request.equalsIgnoreCase("json")) {
-          // shows the JSON of a random image and sets the header name for that image
-
-          // pick a index from the map
-          int index = random.nextInt(_images.size());
-
-          // pull out the information
-          String header = (String) _images.keySet().toArray()[index];
-          String url = _images.get(header);
-
-          // Generate response
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: application/json; charset=utf-8\n");
-          builder.append("\n");
-          builder.append("{");
-          builder.append("\"header\":\"").append(header).append("\",");
-          builder.append("\"image\":\"").append(url).append("\"");
-          builder.append("}");
-
-        } else if (request.equalsIgnoreCase("random")) {
-          // opens the random image page
-
-          // open the index.html
-          File file = new File("www/index.html");
-
-          // Generate response
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append(new String(readFileInBytes(file)));
-
-        } else if (request.contains("file/")) {
-          // tries to find the specified file and shows it or shows an error
-
-          // take the path and clean it. try to open the file
-          File file = new File(request.replace("file/", ""));
-
-          // Generate response
-          if (file.exists()) { // success
-            builder.append("HTTP/1.1 200 OK\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("Would theoretically be a file but removed this part, you do not have to do anything with it for the assignment");
-          } else { // failure
-            builder.append("HTTP/1.1 404 Not Found\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("File not found: " + file);
-          }
-        } else if (request.contains("multiply?")) {
-          // This multiplies two numbers, with error handling for missing or incorrect inputs
-          try {
-            Map<String, String> query_pairs = new LinkedHashMap<>();
-
-            // Ensure there are query parameters after "multiply?"
-            String query = request.replace("multiply?", "");
-            if (query.isEmpty()) {
-              throw new IllegalArgumentException("Missing parameters. Please provide both num1 and num2.");
-            }
-
-            // Extract path parameters
-            query_pairs = splitQuery(query);
-
-            // Check if both parameters are provided
-            if (!query_pairs.containsKey("num1") || !query_pairs.containsKey("num2")) {
-              throw new IllegalArgumentException("Missing parameters. Please provide both num1 and num2.");
-            }
-
-            // Extract and parse the numeric inputs
-            Integer num1 = Integer.parseInt(query_pairs.get("num1"));
-            Integer num2 = Integer.parseInt(query_pairs.get("num2"));
-
-            // Perform multiplication
-            Integer result = num1 * num2;
-
-            // Generate response
-            builder.append("HTTP/1.1 200 OK\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("Result is: " + result);
-
-          } catch (NumberFormatException e) {
-            // Handle non-numeric input
-            builder.append("HTTP/1.1 400 Bad Request\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("Invalid input. Please provide numeric values for num1 and num2.");
-          } catch (IllegalArgumentException e) {
-            // Handle missing parameters
-            builder.append("HTTP/1.1 400 Bad Request\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append(e.getMessage()); // Message from exception
-          }
-
-        } else if (request.contains("github?")) {
-          try {
-            Map<String, String> query_pairs = new LinkedHashMap<>();
-            query_pairs = splitQuery(request.replace("github?", ""));
-            String query = query_pairs.get("query");
-
-            if (query == null || query.isEmpty()) {
-              throw new IllegalArgumentException("Missing query parameter. Please provide a valid GitHub query.");
-            }
-
-            String json = fetchURL("https://api.github.com/" + query);
-            JSONArray jsonArray = new JSONArray(json);
-            StringBuilder jsonResponse = new StringBuilder();
-            jsonResponse.append("<html><body><h2>GitHub Repositories</h2><ul>");
-
-            for (int i = 0; i < jsonArray.length(); i++) {
-              JSONObject repo = jsonArray.getJSONObject(i);
-              String fullName = repo.getString("full_name");
-              int id = repo.getInt("id");
-              String ownerLogin = repo.getJSONObject("owner").getString("login");
-
-              jsonResponse.append("<li>")
-                      .append("Repository: ").append(fullName).append("<br>")
-                      .append("ID: ").append(id).append("<br>")
-                      .append("Owner: ").append(ownerLogin).append("<br><br>")
-                      .append("</li>");
-            }
-
-            jsonResponse.append("</ul></body></html>");
-
-            builder.append("HTTP/1.1 200 OK\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append(jsonResponse.toString());
-
-          } catch (JSONException e) {
-            builder.append("HTTP/1.1 500 Internal Server Error\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("Error parsing GitHub API response.");
-          } catch (Exception e) {
-            builder.append("HTTP/1.1 400 Bad Request\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("Invalid GitHub query request.");
-          }
-
-        } else if (request.contains("convertCurrency?")) {
-          try {
-            Map<String, String> query_pairs = splitQuery(request.replace("convertCurrency?", ""));
-
-            if (!query_pairs.containsKey("amount") || !query_pairs.containsKey("from") || !query_pairs.containsKey("to")) {
-              throw new IllegalArgumentException("Missing parameters. Please provide 'amount', 'from', and 'to'.");
-            }
-
-            double amount = Double.parseDouble(query_pairs.get("amount"));
-            String fromCurrency = query_pairs.get("from").toUpperCase();
-            String toCurrency = query_pairs.get("to").toUpperCase();
-
-            // Hardcoded exchange rates for simplicity
-            double rate = 1.0;  // Default to same currency
-            if (fromCurrency.equals("USD") && toCurrency.equals("EUR")) {
-              rate = 0.85;
-            } else if (fromCurrency.equals("EUR") && toCurrency.equals("USD")) {
-              rate = 1.18;
-            } else if (fromCurrency.equals("USD") && toCurrency.equals("GBP")) {
-              rate = 0.75;
-            } else {
-              throw new IllegalArgumentException("Unsupported currency conversion requested.");
-            }
-
-            double convertedAmount = amount * rate;
-
-            builder.append("HTTP/1.1 200 OK\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("Converted amount: ").append(convertedAmount).append(" ").append(toCurrency);
-
-          } catch (NumberFormatException e) {
-            builder.append("HTTP/1.1 400 Bad Request\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("Invalid input. Please provide a valid numeric 'amount'.");
-          } catch (IllegalArgumentException e) {
-            builder.append("HTTP/1.1 400 Bad Request\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append(e.getMessage());
-          }
-
-        } else if (request.contains("greet?")) {
-          try {
-            Map<String, String> query_pairs = splitQuery(request.replace("greet?", ""));
-
-            if (!query_pairs.containsKey("name") || !query_pairs.containsKey("language")) {
-              throw new IllegalArgumentException("Missing parameters. Please provide 'name' and 'language'.");
-            }
-
-            String name = query_pairs.get("name");
-            String language = query_pairs.get("language").toLowerCase();
-
-            String greeting;
-            switch (language) {
-              case "english":
-                greeting = "Hello, " + name + "!";
-                break;
-              case "spanish":
-                greeting = "Hola, " + name + "!";
-                break;
-              case "french":
-                greeting = "Bonjour, " + name + "!";
-                break;
-              default:
-                throw new IllegalArgumentException("Unsupported language. Please use 'english', 'spanish', or 'french'.");
-            }
-
-            builder.append("HTTP/1.1 200 OK\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append(greeting);
-
-          } catch (IllegalArgumentException e) {
-            builder.append("HTTP/1.1 400 Bad Request\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append(e.getMessage());
-          }
-        } else {
-          // if the request is not recognized at all
-
-          builder.append("HTTP/1.1 400 Bad Request\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append("I am not sure what you want me to do...");
-        }
-
-        // Output
-        response = builder.toString().getBytes();
-      }
-    } catch (IOException e) {
-      e.printStackTrace();
-      response = ("<html>ERROR: " + e.getMessage() + "</html>").getBytes();
-    }
-
-    return response;
-  }
-
-  /**
-   * Method to read in a query and split it up correctly
-   * @param query parameters on path
-   * @return Map of all parameters and their specific values
-   * @throws UnsupportedEncodingException If the URLs aren't encoded with UTF-8
-   */
-  public static Map<String, String> splitQuery(String query) throws UnsupportedEncodingException {
-    Map<String, String> query_pairs = new LinkedHashMap<String, String>();
-
-    if (query == null || query.isEmpty()) {
-      return query_pairs;  // Return an empty map if query is null or empty
-    }
-
-    // "q=hello+world%2Fme&bob=5"
-    String[] pairs = query.split("&");
-    // ["q=hello+world%2Fme", "bob=5"]
-    for (String pair : pairs) {
-      int idx = pair.indexOf("=");
-      if (idx > 0) {  // Ensure that the '=' exists and is not at the start
-        String key = URLDecoder.decode(pair.substring(0, idx), "UTF-8");
-        String value = URLDecoder.decode(pair.substring(idx + 1), "UTF-8");
-        query_pairs.put(key, value);
-      }
-    }
-    // {{"q", "hello world/me"}, {"bob","5"}}
-    return query_pairs;
-  }
-
-  /**
-   * Builds an HTML file list from the www directory
-   * @return HTML string output of file list
-   */
-  public static String buildFileList() {
-    ArrayList<String> filenames = new ArrayList<>();
-
-    // Creating a File object for directory
-    File directoryPath = new File("www/");
-    filenames.addAll(Arrays.asList(directoryPath.list()));
-
-    if (filenames.size() > 0) {
-      StringBuilder builder = new StringBuilder();
-      builder.append("<ul>\n");
-      for (var filename : filenames) {
-        builder.append("<li>" + filename + "</li>");
-      }
-      builder.append("</ul>\n");
-      return builder.toString();
-    } else {
-      return "No files in directory";
-    }
-  }
-
-  /**
-   * Read bytes from a file and return them in the byte array. We read in blocks
-   * of 512 bytes for efficiency.
-   */
-  public static byte[] readFileInBytes(File f) throws IOException {
-
-    FileInputStream file = new FileInputStream(f);
-    ByteArrayOutputStream data = new ByteArrayOutputStream(file.available());
-
-    byte buffer[] = new byte[512];
-    int numRead = file.read(buffer);
-    while (numRead > 0) {
-      data.write(buffer, 0, numRead);
-      numRead = file.read(buffer);
-    }
-    file.close();
-
-    byte[] result = data.toByteArray();
-    data.close();
-
-    return result;
-  }
-
-  /**
-   *
-   * a method to make a web request. Note that this method will block execution
-   * for up to 20 seconds while the request is being satisfied. Better to use a
-   * non-blocking request.
-   * 
-   * @param aUrl the String indicating the query url for the OMDb api search
-   * @return the String result of the http request.
-   *
-   **/
-  public String fetchURL(String aUrl) {
-    StringBuilder sb = new StringBuilder();
-    URLConnection conn = null;
-    InputStreamReader in = null;
-    try {
-      URL url = new URL(aUrl);
-      conn = url.openConnection();
-      if (conn != null)
-        conn.setReadTimeout(20 * 1000); // timeout in 20 seconds
-      if (conn != null && conn.getInputStream() != null) {
-        in = new InputStreamReader(conn.getInputStream(), Charset.defaultCharset());
-        BufferedReader br = new BufferedReader(in);
-        if (br != null) {
-          int ch;
-          // read the next character until end of reader
-          while ((ch = br.read()) != -1) {
-            sb.append((char) ch);
-          }
-          br.close();
-        }
-      }
-      in.close();
-    } catch (Exception ex) {
-      System.out.println("Exception in url request:" + ex.getMessage());
-    }
-    return sb.toString();
-  }
-}
+/*
+Simple Web Server in Java which allows you to call 
+localhost:9000/ and show you the root.html webpage from the www/root.html folder
+You can also do some other simple GET requests:
+1) /random shows you a random picture (well random from the set defined)
+2) json shows you the response as JSON for /random instead the html page
+3) /file/filename shows you the raw file (not as HTML), supports Range and conditional requests
+4) /multiply?num1=3&num2=4 multiplies the two inputs and responses with the result,
+   POST /multiply/batch multiplies many pairs at once
+5) /github?query=users/amehlhase316/repos (or other GitHub repo owners) lists the public
+   repositories of the user. The GitHub call is asynchronous and its result is cached
+6) /metrics shows request counters and latency histograms in the Prometheus text format
+
+The reading of the request is done "manually", meaning no library that helps making things a 
+little easier is used. This is done so you see exactly how to pars the request and 
+write a response back
+*/
+
+package funHttpServer;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONException;
+
+import java.io.*;
+import java.net.*;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+
+class WebServer {
+  public static void main(String args[]) {
+    ServerConfig config = null;
+    try {
+      config = ServerConfig.fromArgs(args);
+    } catch (IllegalArgumentException e) {
+      System.out.println(e.getMessage());
+      System.out.println("Usage: WebServer [port=9000] [mode=blocking|nio|virtual] [workers=N] [loops=N]"
+          + " [maxConnections=N] [drainTimeout=ms] [reusePort=true|false] [idleTimeout=ms] [maxRequests=N] [maxBodySize=bytes]"
+          + " [cacheSize=bytes]"
+          + " [compress=true|false] [compressMinSize=bytes] [log=true|false]"
+          + " [accessLog=file] [accessLogMaxSize=bytes] [accessLogRoll=ms]"
+          + " [clientRate=perSecond:burst] [routeRates=route:perSecond:burst,...] [maxInFlight=N]"
+          + " [rates=file] [ratesRefresh=ms] [keystore=file] [keystorePassword=password]"
+          + " [tlsProtocols=list] [tlsCiphers=list] [tlsSessionCache=N] [tlsSessionTimeout=s]"
+          + " [githubUrl=url] [githubCacheTtl=ms] [githubStream=true|false]");
+      System.exit(1);
+    }
+
+    WebServer server;
+    try {
+      server = new WebServer(config);
+    } catch (IllegalArgumentException e) {
+      // e.g. a keystore that cannot be read, better than serving plaintext
+      System.out.println(e.getMessage());
+      System.exit(1);
+      return;
+    }
+    try {
+      server.serve();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  // buckets of a per-client rate limiter, clients that hash to the same one share it
+  private static final int CLIENT_STRIPES = 1024;
+
+  // numbers the servers of this process, for their directories of compressed files
+  private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+  private final ServerConfig config;
+
+  // files for the "/file/" route are looked up below config.fileRoot
+  private final StaticFiles staticFiles;
+
+  // Content-Encoding of the responses, null if compression is off
+  private final Compression compression;
+
+  // GitHub API client for the "/github" route
+  private final UpstreamClient github;
+
+  // rendered pages and file contents from www/, dropped when www/ changes
+  private final ContentCache cache;
+
+  // files below www/ for the root page and "/files", kept up to date by the watcher
+  private final DirectoryIndex index;
+
+  // change notifications for www/, null if it cannot be watched; stopped by close()
+  private final DirectoryWatcher watcher;
+
+  // compiled page templates by path, also dropped when www/ changes
+  private final Map<String, Template> templates = new ConcurrentHashMap<>();
+  private final AtomicLong templateGeneration = new AtomicLong();
+
+  // certificate and session cache for HTTPS, null to serve plain HTTP
+  private final TlsContext tls;
+
+  // exchange rates for "/convertCurrency"
+  private final ExchangeRates rates;
+
+  // handlers by request path
+  private final Router router = routes();
+
+  // request counters and latency histograms for "/metrics"
+  private final Metrics metrics = new Metrics();
+
+  // one line per request on the console, null if logging is off
+  private final ConsoleLog log;
+
+  // one JSON line per request in a file, null if not configured
+  private final AccessLog accessLog;
+
+  // token buckets per client address over all routes, null if not limited
+  private final RateLimiter clientLimiter;
+
+  // requests between admission and response, limited by maxInFlight
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  /**
+   * Sets up the server, call serve() to start listening
+   * @param config startup options
+   */
+  public WebServer(ServerConfig config) {
+    this.config = config;
+    this.github = new UpstreamClient(config.githubUrl, config.githubCacheTtl, 256,
+        new CircuitBreaker(5, 30 * 1000));
+    this.compression = config.compress ? new Compression(config.compressMinSize) : null;
+    this.log = config.log ? new ConsoleLog(System.out, metrics) : null;
+    try {
+      this.accessLog = config.accessLog.isEmpty() ? null
+          : new AccessLog(Paths.get(config.accessLog), config.accessLogMaxSize, config.accessLogRoll, metrics);
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Cannot open the access log " + config.accessLog + ": " + e.getMessage(), e);
+    }
+    this.rates = exchangeRates(config);
+    try {
+      this.tls = config.keystore.isEmpty() ? null : new TlsContext(config, metrics);
+    } catch (IOException | GeneralSecurityException e) {
+      throw new IllegalArgumentException("Cannot set up TLS with " + config.keystore + ": " + e.getMessage(), e);
+    }
+    this.clientLimiter = config.clientRate == null ? null
+        : new RateLimiter(config.clientRate.perSecond, config.clientRate.burst, CLIENT_STRIPES);
+    for (Map.Entry<String, ServerConfig.Rate> rate : config.routeRates.entrySet()) {
+      router.limit(rate.getKey(),
+          new RateLimiter(rate.getValue().perSecond, rate.getValue().burst, CLIENT_STRIPES));
+    }
+
+    // compressed copies of static files go to a temporary directory of this
+    // server, made with the first copy and deleted by close()
+    Path variants = !config.compress ? null : Paths.get(System.getProperty("java.io.tmpdir"),
+        "funHttpServer-gzip-" + ProcessHandle.current().pid() + "-" + INSTANCES.incrementAndGet());
+    this.staticFiles = new StaticFiles(Paths.get(config.fileRoot), variants, config.compressMinSize);
+
+    DirectoryWatcher watcher = null;
+    try {
+      watcher = new DirectoryWatcher(Paths.get("www"));
+    } catch (IOException e) {
+      System.out.println("Cannot watch www/, caching disabled: " + e.getMessage());
+    }
+    this.watcher = watcher;
+    // without change notifications the cache could serve outdated pages
+    this.cache = new ContentCache(watcher != null ? config.cacheSize : 0);
+    try {
+      this.index = new DirectoryIndex(Paths.get("www"), watcher != null);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Cannot read www/", e);
+    }
+    if (watcher != null) {
+      // the index goes first, pages rendered after the cache is dropped must see the change
+      watcher.addListener(index::changed);
+      watcher.addListener(changed -> {
+        templateGeneration.incrementAndGet();
+        templates.clear();
+        cache.invalidateAll();
+      });
+    }
+  }
+
+  // rates from the configured file, the built-in rates if there is none or it cannot be read
+  private static ExchangeRates exchangeRates(ServerConfig config) {
+    if (!config.rates.isEmpty()) {
+      try {
+        ExchangeRates rates = new ExchangeRates(new FileRateProvider(Paths.get(config.rates)));
+        if (config.ratesRefresh > 0) {
+          rates.refreshEvery(config.ratesRefresh);
+        }
+        return rates;
+      } catch (IOException e) {
+        System.out.println("Cannot read exchange rates, using the built-in ones: " + e.getMessage());
+      }
+    }
+    try {
+      return new ExchangeRates(RateProvider.builtIn());
+    } catch (IOException e) {
+      throw new IllegalStateException("Built-in exchange rates are malformed", e);
+    }
+  }
+
+  /**
+   * Runs the server in the configured mode until it fails or the JVM is
+   * asked to exit. On Ctrl-C or kill the server stops accepting, lets the
+   * requests in progress finish for up to drainTimeout and then exits.
+   */
+  public void serve() throws IOException {
+    ServerLoop loop;
+    if (config.mode.equals("nio")) {
+      loop = config.loops > 1 ? new ShardedNioServer(this, config) : new NioServer(this, config);
+    } else if (config.mode.equals("virtual")) {
+      loop = new ThreadPerConnectionServer(this, config);
+    } else {
+      loop = new BlockingServer(this, config);
+    }
+    loop.bind();
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      System.out.println("Shutting down, waiting up to " + config.drainTimeout + " ms for open requests");
+      if (!loop.shutdown(config.drainTimeout)) {
+        System.out.println("Closed connections that were still busy");
+      }
+      close();
+    }, "shutdown"));
+    loop.run();
+  }
+
+  /**
+   * Releases what outlives the connections, after the server has stopped
+   */
+  void close() {
+    if (log != null) {
+      log.flush(1000);
+    }
+    if (accessLog != null) {
+      accessLog.close(1000);
+    }
+    staticFiles.deleteVariants();
+    if (watcher != null) {
+      watcher.close();
+    }
+  }
+
+  /**
+   * Lets another server bind the same port while this one still listens, so
+   * a new version can be started before the old one is stopped. The kernel
+   * spreads new connections over all sockets bound to the port.
+   * @param socket unbound server socket
+   * @throws IOException if the platform has no SO_REUSEPORT (e.g. Windows)
+   */
+  static void reusePort(ServerSocket socket) throws IOException {
+    if (!socket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+      throw new IOException("SO_REUSEPORT is not supported on this platform");
+    }
+    socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+  }
+
+  /**
+   * Serves requests on one persistent connection until the client closes it,
+   * asks for "Connection: close", stays idle for longer than the idle timeout
+   * or reaches the per-connection request limit. Pipelined requests are
+   * answered in order.
+   * @param sock accepted client socket, closed when done
+   * @param waitForNext if false the connection is only kept for requests the
+   *        client has already sent, otherwise it waits up to the idle timeout
+   */
+  void serveConnection(Socket sock, boolean waitForNext) {
+    try (Socket client = sock) {
+      client.setSoTimeout(config.idleTimeout);
+      // the head and a file body are separate writes, see NioServer.accept
+      client.setTcpNoDelay(true);
+      InputStream in;
+      OutputStream out;
+      // files are sent with transferTo to the socket, or copied if they must be encrypted
+      WritableByteChannel channel;
+      TlsChannel secure = null;
+      if (tls == null) {
+        in = new BufferedInputStream(client.getInputStream());
+        out = new BufferedOutputStream(client.getOutputStream());
+        channel = client.getChannel();
+      } else {
+        // the socket streams keep the idle timeout working
+        secure = tls.newChannel(Channels.newChannel(client.getInputStream()),
+            Channels.newChannel(client.getOutputStream()));
+        in = new BufferedInputStream(Channels.newInputStream(secure));
+        out = new BufferedOutputStream(Channels.newOutputStream(secure));
+        channel = null;
+      }
+
+      // the request heads of this connection are read into the same buffer
+      ByteBuffer head = ByteBuffer.allocate(1024);
+      int served = 0;
+      boolean keepAlive = true;
+      while (keepAlive) {
+        head = HttpRequest.readHead(in, head);
+        if (head.position() == 0) {
+          break; // client closed the connection
+        }
+        long parseStart = System.nanoTime();
+        HttpRequest request = HttpRequest.parse(head.array(), 0, head.position())
+            .setClient(client.getInetAddress());
+        metrics.record(Metrics.Stage.PARSE, System.nanoTime() - parseStart);
+        served++;
+
+        HttpResponse response = rejectBody(request);
+        if (response == null) {
+          int length = (int) request.getContentLength();
+          if (length > 0) {
+            if (request.expectsContinue()) {
+              out.write(HttpResponse.CONTINUE);
+              out.flush();
+            }
+            byte[] body = in.readNBytes(length);
+            if (body.length < length) {
+              break; // client closed the connection in the body
+            }
+            request.setBody(body, 0, length);
+          }
+          response = handleRequest(request);
+          keepAlive = request.isKeepAlive() && served < config.maxRequests
+              && (waitForNext || in.available() > 0) && !response.endsWithClose(request.getVersion());
+        } else {
+          // the body was not read, the next request would start inside it
+          keepAlive = false;
+        }
+        long writeStart = System.nanoTime();
+        response.writeTo(out, channel, request.getVersion(), keepAlive);
+        metrics.record(Metrics.Stage.WRITE, System.nanoTime() - writeStart);
+      }
+      if (secure != null) {
+        secure.close();
+      }
+    } catch (SocketTimeoutException e) {
+      // idle for too long, just close the connection
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Used in the "/random" endpoint
+   */
+  private final static HashMap<String, String> _images = new HashMap<>() {
+    {
+      put("streets", "https://iili.io/JV1pSV.jpg");
+      put("bread", "https://iili.io/Jj9MWG.jpg");
+    }
+  };
+
+  private Random random = new Random();
+
+  /**
+   * Reads in socket stream and generates a response
+   * @param inStream HTTP input stream from socket
+   * @return the byte encoded HTTP response
+   */
+  public byte[] createResponse(InputStream inStream) {
+    try {
+      return handleRequest(parseRequest(inStream)).toBytes(false);
+    } catch (IOException e) {
+      e.printStackTrace();
+      return ("<html>ERROR: " + e.getMessage() + "</html>").getBytes();
+    }
+  }
+
+  /**
+   * Parse stage: reads the request line and headers from the socket stream
+   * @param inStream HTTP input stream from socket
+   * @return the parsed request
+   */
+  public HttpRequest parseRequest(InputStream inStream) throws IOException {
+    // Get header and save the request from the GET line:
+    // example GET format: GET /index.html HTTP/1.1
+    return HttpRequest.parse(HttpRequest.readHead(inStream));
+  }
+
+  /**
+   * Handler stage: generates the response for a parsed request. Safe to call
+   * from several threads at once.
+   * @param httpRequest result of the parse stage
+   * @return the HTTP response, framing is added when it is written
+   */
+  public HttpResponse handleRequest(HttpRequest httpRequest) {
+    long start = System.nanoTime();
+    Router.Route route = route(httpRequest);
+    HttpResponse response = admit(httpRequest, route);
+    if (response == null) {
+      try {
+        response = respond(httpRequest, route);
+      } finally {
+        inFlight.decrementAndGet();
+      }
+    }
+    return handled(httpRequest, route, response, start);
+  }
+
+  /**
+   * Checks the framing of the request body before a connection reads it.
+   * Bodies must come with a Content-Length of at most maxBodySize; chunked
+   * request bodies are not supported.
+   * @param request parsed head
+   * @return null if the connection may read getContentLength() body bytes,
+   *         otherwise the error response, already counted and logged. The
+   *         body is not read, so the connection must be closed after it.
+   */
+  HttpResponse rejectBody(HttpRequest request) {
+    long start = System.nanoTime();
+    HttpResponse response = null;
+    if (request.getHeader("Transfer-Encoding") != null) {
+      response = HttpResponse.html(411, "<html>Please send the body with a Content-Length.</html>");
+    } else if (request.getContentLength() < 0) {
+      response = HttpResponse.html(400, "<html>Illegal request: malformed Content-Length</html>");
+    } else if (request.getContentLength() > config.maxBodySize) {
+      response = HttpResponse.html(413, "<html>The body is larger than " + config.maxBodySize + " bytes.</html>");
+    }
+    return response == null ? null : handled(request, route(request), response, start);
+  }
+
+  private Router.Route route(HttpRequest request) {
+    String path = request.getPath();
+    return path == null ? null : router.find(path);
+  }
+
+  private HttpResponse respond(HttpRequest request, Router.Route route) {
+    if (request.getPath() == null) {
+      return HttpResponse.html(400, "<html>Illegal request: no GET or POST</html>");
+    }
+    if (route == null) {
+      return notFound();
+    }
+    if (!route.allows(request.getMethod())) {
+      return HttpResponse.html(405, "<html>" + route.getName() + " only answers " + route.getMethod() + "</html>")
+          .header("Allow", route.getMethod());
+    }
+    try {
+      return compress(request, route.handle(request));
+    } catch (IOException | RuntimeException e) {
+      return serverError(e);
+    }
+  }
+
+  /**
+   * Handler stage for callers that must not block: routes whose work is
+   * asynchronous (the GitHub proxy) complete the future later, everything
+   * else is handled right away.
+   * @param httpRequest result of the parse stage
+   * @return future with the HTTP response, never completed exceptionally
+   */
+  public CompletableFuture<HttpResponse> handleAsync(HttpRequest httpRequest) {
+    long start = System.nanoTime();
+    Router.Route route = route(httpRequest);
+    if (route == null || !route.allows(httpRequest.getMethod())) {
+      return CompletableFuture.completedFuture(handleRequest(httpRequest));
+    }
+    HttpResponse rejected = admit(httpRequest, route);
+    if (rejected != null) {
+      return CompletableFuture.completedFuture(handled(httpRequest, route, rejected, start));
+    }
+    CompletableFuture<HttpResponse> future;
+    try {
+      future = route.handleAsync(httpRequest);
+    } catch (RuntimeException e) {
+      // a synchronous handler failed, answered like a failed future
+      future = CompletableFuture.failedFuture(e);
+    }
+    return future.handle((response, error) -> {
+      inFlight.decrementAndGet();
+      if (error == null) {
+        response = compress(httpRequest, response);
+      } else {
+        Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+        if (cause instanceof Exception) {
+          response = serverError((Exception) cause);
+        } else {
+          response = HttpResponse.html(500, "<html>ERROR: " + cause + "</html>");
+        }
+      }
+      return handled(httpRequest, route, response, start);
+    });
+  }
+
+  /**
+   * Admission control, runs before the handler. Takes a token from the
+   * client's bucket and from the client's bucket of the route, then a place
+   * among the requests in flight. Rejections are cheap, so an abusive client
+   * or a slow upstream cannot tie up the threads the other routes need.
+   * @return null if the request may be handled, it then holds a place in
+   *         flight until it is answered; otherwise the 429 or 503 response
+   */
+  private HttpResponse admit(HttpRequest request, Router.Route route) {
+    InetAddress client = request.getClient();
+    int key = client == null ? 0 : client.hashCode();
+    if (clientLimiter != null) {
+      long wait = clientLimiter.tryAcquire(key);
+      if (wait > 0) {
+        return tooManyRequests(wait);
+      }
+    }
+    RateLimiter routeLimiter = route == null ? null : route.getLimiter();
+    if (routeLimiter != null) {
+      long wait = routeLimiter.tryAcquire(key);
+      if (wait > 0) {
+        return tooManyRequests(wait);
+      }
+    }
+    if (inFlight.incrementAndGet() > config.maxInFlight && config.maxInFlight > 0) {
+      inFlight.decrementAndGet();
+      return HttpResponse.html(503, "<html>The server is busy, please try again later.</html>")
+          .header("Retry-After", "1");
+    }
+    return null;
+  }
+
+  private static HttpResponse tooManyRequests(long waitNanos) {
+    long seconds = Math.max(1, (waitNanos + 999_999_999L) / 1_000_000_000L);
+    return HttpResponse.html(429, "<html>Too many requests, please try again in " + seconds + " s.</html>")
+        .header("Retry-After", String.valueOf(seconds));
+  }
+
+  // counts and logs a request once its response is known
+  private HttpResponse handled(HttpRequest request, Router.Route route, HttpResponse response, long start) {
+    long nanos = System.nanoTime() - start;
+    String name = route != null ? route.getName() : request.getPath() == null ? "invalid" : "unknown";
+    metrics.request(name, response.getStatus(), nanos);
+    if (log != null) {
+      log.request(request, response.getStatus(), nanos);
+    }
+    if (accessLog != null) {
+      accessLog.request(request, name, response.getStatus(),
+          response.hasStreamBody() ? -1 : response.getContentLength(), nanos);
+    }
+    return response;
+  }
+
+  /**
+   * @return the TLS setup, null if the server speaks plain HTTP
+   */
+  TlsContext getTls() {
+    return tls;
+  }
+
+  /**
+   * @return counters and histograms of this server, shared with the
+   *         connection handling of all modes
+   */
+  Metrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * @return the routes, extended by tests
+   */
+  Router getRouter() {
+    return router;
+  }
+
+  private HttpResponse compress(HttpRequest request, HttpResponse response) {
+    return compression == null ? response : compression.apply(request, response);
+  }
+
+  /**
+   * Responds with cached bytes. The compressed form is cached as well, so
+   * unchanged pages are only compressed once.
+   */
+  private HttpResponse cached(HttpRequest request, String key, ContentCache.Loader loader) throws IOException {
+    byte[] body = cache.get(key, loader);
+    if (compression == null || body.length < config.compressMinSize) {
+      return new HttpResponse(200, HttpResponse.HTML, body);
+    }
+    String encoding = Compression.negotiate(request.getHeader("Accept-Encoding"));
+    if (encoding == null) {
+      return new HttpResponse(200, HttpResponse.HTML, body).header("Vary", "Accept-Encoding");
+    }
+    return new HttpResponse(200, HttpResponse.HTML, cache.get(encoding + ":" + key, () -> Compression.encode(encoding, body)))
+        .header("Content-Encoding", encoding)
+        .header("Vary", "Accept-Encoding");
+  }
+
+  /**
+   * Registers the handlers of all routes
+   */
+  private Router routes() {
+    return new Router()
+        .add("", this::rootPage)
+        .add("json", this::randomImageJson)
+        .add("random", this::randomImagePage)
+        .addPrefix("file", this::file)
+        .add("multiply", this::multiply)
+        .addPost("multiply/batch", this::multiplyBatch)
+        .addAsync("github", this::github)
+        .add("convertCurrency", this::convertCurrency)
+        .add("convertCurrency/batch", this::convertCurrencyBatch)
+        .add("greet", this::greet)
+        .add("files", this::files)
+        .add("metrics", this::metrics);
+  }
+
+  // counters and latency histograms in the Prometheus text format
+  private HttpResponse metrics(HttpRequest request) {
+    return new HttpResponse(200, "text/plain; version=0.0.4; charset=utf-8", metrics.render());
+  }
+
+  private static HttpResponse notFound() {
+    // if the request is not recognized at all
+    return HttpResponse.html(400, "I am not sure what you want me to do...");
+  }
+
+  private static HttpResponse serverError(Exception e) {
+    e.printStackTrace();
+    return HttpResponse.html(500, "<html>ERROR: " + e.getMessage() + "</html>");
+  }
+
+  // shows the default directory page
+  private HttpResponse rootPage(HttpRequest request) throws IOException {
+    // the rendered page is cached until something in www/ changes
+    return cached(request, "page:/", this::renderRootPage);
+  }
+
+  // lists www/ with size, modification time and type, a page at a time
+  private HttpResponse files(HttpRequest request) throws IOException {
+    DirectoryIndex.Query query;
+    try {
+      query = DirectoryIndex.Query.parse(request.getParameters());
+    } catch (IllegalArgumentException e) {
+      return HttpResponse.html(400, "Invalid listing: " + e.getMessage());
+    }
+    // the same listing asked for in different words is cached once
+    return cached(request, "files:" + query, () -> index.render(query, filePrefix()));
+  }
+
+  // links from the www/ listing to "/file/", which serves config.fileRoot
+  private String filePrefix() {
+    Path root = Paths.get(config.fileRoot).toAbsolutePath().normalize();
+    Path www = Paths.get("www").toAbsolutePath().normalize();
+    String below = www.startsWith(root) ? root.relativize(www).toString().replace('\\', '/') : "";
+    return below.isEmpty() ? "/file/" : "/file/" + below + "/";
+  }
+
+  // shows the JSON of a random image and sets the header name for that image
+  private HttpResponse randomImageJson(HttpRequest request) {
+    // pick a index from the map
+    int index = random.nextInt(_images.size());
+
+    // pull out the information
+    String header = (String) _images.keySet().toArray()[index];
+    String url = _images.get(header);
+
+    // Generate response
+    StringBuilder builder = new StringBuilder();
+    builder.append("{");
+    builder.append("\"header\":\"").append(header).append("\",");
+    builder.append("\"image\":\"").append(url).append("\"");
+    builder.append("}");
+    return new HttpResponse(200, HttpResponse.JSON, builder.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  // opens the random image page
+  private HttpResponse randomImagePage(HttpRequest request) throws IOException {
+    // open the index.html
+    File file = new File("www/index.html");
+
+    // Generate response
+    return cached(request, "file:" + file, () -> readFileInBytes(file));
+  }
+
+  // sends the specified file as is or shows an error, the bytes are only
+  // read when the response is written
+  private HttpResponse file(HttpRequest request) throws IOException {
+    return staticFiles.serve(request, request.getPath().substring("file/".length()));
+  }
+
+  // This multiplies two numbers, with error handling for missing or incorrect inputs
+  private HttpResponse multiply(HttpRequest request) throws IOException {
+    try {
+      // Ensure there are query parameters after "multiply?"
+      if (request.getQuery().isEmpty()) {
+        throw new IllegalArgumentException("Missing parameters. Please provide both num1 and num2.");
+      }
+
+      // Extract path parameters
+      Map<String, String> query_pairs = request.getParameters();
+
+      // Check if both parameters are provided
+      if (!query_pairs.containsKey("num1") || !query_pairs.containsKey("num2")) {
+        throw new IllegalArgumentException("Missing parameters. Please provide both num1 and num2.");
+      }
+
+      // Extract and parse the numeric inputs
+      long num1 = Long.parseLong(query_pairs.get("num1"));
+      long num2 = Long.parseLong(query_pairs.get("num2"));
+
+      // Perform multiplication, a result that does not fit is an error and not a wrong number
+      long result = Math.multiplyExact(num1, num2);
+
+      // Generate response
+      return HttpResponse.html(200, "Result is: " + result);
+
+    } catch (NumberFormatException e) {
+      // Handle non-numeric input
+      return HttpResponse.html(400, "Invalid input. Please provide numeric values for num1 and num2.");
+    } catch (ArithmeticException e) {
+      return HttpResponse.html(400, "The result does not fit into 64 bits.");
+    } catch (IllegalArgumentException e) {
+      // Handle missing parameters
+      return HttpResponse.html(400, e.getMessage()); // Message from exception
+    }
+  }
+
+  /**
+   * Multiplies many pairs in one request. POST /multiply/batch with the body
+   * [[3,4],[5,6]] returns {"count":2,"overflows":0,"results":[12,30]}; with
+   * Content-Type application/octet-stream the pairs and products are 64 bit
+   * big-endian integers, see BatchMultiply. The results are streamed.
+   */
+  private HttpResponse multiplyBatch(HttpRequest request) {
+    try {
+      String contentType = request.getHeader("Content-Type");
+      boolean binary = contentType != null && contentType.regionMatches(true, 0, HttpResponse.BINARY, 0,
+          HttpResponse.BINARY.length());
+      BatchMultiply batch = binary ? BatchMultiply.fromBinary(request.getBody())
+          : BatchMultiply.fromJson(request.getBody());
+      batch.compute();
+      if (binary) {
+        return HttpResponse.stream(200, HttpResponse.BINARY, batch::writeBinary)
+            .header("X-Overflows", String.valueOf(batch.getOverflows()));
+      }
+      return HttpResponse.stream(200, HttpResponse.JSON, batch::writeJson);
+    } catch (IllegalArgumentException e) {
+      return HttpResponse.html(400, e.getMessage());
+    }
+  }
+
+  private HttpResponse convertCurrency(HttpRequest request) {
+    try {
+      Map<String, String> query_pairs = request.getParameters();
+
+      if (!query_pairs.containsKey("amount") || !query_pairs.containsKey("from") || !query_pairs.containsKey("to")) {
+        throw new IllegalArgumentException("Missing parameters. Please provide 'amount', 'from', and 'to'.");
+      }
+
+      double amount = parseAmount(query_pairs.get("amount"));
+      // one table for the whole request, a refresh may swap in another one meanwhile
+      RateTable table = rates.current();
+      int from = currency(table, query_pairs.get("from"), 0, query_pairs.get("from").length());
+      int to = currency(table, query_pairs.get("to"), 0, query_pairs.get("to").length());
+
+      double convertedAmount = amount * rate(table, from, to);
+
+      return HttpResponse.html(200, "Converted amount: " + convertedAmount + " " + table.code(to));
+
+    } catch (NumberFormatException e) {
+      return HttpResponse.html(400, "Invalid input. Please provide a valid numeric 'amount'.");
+    } catch (IllegalArgumentException e) {
+      return HttpResponse.html(400, e.getMessage());
+    }
+  }
+
+  /**
+   * Converts one amount into several currencies at once, e.g.
+   * /convertCurrency/batch?amount=100&from=USD&to=EUR,GBP returns
+   * {"amount":100.0,"from":"USD","results":[{"to":"EUR","amount":85.0},{"to":"GBP","amount":75.0}]}
+   */
+  private HttpResponse convertCurrencyBatch(HttpRequest request) {
+    try {
+      Map<String, String> query_pairs = request.getParameters();
+
+      if (!query_pairs.containsKey("amount") || !query_pairs.containsKey("from") || !query_pairs.containsKey("to")) {
+        throw new IllegalArgumentException("Missing parameters. Please provide 'amount', 'from', and 'to'.");
+      }
+
+      double amount = parseAmount(query_pairs.get("amount"));
+      RateTable table = rates.current();
+      String fromCode = query_pairs.get("from");
+      int from = currency(table, fromCode, 0, fromCode.length());
+
+      StringBuilder json = new StringBuilder(64);
+      json.append("{\"amount\":").append(amount).append(",\"from\":\"").append(table.code(from))
+          .append("\",\"results\":[");
+      // the codes are looked up between the commas, no strings are cut out
+      String targets = query_pairs.get("to");
+      int start = 0;
+      while (start <= targets.length()) {
+        int comma = targets.indexOf(',', start);
+        int end = comma < 0 ? targets.length() : comma;
+        int to = currency(table, targets, start, end);
+        if (start > 0) {
+          json.append(',');
+        }
+        json.append("{\"to\":\"").append(table.code(to)).append("\",\"amount\":")
+            .append(amount * rate(table, from, to)).append('}');
+        start = end + 1;
+      }
+      json.append("]}");
+      return new HttpResponse(200, HttpResponse.JSON, json.toString().getBytes(StandardCharsets.UTF_8));
+
+    } catch (NumberFormatException e) {
+      return HttpResponse.html(400, "Invalid input. Please provide a valid numeric 'amount'.");
+    } catch (IllegalArgumentException e) {
+      return HttpResponse.html(400, e.getMessage());
+    }
+  }
+
+  private static double parseAmount(String amount) {
+    double value = Double.parseDouble(amount);
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      throw new NumberFormatException(amount);
+    }
+    return value;
+  }
+
+  private static int currency(RateTable table, String text, int start, int end) {
+    int row = table.indexOf(text, start, end);
+    if (row < 0) {
+      throw new IllegalArgumentException("Unsupported currency " + text.substring(start, end) + " requested.");
+    }
+    return row;
+  }
+
+  private static double rate(RateTable table, int from, int to) {
+    double rate = table.rate(from, to);
+    if (Double.isNaN(rate)) {
+      throw new IllegalArgumentException("Unsupported currency conversion requested.");
+    }
+    return rate;
+  }
+
+
+  private HttpResponse greet(HttpRequest request) throws IOException {
+    try {
+      Map<String, String> query_pairs = request.getParameters();
+
+      if (!query_pairs.containsKey("name") || !query_pairs.containsKey("language")) {
+        throw new IllegalArgumentException("Missing parameters. Please provide 'name' and 'language'.");
+      }
+
+      String name = query_pairs.get("name");
+      String language = query_pairs.get("language").toLowerCase();
+
+      String greeting;
+      switch (language) {
+        case "english":
+          greeting = "Hello, " + name + "!";
+          break;
+        case "spanish":
+          greeting = "Hola, " + name + "!";
+          break;
+        case "french":
+          greeting = "Bonjour, " + name + "!";
+          break;
+        default:
+          throw new IllegalArgumentException("Unsupported language. Please use 'english', 'spanish', or 'french'.");
+      }
+
+      return HttpResponse.html(200, greeting);
+
+    } catch (IllegalArgumentException e) {
+      return HttpResponse.html(400, e.getMessage());
+    }
+  }
+
+  /**
+   * Lists the repositories returned by a GitHub API query
+   * @param request e.g. github?query=users/amehlhase316/repos
+   * @return future with the HTML list or an error response
+   */
+  private CompletableFuture<HttpResponse> github(HttpRequest request) {
+    String query;
+    try {
+      query = request.getParameters().get("query");
+    } catch (Exception e) {
+      query = null;
+    }
+    if (query == null || query.isEmpty()) {
+      return CompletableFuture.completedFuture(HttpResponse.html(400, "Invalid GitHub query request."));
+    }
+
+    if (config.githubStream) {
+      // the page is written while the upstream body arrives, nothing is buffered
+      return github.stream(query).handle((body, error) -> {
+        if (error != null) {
+          return upstreamError(error);
+        }
+        return HttpResponse.stream(200, HttpResponse.HTML, out -> GithubRepos.render(body, out));
+      });
+    }
+
+    return github.fetch(query).handle((json, error) -> {
+      if (error != null) {
+        return upstreamError(error);
+      }
+
+      try {
+        JSONArray jsonArray = new JSONArray(json);
+        StringBuilder jsonResponse = new StringBuilder();
+        jsonResponse.append("<html><body><h2>GitHub Repositories</h2><ul>");
+
+        for (int i = 0; i < jsonArray.length(); i++) {
+          JSONObject repo = jsonArray.getJSONObject(i);
+          String fullName = repo.getString("full_name");
+          int id = repo.getInt("id");
+          String ownerLogin = repo.getJSONObject("owner").getString("login");
+
+          jsonResponse.append("<li>")
+                  .append("Repository: ").append(fullName).append("<br>")
+                  .append("ID: ").append(id).append("<br>")
+                  .append("Owner: ").append(ownerLogin).append("<br><br>")
+                  .append("</li>");
+        }
+
+        jsonResponse.append("</ul></body></html>");
+        return HttpResponse.html(200, jsonResponse.toString());
+      } catch (JSONException e) {
+        return HttpResponse.html(500, "Error parsing GitHub API response.");
+      }
+    });
+  }
+
+  /**
+   * @param error why the GitHub call failed
+   * @return 503 if the circuit breaker rejected the call, 502 otherwise
+   */
+  private static HttpResponse upstreamError(Throwable error) {
+    Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+    if (cause instanceof UpstreamClient.UpstreamException
+        && ((UpstreamClient.UpstreamException) cause).getRetryAfterSeconds() > 0) {
+      return HttpResponse.html(503, "GitHub API is temporarily unavailable, please try again later.")
+          .header("Retry-After", String.valueOf(((UpstreamClient.UpstreamException) cause).getRetryAfterSeconds()));
+    }
+    System.out.println("Exception in url request:" + cause.getMessage());
+    return HttpResponse.html(502, "GitHub API request failed.");
+  }
+
+  /**
+   * Renders www/root.html with the current file list
+   * @return the page as UTF-8 bytes
+   */
+  private byte[] renderRootPage() throws IOException {
+    Map<String, String> values = new HashMap<>();
+    values.put("links", buildFileList());
+    return template("www/root.html").render(values);
+  }
+
+  /**
+   * Returns the compiled template for a file, compiling it on first use
+   * @param path file with ${name} placeholders
+   */
+  private Template template(String path) throws IOException {
+    Template template = templates.get(path);
+    if (template == null) {
+      long generation = templateGeneration.get();
+      template = Template.compile(new String(readFileInBytes(new File(path)), StandardCharsets.UTF_8));
+      if (cache.isEnabled()) {
+        templates.put(path, template);
+        // the file changed while it was compiled, do not keep the old version
+        if (generation != templateGeneration.get()) {
+          templates.remove(path, template);
+        }
+      }
+    }
+    return template;
+  }
+
+  /**
+   * Method to read in a query and split it up correctly
+   * @param query parameters on path
+   * @return Map of all parameters and their specific values
+   * @throws IllegalArgumentException If a percent escape is malformed
+   */
+  public static Map<String, String> splitQuery(String query) {
+    if (query == null || query.isEmpty()) {
+      return new LinkedHashMap<String, String>();  // Return an empty map if query is null or empty
+    }
+
+    // "q=hello+world%2Fme&bob=5" -> {{"q", "hello world/me"}, {"bob","5"}}
+    byte[] bytes = query.getBytes(StandardCharsets.UTF_8);
+    return HttpRequest.decodeQuery(bytes, 0, bytes.length);
+  }
+
+
+  /**
+   * Builds an HTML file list from the www directory, from the index rather
+   * than the file system
+   * @return HTML string output of file list
+   */
+  String buildFileList() throws IOException {
+    return index.fileList();
+  }
+
+  /**
+   * Read bytes from a file and return them in the byte array. We read in blocks
+   * of 512 bytes for efficiency.
+   */
+  public static byte[] readFileInBytes(File f) throws IOException {
+
+    FileInputStream file = new FileInputStream(f);
+    ByteArrayOutputStream data = new ByteArrayOutputStream(file.available());
+
+    byte buffer[] = new byte[512];
+    int numRead = file.read(buffer);
+    while (numRead > 0) {
+      data.write(buffer, 0, numRead);
+      numRead = file.read(buffer);
+    }
+    file.close();
+
+    byte[] result = data.toByteArray();
+    data.close();
+
+    return result;
+  }
+}
@@ -0,0 +1,159 @@
+package funHttpServer;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The access log: entry format, many producers, rolling over by size and
+ * dropping when the ring is full.
+ */
+public class AccessLogTest {
+  private Path dir;
+  private final Metrics metrics = new Metrics();
+
+  @Before
+  public void createDir() throws IOException {
+    dir = Files.createTempDirectory("access-log");
+  }
+
+  @After
+  public void deleteDir() throws IOException {
+    try (Stream<Path> paths = Files.walk(dir)) {
+      paths.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  private static HttpRequest request(String target) throws IOException {
+    return HttpRequest.parse(("GET /" + target + " HTTP/1.1\r\n\r\n").getBytes(StandardCharsets.UTF_8))
+        .setClient(InetAddress.getByName("127.0.0.1"));
+  }
+
+  // all lines of the log and the files it was rolled over to, oldest first
+  private List<String> lines() throws IOException {
+    List<String> lines = new ArrayList<>();
+    try (Stream<Path> files = Files.list(dir)) {
+      for (Path file : files.sorted(Comparator.comparing(AccessLogTest::rollOrder)).toArray(Path[]::new)) {
+        lines.addAll(Files.readAllLines(file, StandardCharsets.UTF_8));
+      }
+    }
+    return lines;
+  }
+
+  // access.log.yyyyMMdd-HHmmss-n by date and n, the current access.log last
+  private static String rollOrder(Path file) {
+    String name = file.getFileName().toString();
+    if (name.equals("access.log")) {
+      return "~";
+    }
+    String date = name.substring("access.log.".length(), "access.log.".length() + 15);
+    String n = name.length() > "access.log.".length() + 15 ? name.substring("access.log.".length() + 16) : "0";
+    return date + String.format("%08d", Integer.parseInt(n));
+  }
+
+  private long dropped() {
+    Matcher matcher = Pattern.compile("funhttp_access_log_dropped_total (\\d+)")
+        .matcher(new String(metrics.render(), StandardCharsets.UTF_8));
+    assertTrue(matcher.find());
+    return Long.parseLong(matcher.group(1));
+  }
+
+  @Test
+  public void writesOneJsonObjectPerRequest() throws Exception {
+    AccessLog log = new AccessLog(dir.resolve("access.log"), 0, 0, metrics);
+    log.request(request("multiply?num1=3&num2=4"), "/multiply", 200, 13, 210_000);
+    log.request(request("x%22%5C"), "unknown", 400, -1, 5_000_000);
+    assertTrue(log.flush(5000));
+    log.close(5000);
+
+    List<String> lines = lines();
+    assertEquals(2, lines.size());
+    JSONObject first = new JSONObject(lines.get(0));
+    assertEquals("127.0.0.1", first.getString("client"));
+    assertEquals("GET", first.getString("method"));
+    assertEquals("/multiply?num1=3&num2=4", first.getString("target"));
+    assertEquals("/multiply", first.getString("route"));
+    assertEquals(200, first.getInt("status"));
+    assertEquals(13, first.getLong("bytes"));
+    assertEquals(0.21, first.getDouble("handle_ms"), 0.001);
+    assertTrue(first.getString("time").endsWith("Z"));
+    JSONObject second = new JSONObject(lines.get(1));
+    assertTrue(second.isNull("bytes"));
+    assertEquals("/x%22%5C", second.getString("target"));
+
+    // after close entries are counted, not written
+    log.request(request("late"), "unknown", 400, 0, 0);
+    assertEquals(1, dropped());
+  }
+
+  @Test
+  public void keepsTheEntriesOfConcurrentProducersAndRollsOver() throws Exception {
+    AccessLog log = new AccessLog(dir.resolve("access.log"), 64 * 1024, 0, metrics);
+    int threads = 8;
+    int perThread = 5000;
+    List<Thread> producers = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      int id = t;
+      producers.add(new Thread(() -> {
+        try {
+          for (int i = 0; i < perThread; i++) {
+            log.request(request("p?t=" + id + "&i=" + i), "p", 200, i, 1000);
+          }
+        } catch (IOException e) {
+          throw new AssertionError(e);
+        }
+      }));
+    }
+    producers.forEach(Thread::start);
+    for (Thread producer : producers) {
+      producer.join();
+    }
+    assertTrue(log.flush(10000));
+    log.close(5000);
+
+    try (Stream<Path> files = Files.list(dir)) {
+      assertTrue(files.count() > 2);
+    }
+    // every entry is either in the files or counted as dropped, and each
+    // producer's entries are in the order it logged them
+    List<String> lines = lines();
+    assertEquals(threads * perThread, lines.size() + dropped());
+    int[] next = new int[threads];
+    for (String line : lines) {
+      JSONObject entry = new JSONObject(line);
+      String target = entry.getString("target");
+      int t = Integer.parseInt(target.substring(target.indexOf("t=") + 2, target.indexOf('&')));
+      int i = entry.getInt("bytes");
+      assertTrue(target, i >= next[t]);
+      next[t] = i + 1;
+    }
+  }
+
+  @Test
+  public void dropsWhenTheRingIsFull() throws Exception {
+    AccessLog log = new AccessLog(dir.resolve("access.log"), 0, 0, 16, metrics);
+    HttpRequest request = request("json");
+    // far faster than the writer, which sleeps while the ring is empty
+    for (int i = 0; i < 100_000; i++) {
+      log.request(request, "json", 200, 0, 0);
+    }
+    assertTrue(log.flush(10000));
+    log.close(5000);
+    assertTrue(dropped() > 0);
+    assertEquals(100_000, lines().size() + dropped());
+  }
+}
@@ -0,0 +1,236 @@
+package funHttpServer;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * POST /multiply/batch: parsing both body formats, overflow detection on
+ * large batches that are split across threads, and request bodies on the
+ * nio connections.
+ */
+public class BatchMultiplyTest {
+  private static ByteBuffer ascii(String text) {
+    return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  private static String json(BatchMultiply batch) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    batch.writeJson(out);
+    return out.toString(StandardCharsets.US_ASCII);
+  }
+
+  @Test
+  public void multipliesJsonPairs() throws Exception {
+    BatchMultiply batch = BatchMultiply.fromJson(ascii(
+        " [ [3, 4],[-5,6] ,\n[9223372036854775807,2],[-9223372036854775808,1],[4294967296,4294967296]] ")).compute();
+    assertEquals("{\"count\":5,\"overflows\":2,\"results\":[12,-30,null,-9223372036854775808,null]}", json(batch));
+    assertEquals("{\"count\":0,\"overflows\":0,\"results\":[]}", json(BatchMultiply.fromJson(ascii("[]")).compute()));
+  }
+
+  @Test
+  public void rejectsMalformedBatches() {
+    String[] bodies = {"", "[", "[[1,2]", "[[1,2,3]]", "[[1]]", "[[1,2]]x", "[[1.5,2]]", "[[1e3,2]]",
+        "[[\"1\",2]]", "[[9223372036854775808,1]]", "[[-,1]]", "[[1,2],]", "{\"a\":1}"};
+    for (String body : bodies) {
+      try {
+        BatchMultiply.fromJson(ascii(body));
+        fail("accepted " + body);
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+    try {
+      BatchMultiply.fromBinary(ByteBuffer.allocate(24));
+      fail("accepted half a pair");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void splitBatchesMatchMultiplyExact() {
+    Random random = new Random(16);
+    int size = 5 * BatchMultiply.SPLIT + 3;
+    ByteBuffer body = ByteBuffer.allocate(16 * size);
+    long[] factors = new long[2 * size];
+    for (int i = 0; i < factors.length; i++) {
+      // mostly small factors, some of them large enough to overflow
+      factors[i] = random.nextInt(4) == 0 ? random.nextLong() : random.nextInt();
+      body.putLong(factors[i]);
+    }
+    body.flip();
+
+    BatchMultiply batch = BatchMultiply.fromBinary(body).compute();
+    int overflows = 0;
+    for (int i = 0; i < size; i++) {
+      try {
+        long expected = Math.multiplyExact(factors[2 * i], factors[2 * i + 1]);
+        assertFalse("pair " + i, batch.overflowed(i));
+        assertEquals("pair " + i, expected, batch.product(i));
+      } catch (ArithmeticException e) {
+        assertTrue("pair " + i, batch.overflowed(i));
+        overflows++;
+      }
+    }
+    assertTrue(overflows > 0);
+    assertEquals(overflows, batch.getOverflows());
+  }
+
+  @Test
+  public void writesBinaryProductsAndAnOverflowBitmap() throws Exception {
+    ByteBuffer body = ByteBuffer.allocate(16 * 9);
+    for (int i = 0; i < 9; i++) {
+      body.putLong(i == 8 ? Long.MAX_VALUE : i).putLong(i == 8 ? 2 : -i);
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BatchMultiply.fromBinary(body.flip()).compute().writeBinary(out);
+
+    ByteBuffer result = ByteBuffer.wrap(out.toByteArray());
+    assertEquals(9 * 8 + 2, result.remaining());
+    for (int i = 0; i < 8; i++) {
+      assertEquals(-(long) i * i, result.getLong());
+    }
+    result.getLong();
+    assertEquals(0, result.get());
+    assertEquals(1, result.get());
+  }
+
+  // starts the nio server on a free port
+  private static int startNio(String... options) throws Exception {
+    int port;
+    try (ServerSocket free = new ServerSocket(0)) {
+      port = free.getLocalPort();
+    }
+    String[] args = new String[options.length + 3];
+    args[0] = "port=" + port;
+    args[1] = "mode=nio";
+    args[2] = "log=false";
+    System.arraycopy(options, 0, args, 3, options.length);
+    ServerConfig config = ServerConfig.fromArgs(args);
+    NioServer nio = new NioServer(new WebServer(config), config);
+    Thread thread = new Thread(() -> {
+      try {
+        nio.run();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    });
+    thread.setDaemon(true);
+    thread.start();
+    for (int i = 0; i < 100; i++) {
+      try {
+        new Socket("localhost", port).close();
+        return port;
+      } catch (IOException e) {
+        Thread.sleep(50);
+      }
+    }
+    throw new IOException("NIO server did not start");
+  }
+
+  private static String line(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int b;
+    while ((b = in.read()) != '\n') {
+      if (b == -1) {
+        throw new IOException("Connection closed");
+      }
+      if (b != '\r') {
+        line.append((char) b);
+      }
+    }
+    return line.toString();
+  }
+
+  // reads a response with a Content-Length or chunked body, returns status line and body
+  private static String[] response(InputStream in) throws IOException {
+    String status = line(in);
+    int length = -1;
+    String header;
+    while (!(header = line(in)).isEmpty()) {
+      if (header.startsWith("Content-Length: ")) {
+        length = Integer.parseInt(header.substring(16));
+      }
+    }
+    if (length >= 0) {
+      return new String[] {status, new String(in.readNBytes(length), StandardCharsets.UTF_8)};
+    }
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    int size;
+    while ((size = Integer.parseInt(line(in), 16)) > 0) {
+      body.write(in.readNBytes(size));
+      line(in);
+    }
+    line(in);
+    return new String[] {status, body.toString(StandardCharsets.UTF_8)};
+  }
+
+  @Test
+  public void nioReadsBodiesAndAnswersPipelinedRequestsInOrder() throws Exception {
+    int port = startNio();
+    StringBuilder pairs = new StringBuilder("[");
+    for (int i = 0; i < 3000; i++) {
+      pairs.append(i == 0 ? "" : ",").append('[').append(i).append(",3]");
+    }
+    byte[] body = pairs.append(']').toString().getBytes(StandardCharsets.US_ASCII);
+
+    try (Socket sock = new Socket("localhost", port)) {
+      sock.setSoTimeout(10000);
+      OutputStream out = sock.getOutputStream();
+      InputStream in = sock.getInputStream();
+
+      // the client waits for 100 Continue before it sends the body
+      out.write(("POST /multiply/batch HTTP/1.1\r\nHost: localhost\r\nExpect: 100-continue\r\n"
+          + "Content-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+      out.flush();
+      assertEquals("HTTP/1.1 100 Continue", line(in));
+      assertEquals("", line(in));
+      out.write(body);
+      out.flush();
+      String[] batch = response(in);
+      assertEquals("HTTP/1.1 200 OK", batch[0]);
+      JSONArray results = new JSONObject(batch[1]).getJSONArray("results");
+      assertEquals(3000, results.length());
+      assertEquals(3 * 2999, results.getLong(2999));
+
+      // a body followed by another request in the same packet
+      out.write(("POST /multiply/batch HTTP/1.1\r\nContent-Length: 7\r\n\r\n[[6,7]]"
+          + "GET /multiply?num1=2&num2=5 HTTP/1.1\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+      out.flush();
+      assertEquals("{\"count\":1,\"overflows\":0,\"results\":[42]}", response(in)[1]);
+      assertEquals("Result is: 10", response(in)[1]);
+
+      // too large, answered without reading the body and the connection is closed
+      out.write("POST /multiply/batch HTTP/1.1\r\nContent-Length: 99999999\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+      out.flush();
+      assertEquals("HTTP/1.1 413 Content Too Large", response(in)[0]);
+      assertEquals(-1, in.read());
+    }
+  }
+
+  @Test
+  public void routesCheckTheMethod() throws Exception {
+    WebServer server = new WebServer(ServerConfig.fromArgs(new String[] {"log=false"}));
+    HttpResponse get = server.handleRequest(HttpRequest.parse(
+        "GET /multiply/batch HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII)));
+    assertEquals(405, get.getStatus());
+    assertEquals("POST", get.getHeader("Allow"));
+    HttpResponse post = server.handleRequest(HttpRequest.parse(
+        "POST /json HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII)));
+    assertEquals(405, post.getStatus());
+    assertEquals(400, server.handleRequest(HttpRequest.parse(
+        "GET /multiply?num1=9223372036854775807&num2=2 HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII))).getStatus());
+  }
+}
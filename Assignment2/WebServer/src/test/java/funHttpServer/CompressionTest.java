@@ -0,0 +1,176 @@
+package funHttpServer;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Content-Encoding negotiation and the compressed forms of byte, streamed
+ * and file bodies.
+ */
+public class CompressionTest {
+  private Path root;
+  private Path variants;
+
+  @Before
+  public void createFiles() throws IOException {
+    root = Files.createTempDirectory("compression-root");
+    variants = Files.createTempDirectory("compression-variants");
+    Files.writeString(root.resolve("page.html"), "<p>repeated text</p>\n".repeat(500));
+  }
+
+  @After
+  public void deleteFiles() throws IOException {
+    for (Path dir : new Path[] {root, variants}) {
+      if (!Files.exists(dir)) {
+        continue;
+      }
+      try (var paths = Files.walk(dir)) {
+        paths.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+      }
+    }
+  }
+
+  private static HttpRequest request(String target, String... headers) {
+    StringBuilder head = new StringBuilder("GET /" + target + " HTTP/1.1\r\n");
+    for (String header : headers) {
+      head.append(header).append("\r\n");
+    }
+    return HttpRequest.parse(head.append("\r\n").toString().getBytes(StandardCharsets.US_ASCII));
+  }
+
+  private static byte[] gunzip(byte[] compressed) throws IOException {
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+      return in.readAllBytes();
+    }
+  }
+
+  @Test
+  public void negotiatesByQuality() {
+    assertNull(Compression.negotiate(null));
+    assertNull(Compression.negotiate("identity"));
+    assertEquals("gzip", Compression.negotiate("gzip, deflate, br"));
+    assertEquals("gzip", Compression.negotiate("deflate, gzip"));
+    assertEquals("deflate", Compression.negotiate("gzip;q=0.5, deflate"));
+    assertEquals("deflate", Compression.negotiate("gzip;q=0, *"));
+    assertEquals("gzip", Compression.negotiate("*"));
+    assertNull(Compression.negotiate("gzip;q=0, deflate;q=0"));
+  }
+
+  @Test
+  public void compressesLargeTextBodies() throws IOException {
+    Compression compression = new Compression(1024);
+    String html = "<li>Repository: a/b</li>".repeat(200);
+
+    HttpResponse response = compression.apply(request("github", "Accept-Encoding: gzip"),
+        HttpResponse.html(200, html));
+    assertEquals("gzip", response.getHeader("Content-Encoding"));
+    assertEquals("Accept-Encoding", response.getHeader("Vary"));
+    assertTrue(response.getBody().length * 10 < html.length());
+    assertEquals(html, new String(gunzip(response.getBody()), StandardCharsets.UTF_8));
+
+    response = compression.apply(request("github", "Accept-Encoding: deflate"), HttpResponse.html(200, html));
+    try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(response.getBody()))) {
+      assertEquals(html, new String(in.readAllBytes(), StandardCharsets.UTF_8));
+    }
+  }
+
+  @Test
+  public void leavesSmallBinaryAndUnacceptedBodiesAlone() {
+    Compression compression = new Compression(1024);
+    byte[] big = new byte[4096];
+
+    assertNull(compression.apply(request("x", "Accept-Encoding: gzip"), HttpResponse.html(200, "small"))
+        .getHeader("Content-Encoding"));
+    assertNull(compression.apply(request("x", "Accept-Encoding: gzip"), new HttpResponse(200, "image/png", big))
+        .getHeader("Content-Encoding"));
+    assertNull(compression.apply(request("x"), new HttpResponse(200, HttpResponse.HTML, big))
+        .getHeader("Content-Encoding"));
+  }
+
+  @Test
+  public void compressesStreamedBodies() throws IOException {
+    Compression compression = new Compression(1024);
+    HttpResponse response = compression.apply(request("github", "Accept-Encoding: gzip"),
+        HttpResponse.stream(200, HttpResponse.HTML, out -> {
+          for (int i = 0; i < 100; i++) {
+            out.write("<li>repo</li>".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+          }
+        }));
+    assertEquals("gzip", response.getHeader("Content-Encoding"));
+
+    // the chunked encoding is undone by hand, then the gzip data is checked
+    ByteArrayOutputStream chunked = new ByteArrayOutputStream();
+    response.writeStream(chunked);
+    byte[] wire = chunked.toByteArray();
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    int pos = 0;
+    while (true) {
+      int eol = pos;
+      while (wire[eol] != '\r') {
+        eol++;
+      }
+      int length = Integer.parseInt(new String(wire, pos, eol - pos, StandardCharsets.US_ASCII), 16);
+      if (length == 0) {
+        break;
+      }
+      body.write(wire, eol + 2, length);
+      pos = eol + 2 + length + 2;
+    }
+    assertEquals("<li>repo</li>".repeat(100), new String(gunzip(body.toByteArray()), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void servesCompressedCopyOfStaticFiles() throws IOException {
+    StaticFiles files = new StaticFiles(root, variants, 1024);
+    byte[] original = Files.readAllBytes(root.resolve("page.html"));
+
+    HttpResponse plain = files.serve(request("file/page.html"), "page.html");
+    assertNull(plain.getHeader("Content-Encoding"));
+    assertEquals(original.length, plain.getContentLength());
+
+    HttpResponse gzip = files.serve(request("file/page.html", "Accept-Encoding: gzip"), "page.html");
+    assertEquals("gzip", gzip.getHeader("Content-Encoding"));
+    assertEquals("Accept-Encoding", gzip.getHeader("Vary"));
+    assertNotEquals(plain.getHeader("ETag"), gzip.getHeader("ETag"));
+    assertArrayEquals(original, gunzip(body(gzip)));
+
+    // a conditional request matches the tag of the copy, which is made only once
+    HttpResponse again = files.serve(request("file/page.html", "Accept-Encoding: gzip",
+        "If-None-Match: " + gzip.getHeader("ETag")), "page.html");
+    assertEquals(304, again.getStatus());
+    try (var copies = Files.walk(variants)) {
+      assertEquals(1, copies.filter(Files::isRegularFile).count());
+    }
+
+    // ranges are served from the uncompressed file
+    HttpResponse range = files.serve(request("file/page.html", "Accept-Encoding: gzip", "Range: bytes=0-9"),
+        "page.html");
+    assertEquals(206, range.getStatus());
+    assertNull(range.getHeader("Content-Encoding"));
+
+    files.deleteVariants();
+    assertFalse(Files.exists(variants));
+  }
+
+  // body of a file response, read through toBytes()
+  private static byte[] body(HttpResponse response) throws IOException {
+    byte[] bytes = response.toBytes(false);
+    int length = (int) response.getContentLength();
+    byte[] body = new byte[length];
+    System.arraycopy(bytes, bytes.length - length, body, 0, length);
+    return body;
+  }
+}
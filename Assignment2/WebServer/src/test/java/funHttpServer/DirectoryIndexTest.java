@@ -0,0 +1,204 @@
+package funHttpServer;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Listings from the index of a temporary tree: recursion, sorting, pages,
+ * and updates passed in by a DirectoryWatcher.
+ */
+public class DirectoryIndexTest {
+  private Path root;
+
+  @Before
+  public void createFiles() throws IOException {
+    root = Files.createTempDirectory("index-root");
+    Files.createDirectories(root.resolve("img/icons"));
+    write("index.html", 300, 3000);
+    write("a&b.txt", 10, 1000);
+    write("img/cat.png", 2000, 2000);
+    write("img/icons/x.svg", 50, 4000);
+    Files.setLastModifiedTime(root.resolve("img"), FileTime.fromMillis(500 * 1000));
+    Files.setLastModifiedTime(root.resolve("img/icons"), FileTime.fromMillis(600 * 1000));
+  }
+
+  @After
+  public void deleteFiles() throws IOException {
+    try (var paths = Files.walk(root)) {
+      paths.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  private void write(String path, int size, long modified) throws IOException {
+    Path file = root.resolve(path);
+    Files.write(file, new byte[size]);
+    Files.setLastModifiedTime(file, FileTime.fromMillis(modified * 1000));
+  }
+
+  private static String[] paths(DirectoryIndex.Entry[] entries) {
+    return Arrays.stream(entries).map(entry -> entry.path).toArray(String[]::new);
+  }
+
+  private static String render(DirectoryIndex index, String... parameters) throws IOException {
+    Map<String, String> query = new HashMap<>();
+    for (int i = 0; i < parameters.length; i += 2) {
+      query.put(parameters[i], parameters[i + 1]);
+    }
+    return new String(index.render(DirectoryIndex.Query.parse(query), "/file/www/"), StandardCharsets.UTF_8);
+  }
+
+  private static void await(BooleanSupplier condition) throws InterruptedException {
+    for (int i = 0; i < 100 && !condition.getAsBoolean(); i++) {
+      Thread.sleep(50);
+    }
+    assertTrue(condition.getAsBoolean());
+  }
+
+  @Test
+  public void listsDirectoriesWithAndWithoutTheLevelsBelow() throws IOException {
+    DirectoryIndex index = new DirectoryIndex(root, true);
+    assertArrayEquals(new String[] {"a&b.txt", "img", "index.html"}, paths(index.list("", false)));
+    assertArrayEquals(new String[] {"img/cat.png", "img/icons", "img/icons/x.svg"}, paths(index.list("img", true)));
+    assertArrayEquals(new String[] {"img/cat.png", "img/icons"}, paths(index.list("img", false)));
+    assertEquals(0, index.list("im", true).length);
+
+    DirectoryIndex.Entry cat = index.list("img", false)[0];
+    assertEquals(2000, cat.size);
+    assertEquals(2000 * 1000L, cat.modified);
+    assertEquals("image/png", cat.type);
+    assertTrue(index.list("", false)[1].directory);
+
+    assertEquals("<ul>\n<li>a&amp;b.txt</li><li>img</li><li>index.html</li></ul>\n", index.fileList());
+  }
+
+  @Test
+  public void sortsAndPages() throws IOException {
+    DirectoryIndex index = new DirectoryIndex(root, true);
+    String bySize = render(index, "recursive", "true", "sort", "size", "order", "desc", "size", "2");
+    assertTrue(bySize, bySize.contains("1 to 2 of 6, by size"));
+    assertTrue(bySize, bySize.indexOf("img/cat.png") < bySize.indexOf("index.html"));
+    assertFalse(bySize, bySize.contains("x.svg"));
+    assertTrue(bySize, bySize.contains("href=\"/files?dir=&recursive=true&sort=size&order=desc&page=2&size=2\">next"));
+    assertFalse(bySize, bySize.contains("previous"));
+
+    String last = render(index, "recursive", "true", "sort", "modified", "page", "3", "size", "2");
+    assertTrue(last, last.contains("5 to 6 of 6"));
+    assertTrue(last, last.indexOf("index.html") < last.indexOf("x.svg"));
+    assertTrue(last, last.contains("previous"));
+    assertFalse(last, last.contains("next"));
+    String pastTheEnd = render(index, "recursive", "true", "sort", "modified", "page", "9", "size", "2");
+    assertTrue(pastTheEnd, pastTheEnd.contains("5 to 6 of 6"));
+    assertTrue(pastTheEnd, pastTheEnd.contains("&page=2&size=2\">previous"));
+
+    String top = render(index);
+    assertTrue(top, top.contains("<a href=\"/file/www/a%26b.txt\">a&amp;b.txt</a></td><td>10</td>"));
+    assertTrue(top, top.contains("<a href=\"/files?dir=img\">img/</a>"));
+    assertTrue(top, top.contains("1970-01-01T00:50:00Z"));
+
+    for (String[] bad : new String[][] {{"sort", "type"}, {"order", "up"}, {"page", "0"}, {"size", "x"}, {"size", "5000"}}) {
+      try {
+        DirectoryIndex.Query.parse(Map.of(bad[0], bad[1]));
+        fail("accepted " + bad[0] + "=" + bad[1]);
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void followsTheWatcher() throws Exception {
+    DirectoryIndex index = new DirectoryIndex(root, true);
+    DirectoryWatcher watcher = new DirectoryWatcher(root);
+    watcher.addListener(index::changed);
+
+    // a file in a directory that existed before and one in a new directory
+    write("img/icons/y.svg", 5, 5000);
+    Files.createDirectories(root.resolve("css/print"));
+    write("css/print/page.css", 7, 6000);
+    // the file may be seen when it is created and once more when it is written
+    await(() -> {
+      try {
+        return index.list("", true).length == 10 && index.list("css/print", false)[0].size == 7;
+      } catch (IOException e) {
+        return false;
+      }
+    });
+    assertArrayEquals(new String[] {"css/print", "css/print/page.css"}, paths(index.list("css", true)));
+    assertEquals(7, index.list("css/print", false)[0].size);
+
+    // growing a file is seen as well
+    Files.write(root.resolve("index.html"), new byte[400]);
+    await(() -> {
+      try {
+        return index.list("", false)[3].size == 400;
+      } catch (IOException e) {
+        return false;
+      }
+    });
+
+    // a deleted directory takes everything in it along
+    Files.delete(root.resolve("img/icons/x.svg"));
+    Files.delete(root.resolve("img/icons/y.svg"));
+    Files.delete(root.resolve("img/icons"));
+    await(() -> {
+      try {
+        return index.list("img", true).length == 1;
+      } catch (IOException e) {
+        return false;
+      }
+    });
+    watcher.close();
+  }
+
+  @Test
+  public void aFailingListenerDoesNotStopTheWatcher() throws Exception {
+    DirectoryWatcher watcher = new DirectoryWatcher(root);
+    AtomicInteger changes = new AtomicInteger();
+    watcher.addListener(changed -> {
+      throw new IllegalStateException("broken listener");
+    });
+    watcher.addListener(changed -> changes.incrementAndGet());
+    write("first.txt", 1, 1);
+    await(() -> changes.get() > 0);
+    int seen = changes.get();
+    write("second.txt", 1, 1);
+    await(() -> changes.get() > seen);
+    watcher.close();
+  }
+
+  @Test
+  public void closingTheWatcherEndsItsThread() throws Exception {
+    DirectoryWatcher watcher = new DirectoryWatcher(root);
+    AtomicInteger changes = new AtomicInteger();
+    watcher.addListener(changed -> changes.incrementAndGet());
+    String name = "watch-" + root;
+    assertTrue(Thread.getAllStackTraces().keySet().stream().anyMatch(t -> t.getName().equals(name)));
+
+    watcher.close();
+    await(() -> Thread.getAllStackTraces().keySet().stream().noneMatch(t -> t.getName().equals(name)));
+    write("late.txt", 1, 1);
+    Thread.sleep(200);
+    assertEquals(0, changes.get());
+  }
+
+  @Test
+  public void scansEveryTimeWithoutAWatcher() throws IOException {
+    DirectoryIndex index = new DirectoryIndex(root, false);
+    assertEquals(3, index.list("", false).length);
+    write("new.txt", 1, 1);
+    assertEquals(4, index.list("", false).length);
+  }
+}
@@ -0,0 +1,311 @@
+package funHttpServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Regression and fuzz tests for the byte level request parser. Generated
+ * requests are checked against the String based parser the server used
+ * before, which is kept here as the reference.
+ */
+public class HttpRequestTest {
+
+  private static HttpRequest parse(String head) {
+    return HttpRequest.parse(head.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void parsesRequestLineAndHeaders() {
+    HttpRequest request = parse("GET /multiply?num1=3&num2=4 HTTP/1.1\r\n"
+        + "Host: localhost:9000\r\n"
+        + "X-Padded:   some value  \r\n\r\n");
+    assertEquals("GET", request.getMethod());
+    assertEquals("multiply?num1=3&num2=4", request.getTarget());
+    assertEquals("multiply", request.getPath());
+    assertEquals("num1=3&num2=4", request.getQuery());
+    assertEquals("HTTP/1.1", request.getVersion());
+    assertEquals("localhost:9000", request.getHeader("host"));
+    assertEquals("some value", request.getHeader("X-PADDED"));
+    assertNull(request.getHeader("Accept"));
+    assertEquals("3", request.getParameters().get("num1"));
+    assertEquals("4", request.getParameters().get("num2"));
+  }
+
+  @Test
+  public void acceptsBareLineFeeds() {
+    HttpRequest request = parse("GET /json HTTP/1.0\nConnection: Keep-Alive\n\n");
+    assertEquals("json", request.getPath());
+    assertEquals("", request.getQuery());
+    assertTrue(request.isKeepAlive());
+  }
+
+  @Test
+  public void keepAliveFollowsVersionAndConnectionHeader() {
+    assertTrue(parse("GET / HTTP/1.1\r\n\r\n").isKeepAlive());
+    assertFalse(parse("GET / HTTP/1.1\r\nConnection: CLOSE\r\n\r\n").isKeepAlive());
+    assertFalse(parse("GET / HTTP/1.0\r\n\r\n").isKeepAlive());
+    assertTrue(parse("GET / HTTP/1.0\r\nconnection: keep-alive\r\n\r\n").isKeepAlive());
+    assertFalse(parse("GET /\r\n\r\n").isKeepAlive());
+  }
+
+  @Test
+  public void lastRepeatedHeaderWins() {
+    HttpRequest request = parse("GET / HTTP/1.1\r\nAccept: a\r\naccept: b\r\n\r\n");
+    assertEquals("b", request.getHeader("Accept"));
+  }
+
+  @Test
+  public void onlyGetAndPostHaveATarget() {
+    HttpRequest request = parse("PUT /multiply HTTP/1.1\r\n\r\n");
+    assertEquals("PUT", request.getMethod());
+    assertNull(request.getTarget());
+    assertNull(request.getPath());
+    assertTrue(request.getParameters().isEmpty());
+
+    assertNull(parse("").getMethod());
+    assertNull(parse("\r\n").getTarget());
+    assertNull(parse("GET  HTTP/1.1\r\n\r\n").getTarget());
+  }
+
+  @Test
+  public void postHasATargetAndABody() {
+    HttpRequest request = parse("POST /multiply/batch HTTP/1.1\r\nContent-Length: 13\r\n"
+        + "expect: 100-Continue\r\n\r\n");
+    assertEquals("multiply/batch", request.getPath());
+    assertEquals(13, request.getContentLength());
+    assertTrue(request.expectsContinue());
+    assertEquals(0, request.getBody().remaining());
+
+    byte[] buf = "xx[[3,4],[5,6]]yy".getBytes(StandardCharsets.US_ASCII);
+    request.setBody(buf, 2, 15);
+    assertEquals("[[3,4],[5,6]]", StandardCharsets.US_ASCII.decode(request.getBody()).toString());
+
+    assertEquals(0, parse("GET / HTTP/1.1\r\n\r\n").getContentLength());
+    assertFalse(parse("GET / HTTP/1.1\r\n\r\n").expectsContinue());
+    assertEquals(-1, parse("POST / HTTP/1.1\r\nContent-Length: -5\r\n\r\n").getContentLength());
+    assertEquals(-1, parse("POST / HTTP/1.1\r\nContent-Length: 1e3\r\n\r\n").getContentLength());
+    assertEquals(-1, parse("POST / HTTP/1.1\r\nContent-Length: 99999999999999999999\r\n\r\n").getContentLength());
+  }
+
+  @Test
+  public void decodesParametersLikeUrlDecoder() throws Exception {
+    HttpRequest request = parse("GET /greet?name=J%C3%BCrgen+M&language=english&empty=&=x&noValue HTTP/1.1\r\n\r\n");
+    Map<String, String> parameters = request.getParameters();
+    assertEquals("J\u00fcrgen M", parameters.get("name"));
+    assertEquals("english", parameters.get("language"));
+    assertEquals("", parameters.get("empty"));
+    assertEquals(3, parameters.size());
+    // the same map on every call
+    assertTrue(parameters == request.getParameters());
+  }
+
+  @Test
+  public void rejectsMalformedEscapes() {
+    for (String query : new String[] {"a=%", "a=%4", "a=%zz", "a=b%4g"}) {
+      try {
+        WebServer.splitQuery(query);
+        fail("accepted " + query);
+      } catch (IllegalArgumentException e) {
+        // expected, URLDecoder throws the same
+      }
+    }
+  }
+
+  @Test
+  public void readsPipelinedHeadsIntoOneBuffer() throws Exception {
+    InputStream in = new ByteArrayInputStream(
+        "GET /a HTTP/1.1\r\n\r\nGET /b HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+    ByteBuffer buf = ByteBuffer.allocate(8);
+    buf = HttpRequest.readHead(in, buf);
+    assertEquals("a", HttpRequest.parse(buf.array(), 0, buf.position()).getPath());
+    ByteBuffer grown = buf;
+    buf = HttpRequest.readHead(in, buf);
+    assertTrue(buf == grown);
+    assertEquals("b", HttpRequest.parse(buf.array(), 0, buf.position()).getPath());
+    buf = HttpRequest.readHead(in, buf);
+    assertEquals(0, buf.position());
+  }
+
+  @Test
+  public void parsesHeadInsideALargerBuffer() {
+    byte[] buf = "xxGET /file/a.txt HTTP/1.1\r\nRange: bytes=0-1\r\n\r\nGET /next".getBytes(StandardCharsets.US_ASCII);
+    int end = HttpRequest.headEnd(buf, 2, buf.length);
+    HttpRequest request = HttpRequest.parse(buf, 2, end);
+    assertEquals("file/a.txt", request.getPath());
+    assertEquals("bytes=0-1", request.getHeader("Range"));
+  }
+
+  @Test
+  public void fuzzedQueriesDecodeLikeUrlDecoder() throws Exception {
+    Random random = new Random(42);
+    String alphabet = "ab%+=&2F41c3A9\u00e4";
+    for (int n = 0; n < 20000; n++) {
+      StringBuilder query = new StringBuilder();
+      int length = random.nextInt(16);
+      for (int i = 0; i < length; i++) {
+        query.append(alphabet.charAt(random.nextInt(alphabet.length())));
+      }
+      if (query.indexOf("%+") >= 0) {
+        // URLDecoder parses the escape with Integer.parseInt and takes "%+1" for 0x01
+        continue;
+      }
+      Map<String, String> expected;
+      try {
+        expected = referenceSplitQuery(query.toString());
+      } catch (IllegalArgumentException e) {
+        expected = null;
+      }
+      try {
+        Map<String, String> actual = WebServer.splitQuery(query.toString());
+        assertEquals(query.toString(), expected, actual);
+      } catch (IllegalArgumentException e) {
+        assertNull("rejected " + query, expected);
+      }
+    }
+  }
+
+  @Test
+  public void fuzzedHeadsMatchTheReferenceParser() {
+    Random random = new Random(7);
+    String[] methods = {"GET", "POST", "PUT", "GETX", ""};
+    String[] targets = {"/", "/json", "/multiply?num1=3&num2=4", "/file/www/root.html", "/github?query=a/b", "/a?", "/?x"};
+    String[] versions = {"HTTP/1.1", "HTTP/1.0", "", "HTTP/1.1 "};
+    String[] names = {"Host", "connection", "Accept", "X-A", " Odd ", "Range"};
+    String[] values = {"close", "keep-alive", "", " spaced ", "a:b", "bytes=1-2"};
+    for (int n = 0; n < 5000; n++) {
+      StringBuilder head = new StringBuilder();
+      String eol = random.nextBoolean() ? "\r\n" : "\n";
+      head.append(methods[random.nextInt(methods.length)]).append(' ')
+          .append(targets[random.nextInt(targets.length)]).append(' ')
+          .append(versions[random.nextInt(versions.length)]).append(eol);
+      int headers = random.nextInt(5);
+      for (int i = 0; i < headers; i++) {
+        if (random.nextInt(8) == 0) {
+          head.append("no colon here").append(eol);
+        } else {
+          head.append(names[random.nextInt(names.length)]).append(':')
+              .append(values[random.nextInt(values.length)]).append(eol);
+        }
+      }
+      head.append(eol);
+
+      String[] expected = referenceParse(head.toString());
+      HttpRequest request = parse(head.toString());
+      String message = head.toString();
+      assertEquals(message, expected[0], request.getMethod());
+      assertEquals(message, expected[1], request.getTarget());
+      assertEquals(message, expected[2], request.getVersion());
+      for (String name : names) {
+        assertEquals(message, expected.length > 3 ? reference(expected, name) : null, request.getHeader(name.trim()));
+      }
+    }
+  }
+
+  @Test
+  public void randomBytesNeverBreakTheParser() {
+    Random random = new Random(1);
+    byte[] interesting = {'G', 'E', 'T', ' ', '/', '?', '&', '=', '%', ':', '\r', '\n', (byte) 0xc3, (byte) 0xff, 0};
+    for (int n = 0; n < 20000; n++) {
+      byte[] head = new byte[random.nextInt(64)];
+      for (int i = 0; i < head.length; i++) {
+        head[i] = random.nextBoolean() ? interesting[random.nextInt(interesting.length)] : (byte) random.nextInt();
+      }
+      HttpRequest request = HttpRequest.parse(head);
+      request.getMethod();
+      request.getPath();
+      request.getQuery();
+      request.getVersion();
+      request.getHeader("Connection");
+      request.isKeepAlive();
+      try {
+        request.getParameters();
+      } catch (IllegalArgumentException e) {
+        // malformed escapes are reported, anything else is a bug
+      }
+    }
+  }
+
+  // the String based parser the server used before, returns method, target,
+  // version and then name/value pairs with lower case names
+  private static String[] referenceParse(String head) {
+    String method = null;
+    String target = null;
+    String version = null;
+    Map<String, String> headers = new LinkedHashMap<>();
+    for (String line : head.split("\n")) {
+      if (line.endsWith("\r")) {
+        line = line.substring(0, line.length() - 1);
+      }
+      if (line.equals("")) {
+        break;
+      }
+      if (method == null) {
+        int firstSpace = line.indexOf(" ");
+        int secondSpace = line.indexOf(" ", firstSpace + 1);
+        if (firstSpace > 0) {
+          method = line.substring(0, firstSpace);
+        }
+        if (secondSpace > 0) {
+          version = line.substring(secondSpace + 1).trim();
+        }
+        // the old parser tested startsWith("GET") and also took "GETX" for a GET
+        if (method != null && (method.equals("GET") || method.equals("POST")) && secondSpace > firstSpace + 1) {
+          target = line.substring(firstSpace + 2, secondSpace);
+        }
+        if (method == null) {
+          // nothing to parse the headers against, stop like the byte parser
+          method = "";
+        }
+      } else {
+        int colon = line.indexOf(':');
+        if (colon > 0) {
+          headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+        }
+      }
+    }
+    String[] result = new String[3 + headers.size() * 2];
+    result[0] = "".equals(method) ? null : method;
+    result[1] = target;
+    result[2] = version;
+    int i = 3;
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      result[i++] = header.getKey();
+      result[i++] = header.getValue();
+    }
+    return result;
+  }
+
+  private static String reference(String[] parsed, String name) {
+    for (int i = 3; i < parsed.length; i += 2) {
+      if (parsed[i].equals(name.trim().toLowerCase())) {
+        return parsed[i + 1];
+      }
+    }
+    return null;
+  }
+
+  private static Map<String, String> referenceSplitQuery(String query) throws Exception {
+    Map<String, String> pairs = new LinkedHashMap<>();
+    for (String pair : query.split("&")) {
+      int idx = pair.indexOf("=");
+      if (idx > 0) {
+        pairs.put(URLDecoder.decode(pair.substring(0, idx), "UTF-8"), URLDecoder.decode(pair.substring(idx + 1), "UTF-8"));
+      }
+    }
+    return pairs;
+  }
+}
@@ -0,0 +1,64 @@
+package funHttpServer;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Histogram bucket bounds and quantiles, and the /metrics text format.
+ */
+public class MetricsTest {
+  @Test
+  public void bucketsHoldTheirValues() {
+    Random random = new Random(11);
+    for (int i = 0; i < 100000; i++) {
+      long value = random.nextLong() >>> (1 + random.nextInt(63));
+      int bucket = Histogram.bucket(value);
+      assertTrue(value < Histogram.upperBound(bucket) || Histogram.upperBound(bucket) == Long.MAX_VALUE);
+      assertTrue(bucket == 0 || value >= Histogram.upperBound(bucket - 1));
+      // every bucket is at most 1/8 of its lower bound wide
+      if (bucket > 0) {
+        long lower = Histogram.upperBound(bucket - 1);
+        assertTrue(Histogram.upperBound(bucket) - lower <= Math.max(1, lower / 8));
+      }
+    }
+  }
+
+  @Test
+  public void quantilesAreWithinABucket() {
+    Histogram histogram = new Histogram();
+    assertEquals(0, histogram.quantile(0.99));
+    for (long micros = 1; micros <= 1000; micros++) {
+      histogram.record(micros * 1000);
+    }
+    assertEquals(1000, histogram.getCount());
+    assertEquals(500500000L, histogram.getSum());
+    long p50 = histogram.quantile(0.5);
+    long p99 = histogram.quantile(0.99);
+    assertTrue(p50 >= 500000 && p50 <= 500000 * 1.125);
+    assertTrue(p99 >= 990000 && p99 <= 990000 * 1.125);
+    assertEquals(1000, histogram.countBelow(2000000));
+    assertEquals(0, histogram.countBelow(1000));
+  }
+
+  @Test
+  public void rendersPrometheusText() {
+    Metrics metrics = new Metrics();
+    metrics.request("/multiply", 200, 2000000);
+    metrics.request("/multiply", 400, 50000);
+    metrics.record(Metrics.Stage.PARSE, 3000);
+    metrics.logDropped();
+
+    String text = new String(metrics.render(), StandardCharsets.UTF_8);
+    assertTrue(text.contains("funhttp_requests_total{route=\"/multiply\"} 2\n"));
+    assertTrue(text.contains("funhttp_responses_total{status=\"200\"} 1\n"));
+    assertTrue(text.contains("funhttp_responses_total{status=\"400\"} 1\n"));
+    assertTrue(text.contains("funhttp_stage_seconds_bucket{stage=\"parse\",le=\"1.0E-4\"} 1\n"));
+    assertTrue(text.contains("funhttp_stage_seconds_count{stage=\"handle\"} 2\n"));
+    assertTrue(text.contains("funhttp_handle_seconds_bucket{route=\"/multiply\",le=\"0.001\"} 1\n"));
+    assertTrue(text.contains("funhttp_handle_seconds_bucket{route=\"/multiply\",le=\"+Inf\"} 2\n"));
+    assertTrue(text.contains("funhttp_log_dropped_total 1\n"));
+  }
+}
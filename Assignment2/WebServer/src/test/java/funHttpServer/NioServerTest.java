@@ -0,0 +1,342 @@
+package funHttpServer;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The request/response loop of the nio mode: persistent connections,
+ * requests that arrive in pieces, responses larger than the socket buffers
+ * and closing idle and stalled connections.
+ */
+public class NioServerTest {
+  private Path root;
+  private WebServer web;
+  private NioServer server;
+
+  @Before
+  public void createFiles() throws IOException {
+    root = Files.createTempDirectory("nio-test");
+  }
+
+  @After
+  public void stop() throws IOException {
+    if (server != null) {
+      server.shutdown(0);
+    }
+    try (var paths = Files.walk(root)) {
+      paths.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  private void start(String... options) throws IOException {
+    start(WebServer::new, options);
+  }
+
+  private void start(Function<ServerConfig, WebServer> factory, String... options) throws IOException {
+    List<String> args = new ArrayList<>(List.of("port=0", "mode=nio", "log=false", "routeRates=",
+        "compress=false", "fileRoot=" + root));
+    args.addAll(List.of(options));
+    ServerConfig config = ServerConfig.fromArgs(args.toArray(new String[0]));
+    web = factory.apply(config);
+    web.getRouter()
+        .add("fails", request -> {
+          throw new IllegalStateException("broken handler");
+        })
+        .addAsync("failsLater", request -> {
+          throw new IllegalStateException("broken async handler");
+        });
+    server = new NioServer(web, config);
+    server.bind();
+    Thread thread = new Thread(() -> {
+      try {
+        server.run();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    });
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private Socket connect() throws IOException {
+    Socket sock = new Socket("localhost", server.getLocalPort());
+    sock.setSoTimeout(5000);
+    return sock;
+  }
+
+  private static void send(Socket sock, String text) throws IOException {
+    OutputStream out = sock.getOutputStream();
+    out.write(text.getBytes(StandardCharsets.US_ASCII));
+    out.flush();
+  }
+
+  private static String line(InputStream in, String end) throws IOException {
+    ByteArrayOutputStream text = new ByteArrayOutputStream();
+    while (!text.toString(StandardCharsets.US_ASCII).endsWith(end)) {
+      int b = in.read();
+      if (b < 0) {
+        throw new IOException("connection closed after: " + text);
+      }
+      text.write(b);
+    }
+    return text.toString(StandardCharsets.US_ASCII);
+  }
+
+  // reads one response, returns the status line and the body
+  static String[] response(InputStream in) throws IOException {
+    String[] lines = line(in, "\r\n\r\n").split("\r\n");
+    int length = 0;
+    boolean chunked = false;
+    for (String line : lines) {
+      String lower = line.toLowerCase();
+      if (lower.startsWith("content-length:")) {
+        length = Integer.parseInt(line.substring(line.indexOf(':') + 1).trim());
+      } else if (lower.startsWith("transfer-encoding:")) {
+        chunked = lower.contains("chunked");
+      }
+    }
+    if (!chunked) {
+      return new String[] {lines[0], new String(in.readNBytes(length), StandardCharsets.UTF_8)};
+    }
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    for (int size; (size = Integer.parseInt(line(in, "\r\n").trim(), 16)) > 0; ) {
+      body.write(in.readNBytes(size));
+      line(in, "\r\n");
+    }
+    line(in, "\r\n");
+    return new String[] {lines[0], body.toString(StandardCharsets.UTF_8)};
+  }
+
+  @Test
+  public void servesRequestsOnOneConnection() throws Exception {
+    start();
+    try (Socket sock = connect()) {
+      for (int i = 0; i < 3; i++) {
+        send(sock, "GET /multiply?num1=" + i + "&num2=7 HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        String[] response = response(sock.getInputStream());
+        assertEquals("HTTP/1.1 200 OK", response[0]);
+        assertTrue(response[1], response[1].contains(String.valueOf(i * 7)));
+      }
+      send(sock, "GET /nothing HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+      assertEquals("HTTP/1.1 400 Bad Request", response(sock.getInputStream())[0]);
+      assertEquals(-1, sock.getInputStream().read());
+    }
+  }
+
+  @Test
+  public void readsRequestsThatArriveInPieces() throws Exception {
+    start();
+    String request = "POST /multiply/batch HTTP/1.1\r\nHost: localhost\r\nContent-Length: 23\r\n\r\n"
+        + "[[2,3],[4,5],[100,100]]";
+    try (Socket sock = connect()) {
+      sock.setTcpNoDelay(true);
+      // every byte on its own, with pauses so the selector sees them separately
+      for (int i = 0; i < request.length(); i++) {
+        send(sock, request.substring(i, i + 1));
+        if (i % 16 == 0) {
+          Thread.sleep(5);
+        }
+      }
+      String[] response = response(sock.getInputStream());
+      assertEquals("HTTP/1.1 200 OK", response[0]);
+      assertTrue(response[1], response[1].contains("10000"));
+
+      // two requests in one write are answered in order
+      send(sock, "GET /multiply?num1=2&num2=2 HTTP/1.1\r\nHost: localhost\r\n\r\n"
+          + "GET /multiply?num1=3&num2=3 HTTP/1.1\r\nHost: localhost\r\n\r\n");
+      assertTrue(response(sock.getInputStream())[1].contains("4"));
+      assertTrue(response(sock.getInputStream())[1].contains("9"));
+    }
+  }
+
+  @Test
+  public void writesResponsesLargerThanTheSocketBuffers() throws Exception {
+    byte[] content = new byte[8 * 1024 * 1024 + 3];
+    new Random(1).nextBytes(content);
+    Files.write(root.resolve("large.bin"), content);
+    start();
+    try (Socket sock = connect()) {
+      sock.setReceiveBufferSize(64 * 1024);
+      send(sock, "GET /file/large.bin HTTP/1.1\r\nHost: localhost\r\n\r\n");
+      // the server fills the buffers and has to wait for the client
+      Thread.sleep(300);
+      InputStream in = sock.getInputStream();
+      assertTrue(line(in, "\r\n\r\n").startsWith("HTTP/1.1 200 OK"));
+      assertArrayEquals(content, in.readNBytes(content.length));
+
+      // the connection is still usable afterwards
+      send(sock, "GET /multiply?num1=6&num2=7 HTTP/1.1\r\nHost: localhost\r\n\r\n");
+      assertTrue(response(in)[1].contains("42"));
+    }
+  }
+
+  @Test
+  public void closesWhenTheFileShrinksWhileSending() throws Exception {
+    Path large = root.resolve("shrinks.bin");
+    try (RandomAccessFile file = new RandomAccessFile(large.toFile(), "rw")) {
+      file.setLength(64 * 1024 * 1024);
+    }
+    start();
+    try (Socket sock = connect()) {
+      sock.setReceiveBufferSize(64 * 1024);
+      send(sock, "GET /file/shrinks.bin HTTP/1.1\r\nHost: localhost\r\n\r\n");
+      InputStream in = sock.getInputStream();
+      assertTrue(line(in, "\r\n\r\n").startsWith("HTTP/1.1 200 OK"));
+      try (RandomAccessFile file = new RandomAccessFile(large.toFile(), "rw")) {
+        file.setLength(1024 * 1024);
+      }
+      // the server sends what is left of the file and closes
+      long received = 0;
+      try {
+        for (int n; (n = in.read(new byte[64 * 1024])) > 0; ) {
+          received += n;
+        }
+      } catch (SocketTimeoutException e) {
+        fail("connection still open after " + received + " bytes");
+      } catch (IOException e) {
+        // reset, also closed
+      }
+      assertTrue(String.valueOf(received), received < 64 * 1024 * 1024);
+    }
+    assertTrue(server.shutdown(1000));
+  }
+
+  @Test
+  public void closesConnectionsWhoseClientStopsReading() throws Exception {
+    Path large = root.resolve("large.bin");
+    try (RandomAccessFile file = new RandomAccessFile(large.toFile(), "rw")) {
+      file.setLength(64 * 1024 * 1024);
+    }
+    start("idleTimeout=200");
+    try (Socket sock = connect()) {
+      sock.setReceiveBufferSize(64 * 1024);
+      send(sock, "GET /file/large.bin HTTP/1.1\r\nHost: localhost\r\n\r\n");
+      // the buffers fill up and the write stalls past the timeout
+      Thread.sleep(2500);
+      long received = 0;
+      try {
+        for (int n; (n = sock.getInputStream().read(new byte[64 * 1024])) > 0; ) {
+          received += n;
+        }
+      } catch (SocketTimeoutException e) {
+        fail("stalled connection still open after " + received + " bytes");
+      } catch (IOException e) {
+        // reset, also closed
+      }
+      assertTrue(String.valueOf(received), received < 64 * 1024 * 1024);
+    }
+  }
+
+  @Test
+  public void streamsToHttp10ClientsWithoutChunks() throws Exception {
+    start();
+    try (Socket sock = connect()) {
+      send(sock, "POST /multiply/batch HTTP/1.0\r\nContent-Length: 13\r\nConnection: keep-alive\r\n\r\n"
+          + "[[2,3],[4,5]]");
+      String text = new String(sock.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+      assertTrue(text, text.startsWith("HTTP/1.1 200 OK\r\n"));
+      assertFalse(text, text.contains("Transfer-Encoding"));
+      assertTrue(text, text.contains("Connection: close\r\n"));
+      // the body ends where the connection does
+      assertTrue(text, text.endsWith("\r\n\r\n{\"count\":2,\"overflows\":0,\"results\":[6,20]}"));
+    }
+
+    // the same framing on the blocking connections
+    HttpResponse stream = HttpResponse.stream(200, HttpResponse.JSON,
+        out -> out.write("[]".getBytes(StandardCharsets.US_ASCII)));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    stream.writeTo(out, null, "HTTP/1.0", true);
+    assertTrue(stream.endsWithClose("HTTP/1.0"));
+    assertTrue(out.toString(StandardCharsets.US_ASCII).endsWith("Connection: close\r\n\r\n[]"));
+    assertFalse(stream.endsWithClose("HTTP/1.1"));
+  }
+
+  @Test
+  public void answersFailingHandlersWith500() throws Exception {
+    start();
+    try (Socket sock = connect()) {
+      for (String path : new String[] {"fails", "failsLater"}) {
+        send(sock, "GET /" + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        String[] response = response(sock.getInputStream());
+        assertEquals("HTTP/1.1 500 Internal Server Error", response[0]);
+        assertTrue(response[1], response[1].contains("broken"));
+      }
+      // the connection goes on, and the failed requests are no longer in flight
+      send(sock, "GET /multiply?num1=6&num2=7 HTTP/1.1\r\nHost: localhost\r\n\r\n");
+      assertTrue(response(sock.getInputStream())[1].contains("42"));
+    }
+    assertEquals(500, web.handleRequest(HttpRequest.parse(
+        "GET /fails HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII))).getStatus());
+    assertTrue(server.shutdown(1000));
+  }
+
+  @Test
+  public void answersWhenTheHandlerStageFails() throws Exception {
+    start(config -> new WebServer(config) {
+      @Override
+      public CompletableFuture<HttpResponse> handleAsync(HttpRequest request) {
+        if (request.getPath().equals("fails")) {
+          throw new IllegalStateException("broken server");
+        }
+        return CompletableFuture.failedFuture(new IllegalStateException("broken server"));
+      }
+    });
+    for (String path : new String[] {"fails", "failsLater"}) {
+      try (Socket sock = connect()) {
+        send(sock, "GET /" + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        assertEquals("HTTP/1.1 500 Internal Server Error", response(sock.getInputStream())[0]);
+        // not kept open, the state of the connection is unknown
+        assertEquals(-1, sock.getInputStream().read());
+      }
+    }
+    assertTrue(server.shutdown(1000));
+  }
+
+  @Test
+  public void rejectsThreadCountsAndTimeoutsBelowOne() {
+    for (String option : new String[] {"workers=0", "loops=0", "idleTimeout=-1", "workers=x"}) {
+      try {
+        ServerConfig.fromArgs(new String[] {"mode=nio", option});
+        fail("accepted " + option);
+      } catch (IllegalArgumentException e) {
+        assertTrue(e.getMessage(), e.getMessage().contains(option.substring(0, option.indexOf('='))));
+      }
+    }
+  }
+
+  @Test
+  public void closesIdleConnections() throws Exception {
+    start("idleTimeout=200");
+    try (Socket idle = connect(); Socket silent = connect()) {
+      send(idle, "GET /multiply?num1=1&num2=1 HTTP/1.1\r\nHost: localhost\r\n\r\n");
+      assertEquals("HTTP/1.1 200 OK", response(idle.getInputStream())[0]);
+      // the idle connections are swept about once a second
+      long start = System.nanoTime();
+      try {
+        assertEquals(-1, idle.getInputStream().read());
+        assertEquals(-1, silent.getInputStream().read());
+      } catch (SocketTimeoutException e) {
+        fail("idle connection still open");
+      }
+      assertTrue((System.nanoTime() - start) / 1000000 < 4000);
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package funHttpServer;
+
+import static org.junit.Assert.*;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+/**
+ * Token buckets of the rate limiter and the 429 and 503 responses of the
+ * admission control.
+ */
+public class RateLimiterTest {
+  private static final long SECOND = 1_000_000_000L;
+
+  @Test
+  public void allowsBurstThenRate() {
+    RateLimiter limiter = new RateLimiter(10, 5, 64);
+    long now = 5 * SECOND;
+    for (int i = 0; i < 5; i++) {
+      assertEquals(0, limiter.tryAcquire(42, now));
+    }
+    // empty, the next token comes after 1/10 s
+    assertEquals(SECOND / 10, limiter.tryAcquire(42, now));
+    assertEquals(0, limiter.tryAcquire(42, now + SECOND / 10));
+    assertTrue(limiter.tryAcquire(42, now + SECOND / 10) > 0);
+    // refilled, but never more than the burst
+    for (int i = 0; i < 5; i++) {
+      assertEquals(0, limiter.tryAcquire(42, now + 60 * SECOND));
+    }
+    assertTrue(limiter.tryAcquire(42, now + 60 * SECOND) > 0);
+  }
+
+  @Test
+  public void clientsHaveTheirOwnBuckets() {
+    RateLimiter limiter = new RateLimiter(1, 1, 1024);
+    assertEquals(0, limiter.tryAcquire(1, SECOND));
+    assertTrue(limiter.tryAcquire(1, SECOND) > 0);
+    assertEquals(0, limiter.tryAcquire(2, SECOND));
+  }
+
+  @Test
+  public void concurrentCallersTakeEachTokenOnce() throws InterruptedException {
+    RateLimiter limiter = new RateLimiter(1, 1000, 1);
+    AtomicInteger taken = new AtomicInteger();
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      Thread thread = new Thread(() -> {
+        for (int i = 0; i < 1000; i++) {
+          if (limiter.tryAcquire(7, SECOND) == 0) {
+            taken.incrementAndGet();
+          }
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(1000, taken.get());
+  }
+
+  private static HttpRequest request(String target, String client) throws Exception {
+    String head = "GET /" + target + " HTTP/1.1\r\nHost: localhost\r\n\r\n";
+    return HttpRequest.parse(head.getBytes(StandardCharsets.US_ASCII)).setClient(InetAddress.getByName(client));
+  }
+
+  @Test
+  public void answersWith429AndRetryAfter() throws Exception {
+    ServerConfig config = ServerConfig.fromArgs(new String[] {"clientRate=0.5:2", "log=false"});
+    WebServer server = new WebServer(config);
+    assertEquals(200, server.handleRequest(request("multiply?num1=2&num2=3", "10.0.0.1")).getStatus());
+    assertEquals(200, server.handleRequest(request("multiply?num1=2&num2=3", "10.0.0.1")).getStatus());
+    HttpResponse limited = server.handleRequest(request("multiply?num1=2&num2=3", "10.0.0.1"));
+    assertEquals(429, limited.getStatus());
+    assertEquals("2", limited.getHeader("Retry-After"));
+    // another client is not affected
+    assertEquals(200, server.handleRequest(request("multiply?num1=2&num2=3", "10.0.0.2")).getStatus());
+  }
+
+  @Test
+  public void shedsLoadOverMaxInFlight() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    HttpServer stub = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    stub.setExecutor(Executors.newCachedThreadPool());
+    stub.createContext("/", exchange -> {
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      byte[] body = "[]".getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    stub.start();
+    try {
+      ServerConfig config = ServerConfig.fromArgs(new String[] {"maxInFlight=1", "log=false",
+          "githubUrl=http://localhost:" + stub.getAddress().getPort() + "/"});
+      WebServer server = new WebServer(config);
+      // the upstream call holds the only place until the stub answers
+      CompletableFuture<HttpResponse> slow = server.handleAsync(request("github?query=users/a/repos", "10.0.0.1"));
+      HttpResponse shed = server.handleRequest(request("multiply?num1=2&num2=3", "10.0.0.2"));
+      assertEquals(503, shed.getStatus());
+      assertEquals("1", shed.getHeader("Retry-After"));
+
+      release.countDown();
+      assertEquals(200, slow.get(10, TimeUnit.SECONDS).getStatus());
+      assertEquals(200, server.handleRequest(request("multiply?num1=2&num2=3", "10.0.0.2")).getStatus());
+    } finally {
+      stub.stop(0);
+    }
+  }
+}
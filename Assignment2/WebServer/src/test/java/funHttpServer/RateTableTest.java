@@ -0,0 +1,115 @@
+package funHttpServer;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * Rate matrix with cross rates through the pivot, refreshing from a file and
+ * the /convertCurrency routes.
+ */
+public class RateTableTest {
+  private static final double EPSILON = 1e-9;
+
+  @Test
+  public void derivesCrossRatesThroughThePivot() {
+    Map<String, Double> quotes = new LinkedHashMap<>();
+    quotes.put("USD/EUR", 0.8);
+    quotes.put("USD/GBP", 0.5);
+    quotes.put("JPY/USD", 0.01);
+    quotes.put("EUR/USD", 1.3);
+    quotes.put("XAU/XAG", 80.0);
+    RateTable table = RateTable.build(quotes);
+
+    int usd = table.indexOf("USD");
+    int eur = table.indexOf("eur");
+    int gbp = table.indexOf("Gbp");
+    int jpy = table.indexOf("JPY");
+    assertEquals(0.8, table.rate(usd, eur), EPSILON);
+    assertEquals(0.5 / 0.8, table.rate(eur, gbp), EPSILON);
+    assertEquals(0.01 * 0.5, table.rate(jpy, gbp), EPSILON);
+    assertEquals(1, table.rate(gbp, gbp), EPSILON);
+    // a quoted pair keeps its quote instead of the derived 1 / 0.8
+    assertEquals(1.3, table.rate(eur, usd), EPSILON);
+    // gold and silver are not connected to USD
+    assertEquals(80, table.rate(table.indexOf("XAU"), table.indexOf("XAG")), EPSILON);
+    assertTrue(Double.isNaN(table.rate(usd, table.indexOf("XAG"))));
+
+    assertEquals("EUR", table.code(eur));
+    assertEquals(-1, table.indexOf("CHF"));
+    assertEquals(-1, table.indexOf("US"));
+    assertEquals(-1, table.indexOf("U$D"));
+    assertEquals(usd, table.indexOf("xx,USD,yy", 3, 6));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsMalformedPairs() {
+    RateTable.build(Map.of("USDEUR", 0.8));
+  }
+
+  @Test
+  public void refreshSwapsTheWholeTable() throws Exception {
+    Path file = Files.createTempFile("rates", ".json");
+    try {
+      Files.writeString(file, "{\"base\":\"USD\",\"rates\":{\"EUR\":0.8}}");
+      ExchangeRates rates = new ExchangeRates(new FileRateProvider(file));
+      RateTable before = rates.current();
+
+      Files.writeString(file, "{\"base\":\"USD\",\"rates\":{\"EUR\":0.9,\"CHF\":0.95},\"pairs\":{\"EUR/CHF\":1.1}}");
+      rates.refresh();
+      RateTable after = rates.current();
+      assertEquals(0.8, before.rate(before.indexOf("USD"), before.indexOf("EUR")), EPSILON);
+      assertEquals(-1, before.indexOf("CHF"));
+      assertEquals(1.1, after.rate(after.indexOf("EUR"), after.indexOf("CHF")), EPSILON);
+
+      // a broken file keeps the old rates
+      Files.writeString(file, "{\"base\":\"USD\",\"rates\":{\"EUR\":-1}}");
+      try {
+        rates.refresh();
+        fail("negative rate accepted");
+      } catch (IOException e) {
+        assertSame(after, rates.current());
+      }
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  private static HttpResponse get(WebServer server, String target) {
+    String head = "GET /" + target + " HTTP/1.1\r\nHost: localhost\r\n\r\n";
+    return server.handleRequest(HttpRequest.parse(head.getBytes(StandardCharsets.US_ASCII)));
+  }
+
+  @Test
+  public void convertsWithTheBuiltInRates() throws Exception {
+    WebServer server = new WebServer(ServerConfig.fromArgs(new String[] {"log=false", "compress=false"}));
+    HttpResponse single = get(server, "convertCurrency?amount=100&from=usd&to=EUR");
+    assertEquals(200, single.getStatus());
+    assertEquals("Converted amount: 85.0 EUR", new String(single.getBody(), StandardCharsets.UTF_8));
+    assertEquals("Converted amount: 118.0 USD", new String(
+        get(server, "convertCurrency?amount=100&from=EUR&to=USD").getBody(), StandardCharsets.UTF_8));
+    assertEquals(400, get(server, "convertCurrency?amount=100&from=USD&to=XYZ").getStatus());
+    assertEquals(400, get(server, "convertCurrency?amount=Infinity&from=USD&to=EUR").getStatus());
+
+    HttpResponse batch = get(server, "convertCurrency/batch?amount=100&from=USD&to=EUR,gbp,USD");
+    assertEquals(200, batch.getStatus());
+    JSONObject json = new JSONObject(new String(batch.getBody(), StandardCharsets.UTF_8));
+    assertEquals("USD", json.getString("from"));
+    JSONArray results = json.getJSONArray("results");
+    assertEquals(3, results.length());
+    assertEquals("EUR", results.getJSONObject(0).getString("to"));
+    assertEquals(85.0, results.getJSONObject(0).getDouble("amount"), EPSILON);
+    assertEquals("GBP", results.getJSONObject(1).getString("to"));
+    assertEquals(75.0, results.getJSONObject(1).getDouble("amount"), EPSILON);
+    assertEquals(100.0, results.getJSONObject(2).getDouble("amount"), EPSILON);
+    assertEquals(400, get(server, "convertCurrency/batch?amount=1&from=USD&to=EUR,,GBP").getStatus());
+  }
+}
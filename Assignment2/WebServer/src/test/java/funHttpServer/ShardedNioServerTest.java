@@ -0,0 +1,98 @@
+package funHttpServer;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Several nio loops on one SO_REUSEPORT port: connections are spread over
+ * the loops and all of them stop on shutdown.
+ */
+public class ShardedNioServerTest {
+  @Before
+  public void needsReusePort() throws IOException {
+    try (ServerSocket probe = new ServerSocket()) {
+      Assume.assumeTrue("no SO_REUSEPORT here",
+          probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT));
+    }
+  }
+
+  private static String get(int port, String target) throws IOException {
+    try (Socket sock = new Socket("localhost", port)) {
+      sock.setSoTimeout(10000);
+      sock.getOutputStream().write(("GET " + target + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n")
+          .getBytes(StandardCharsets.US_ASCII));
+      ByteArrayOutputStream response = new ByteArrayOutputStream();
+      sock.getInputStream().transferTo(response);
+      return response.toString(StandardCharsets.UTF_8);
+    }
+  }
+
+  @Test
+  public void spreadsConnectionsOverTheLoops() throws Exception {
+    ServerConfig config = ServerConfig.fromArgs(new String[] {"port=0", "mode=nio", "loops=4", "workers=6", "log=false"});
+    ShardedNioServer server = new ShardedNioServer(new WebServer(config), config);
+    server.bind();
+    Thread thread = new Thread(() -> {
+      try {
+        server.run();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    });
+    thread.setDaemon(true);
+    thread.start();
+
+    int port = server.getLocalPort();
+    ExecutorService clients = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<String>> responses = new ArrayList<>();
+      for (int i = 0; i < 64; i++) {
+        int n = i;
+        responses.add(clients.submit(() -> get(port, "/multiply?num1=" + n + "&num2=3")));
+      }
+      for (int i = 0; i < responses.size(); i++) {
+        String response = responses.get(i).get();
+        assertTrue(response, response.startsWith("HTTP/1.1 200 OK"));
+        assertTrue(response, response.endsWith("Result is: " + 3 * i));
+      }
+    } finally {
+      clients.shutdownNow();
+    }
+
+    // the kernel hashes the client port, 64 connections miss one of 4 loops with
+    // a chance of about 4 * (3/4)^64
+    long[] accepted = server.getAccepted();
+    assertEquals(4, accepted.length);
+    long total = 0;
+    for (long count : accepted) {
+      assertTrue(Arrays.toString(accepted), count > 0);
+      total += count;
+    }
+    assertEquals(64, total);
+
+    assertTrue(server.shutdown(5000));
+    thread.join(5000);
+    assertFalse(thread.isAlive());
+    try {
+      new Socket("localhost", port).close();
+      fail("still accepting connections");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,185 @@
+package funHttpServer;
+
+import static org.junit.Assert.*;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Graceful shutdown of the blocking and nio modes (the virtual mode is
+ * covered by ThreadPerConnectionServerTest) and starting a second server on
+ * the port of a running one with SO_REUSEPORT.
+ */
+public class ShutdownTest {
+  private static final String REPOS = "[{\"full_name\":\"a/b\",\"id\":1,\"owner\":{\"login\":\"a\"}}]";
+
+  private HttpServer stub;
+  private volatile long upstreamDelay = 300;
+  private final AtomicInteger users = new AtomicInteger();
+  private final ExecutorService clients = Executors.newCachedThreadPool();
+  private final List<ServerLoop> servers = new ArrayList<>();
+
+  @Before
+  public void startStub() throws IOException {
+    stub = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    stub.setExecutor(Executors.newCachedThreadPool());
+    stub.createContext("/", exchange -> {
+      try {
+        Thread.sleep(upstreamDelay);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      byte[] body = REPOS.getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    stub.start();
+  }
+
+  @After
+  public void stop() {
+    for (ServerLoop server : servers) {
+      server.shutdown(0);
+    }
+    clients.shutdownNow();
+    stub.stop(0);
+  }
+
+  private ServerLoop start(String mode, int port, String... options) throws IOException {
+    List<String> args = new ArrayList<>(List.of("port=" + port, "mode=" + mode, "log=false", "routeRates=",
+        "githubUrl=http://localhost:" + stub.getAddress().getPort() + "/"));
+    args.addAll(List.of(options));
+    ServerConfig config = ServerConfig.fromArgs(args.toArray(new String[0]));
+    WebServer web = new WebServer(config);
+    ServerLoop server = mode.equals("nio") ? new NioServer(web, config) : new BlockingServer(web, config);
+    server.bind();
+    Thread thread = new Thread(() -> {
+      try {
+        server.run();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    });
+    thread.setDaemon(true);
+    thread.start();
+    servers.add(server);
+    return server;
+  }
+
+  // one request on its own connection, a different user every time so the upstream cache does not help
+  private String github(int port) throws IOException {
+    try (Socket sock = new Socket("localhost", port)) {
+      String request = "GET /github?query=users/u" + users.incrementAndGet() + "/repos HTTP/1.1\r\n"
+          + "Host: localhost\r\nConnection: close\r\n\r\n";
+      sock.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+      ByteArrayOutputStream response = new ByteArrayOutputStream();
+      sock.getInputStream().transferTo(response);
+      return response.toString(StandardCharsets.UTF_8);
+    }
+  }
+
+  private static void assertRefused(int port) {
+    try {
+      new Socket("localhost", port).close();
+      fail("still accepting connections");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void blockingFinishesRunningRequests() throws Exception {
+    finishesRunningRequests(start("blocking", 0));
+  }
+
+  @Test
+  public void nioFinishesRunningRequestsAndClosesIdleConnections() throws Exception {
+    ServerLoop server = start("nio", 0);
+    try (Socket idle = new Socket("localhost", server.getLocalPort())) {
+      idle.setSoTimeout(5000);
+      OutputStream out = idle.getOutputStream();
+      out.write("GET /json HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+      InputStream in = idle.getInputStream();
+      int length = 0;
+      byte[] buf = new byte[4096];
+      String text = "";
+      while (!text.contains("}")) {
+        length += in.read(buf, length, buf.length - length);
+        text = new String(buf, 0, length, StandardCharsets.UTF_8);
+      }
+      assertTrue(text, text.contains("Connection: keep-alive"));
+
+      finishesRunningRequests(server);
+      // the idle keep-alive connection was closed and not left to time out
+      assertEquals(-1, in.read());
+    }
+  }
+
+  private void finishesRunningRequests(ServerLoop server) throws Exception {
+    int port = server.getLocalPort();
+    Future<String> running = clients.submit(() -> github(port));
+    Thread.sleep(upstreamDelay / 2);
+
+    long start = System.nanoTime();
+    assertTrue(server.shutdown(5000));
+    // done when the request is, not at the deadline
+    assertTrue((System.nanoTime() - start) / 1000000 < 2000);
+    String response = running.get();
+    assertTrue(response, response.startsWith("HTTP/1.1 200 OK"));
+    assertTrue(response, response.contains("Connection: close"));
+    assertRefused(port);
+  }
+
+  @Test
+  public void nioClosesBusyConnectionsAtTheDeadline() throws Exception {
+    upstreamDelay = 3000;
+    ServerLoop server = start("nio", 0);
+    int port = server.getLocalPort();
+    Future<String> running = clients.submit(() -> github(port));
+    Thread.sleep(200);
+
+    long start = System.nanoTime();
+    assertFalse(server.shutdown(300));
+    assertTrue((System.nanoTime() - start) / 1000000 < 2000);
+    assertEquals("", running.get());
+  }
+
+  @Test
+  public void newServerTakesOverThePort() throws Exception {
+    try (ServerSocket probe = new ServerSocket()) {
+      Assume.assumeTrue("no SO_REUSEPORT here",
+          probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT));
+    }
+    ServerLoop old = start("nio", 0, "reusePort=true");
+    int port = old.getLocalPort();
+    ServerLoop next = start("blocking", port, "reusePort=true");
+    assertEquals(port, next.getLocalPort());
+
+    upstreamDelay = 50;
+    assertTrue(old.shutdown(5000));
+    // the port never stopped accepting
+    for (int i = 0; i < 5; i++) {
+      assertTrue(github(port).startsWith("HTTP/1.1 200 OK"));
+    }
+  }
+}
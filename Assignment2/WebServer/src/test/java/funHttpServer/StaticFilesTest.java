@@ -0,0 +1,66 @@
+package funHttpServer;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The "/file/" route only sends files below its root.
+ */
+public class StaticFilesTest {
+  private Path dir;
+
+  @Before
+  public void createFiles() throws IOException {
+    dir = Files.createTempDirectory("static-files");
+    Files.createDirectory(dir.resolve("root"));
+    Files.writeString(dir.resolve("root/page.html"), "<p>page</p>");
+    Files.writeString(dir.resolve("secret.txt"), "secret");
+  }
+
+  @After
+  public void deleteFiles() throws IOException {
+    try (var paths = Files.walk(dir)) {
+      paths.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  private static HttpRequest request(String target) {
+    String head = "GET /" + target + " HTTP/1.1\r\nHost: localhost\r\n\r\n";
+    return HttpRequest.parse(head.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  @Test
+  public void servesOnlyTheWwwDirectory() {
+    WebServer server = new WebServer(ServerConfig.fromArgs(new String[] {"log=false", "compress=false"}));
+    assertEquals(200, server.handleRequest(request("file/index.html")).getStatus());
+    assertEquals(404, server.handleRequest(request("file/build.gradle")).getStatus());
+    assertEquals(404, server.handleRequest(request("file/../build.gradle")).getStatus());
+    assertEquals(404, server.handleRequest(request("file/%2e%2e/build.gradle")).getStatus());
+    assertEquals(404, server.handleRequest(request("file/../src/main/java/funHttpServer/WebServer.java")).getStatus());
+  }
+
+  @Test
+  public void doesNotFollowLinksOutOfTheRoot() throws IOException {
+    Path root = dir.resolve("root");
+    try {
+      Files.createSymbolicLink(root.resolve("secret.txt"), dir.resolve("secret.txt"));
+      Files.createSymbolicLink(root.resolve("up"), dir);
+      Files.createSymbolicLink(root.resolve("same.html"), root.resolve("page.html"));
+    } catch (UnsupportedOperationException | IOException e) {
+      return; // no symbolic links on this file system
+    }
+    StaticFiles files = new StaticFiles(root);
+    assertEquals(200, files.serve(request("file/page.html"), "page.html").getStatus());
+    assertEquals(200, files.serve(request("file/same.html"), "same.html").getStatus());
+    assertEquals(404, files.serve(request("file/secret.txt"), "secret.txt").getStatus());
+    assertEquals(404, files.serve(request("file/up/secret.txt"), "up/secret.txt").getStatus());
+    assertEquals(404, files.serve(request("file/../secret.txt"), "../secret.txt").getStatus());
+  }
+}
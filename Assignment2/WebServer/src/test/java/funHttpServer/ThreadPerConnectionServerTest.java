@@ -0,0 +1,156 @@
+package funHttpServer;
+
+import static org.junit.Assert.*;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Load test of the virtual mode: every /github request waits for a slow
+ * stub upstream, so throughput only grows with the number of clients if the
+ * connections are really served concurrently.
+ */
+public class ThreadPerConnectionServerTest {
+  private static final String REPOS = "[{\"full_name\":\"a/b\",\"id\":1,\"owner\":{\"login\":\"a\"}}]";
+  private static final long UPSTREAM_DELAY = 200;
+
+  private HttpServer stub;
+  private ThreadPerConnectionServer server;
+  private Thread acceptor;
+  private final AtomicInteger users = new AtomicInteger();
+  private final ExecutorService clients = Executors.newCachedThreadPool();
+
+  @Before
+  public void startStub() throws IOException {
+    stub = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    stub.setExecutor(Executors.newCachedThreadPool());
+    stub.createContext("/", exchange -> {
+      try {
+        Thread.sleep(UPSTREAM_DELAY);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      byte[] body = REPOS.getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    stub.start();
+  }
+
+  @After
+  public void stop() {
+    if (server != null) {
+      server.shutdown(1000);
+    }
+    clients.shutdownNow();
+    stub.stop(0);
+  }
+
+  private void startServer(String... options) throws IOException {
+    // all requests come from one address, so the /github rate limit is lifted
+    List<String> args = new ArrayList<>(List.of("port=0", "mode=virtual", "routeRates=",
+        "githubUrl=http://localhost:" + stub.getAddress().getPort() + "/"));
+    args.addAll(List.of(options));
+    ServerConfig config = ServerConfig.fromArgs(args.toArray(new String[0]));
+    server = new ThreadPerConnectionServer(new WebServer(config), config);
+    server.bind();
+    acceptor = new Thread(() -> {
+      try {
+        server.run();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    });
+    acceptor.start();
+  }
+
+  // one request on its own connection, a different user every time so the
+  // upstream cache and request coalescing do not help
+  private String github() throws IOException {
+    try (Socket sock = new Socket("localhost", server.getLocalPort())) {
+      String request = "GET /github?query=users/u" + users.incrementAndGet() + "/repos HTTP/1.1\r\n"
+          + "Host: localhost\r\nConnection: close\r\n\r\n";
+      sock.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+      InputStream in = sock.getInputStream();
+      ByteArrayOutputStream response = new ByteArrayOutputStream();
+      in.transferTo(response);
+      return response.toString(StandardCharsets.UTF_8);
+    }
+  }
+
+  // runs the requests with the given number of clients, returns requests per second
+  private double throughput(int concurrency, int requests) throws Exception {
+    long start = System.nanoTime();
+    List<Future<String>> responses = new ArrayList<>();
+    ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+    try {
+      for (int i = 0; i < requests; i++) {
+        responses.add(pool.submit(this::github));
+      }
+      for (Future<String> response : responses) {
+        String text = response.get();
+        assertTrue(text, text.startsWith("HTTP/1.1 200 OK"));
+        assertTrue(text, text.contains("Repository: a/b"));
+      }
+    } finally {
+      pool.shutdown();
+    }
+    return requests / ((System.nanoTime() - start) / 1e9);
+  }
+
+  @Test
+  public void throughputScalesWithConcurrentSlowUpstreamCalls() throws Exception {
+    startServer();
+    double single = throughput(1, 5);
+    double parallel = throughput(40, 80);
+    // one client is bound by the upstream delay, 40 clients should come
+    // close to 40 times that; allow a lot of slack for slow machines
+    assertTrue("1 client: " + single + "/s, 40 clients: " + parallel + "/s", parallel > single * 8);
+  }
+
+  @Test
+  public void maxConnectionsLimitsConcurrency() throws Exception {
+    startServer("maxConnections=2");
+    long start = System.nanoTime();
+    throughput(8, 8);
+    long elapsed = (System.nanoTime() - start) / 1000000;
+    // 8 requests, 2 at a time, each waiting for the upstream
+    assertTrue("took " + elapsed + " ms", elapsed >= 4 * UPSTREAM_DELAY - 50);
+  }
+
+  @Test
+  public void shutdownLetsRunningRequestsFinish() throws Exception {
+    startServer();
+    Future<String> running = clients.submit(this::github);
+    Thread.sleep(UPSTREAM_DELAY / 2);
+
+    assertTrue(server.shutdown(5000));
+    assertTrue(running.get().startsWith("HTTP/1.1 200 OK"));
+    acceptor.join(1000);
+    assertFalse(acceptor.isAlive());
+    try {
+      new Socket("localhost", server.getLocalPort()).close();
+      fail("still accepting connections");
+    } catch (IOException e) {
+      // expected
+    }
+    server = null;
+  }
+}
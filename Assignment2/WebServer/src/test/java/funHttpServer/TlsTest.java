@@ -0,0 +1,290 @@
+package funHttpServer;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * HTTPS in the nio and virtual modes with a self-signed certificate made by
+ * keytool: requests on persistent connections, a large file through the
+ * non-blocking encryption, cipher configuration and session resumption.
+ */
+public class TlsTest {
+  private static final String PASSWORD = "secret";
+
+  private static Path dir;
+  private static Path keystore;
+  private static SSLContext trusting;
+
+  private ThreadPerConnectionServer virtual;
+  private WebServer server;
+
+  @BeforeClass
+  public static void createCertificate() throws Exception {
+    dir = Files.createTempDirectory("tls-test");
+    keystore = dir.resolve("server.p12");
+    Path keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool");
+    Process process = new ProcessBuilder(keytool.toString(), "-genkeypair", "-alias", "server",
+        "-keyalg", "EC", "-groupname", "secp256r1", "-dname", "CN=localhost", "-validity", "2",
+        "-ext", "san=dns:localhost,ip:127.0.0.1", "-storetype", "PKCS12",
+        "-keystore", keystore.toString(), "-storepass", PASSWORD, "-keypass", PASSWORD)
+        .redirectErrorStream(true).start();
+    String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+    assertEquals(output, 0, process.waitFor());
+
+    trusting = SSLContext.getInstance("TLS");
+    trusting.init(null, trustManagers(), null);
+  }
+
+  // the client trusts exactly the certificate in the keystore
+  private static TrustManager[] trustManagers() throws Exception {
+    KeyStore server = KeyStore.getInstance(keystore.toFile(), PASSWORD.toCharArray());
+    KeyStore trusted = KeyStore.getInstance("PKCS12");
+    trusted.load(null, null);
+    trusted.setCertificateEntry("server", server.getCertificate("server"));
+    TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    trust.init(trusted);
+    return trust.getTrustManagers();
+  }
+
+  @AfterClass
+  public static void deleteCertificate() throws IOException {
+    Files.delete(keystore);
+    Files.delete(dir);
+  }
+
+  @After
+  public void stop() {
+    if (virtual != null) {
+      virtual.shutdown(1000);
+    }
+  }
+
+  private static ServerConfig config(int port, String mode, String... options) {
+    List<String> args = new ArrayList<>(List.of("port=" + port, "mode=" + mode, "log=false",
+        "keystore=" + keystore, "keystorePassword=" + PASSWORD));
+    args.addAll(List.of(options));
+    return ServerConfig.fromArgs(args.toArray(new String[0]));
+  }
+
+  // starts the server in the mode and returns its port
+  private int start(String mode, String... options) throws IOException {
+    if (mode.equals("virtual")) {
+      ServerConfig config = config(0, mode, options);
+      server = new WebServer(config);
+      virtual = new ThreadPerConnectionServer(server, config);
+      virtual.bind();
+      daemon(virtual::run);
+      return virtual.getLocalPort();
+    }
+    int port;
+    try (ServerSocket free = new ServerSocket(0)) {
+      port = free.getLocalPort();
+    }
+    ServerConfig config = config(port, mode, options);
+    server = new WebServer(config);
+    NioServer nio = new NioServer(server, config);
+    daemon(nio::run);
+    // wait until the selector loop listens
+    for (int i = 0; i < 100; i++) {
+      try {
+        new Socket("localhost", port).close();
+        return port;
+      } catch (IOException e) {
+        sleep(50);
+      }
+    }
+    throw new IOException("NIO server did not start");
+  }
+
+  private interface Body {
+    void run() throws IOException;
+  }
+
+  private static void daemon(Body body) {
+    Thread thread = new Thread(() -> {
+      try {
+        body.run();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    });
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static SSLSocket connect(SSLContext context, int port) throws IOException {
+    SSLSocket sock = (SSLSocket) context.getSocketFactory().createSocket("localhost", port);
+    sock.setSoTimeout(10000);
+    return sock;
+  }
+
+  // reads one response with a Content-Length body, returns the body
+  private static byte[] response(InputStream in) throws IOException {
+    ByteArrayOutputStream head = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) != -1) {
+      head.write(b);
+      String text = head.toString(StandardCharsets.US_ASCII);
+      if (text.endsWith("\r\n\r\n")) {
+        assertTrue(text, text.startsWith("HTTP/1.1 200 OK"));
+        int start = text.indexOf("Content-Length: ") + "Content-Length: ".length();
+        int length = Integer.parseInt(text.substring(start, text.indexOf("\r\n", start)));
+        return in.readNBytes(length);
+      }
+    }
+    throw new IOException("Connection closed in the response head");
+  }
+
+  private static void get(SSLSocket sock, String target, boolean close) throws IOException {
+    sock.getOutputStream().write(("GET /" + target + " HTTP/1.1\r\nHost: localhost\r\n"
+        + (close ? "Connection: close\r\n" : "") + "\r\n").getBytes(StandardCharsets.US_ASCII));
+    sock.getOutputStream().flush();
+  }
+
+  private void servesPersistentConnections(String mode) throws Exception {
+    int port = start(mode);
+    try (SSLSocket sock = connect(trusting, port)) {
+      get(sock, "multiply?num1=6&num2=7", false);
+      assertEquals("Result is: 42", new String(response(sock.getInputStream()), StandardCharsets.UTF_8));
+      // two pipelined requests, the second one arrives in the same TLS read
+      get(sock, "multiply?num1=2&num2=3", false);
+      get(sock, "json", true);
+      assertEquals("Result is: 6", new String(response(sock.getInputStream()), StandardCharsets.UTF_8));
+      assertTrue(new String(response(sock.getInputStream()), StandardCharsets.UTF_8).contains("header"));
+    }
+  }
+
+  @Test
+  public void nioServesHttps() throws Exception {
+    servesPersistentConnections("nio");
+  }
+
+  @Test
+  public void virtualServesHttps() throws Exception {
+    servesPersistentConnections("virtual");
+  }
+
+  @Test
+  public void sendsLargeFilesThroughTheEncryption() throws Exception {
+    Path file = Files.createTempFile(dir, "tls-test", ".bin");
+    try {
+      byte[] content = new byte[3 * 1024 * 1024 + 17];
+      new Random(15).nextBytes(content);
+      Files.write(file, content);
+      int port = start("nio", "fileRoot=" + dir);
+      try (SSLSocket sock = connect(trusting, port)) {
+        get(sock, "file/" + file.getFileName(), true);
+        assertArrayEquals(content, response(sock.getInputStream()));
+      }
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void usesTheConfiguredCipherSuite() throws Exception {
+    String cipher = "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256";
+    int port = start("nio", "tlsProtocols=TLSv1.2", "tlsCiphers=" + cipher);
+    try (SSLSocket sock = connect(trusting, port)) {
+      get(sock, "json", true);
+      response(sock.getInputStream());
+      assertEquals("TLSv1.2", sock.getSession().getProtocol());
+      assertEquals(cipher, sock.getSession().getCipherSuite());
+    }
+
+    try {
+      new WebServer(config(0, "nio", "tlsCiphers=TLS_NO_SUCH_CIPHER"));
+      fail("unknown cipher suite accepted");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("TLS_NO_SUCH_CIPHER"));
+    }
+  }
+
+  @Test
+  public void nioHandshakesManyClientsAtOnce() throws Exception {
+    // the handshake work runs on the workers, the selector thread resumes
+    // each connection once its work is done
+    int port = start("nio", "workers=2");
+    ExecutorService clients = Executors.newFixedThreadPool(16);
+    try {
+      List<Future<String>> bodies = new ArrayList<>();
+      for (int i = 0; i < 32; i++) {
+        int n = i;
+        bodies.add(clients.submit(() -> {
+          // a fresh context for each client, so every handshake is a full one
+          SSLContext context = SSLContext.getInstance("TLS");
+          context.init(null, trustManagers(), null);
+          try (SSLSocket sock = connect(context, port)) {
+            get(sock, "multiply?num1=" + n + "&num2=2", true);
+            return new String(response(sock.getInputStream()), StandardCharsets.UTF_8);
+          }
+        }));
+      }
+      for (int i = 0; i < bodies.size(); i++) {
+        assertEquals("Result is: " + 2 * i, bodies.get(i).get());
+      }
+    } finally {
+      clients.shutdownNow();
+    }
+    String metrics = new String(server.getMetrics().render(), StandardCharsets.UTF_8);
+    assertTrue(metrics, metrics.contains("funhttp_tls_handshakes_total{resumed=\"false\"} 32\n"));
+  }
+
+  private void resumesSessions(String mode, String protocol) throws Exception {
+    int port = start(mode, "tlsProtocols=" + protocol);
+    // a fresh client context, it caches the session of the first connection
+    SSLContext client = SSLContext.getInstance("TLS");
+    client.init(null, trustManagers(), null);
+    for (int i = 0; i < 3; i++) {
+      try (SSLSocket sock = connect(client, port)) {
+        get(sock, "json", true);
+        response(sock.getInputStream());
+      }
+    }
+    String metrics = new String(server.getMetrics().render(), StandardCharsets.UTF_8);
+    assertTrue(metrics, metrics.contains("funhttp_tls_handshakes_total{resumed=\"false\"} 1\n"));
+    assertTrue(metrics, metrics.contains("funhttp_tls_handshakes_total{resumed=\"true\"} 2\n"));
+  }
+
+  @Test
+  public void resumesTls13Sessions() throws Exception {
+    resumesSessions("nio", "TLSv1.3");
+  }
+
+  @Test
+  public void resumesTls12Sessions() throws Exception {
+    resumesSessions("virtual", "TLSv1.2");
+  }
+}
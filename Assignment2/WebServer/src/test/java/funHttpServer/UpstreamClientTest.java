@@ -0,0 +1,152 @@
+package funHttpServer;
+
+import static org.junit.Assert.*;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the upstream client and the /github route against a local stub
+ * server instead of the real GitHub API.
+ */
+public class UpstreamClientTest {
+  private static final String REPOS = "[{\"full_name\":\"amehlhase316/memoranda\",\"id\":42,"
+      + "\"owner\":{\"login\":\"amehlhase316\"}}]";
+
+  private HttpServer stub;
+  private String baseUrl;
+  private final AtomicInteger hits = new AtomicInteger();
+  private volatile int status = 200;
+  private volatile long delayMillis = 0;
+
+  @Before
+  public void startStub() throws IOException {
+    stub = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    stub.setExecutor(Executors.newCachedThreadPool());
+    stub.createContext("/", exchange -> {
+      hits.incrementAndGet();
+      try {
+        Thread.sleep(delayMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      byte[] body = REPOS.getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(status, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    stub.start();
+    baseUrl = "http://localhost:" + stub.getAddress().getPort() + "/";
+  }
+
+  @After
+  public void stopStub() {
+    stub.stop(0);
+  }
+
+  @Test
+  public void concurrentRequestsShareOneFetch() {
+    delayMillis = 300;
+    UpstreamClient client = new UpstreamClient(baseUrl, 0, 16, new CircuitBreaker(5, 1000));
+
+    List<CompletableFuture<String>> results = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      results.add(client.fetch("users/amehlhase316/repos"));
+    }
+    for (CompletableFuture<String> result : results) {
+      assertEquals(REPOS, result.join());
+    }
+    assertEquals(1, hits.get());
+  }
+
+  @Test
+  public void responsesAreCachedUntilTheyExpire() throws InterruptedException {
+    UpstreamClient client = new UpstreamClient(baseUrl, 200, 16, new CircuitBreaker(5, 1000));
+
+    client.fetch("users/a/repos").join();
+    client.fetch("users/a/repos").join();
+    assertEquals(1, hits.get());
+
+    client.fetch("users/b/repos").join();
+    assertEquals(2, hits.get());
+
+    Thread.sleep(300);
+    client.fetch("users/a/repos").join();
+    assertEquals(3, hits.get());
+  }
+
+  @Test
+  public void breakerStopsCallsToFailingUpstream() throws InterruptedException {
+    status = 500;
+    UpstreamClient client = new UpstreamClient(baseUrl, 0, 16, new CircuitBreaker(3, 300));
+
+    for (int i = 0; i < 3; i++) {
+      assertEquals(500, failure(client.fetch("users/a/repos")).getStatus());
+    }
+    UpstreamClient.UpstreamException rejected = failure(client.fetch("users/a/repos"));
+    assertEquals(503, rejected.getStatus());
+    assertTrue(rejected.getRetryAfterSeconds() > 0);
+    assertEquals(3, hits.get());
+
+    // after the cool down one trial call goes through and closes the breaker
+    status = 200;
+    Thread.sleep(400);
+    assertEquals(REPOS, client.fetch("users/a/repos").join());
+    assertEquals(REPOS, client.fetch("users/b/repos").join());
+    assertEquals(5, hits.get());
+  }
+
+  @Test
+  public void githubRouteRendersRepositories() {
+    ServerConfig config = ServerConfig.fromArgs(new String[] {"githubUrl=" + baseUrl});
+    WebServer server = new WebServer(config);
+
+    HttpRequest request = HttpRequest.parse(
+        "GET /github?query=users/amehlhase316/repos HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+    HttpResponse response = server.handleAsync(request).join();
+
+    assertEquals(200, response.getStatus());
+    String html = new String(response.getBody(), StandardCharsets.UTF_8);
+    assertTrue(html.contains("Repository: amehlhase316/memoranda"));
+    assertTrue(html.contains("ID: 42"));
+  }
+
+  @Test
+  public void streamedGithubRouteUsesChunkedEncoding() throws IOException {
+    ServerConfig config = ServerConfig.fromArgs(new String[] {"githubUrl=" + baseUrl, "githubStream=true"});
+    WebServer server = new WebServer(config);
+
+    HttpRequest request = HttpRequest.parse(
+        "GET /github?query=users/amehlhase316/repos HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+    HttpResponse response = server.handleAsync(request).join();
+    assertTrue(response.hasStreamBody());
+
+    String raw = new String(response.toBytes(true), StandardCharsets.ISO_8859_1);
+    assertTrue(raw.contains("Transfer-Encoding: chunked"));
+    assertTrue(raw.contains("Repository: amehlhase316/memoranda<br>ID: 42<br>Owner: amehlhase316"));
+    assertTrue(raw.endsWith("</ul></body></html>\r\n0\r\n\r\n"));
+  }
+
+  private static UpstreamClient.UpstreamException failure(CompletableFuture<String> result) {
+    try {
+      result.join();
+    } catch (CompletionException e) {
+      return (UpstreamClient.UpstreamException) e.getCause();
+    }
+    fail("expected the upstream call to fail");
+    return null;
+  }
+}
@@ -0,0 +1,81 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Summing the nums of an addmany request the way it used to be done, with
+ * getInt into an int that wraps around, against ExactSum, for arrays of
+ * 10 B to 100 MB of JSON text. The clients send numbers as JSON numbers or,
+ * like SockClient, as strings.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@State(Scope.Benchmark)
+public class AddManyBenchmark {
+  private static final MethodHandle NEW_SUM = Engines.constructor("ExactSum");
+  private static final MethodHandle ADD = Engines.method("ExactSum", "add", Object.class);
+  private static final MethodHandle SUM = Engines.method("ExactSum", "sum");
+
+  @Param({"10", "1000", "100000", "10000000", "100000000"})
+  int bytes;
+
+  @Param({"numbers", "strings"})
+  String values;
+
+  private JSONArray nums;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(25);
+    StringBuilder text = new StringBuilder("[");
+    while (text.length() < bytes) {
+      String number = Integer.toString(random.nextInt(2_000_000) - 1_000_000);
+      text.append(values.equals("strings") ? '"' + number + '"' : number).append(',');
+    }
+    text.setCharAt(text.length() - 1, ']');
+    nums = new JSONArray(text.toString());
+  }
+
+  @Benchmark
+  public int getInt() {
+    int result = 0;
+    for (int i = 0; i < nums.length(); i++) {
+      try {
+        result += nums.getInt(i);
+      } catch (JSONException e) {
+        return -1;
+      }
+    }
+    return result;
+  }
+
+  @Benchmark
+  public Number exactSum() throws Throwable {
+    Object sum = (Object) NEW_SUM.invokeExact();
+    for (int i = 0; i < nums.length(); i++) {
+      if (!(boolean) ADD.invokeExact(sum, nums.opt(i))) {
+        return null;
+      }
+    }
+    return (Number) SUM.invokeExact(sum);
+  }
+}
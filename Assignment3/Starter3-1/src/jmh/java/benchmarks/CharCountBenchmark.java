@@ -0,0 +1,65 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Counting one character the way charCount used to, with a stream over the
+ * characters, against CharCounts, and the histogram of all characters, on
+ * random lower case text of 10 B to 100 MB.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class CharCountBenchmark {
+  private static final MethodHandle COUNT = Engines.method("CharCounts", "count", String.class, char.class);
+  private static final MethodHandle HISTOGRAM = Engines.method("CharCounts", "histogram", String.class);
+
+  @Param({"10", "1000", "100000", "10000000", "100000000"})
+  int bytes;
+
+  private String text;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(25);
+    StringBuilder builder = new StringBuilder(bytes);
+    for (int i = 0; i < bytes; i++) {
+      builder.append(random.nextInt(6) == 0 ? ' ' : (char) ('a' + random.nextInt(26)));
+    }
+    text = builder.toString();
+  }
+
+  @Benchmark
+  public long stream() {
+    return text.chars().filter(ch -> ch == 'e').count();
+  }
+
+  @Benchmark
+  public long count() throws Throwable {
+    return (long) COUNT.invokeExact(text, 'e');
+  }
+
+  @Benchmark
+  @SuppressWarnings("unchecked")
+  public Map<Character, Long> histogram() throws Throwable {
+    return (Map<Character, Long>) HISTOGRAM.invokeExact(text);
+  }
+}
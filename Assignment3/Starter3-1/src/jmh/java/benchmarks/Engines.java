@@ -0,0 +1,61 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+/**
+ * The server's classes are in the default package, which JMH does not allow
+ * for benchmarks and Java does not let other packages name. The benchmarks
+ * reach them through method handles instead; held in static final fields
+ * they are inlined like direct calls.
+ */
+final class Engines {
+  private Engines() {
+  }
+
+  /**
+   * @return a handle on a static or instance method of a default package
+   *     class, with parameter and return types of that class as Object
+   */
+  static MethodHandle method(String className, String name, Class<?>... parameters) {
+    try {
+      Method method = Class.forName(className).getDeclaredMethod(name, parameters);
+      method.setAccessible(true);
+      MethodHandle handle = MethodHandles.lookup().unreflect(method);
+      return handle.asType(erase(handle.type()));
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return a handle on the constructor of a default package class
+   */
+  static MethodHandle constructor(String className, Class<?>... parameters) {
+    try {
+      Constructor<?> constructor = Class.forName(className).getDeclaredConstructor(parameters);
+      constructor.setAccessible(true);
+      MethodHandle handle = MethodHandles.lookup().unreflectConstructor(constructor);
+      return handle.asType(erase(handle.type()));
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // default package types become Object, others stay
+  private static MethodType erase(MethodType type) {
+    MethodType erased = type;
+    for (int i = 0; i < type.parameterCount(); i++) {
+      if (type.parameterType(i).getPackageName().isEmpty() && !type.parameterType(i).isPrimitive()) {
+        erased = erased.changeParameterType(i, Object.class);
+      }
+    }
+    if (type.returnType().getPackageName().isEmpty() && !type.returnType().isPrimitive()) {
+      erased = erased.changeReturnType(Object.class);
+    }
+    return erased;
+  }
+}
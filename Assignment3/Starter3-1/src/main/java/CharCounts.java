@@ -0,0 +1,145 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counting characters for the charcount requests.
+ *
+ * The string is turned into ISO-8859-1 bytes a chunk at a time, for Latin-1
+ * strings that is a plain copy. A single character is then counted eight
+ * bytes at a time in a long (SWAR): XOR with the character in every byte
+ * turns matches into zero bytes, which a few masks turn into one bit each.
+ * Characters outside Latin-1 become '?' in the bytes, so '?' and those
+ * characters are counted on the string instead.
+ */
+final class CharCounts {
+  /** Characters turned into bytes at a time, the copies stay small enough for the cache */
+  static final int CHUNK = 8 * 1024;
+
+  /** Strings up to this long are counted into the histogram directly, without tables */
+  static final int SMALL = 256;
+
+  private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class,
+      ByteOrder.LITTLE_ENDIAN);
+  private static final long ONES = 0x0101010101010101L;
+  private static final long LOW7 = 0x7f7f7f7f7f7f7f7fL;
+  private static final char REPLACED = '?';
+
+  private CharCounts() {
+  }
+
+  /**
+   * @return how often c is in s
+   */
+  static long count(String s, char c) {
+    if (c > 0xff || c == REPLACED) {
+      long count = 0;
+      for (int i = s.indexOf(c); i >= 0; i = s.indexOf(c, i + 1)) {
+        count++;
+      }
+      return count;
+    }
+    long count = 0;
+    for (int from = 0; from < s.length(); from += CHUNK) {
+      byte[] bytes = latin1(s, from);
+      count += count(bytes, bytes.length, (byte) c);
+    }
+    return count;
+  }
+
+  /**
+   * @return how often b is in the first length bytes
+   */
+  static long count(byte[] bytes, int length, byte b) {
+    long pattern = ONES * (b & 0xff);
+    long n0 = 0;
+    long n1 = 0;
+    long n2 = 0;
+    long n3 = 0;
+    int i = 0;
+    // four independent words per round, the additions do not wait for each other
+    for (; i + 32 <= length; i += 32) {
+      n0 += zeroBytes((long) LONGS.get(bytes, i) ^ pattern);
+      n1 += zeroBytes((long) LONGS.get(bytes, i + 8) ^ pattern);
+      n2 += zeroBytes((long) LONGS.get(bytes, i + 16) ^ pattern);
+      n3 += zeroBytes((long) LONGS.get(bytes, i + 24) ^ pattern);
+    }
+    for (; i + 8 <= length; i += 8) {
+      n0 += zeroBytes((long) LONGS.get(bytes, i) ^ pattern);
+    }
+    long count = n0 + n1 + n2 + n3;
+    for (; i < length; i++) {
+      if (bytes[i] == b) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  // the number of zero bytes in x; the high bit of a byte ends up set only if
+  // the byte is zero, and no carry crosses into the next byte
+  private static int zeroBytes(long x) {
+    return Long.bitCount(~(((x & LOW7) + LOW7) | x | LOW7));
+  }
+
+  /**
+   * @return every character in s with how often it is there, by character
+   */
+  static Map<Character, Long> histogram(String s) {
+    Map<Character, Long> histogram = new TreeMap<>();
+    if (s.length() <= SMALL) {
+      for (int i = 0; i < s.length(); i++) {
+        histogram.merge(s.charAt(i), 1L, Long::sum);
+      }
+      return histogram;
+    }
+
+    // counting into four tables keeps runs of one character from waiting on the same
+    // counter; a table counts at most a quarter of the string, an int is enough
+    int[][] tables = new int[4][256];
+    for (int from = 0; from < s.length(); from += CHUNK) {
+      byte[] bytes = latin1(s, from);
+      int i = 0;
+      for (; i + 4 <= bytes.length; i += 4) {
+        tables[0][bytes[i] & 0xff]++;
+        tables[1][bytes[i + 1] & 0xff]++;
+        tables[2][bytes[i + 2] & 0xff]++;
+        tables[3][bytes[i + 3] & 0xff]++;
+      }
+      for (; i < bytes.length; i++) {
+        tables[0][bytes[i] & 0xff]++;
+      }
+    }
+    long[] latin1 = new long[256];
+    for (int c = 0; c < 256; c++) {
+      latin1[c] = (long) tables[0][c] + tables[1][c] + tables[2][c] + tables[3][c];
+    }
+
+    if (latin1[REPLACED] > 0) {
+      // some of them may stand for characters outside Latin-1
+      latin1[REPLACED] = 0;
+      for (int i = 0; i < s.length(); i++) {
+        char c = s.charAt(i);
+        if (c == REPLACED) {
+          latin1[REPLACED]++;
+        } else if (c > 0xff) {
+          histogram.merge(c, 1L, Long::sum);
+        }
+      }
+    }
+    for (int c = 0; c < 256; c++) {
+      if (latin1[c] > 0) {
+        histogram.put((char) c, latin1[c]);
+      }
+    }
+    return histogram;
+  }
+
+  // the chunk of s starting at from, characters outside Latin-1 become '?'
+  private static byte[] latin1(String s, int from) {
+    return s.substring(from, Math.min(from + CHUNK, s.length())).getBytes(StandardCharsets.ISO_8859_1);
+  }
+}
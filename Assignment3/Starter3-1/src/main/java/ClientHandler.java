@@ -0,0 +1,102 @@
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.UTFDataFormatException;
+import java.net.Socket;
+
+/**
+ * Serves the requests of one client until it disconnects. The socket and
+ * its streams belong to this handler alone, so clients served at the same
+ * time cannot write into each other's connection.
+ *
+ * The first bytes from the client pick the protocol: Framing.MAGIC for
+ * length-prefixed frames, anything else is taken for an ObjectOutputStream
+ * sending strings, answered with writeUTF.
+ */
+class ClientHandler implements Runnable {
+  private final Socket sock;
+  private final Runnable done;
+
+  /**
+   * @param sock the accepted client socket, closed when the client is done
+   * @param done called after the socket is closed, frees the client's slot
+   */
+  ClientHandler(Socket sock, Runnable done) {
+    this.sock = sock;
+    this.done = done;
+  }
+
+  @Override
+  public void run() {
+    System.out.println("Client connected");
+    try (Socket clientSocket = sock) {
+      // a response larger than the stream's buffer is sent as its length and the rest,
+      // Nagle would hold the rest back until the client's delayed ACK for the length
+      clientSocket.setTcpNoDelay(true);
+      BufferedInputStream input = new BufferedInputStream(clientSocket.getInputStream());
+      DataOutputStream os = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
+      input.mark(Framing.MAGIC.length);
+      if (Framing.isMagic(input.readNBytes(Framing.MAGIC.length))) {
+        os.write(Framing.MAGIC);
+        os.flush();
+        serveFramed(new DataInputStream(input), os);
+      } else {
+        input.reset();
+        serveObjects(input, os);
+      }
+    } catch (IOException e) {
+      // the client went away while we wrote, or sent something we cannot read
+      System.out.println("Client connection failed: " + e.getMessage());
+    } finally {
+      done.run();
+    }
+  }
+
+  private void serveFramed(DataInputStream in, DataOutputStream os) throws IOException {
+    String s;
+    while ((s = Framing.readFrame(in)) != null) {
+      Framing.writeFrame(os, SockServer.handleRequest(s).toString());
+    }
+    System.out.println("Client disconnected.");
+  }
+
+  private void serveObjects(BufferedInputStream input, DataOutputStream os) throws IOException {
+    ObjectInputStream in;
+    try {
+      // Set up object input stream for the client, reads its header
+      in = new ObjectInputStream(input);
+    } catch (IOException e) {
+      System.out.println("Client disconnect or read error.");
+      return;
+    }
+    while (true) {
+      String s;
+      try {
+        s = (String) in.readObject(); // attempt to read string from client
+      } catch (Exception e) { // Handle client disconnect or read error
+        System.out.println("Client disconnect or read error.");
+        return;
+      }
+      writeOut(os, SockServer.handleRequest(s));
+    }
+  }
+
+  // sends the response and makes sure it is not held back in a buffer
+  private static void writeOut(DataOutputStream os, JSONObject res) throws IOException {
+    try {
+      os.writeUTF(res.toString());
+    } catch (UTFDataFormatException e) {
+      // writeUTF checks the length before it writes anything
+      JSONObject tooLarge = new JSONObject();
+      tooLarge.put("ok", false);
+      tooLarge.put("message", "Response is larger than 64 KB, connect with the framed protocol to get it");
+      os.writeUTF(tooLarge.toString());
+    }
+    os.flush();
+  }
+}
@@ -0,0 +1,77 @@
+import java.math.BigInteger;
+
+/**
+ * Adds up whole numbers of any size for the addmany requests.
+ *
+ * Numbers are added to a long as long as the sum fits. When an addition
+ * overflows, the long so far moves into a BigInteger and the long starts
+ * over; numbers that do not fit a long to begin with go to the BigInteger
+ * right away. Sums that stay within a long never create a BigInteger.
+ */
+final class ExactSum {
+  private long small;
+  private BigInteger big = BigInteger.ZERO;
+
+  /**
+   * Adds a value of a JSON array: a number or a string of decimal digits,
+   * as org.json leaves numbers too large for a long.
+   * @return false if the value is not a whole number
+   */
+  boolean add(Object value) {
+    if (value instanceof Integer || value instanceof Long) {
+      add(((Number) value).longValue());
+      return true;
+    }
+    if (value instanceof BigInteger) {
+      big = big.add((BigInteger) value);
+      return true;
+    }
+    if (value instanceof String) {
+      return add((String) value);
+    }
+    return false;
+  }
+
+  private boolean add(String digits) {
+    try {
+      add(Long.parseLong(digits));
+      return true;
+    } catch (NumberFormatException e) {
+      // too large for a long, or no number at all
+    }
+    try {
+      big = big.add(new BigInteger(digits));
+      return true;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  void add(long value) {
+    long sum = small + value;
+    // overflow if both have the same sign and the sum has the other one
+    if (((small ^ sum) & (value ^ sum)) < 0) {
+      big = big.add(BigInteger.valueOf(small));
+      small = value;
+    } else {
+      small = sum;
+    }
+  }
+
+  /**
+   * @return the sum as an Integer, Long or BigInteger, the smallest it fits
+   */
+  Number sum() {
+    if (big.signum() == 0) {
+      return small == (int) small ? (Number) (int) small : (Number) small;
+    }
+    BigInteger total = big.add(BigInteger.valueOf(small));
+    if (total.bitLength() < 32) {
+      return total.intValue();
+    }
+    if (total.bitLength() < 64) {
+      return total.longValue();
+    }
+    return total;
+  }
+}
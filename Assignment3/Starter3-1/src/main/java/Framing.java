@@ -0,0 +1,92 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The framed protocol: every message is a 4 byte big-endian length followed
+ * by that many bytes of UTF-8 JSON. Unlike writeObject/writeUTF there is no
+ * serialization header per message and no 64 KB limit on responses.
+ *
+ * A client asks for it by sending MAGIC right after connecting and the
+ * server answers with MAGIC. An ObjectOutputStream always starts with
+ * 0xACED, so the server can tell both kinds of clients apart by their first
+ * bytes and old clients keep working. An old server fails on MAGIC and
+ * closes the connection, the client then reconnects with the old protocol.
+ */
+final class Framing {
+  /** Sent by both sides to agree on the framed protocol */
+  static final byte[] MAGIC = {'J', 'F', 'R', '1'};
+
+  /** Longest request the server accepts, longer ones are taken for garbage */
+  static final int MAX_FRAME = 1024 * 1024;
+
+  /** Longest response a client accepts, a batch of echoes can be larger than its request */
+  static final int MAX_RESPONSE = 64 * 1024 * 1024;
+
+  // the payload buffer starts this large and grows with the bytes that arrive,
+  // a length alone does not get a large buffer
+  private static final int CHUNK = 64 * 1024;
+
+  private Framing() {
+  }
+
+  /**
+   * @param head the first bytes read from a connection
+   * @return true if they ask for the framed protocol
+   */
+  static boolean isMagic(byte[] head) {
+    return Arrays.equals(head, MAGIC);
+  }
+
+  /**
+   * Writes one message and flushes it.
+   */
+  static void writeFrame(DataOutputStream out, String message) throws IOException {
+    byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(payload.length);
+    out.write(payload);
+    out.flush();
+  }
+
+  /**
+   * Reads one message of at most MAX_FRAME bytes.
+   * @return the message, null if the connection was closed between messages
+   * @throws IOException if the connection fails or the length is out of range
+   */
+  static String readFrame(DataInputStream in) throws IOException {
+    return readFrame(in, MAX_FRAME);
+  }
+
+  /**
+   * Reads one message.
+   * @param maxLength longest payload accepted
+   * @return the message, null if the connection was closed between messages
+   * @throws IOException if the connection fails or the length is out of range
+   */
+  static String readFrame(DataInputStream in, int maxLength) throws IOException {
+    int first = in.read();
+    if (first < 0) {
+      return null;
+    }
+    int length = first << 24 | in.readUnsignedByte() << 16 | in.readUnsignedByte() << 8 | in.readUnsignedByte();
+    if (length < 0 || length > maxLength) {
+      throw new IOException("Frame length " + (length & 0xffffffffL) + " is out of range");
+    }
+    byte[] payload = new byte[Math.min(length, CHUNK)];
+    int read = 0;
+    while (read < length) {
+      if (read == payload.length) {
+        payload = Arrays.copyOf(payload, (int) Math.min(length, 2L * payload.length));
+      }
+      int n = in.read(payload, read, payload.length - read);
+      if (n < 0) {
+        throw new EOFException("Connection closed in the middle of a frame");
+      }
+      read += n;
+    }
+    return new String(payload, StandardCharsets.UTF_8);
+  }
+}
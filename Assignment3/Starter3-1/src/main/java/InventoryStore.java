@@ -0,0 +1,406 @@
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The inventory, changed by many client threads at once.
+ *
+ * Every product holds an immutable Stock that is replaced by compare and set,
+ * so a buy checks and takes the quantity in one step and concurrent buys can
+ * never sell more than there is. Each new Stock gets a number from one
+ * sequence, always larger than the number of the Stock it replaces.
+ *
+ * After load() the store persists itself behind the clients' backs: a
+ * background thread appends every change to a journal next to the snapshot
+ * file and every SNAPSHOT_RECORDS changes or SNAPSHOT_MILLIS writes a new
+ * snapshot and empties the journal. Loading reads the snapshot and replays
+ * the journal on top of it. A journal line holds the new quantity and its
+ * sequence number instead of the difference, so lines replayed twice or out
+ * of order do no harm. Changes reach the journal within about 100 ms and are
+ * forced to disk only with the snapshots, a crash can lose the latest ones.
+ */
+final class InventoryStore {
+  /** Changes after which the writer compacts the journal into a snapshot */
+  static final int SNAPSHOT_RECORDS = 10000;
+
+  /** Time after which the writer compacts a journal that is not empty */
+  static final long SNAPSHOT_MILLIS = 5000;
+
+  /** Outcome of buy() */
+  enum Buy { OK, NOT_IN_INVENTORY, NOT_AVAILABLE }
+
+  private static final class Stock {
+    final long quantity;
+    final long seq;
+
+    Stock(long quantity, long seq) {
+      this.quantity = quantity;
+      this.seq = seq;
+    }
+  }
+
+  // one journal line, product is null for a reset that removed everything
+  private static final class Change {
+    final long seq;
+    final String product;
+    final long quantity;
+
+    Change(long seq, String product, long quantity) {
+      this.seq = seq;
+      this.product = product;
+      this.quantity = quantity;
+    }
+
+    static Change parse(String line) throws JSONException {
+      JSONObject json = new JSONObject(line);
+      if (json.optBoolean("reset", false)) {
+        return new Change(json.getLong("seq"), null, 0);
+      }
+      return new Change(json.getLong("seq"), json.getString("product"), json.getLong("quantity"));
+    }
+
+    String toLine() {
+      JSONObject json = new JSONObject();
+      json.put("seq", seq);
+      if (product == null) {
+        json.put("reset", true);
+      } else {
+        json.put("product", product);
+        json.put("quantity", quantity);
+      }
+      return json.toString() + "\n";
+    }
+  }
+
+  private final ConcurrentHashMap<String, AtomicReference<Stock>> stock = new ConcurrentHashMap<>();
+  private final AtomicLong seq = new AtomicLong();
+  // changes of single products share the read lock, resets take the write lock
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+  // set up by load(), null while the store is only kept in memory
+  private volatile BlockingQueue<Change> pending;
+  private volatile boolean closing;
+  private Path file;
+  private FileChannel journal;
+  private Thread writer;
+
+  // the inventory as far as the journal goes, quantity and seq per product;
+  // only the writer thread touches it once load() is done
+  private final Map<String, long[]> persisted = new HashMap<>();
+  private long resetSeq;
+
+  /**
+   * Adds to a product, creating it if it is new.
+   * @return the quantity after adding
+   */
+  long add(String product, long quantity) {
+    lock.readLock().lock();
+    try {
+      AtomicReference<Stock> ref = stock.get(product);
+      if (ref == null) {
+        Stock created = new Stock(quantity, seq.incrementAndGet());
+        ref = stock.putIfAbsent(product, new AtomicReference<>(created));
+        if (ref == null) {
+          record(created.seq, product, quantity);
+          return quantity;
+        }
+      }
+      while (true) {
+        Stock current = ref.get();
+        Stock next = new Stock(current.quantity + quantity, seq.incrementAndGet());
+        if (ref.compareAndSet(current, next)) {
+          record(next.seq, product, next.quantity);
+          return next.quantity;
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Takes quantity of a product if that much is there.
+   */
+  Buy buy(String product, long quantity) {
+    lock.readLock().lock();
+    try {
+      AtomicReference<Stock> ref = stock.get(product);
+      if (ref == null) {
+        return Buy.NOT_IN_INVENTORY;
+      }
+      while (true) {
+        Stock current = ref.get();
+        if (current.quantity < quantity) {
+          return Buy.NOT_AVAILABLE;
+        }
+        Stock next = new Stock(current.quantity - quantity, seq.incrementAndGet());
+        if (ref.compareAndSet(current, next)) {
+          record(next.seq, product, next.quantity);
+          return Buy.OK;
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return product names and quantities at about this moment, each quantity
+   *     one the product really had
+   */
+  Map<String, Long> view() {
+    Map<String, Long> view = new LinkedHashMap<>();
+    stock.forEach((product, ref) -> view.put(product, ref.get().quantity));
+    return view;
+  }
+
+  /** @return the number of products */
+  int size() {
+    return stock.size();
+  }
+
+  /**
+   * Replaces everything with the given products.
+   */
+  void reset(Map<String, Integer> products) {
+    lock.writeLock().lock();
+    try {
+      stock.clear();
+      record(seq.incrementAndGet(), null, 0);
+      for (Map.Entry<String, Integer> entry : products.entrySet()) {
+        Stock created = new Stock(entry.getValue(), seq.incrementAndGet());
+        stock.put(entry.getKey(), new AtomicReference<>(created));
+        record(created.seq, entry.getKey(), created.quantity);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Resets to the given products if there are more than max products.
+   * @return true if it did
+   */
+  boolean resetIfLarger(int max, Map<String, Integer> products) {
+    if (stock.size() <= max) {
+      return false;
+    }
+    lock.writeLock().lock();
+    try {
+      if (stock.size() <= max) {
+        return false;
+      }
+      reset(products);
+      return true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Replaces the inventory with the one persisted in file and its journal,
+   * or with products if there is none, and persists all changes from now on.
+   * Call it once, before clients are served.
+   * @throws IOException if the files cannot be read or written
+   * @throws JSONException if the snapshot is not a JSON object of quantities
+   */
+  synchronized void load(Path file, Map<String, Integer> products) throws IOException {
+    if (writer != null) {
+      throw new IllegalStateException("Inventory already loaded from " + this.file);
+    }
+    this.file = file;
+    Path journalFile = journalOf(file);
+    boolean found = false;
+    persisted.clear();
+    resetSeq = 0;
+    if (Files.exists(file) && Files.size(file) > 0) {
+      JSONObject snapshot = new JSONObject(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+      for (String product : snapshot.keySet()) {
+        persisted.put(product, new long[] {snapshot.getLong(product), 0});
+      }
+      found = true;
+    }
+    if (Files.exists(journalFile)) {
+      for (String line : Files.readAllLines(journalFile, StandardCharsets.UTF_8)) {
+        try {
+          apply(Change.parse(line));
+          found = true;
+        } catch (JSONException e) {
+          // the last line, cut off by a crash while it was written
+        }
+      }
+    }
+    if (!found) {
+      products.forEach((product, quantity) -> persisted.put(product, new long[] {quantity, 0}));
+    }
+
+    lock.writeLock().lock();
+    try {
+      stock.clear();
+      // the sequence numbers of the old journal end with it
+      for (Map.Entry<String, long[]> entry : persisted.entrySet()) {
+        entry.getValue()[1] = 0;
+        stock.put(entry.getKey(), new AtomicReference<>(new Stock(entry.getValue()[0], 0)));
+      }
+      resetSeq = 0;
+      journal = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+          StandardOpenOption.APPEND);
+      snapshot();
+      pending = new LinkedBlockingQueue<>();
+    } finally {
+      lock.writeLock().unlock();
+    }
+    writer = new Thread(this::writeBehind, "inventory-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Writes the changes still pending and a last snapshot. Changes made after
+   * this are kept in memory only.
+   * @return true if the writer finished within maxMillis
+   */
+  synchronized boolean close(long maxMillis) {
+    if (writer == null) {
+      return true;
+    }
+    closing = true;
+    try {
+      writer.join(maxMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (writer.isAlive()) {
+      return false;
+    }
+    try {
+      journal.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    return true;
+  }
+
+  static Path journalOf(Path file) {
+    return file.resolveSibling(file.getFileName() + ".journal");
+  }
+
+  private void record(long seq, String product, long quantity) {
+    BlockingQueue<Change> queue = pending;
+    if (queue != null) {
+      queue.add(new Change(seq, product, quantity));
+    }
+  }
+
+  // the newest quantity of a product wins, changes older than a reset are gone
+  private void apply(Change change) {
+    if (change.product == null) {
+      if (change.seq > resetSeq) {
+        resetSeq = change.seq;
+        persisted.values().removeIf(entry -> entry[1] < change.seq);
+      }
+      return;
+    }
+    if (change.seq < resetSeq) {
+      return;
+    }
+    long[] entry = persisted.get(change.product);
+    if (entry == null) {
+      persisted.put(change.product, new long[] {change.quantity, change.seq});
+    } else if (entry[1] < change.seq) {
+      entry[0] = change.quantity;
+      entry[1] = change.seq;
+    }
+  }
+
+  private void writeBehind() {
+    List<Change> batch = new ArrayList<>();
+    long lastSnapshot = System.currentTimeMillis();
+    int sinceSnapshot = 0;
+    while (true) {
+      boolean done = false;
+      try {
+        Change first = pending.poll(100, TimeUnit.MILLISECONDS);
+        if (first != null) {
+          batch.add(first);
+          pending.drainTo(batch);
+          // applied before they are written, a failed write is made good by the next snapshot
+          batch.forEach(this::apply);
+          sinceSnapshot += batch.size();
+          append(batch);
+          batch.clear();
+        }
+        done = closing && pending.isEmpty();
+        long now = System.currentTimeMillis();
+        if (sinceSnapshot > 0
+            && (done || sinceSnapshot >= SNAPSHOT_RECORDS || now - lastSnapshot >= SNAPSHOT_MILLIS)) {
+          snapshot();
+          sinceSnapshot = 0;
+          lastSnapshot = now;
+        }
+      } catch (IOException e) {
+        batch.clear();
+        e.printStackTrace();
+        System.out.println("Failed to save inventory to file.");
+      } catch (InterruptedException e) {
+        return;
+      }
+      if (done) {
+        return;
+      }
+    }
+  }
+
+  private void append(List<Change> batch) throws IOException {
+    StringBuilder lines = new StringBuilder();
+    for (Change change : batch) {
+      lines.append(change.toLine());
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+    while (buffer.hasRemaining()) {
+      journal.write(buffer);
+    }
+  }
+
+  // replaces the snapshot file in one step, then empties the journal
+  private void snapshot() throws IOException {
+    JSONObject snapshot = new JSONObject();
+    persisted.forEach((product, entry) -> snapshot.put(product, entry[0]));
+    Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteBuffer buffer = ByteBuffer.wrap(snapshot.toString().getBytes(StandardCharsets.UTF_8));
+      while (buffer.hasRemaining()) {
+        out.write(buffer);
+      }
+      out.force(true);
+    }
+    try {
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+    journal.truncate(0);
+  }
+}
@@ -13,6 +13,9 @@ class SockClient {
   static OutputStream out;
   static ObjectOutputStream os;
   static DataInputStream in;
+  // true if the server speaks the framed protocol, see Framing
+  static boolean framed;
+  static DataOutputStream frames;
 
   public static void main(String args[]) {
 
@@ -31,7 +34,7 @@ class SockClient {
 
     try {
       connect(host, port); // connecting to server
-      System.out.println("Client connected to server.");
+      System.out.println("Client connected to server" + (framed ? " (framed protocol)." : "."));
       boolean requesting = true;
       while (requesting) {
         System.out.println("What would you like to do: 1 - echo, 2 - add, 3 - addmany, 4 - charCount, 5 - inventory (0 to quit)");
@@ -118,13 +121,8 @@ class SockClient {
           continue;
         }
 
-        // write the whole message
-        os.writeObject(json.toString());
-        os.flush();
-
-        // handle the response
-        String i = in.readUTF();
-        JSONObject res = new JSONObject(i);
+        // send the whole message and handle the response
+        JSONObject res = send(json);
         System.out.println("Got response: " + res);
 
         // Process response based on its type
@@ -167,14 +165,57 @@ class SockClient {
 
   private static void overandout() throws IOException {
     in.close();
-    os.close();
+    if (os != null) {
+      os.close();
+    }
     sock.close(); // close socket after sending
   }
 
+  /**
+   * Connects with the framed protocol, or with object streams if the server
+   * does not know it: an old server fails on the magic bytes and closes the
+   * connection, then we connect again.
+   */
   public static void connect(String host, int port) throws IOException {
     sock = new Socket(host, port); // connect to host and socket on port 8888
     out = sock.getOutputStream();
-    os = new ObjectOutputStream(out);
-    in = new DataInputStream(sock.getInputStream());
+    in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+    frames = new DataOutputStream(new BufferedOutputStream(out));
+    frames.write(Framing.MAGIC);
+    frames.flush();
+    byte[] answer = new byte[Framing.MAGIC.length];
+    try {
+      sock.setSoTimeout(5000);
+      in.readFully(answer);
+    } catch (IOException e) {
+      // closed or no answer, treated as a server without framing
+    }
+    sock.setSoTimeout(0);
+    framed = Framing.isMagic(answer);
+    if (!framed) {
+      sock.close();
+      sock = new Socket(host, port);
+      out = sock.getOutputStream();
+      os = new ObjectOutputStream(out);
+      in = new DataInputStream(sock.getInputStream());
+    }
+  }
+
+  /**
+   * Sends a request and waits for its response.
+   */
+  public static JSONObject send(JSONObject req) throws IOException {
+    if (framed) {
+      Framing.writeFrame(frames, req.toString());
+      String res = Framing.readFrame(in, Framing.MAX_RESPONSE);
+      if (res == null) {
+        throw new EOFException("Server closed the connection");
+      }
+      return new JSONObject(res);
+    }
+    // write the whole message
+    os.writeObject(req.toString());
+    os.flush();
+    return new JSONObject(in.readUTF());
   }
 }
@@ -5,8 +5,19 @@ import org.json.JSONObject;
 import java.net.*;
 import java.io.*;
 
-import java.util.HashMap;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -14,11 +25,22 @@ import java.util.Map;
  *
  */
 public class SockServer {
-  static Socket sock;
-  static DataOutputStream os;
-  static ObjectInputStream in;
   static int port = 8888;
 
+  /** Clients served at once if not given on the command line */
+  static final int DEFAULT_MAX_CLIENTS = 2000;
+
+  /** Sub-requests accepted in one batch request */
+  static final int MAX_BATCH = 1000;
+
+  // runs the independent sub-requests of batches, shared by all clients
+  private static final ExecutorService batchExecutor = Executors.newFixedThreadPool(
+      Runtime.getRuntime().availableProcessors(), task -> {
+        Thread thread = new Thread(task, "batch");
+        thread.setDaemon(true);
+        return thread;
+      });
+
   // File Path for Inventory Storage
   private static final String INVENTORY_FILE = "inventory.json";
 
@@ -32,114 +54,155 @@ public class SockServer {
 
 
   public static void main(String args[]) {
-    // Load persistent inventory data on server start
-    loadInventoryFromFile();
+    // Load persistent inventory data on server start, changes are journaled from then on
+    try {
+      inventory.load(Paths.get(INVENTORY_FILE), DEFAULT_INVENTORY);
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> inventory.close(5000)));
+    } catch (IOException | JSONException e) {
+      e.printStackTrace();
+      System.out.println("Failed to load inventory from file, serving the default one.");
+      inventory.reset(DEFAULT_INVENTORY);
+    }
 
-    if (args.length != 1) {
-      System.out.println("Expected arguments: <port(int)>");
+    if (args.length < 1 || args.length > 3) {
+      System.out.println("Expected arguments: <port(int)> [maxClients(int)] [threads(virtual|platform)]");
       System.exit(1);
     }
 
+    int maxClients = DEFAULT_MAX_CLIENTS;
     try {
       port = Integer.parseInt(args[0]);
+      if (args.length > 1) {
+        maxClients = Integer.parseInt(args[1]);
+      }
     } catch (NumberFormatException nfe) {
-      System.out.println("[Port|sleepDelay] must be an integer");
+      System.out.println("[Port|maxClients] must be an integer");
       System.exit(2);
     }
+    boolean virtual = args.length < 3 || args[2].equals("virtual");
 
     try {
-      // Open server socket
-      ServerSocket serv = new ServerSocket(port);
+      // Open server socket, clients beyond maxClients wait in its backlog
+      ServerSocket serv = new ServerSocket(port, maxClients);
       System.out.println("Server ready for connections on port " + port);
+      serve(serv, newExecutor(virtual, maxClients), maxClients);
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
 
-      // Server loop to handle multiple client connections
+  /**
+   * Accepts clients until the server socket is closed. Every client is
+   * handled by its own ClientHandler on the executor. When maxClients are
+   * connected, no further client is accepted until one of them leaves, so a
+   * flood of clients waits in the backlog instead of piling up threads.
+   */
+  static void serve(ServerSocket serv, ExecutorService executor, int maxClients) throws IOException {
+    Semaphore slots = new Semaphore(maxClients);
+    try {
       while (true) {
-        System.out.println("Server waiting for a connection");
-        Socket clientSocket = serv.accept(); // blocking wait for client connection
-        System.out.println("Client connected");
-
-        // Start a new thread for each client connection
-        new Thread(() -> {
-          try {
-            // Set up object input and output streams for the client
-            ObjectInputStream in = new ObjectInputStream(clientSocket.getInputStream());
-            DataOutputStream os = new DataOutputStream(clientSocket.getOutputStream());
-
-            boolean connected = true;
-            while (connected) {
-              String s = "";
-              try {
-                s = (String) in.readObject(); // attempt to read string from client
-              } catch (Exception e) { // Handle client disconnect or read error
-                System.out.println("Client disconnect or read error.");
-                connected = false;
-                continue;
-              }
-
-              try {
-                JSONObject res = isValid(s);
-
-                if (res.has("ok")) {
-                  os.writeUTF(res.toString());
-                  os.flush();
-                  continue;
-                }
-
-                JSONObject req = new JSONObject(s);
-
-                res = testField(req, "type");
-                if (!res.getBoolean("ok")) {
-                  res = noType(req);
-                  os.writeUTF(res.toString());
-                  os.flush();
-                  continue;
-                }
-
-                // Request handling based on type
-                switch (req.getString("type")) {
-                  case "echo":
-                    res = echo(req);
-                    break;
-                  case "add":
-                    res = add(req);
-                    break;
-                  case "addmany":
-                    res = addmany(req);
-                    break;
-                  case "inventory":
-                    res = inventory(req);
-                    break;
-                  case "charcount":
-                    res = charCount(req);
-                    break;
-                  default:
-                    res = wrongType(req);
-                }
-                os.writeUTF(res.toString());
-                os.flush();
-
-              } catch (Exception e) {
-                e.printStackTrace();
-                JSONObject errorRes = new JSONObject();
-                errorRes.put("ok", false);
-                errorRes.put("message", "Internal server error occurred");
-                os.writeUTF(errorRes.toString());
-                os.flush();
-              }
-            }
-
-            // Close the connection when done
-            in.close();
-            os.close();
-            clientSocket.close();
-          } catch (IOException e) {
-            e.printStackTrace();
+        if (!slots.tryAcquire()) {
+          System.out.println("Server at capacity (" + maxClients + " clients), waiting for one to leave");
+          slots.acquireUninterruptibly();
+        }
+        Socket clientSocket;
+        try {
+          clientSocket = serv.accept(); // blocking wait for client connection
+        } catch (IOException e) {
+          slots.release();
+          if (serv.isClosed()) {
+            return;
           }
-        }).start(); // Start the thread immediately
+          throw e;
+        }
+        try {
+          executor.execute(new ClientHandler(clientSocket, slots::release));
+        } catch (RejectedExecutionException e) {
+          slots.release();
+          clientSocket.close();
+        }
       }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Threads for the client handlers. Virtual threads (Java 21 and later)
+   * are looked up by reflection so the server still builds on Java 17,
+   * where it falls back to a pool of platform threads. The pool has a
+   * thread per client slot since a handler keeps its thread for the whole
+   * session; idle threads end after a minute.
+   */
+  static ExecutorService newExecutor(boolean virtual, int maxClients) {
+    if (virtual) {
+      try {
+        return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (ReflectiveOperationException e) {
+        System.out.println("Virtual threads need Java 21, using platform threads");
+      }
+    }
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(maxClients, maxClients, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>());
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  /**
+   * Handles one request, the transport is up to the caller.
+   * @param s the request as sent by the client
+   * @return the response, an error response if the request is not valid
+   */
+  static JSONObject handleRequest(String s) {
+    try {
+      JSONObject res = isValid(s);
+
+      if (res.has("ok")) {
+        return res;
+      }
+
+      return handle(new JSONObject(s));
     } catch (Exception e) {
       e.printStackTrace();
+      return internalError();
+    }
+  }
+
+  /**
+   * Handles one parsed request.
+   * @return the response, an error response if the request is not valid
+   */
+  static JSONObject handle(JSONObject req) {
+    JSONObject res = testField(req, "type");
+    if (!res.getBoolean("ok")) {
+      return noType(req);
     }
+
+    // Request handling based on type
+    switch (req.getString("type")) {
+      case "echo":
+        return echo(req);
+      case "add":
+        return add(req);
+      case "addmany":
+        return addmany(req);
+      case "inventory":
+        return inventory(req);
+      case "charcount":
+        return charCount(req);
+      case "batch":
+        return batch(req);
+      default:
+        return wrongType(req);
+    }
+  }
+
+  // the response when handling a request failed on the server's side
+  private static JSONObject internalError() {
+    JSONObject errorRes = new JSONObject();
+    errorRes.put("ok", false);
+    errorRes.put("message", "Internal server error occurred");
+    return errorRes;
   }
 
 
@@ -201,9 +264,103 @@ public class SockServer {
     return res;
   }
 
+  /**
+   * Handles the sub-requests of a batch and answers with their responses in
+   * the same order. Inventory adds and buys run one at a time at their place
+   * in the batch; the requests between them do not depend on each other and
+   * run in parallel on batchExecutor, the last of them on the caller's thread.
+   */
+  static JSONObject batch(JSONObject req) {
+    System.out.println("Batch request: " + req.toString());
+    JSONObject res = testField(req, "requests");
+    res.put("type", "batch");
+    if (!res.getBoolean("ok")) {
+      return res;
+    }
+    JSONArray requests = req.optJSONArray("requests");
+    if (requests == null) {
+      res.put("ok", false);
+      res.put("message", "Field requests needs to be of type: array");
+      return res;
+    }
+    if (requests.length() > MAX_BATCH) {
+      res.put("ok", false);
+      res.put("message", "Field requests holds more than " + MAX_BATCH + " requests");
+      return res;
+    }
+
+    JSONObject[] results = new JSONObject[requests.length()];
+    int from = 0;
+    for (int i = 0; i <= requests.length(); i++) {
+      if (i == requests.length() || changesInventory(requests.opt(i))) {
+        handleParallel(requests, results, from, i);
+        if (i < requests.length()) {
+          results[i] = handleItem(requests.opt(i));
+        }
+        from = i + 1;
+      }
+    }
+    JSONArray responses = new JSONArray();
+    for (JSONObject result : results) {
+      responses.put(result);
+    }
+    res.put("results", responses);
+    return res;
+  }
+
+  // true for the sub-requests the ones after them may depend on
+  private static boolean changesInventory(Object item) {
+    return item instanceof JSONObject
+        && "inventory".equals(((JSONObject) item).optString("type"))
+        && !"view".equals(((JSONObject) item).optString("task"));
+  }
+
+  private static void handleParallel(JSONArray requests, JSONObject[] results, int from, int to) {
+    List<Future<JSONObject>> futures = new ArrayList<>();
+    for (int i = from; i < to - 1; i++) {
+      Object item = requests.opt(i);
+      futures.add(batchExecutor.submit(() -> handleItem(item)));
+    }
+    if (from < to) {
+      results[to - 1] = handleItem(requests.opt(to - 1));
+    }
+    for (int i = 0; i < futures.size(); i++) {
+      try {
+        results[from + i] = futures.get(i).get();
+      } catch (InterruptedException | ExecutionException e) {
+        e.printStackTrace();
+        results[from + i] = internalError();
+      }
+    }
+  }
+
+  // one sub-request of a batch
+  private static JSONObject handleItem(Object item) {
+    if (!(item instanceof JSONObject)) {
+      JSONObject res = new JSONObject();
+      res.put("ok", false);
+      res.put("message", "req not JSON");
+      return res;
+    }
+    JSONObject req = (JSONObject) item;
+    if ("batch".equals(req.optString("type"))) {
+      JSONObject res = new JSONObject();
+      res.put("type", "batch");
+      res.put("ok", false);
+      res.put("message", "Batch requests cannot be nested");
+      return res;
+    }
+    try {
+      return handle(req);
+    } catch (Exception e) {
+      e.printStackTrace();
+      return internalError();
+    }
+  }
+
   // implement me in assignment 3 -- static JSONObject inventory(JSONObject req);
-  // Inventory data structure
-  private static Map<String, Integer> inventory = new HashMap<>();
+  // Inventory data structure, persisted once main has loaded it
+  private static final InventoryStore inventory = new InventoryStore();
 
   static JSONObject inventory(JSONObject req) {
     System.out.println("Processing inventory request: " + req.toString());  // Log the initial request
@@ -263,19 +420,11 @@ public class SockServer {
     }
 
     // Update inventory
-    inventory.put(productName, inventory.getOrDefault(productName, 0) + quantity);
+    inventory.add(productName, quantity);
 
     // Construct success response with an explicit JSONArray
     response.put("ok", true);
-    JSONArray inventoryArray = new JSONArray();
-    for (Map.Entry<String, Integer> entry : inventory.entrySet()) {
-      JSONObject item = new JSONObject();
-      item.put("product", entry.getKey());
-      item.put("quantity", entry.getValue());
-      inventoryArray.put(item);
-    }
-    response.put("inventory", inventoryArray);
-    saveInventoryToFile();
+    response.put("inventory", inventoryArray());
     checkAndResetInventoryIfNeeded();
     return response;
   }
@@ -287,21 +436,13 @@ public class SockServer {
     response.put("ok", true);
 
     // Construct the inventory list as a JSONArray
-    JSONArray inventoryArray = new JSONArray();
-    for (Map.Entry<String, Integer> entry : inventory.entrySet()) {
-      JSONObject product = new JSONObject();
-      product.put("product", entry.getKey());
-      product.put("quantity", entry.getValue());
-      inventoryArray.put(product);
-    }
-
-    response.put("inventory", inventoryArray);
+    response.put("inventory", inventoryArray());
 
     return response;
   }
 
   public static void clearInventory() {
-    inventory.clear();
+    inventory.reset(Map.of());
   }
 
   private static JSONObject buyFromInventory(JSONObject req) {
@@ -327,96 +468,42 @@ public class SockServer {
       return response;
     }
 
-    // Check if the product exists in the inventory
-    if (!inventory.containsKey(productName)) {
-      response.put("ok", false);
-      response.put("message", "Product " + productName + " not in inventory");
-      return response;
-    }
-
-    // Check if sufficient quantity is available
-    int availableQuantity = inventory.get(productName);
-    if (availableQuantity < quantity) {
-      response.put("ok", false);
-      response.put("message", "Product " + productName + " not available in quantity " + quantity);
-      return response;
+    // Take the quantity if the product has that much, in one step
+    switch (inventory.buy(productName, quantity)) {
+      case NOT_IN_INVENTORY:
+        response.put("ok", false);
+        response.put("message", "Product " + productName + " not in inventory");
+        return response;
+      case NOT_AVAILABLE:
+        response.put("ok", false);
+        response.put("message", "Product " + productName + " not available in quantity " + quantity);
+        return response;
+      default:
+        response.put("ok", true);
     }
 
-    // Reduce quantity and update inventory
-    inventory.put(productName, availableQuantity - quantity);
-    response.put("ok", true);
-
     // Return the updated inventory list
+    response.put("inventory", inventoryArray());
+    return response;
+  }
+
+  // the inventory list of the responses
+  private static JSONArray inventoryArray() {
     JSONArray inventoryArray = new JSONArray();
-    for (Map.Entry<String, Integer> entry : inventory.entrySet()) {
+    for (Map.Entry<String, Long> entry : inventory.view().entrySet()) {
       JSONObject item = new JSONObject();
       item.put("product", entry.getKey());
       item.put("quantity", entry.getValue());
       inventoryArray.put(item);
     }
-    response.put("inventory", inventoryArray);
-    saveInventoryToFile();
-    checkAndResetInventoryIfNeeded();
-    return response;
-  }
-
-  // Method to Save Inventory (Persistent Storage Solution)
-  private static void saveInventoryToFile() {
-    try (FileWriter file = new FileWriter(INVENTORY_FILE)) {
-      JSONObject jsonInventory = new JSONObject();
-      for (Map.Entry<String, Integer> entry : inventory.entrySet()) {
-        jsonInventory.put(entry.getKey(), entry.getValue());
-      }
-      file.write(jsonInventory.toString());
-      file.flush();
-    } catch (IOException e) {
-      e.printStackTrace();
-      System.out.println("Failed to save inventory to file.");
-    }
-  }
-
-
-  // Method to Load Inventory
-  private static void loadInventoryFromFile() {
-    File file = new File(INVENTORY_FILE);
-
-    // If the file doesn't exist or is empty, use default inventory
-    if (!file.exists() || file.length() == 0) {
-      inventory.putAll(DEFAULT_INVENTORY);
-      saveInventoryToFile();  // Save the default inventory to the file
-      return;
-    }
-
-    try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-      StringBuilder jsonString = new StringBuilder();
-      String line;
-      while ((line = reader.readLine()) != null) {
-        jsonString.append(line);
-      }
-
-      JSONObject jsonInventory = new JSONObject(jsonString.toString());
-      for (String key : jsonInventory.keySet()) {
-        inventory.put(key, jsonInventory.getInt(key));
-      }
-    } catch (IOException | JSONException e) {
-      e.printStackTrace();
-      System.out.println("Failed to load inventory from file.");
-    }
-  }
-
-  // Method to Reset Inventory to Default
-  private static void resetInventoryToDefault() {
-    inventory.clear();
-    inventory.putAll(DEFAULT_INVENTORY);
-    saveInventoryToFile();  // Save the default inventory to file
-    System.out.println("Inventory reset to default.");
+    return inventoryArray;
   }
 
   // Method to Check Total Inventory Quantity
   private static void checkAndResetInventoryIfNeeded() {
     // Reset if the number of unique items exceeds 25
-    if (inventory.size() > 25) {
-      resetInventoryToDefault();
+    if (inventory.resetIfLarger(25, DEFAULT_INVENTORY)) {
+      System.out.println("Inventory reset to default.");
     }
   }
 
@@ -438,8 +525,22 @@ public class SockServer {
 
     boolean findChar = req.optBoolean("findchar", false);
 
-    // Check if we are counting a specific character or the entire string
-    if (findChar) {
+    // Check if we want every character counted, a specific character or the entire string
+    if (req.optBoolean("histogram", false)) {
+      Map<Character, Long> counts = CharCounts.histogram(countString);
+      JSONObject result = new JSONObject();
+      String find = req.optString("find", null);
+      if (find == null) {
+        counts.forEach((c, count) -> result.put(String.valueOf(c), count));
+      } else {
+        for (char c : find.toCharArray()) {
+          result.put(String.valueOf(c), counts.getOrDefault(c, 0L));
+        }
+      }
+      response.put("ok", true);
+      response.put("result", result);
+      System.out.println("charCount result (histogram of " + result.length() + " characters)");
+    } else if (findChar) {
       String find = req.optString("find", null);
       if (find == null || find.length() != 1) {
         response.put("ok", false);
@@ -448,7 +549,7 @@ public class SockServer {
         return response;
       }
       // Count occurrences of the specified character
-      long count = countString.chars().filter(ch -> ch == find.charAt(0)).count();
+      long count = CharCounts.count(countString, find.charAt(0));
       response.put("ok", true);
       response.put("result", (int) count);
       System.out.println("charCount result (specific char): " + response.toString());  // Log the successful result
@@ -475,7 +576,6 @@ public class SockServer {
       return res;
     }
 
-    int result = 0;
     JSONArray array;
     try {
       array = req.getJSONArray("nums");
@@ -485,11 +585,10 @@ public class SockServer {
       return res;
     }
 
-    // Sum the integers in the array, handling any non-integer values
+    // Sum the whole numbers in the array exactly, handling any other values
+    ExactSum sum = new ExactSum();
     for (int i = 0; i < array.length(); i++) {
-      try {
-        result += array.getInt(i);
-      } catch (JSONException e) {
+      if (!sum.add(array.opt(i))) {
         res.put("ok", false);
         res.put("message", "Values in array need to be ints");
         return res;
@@ -498,7 +597,7 @@ public class SockServer {
 
     // If successful, populate the response with the result
     res.put("ok", true);
-    res.put("result", result);
+    res.put("result", sum.sum());
     return res;
   }
 
@@ -536,25 +635,4 @@ public class SockServer {
     }
     return new JSONObject();
   }
-
-  // sends the response and closes the connection between client and server.
-  static void overandout() {
-    try {
-      os.close();
-      in.close();
-      sock.close();
-    } catch(Exception e) {e.printStackTrace();}
-
-  }
-
-  // sends the response and closes the connection between client and server.
-  static void writeOut(JSONObject res) {
-    try {
-      os.writeUTF(res.toString());
-      // make sure it wrote and doesn't get cached in a buffer
-      os.flush();
-
-    } catch(Exception e) {e.printStackTrace();}
-
-  }
-}
\ No newline at end of file
+}
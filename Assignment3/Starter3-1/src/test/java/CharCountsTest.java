@@ -0,0 +1,65 @@
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+
+/**
+ * The character counting engine against a plain loop over the characters.
+ */
+public class CharCountsTest {
+
+    private static long naive(String s, char c) {
+        long count = 0;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) == c) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static Map<Character, Long> naive(String s) {
+        Map<Character, Long> counts = new HashMap<>();
+        for (int i = 0; i < s.length(); i++) {
+            counts.merge(s.charAt(i), 1L, Long::sum);
+        }
+        return counts;
+    }
+
+    // random text of the given characters, long enough to span several chunks
+    private static String text(Random random, int length, String alphabet) {
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return text.toString();
+    }
+
+    @Test
+    public void countsSingleCharacters() {
+        Random random = new Random(25);
+        String[] alphabets = {"ab", "abcdefghijklmnopqrstuvwxyz ", "a?\u00e9\u00ff\u0100\u0141\u20ac\u0000"};
+        int[] lengths = {0, 1, 7, 8, 31, 32, 33, 1000, CharCounts.CHUNK - 1, CharCounts.CHUNK + 37, 3 * CharCounts.CHUNK};
+        for (String alphabet : alphabets) {
+            for (int length : lengths) {
+                String s = text(random, length, alphabet);
+                for (char c : (alphabet + "zAA\u0241").toCharArray()) {
+                    assertEquals(alphabet + " " + length + " " + (int) c, naive(s, c), CharCounts.count(s, c));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void countsEveryCharacter() {
+        Random random = new Random(25);
+        for (String alphabet : new String[] {"abc ", "a?\u00e9\u00ff\u0100\u0141\u20ac\u0000", "?\u0141"}) {
+            for (int length : new int[] {0, 5, 4 * CharCounts.CHUNK + 3}) {
+                String s = text(random, length, alphabet);
+                assertEquals(naive(s), new HashMap<>(CharCounts.histogram(s)));
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.json.JSONArray;
+import java.math.BigInteger;
+
+
+/**
+ * Sums beyond int and long.
+ */
+public class ExactSumTest {
+
+    private static Number sum(String array) {
+        ExactSum sum = new ExactSum();
+        JSONArray values = new JSONArray(array);
+        for (int i = 0; i < values.length(); i++) {
+            assertTrue(values.get(i).toString(), sum.add(values.get(i)));
+        }
+        return sum.sum();
+    }
+
+    @Test
+    public void keepsTheSmallestTypeThatFits() {
+        assertEquals(0, sum("[]"));
+        assertEquals(10, sum("[1, 2, \"3\", 4]"));
+        assertEquals(4294967294L, sum("[2147483647, 2147483647]"));
+        assertEquals(-2, sum("[9223372036854775807, 9223372036854775807, -9223372036854775808, -9223372036854775808]"));
+        assertEquals(new BigInteger("18446744073709551614"), sum("[9223372036854775807, \"9223372036854775807\"]"));
+        assertEquals(new BigInteger("100000000000000000000000"), sum("[99999999999999999999999, 1]"));
+        assertEquals(5, sum("[99999999999999999999999, 5, \"-99999999999999999999999\"]"));
+    }
+
+    @Test
+    public void turnsDownWhatIsNotAWholeNumber() {
+        ExactSum sum = new ExactSum();
+        assertFalse(sum.add("two"));
+        assertFalse(sum.add(1.5));
+        assertFalse(sum.add(true));
+        assertFalse(sum.add(null));
+        assertTrue(sum.add("+7"));
+        assertEquals(7, sum.sum());
+    }
+
+    @Test
+    public void sumsManyValuesLikeBigInteger() {
+        java.util.Random random = new java.util.Random(25);
+        ExactSum sum = new ExactSum();
+        BigInteger expected = BigInteger.ZERO;
+        for (int i = 0; i < 10001; i++) {
+            long value = random.nextLong();
+            sum.add(value);
+            expected = expected.add(BigInteger.valueOf(value));
+        }
+        assertEquals(expected, new BigInteger(sum.sum().toString()));
+    }
+}
@@ -0,0 +1,210 @@
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.json.JSONObject;
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+
+/**
+ * The framed protocol next to the object stream one, against a server
+ * started in this JVM.
+ */
+public class FramingTest {
+
+    ServerSocket serv;
+
+    private int start() throws IOException {
+        serv = new ServerSocket(0);
+        Thread acceptor = new Thread(() -> {
+            try {
+                SockServer.serve(serv, SockServer.newExecutor(true, 16), 16);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return serv.getLocalPort();
+    }
+
+    @After
+    public void stop() throws IOException {
+        if (serv != null) serv.close();
+    }
+
+    private static JSONObject echo(String data) {
+        JSONObject req = new JSONObject();
+        req.put("type", "echo");
+        req.put("data", data);
+        return req;
+    }
+
+    @Test
+    public void framesRoundTrip() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        Framing.writeFrame(out, "{\"type\":\"echo\"}");
+        Framing.writeFrame(out, "\u00e4\u20ac");
+        byte[] written = bytes.toByteArray();
+        assertEquals(4 + 15 + 4 + 5, written.length);
+        assertEquals(15, written[3]);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(written));
+        assertEquals("{\"type\":\"echo\"}", Framing.readFrame(in));
+        assertEquals("\u00e4\u20ac", Framing.readFrame(in));
+        assertNull(Framing.readFrame(in));
+
+        try {
+            Framing.readFrame(new DataInputStream(new ByteArrayInputStream(new byte[] {0x7f, 0, 0, 0})));
+            fail("accepted a 2 GB frame");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            Framing.readFrame(new DataInputStream(new ByteArrayInputStream(new byte[] {0, 0, 0, 9, 'x'})));
+            fail("accepted a cut off frame");
+        } catch (EOFException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void framedClientsGetResponsesBeyond64K() throws IOException {
+        int port = start();
+        String large = "x".repeat(200 * 1024);
+        try (Socket sock = new Socket("localhost", port)) {
+            sock.setSoTimeout(10000);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+            out.write(Framing.MAGIC);
+            out.flush();
+            byte[] answer = new byte[4];
+            in.readFully(answer);
+            assertTrue(Framing.isMagic(answer));
+
+            Framing.writeFrame(out, echo(large).toString());
+            JSONObject res = new JSONObject(Framing.readFrame(in));
+            assertEquals("Here is your echo: " + large, res.getString("echo"));
+
+            // several requests on the connection, and errors come back framed too
+            Framing.writeFrame(out, "{\"type\":\"add\",\"num1\":\"1\",\"num2\":\"2\"}");
+            assertEquals(3, new JSONObject(Framing.readFrame(in)).getInt("result"));
+            Framing.writeFrame(out, "not json");
+            assertEquals("req not JSON", new JSONObject(Framing.readFrame(in)).getString("message"));
+        }
+    }
+
+    @Test
+    public void objectStreamClientsStillWork() throws IOException {
+        int port = start();
+        try (Socket sock = new Socket("localhost", port)) {
+            sock.setSoTimeout(10000);
+            ObjectOutputStream os = new ObjectOutputStream(sock.getOutputStream());
+            DataInputStream in = new DataInputStream(sock.getInputStream());
+
+            os.writeObject(echo("small").toString());
+            os.flush();
+            assertEquals("Here is your echo: small", new JSONObject(in.readUTF()).getString("echo"));
+
+            // too large for writeUTF, answered with an error instead of a broken connection
+            os.writeObject(echo("x".repeat(100 * 1024)).toString());
+            os.flush();
+            JSONObject res = new JSONObject(in.readUTF());
+            assertFalse(res.getBoolean("ok"));
+            assertTrue(res.getString("message").contains("framed"));
+
+            os.writeObject(echo("again").toString());
+            os.flush();
+            assertEquals("Here is your echo: again", new JSONObject(in.readUTF()).getString("echo"));
+        }
+    }
+
+    @Test
+    public void clientFallsBackForServersWithoutFraming() throws Exception {
+        // a server of the old kind: object stream only, closes on anything else
+        ServerSocket old = new ServerSocket(0);
+        Thread server = new Thread(() -> {
+            try {
+                while (!old.isClosed()) {
+                    try (Socket sock = old.accept()) {
+                        ObjectInputStream in = new ObjectInputStream(sock.getInputStream());
+                        DataOutputStream os = new DataOutputStream(sock.getOutputStream());
+                        os.writeUTF(SockServer.handleRequest((String) in.readObject()).toString());
+                        os.flush();
+                    } catch (IOException | ClassNotFoundException e) {
+                        // bad header, the connection is closed
+                    }
+                }
+            } catch (Exception e) {
+                // server socket closed
+            }
+        });
+        server.setDaemon(true);
+        server.start();
+        try {
+            SockClient.connect("localhost", old.getLocalPort());
+            assertFalse(SockClient.framed);
+            assertEquals("Here is your echo: old", SockClient.send(echo("old")).getString("echo"));
+            SockClient.sock.close();
+
+            SockClient.connect("localhost", start());
+            assertTrue(SockClient.framed);
+            assertEquals("Here is your echo: new", SockClient.send(echo("new")).getString("echo"));
+            SockClient.sock.close();
+        } finally {
+            old.close();
+        }
+    }
+
+    @Test
+    public void aLengthAloneDoesNotReserveMemory() throws Exception {
+        byte[] prefix = {0, 0x10, 0, 0}; // MAX_FRAME
+        assertEquals(0x100000, Framing.MAX_FRAME);
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(id);
+        try {
+            // the length, then only two bytes before the end
+            Framing.readFrame(new DataInputStream(new ByteArrayInputStream(new byte[] {0, 0x10, 0, 0, 'x', 'y'})));
+            fail("accepted a cut off frame");
+        } catch (EOFException e) {
+            // expected
+        }
+        long allocated = threads.getThreadAllocatedBytes(id) - before;
+        assertTrue(allocated + " bytes allocated", allocated < Framing.MAX_FRAME / 4);
+
+        int port = start();
+        try (Socket sock = new Socket("localhost", port)) {
+            sock.setSoTimeout(10000);
+            OutputStream out = sock.getOutputStream();
+            out.write(Framing.MAGIC);
+            out.flush();
+            InputStream in = sock.getInputStream();
+            assertTrue(Framing.isMagic(in.readNBytes(4)));
+            // longer than a request may be: the server closes the connection
+            out.write(new byte[] {0, 0x10, 0, 1});
+            out.flush();
+            assertEquals(-1, in.read());
+        }
+        try (Socket sock = new Socket("localhost", port)) {
+            sock.setSoTimeout(10000);
+            DataOutputStream out = new DataOutputStream(sock.getOutputStream());
+            out.write(Framing.MAGIC);
+            out.write(prefix);
+            out.flush();
+            // the client goes away after the length, the server is still there for others
+        }
+        try (Socket sock = new Socket("localhost", port)) {
+            sock.setSoTimeout(10000);
+            DataOutputStream out = new DataOutputStream(sock.getOutputStream());
+            DataInputStream in = new DataInputStream(sock.getInputStream());
+            out.write(Framing.MAGIC);
+            in.readFully(new byte[4]);
+            Framing.writeFrame(out, echo("still here").toString());
+            assertEquals("Here is your echo: still here", new JSONObject(Framing.readFrame(in)).getString("echo"));
+        }
+    }
+}
@@ -0,0 +1,132 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+
+/**
+ * The inventory store: concurrent buys, and the journal and snapshots it
+ * persists itself with.
+ */
+public class InventoryStoreTest {
+
+    Path dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("inventory");
+    }
+
+    @After
+    public void deleteDir() throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void concurrentBuysNeverOversell() throws Exception {
+        InventoryStore store = new InventoryStore();
+        store.load(dir.resolve("inventory.json"), Map.of("Ghost Lantern", 1000));
+        int threads = 16;
+        int perThread = 500;
+        AtomicInteger sold = new AtomicInteger();
+        List<Thread> buyers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            buyers.add(new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    if (store.buy("Ghost Lantern", 1) == InventoryStore.Buy.OK) {
+                        sold.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        long start = System.nanoTime();
+        buyers.forEach(Thread::start);
+        for (Thread buyer : buyers) {
+            buyer.join();
+        }
+        System.out.println(Math.round(threads * perThread / ((System.nanoTime() - start) / 1e9)) + " buys/s");
+
+        assertEquals(1000, sold.get());
+        assertEquals(0L, (long) store.view().get("Ghost Lantern"));
+        assertEquals(InventoryStore.Buy.NOT_AVAILABLE, store.buy("Ghost Lantern", 1));
+        assertEquals(InventoryStore.Buy.NOT_IN_INVENTORY, store.buy("Helmet", 1));
+        assertTrue(store.close(5000));
+
+        InventoryStore reloaded = new InventoryStore();
+        reloaded.load(dir.resolve("inventory.json"), Map.of());
+        assertEquals(Map.of("Ghost Lantern", 0L), reloaded.view());
+        reloaded.close(5000);
+    }
+
+    @Test
+    public void startsWithTheDefaultsAndKeepsChangesAcrossRestarts() throws Exception {
+        Path file = dir.resolve("inventory.json");
+        InventoryStore store = new InventoryStore();
+        store.load(file, Map.of("Zombie Hand", 30));
+        assertEquals("{\"Zombie Hand\":30}", new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+
+        store.add("Helmet", 10);
+        store.add("Helmet", 5);
+        store.buy("Zombie Hand", 4);
+        assertTrue(store.close(5000));
+        assertEquals(0, Files.size(InventoryStore.journalOf(file)));
+
+        InventoryStore reloaded = new InventoryStore();
+        reloaded.load(file, Map.of("Zombie Hand", 30));
+        assertEquals(Map.of("Zombie Hand", 26L, "Helmet", 15L), reloaded.view());
+        reloaded.close(5000);
+    }
+
+    @Test
+    public void replaysTheJournalAfterACrash() throws Exception {
+        Path file = dir.resolve("inventory.json");
+        InventoryStore store = new InventoryStore();
+        store.load(file, Map.of("Zombie Hand", 30, "Vampire Fangs", 25));
+        store.buy("Zombie Hand", 10);
+        store.reset(Map.of("Pumpkin Potion", 20));
+        store.add("Helmet", 3);
+        store.buy("Pumpkin Potion", 2);
+        Path journal = InventoryStore.journalOf(file);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (Files.readAllLines(journal).size() < 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        // what a crash leaves: the old snapshot, the journal and half a line
+        Path crashed = Files.createDirectory(dir.resolve("crashed")).resolve("inventory.json");
+        Path crashedJournal = InventoryStore.journalOf(crashed);
+        byte[] lines = Files.readAllBytes(journal);
+        Files.copy(file, crashed);
+        Files.write(crashedJournal, lines);
+        Files.write(crashedJournal, "{\"seq\":99,\"product\":\"Hel".getBytes(StandardCharsets.UTF_8),
+            StandardOpenOption.APPEND);
+        store.close(5000);
+
+        assertEquals(Map.of("Pumpkin Potion", 18L, "Helmet", 3L), loaded(crashed));
+        assertEquals(0, Files.size(crashedJournal));
+
+        // a crash between writing a snapshot and emptying the journal: the
+        // journal replayed on top of the snapshot it went into changes nothing
+        Files.write(crashedJournal, lines);
+        assertEquals(Map.of("Pumpkin Potion", 18L, "Helmet", 3L), loaded(crashed));
+    }
+
+    private static Map<String, Long> loaded(Path file) throws IOException {
+        InventoryStore store = new InventoryStore();
+        store.load(file, Map.of());
+        store.close(5000);
+        return store.view();
+    }
+}
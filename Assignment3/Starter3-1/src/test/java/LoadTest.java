@@ -0,0 +1,201 @@
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.json.JSONObject;
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Many clients against a server started in this JVM, no server on 8888
+ * needed. Every client sends requests only it could have sent and checks
+ * that the answers are its own.
+ *
+ * Each client runs on its own thread. Their first requests are held half
+ * sent until all clients got that far, so all of them are in the server at
+ * the same time. The machine running the tests may have a single core, so
+ * the requests per second are printed but not compared between runs.
+ */
+public class LoadTest {
+
+    ServerSocket serv;
+
+    // one client connection, written like ServerTest does
+    static class Client implements Closeable {
+        final Socket sock;
+        final ObjectOutputStream os;
+        final DataOutputStream frames;
+        final DataInputStream in;
+
+        Client(int port) throws IOException {
+            this(port, false);
+        }
+
+        Client(int port, boolean framed) throws IOException {
+            sock = new Socket("localhost", port);
+            sock.setSoTimeout(30000);
+            if (framed) {
+                in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+                os = null;
+                frames = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+                frames.write(Framing.MAGIC);
+                frames.flush();
+                byte[] answer = new byte[Framing.MAGIC.length];
+                in.readFully(answer);
+                assertTrue(Framing.isMagic(answer));
+            } else {
+                in = new DataInputStream(sock.getInputStream());
+                os = new ObjectOutputStream(sock.getOutputStream());
+                frames = null;
+            }
+        }
+
+        JSONObject send(JSONObject req) throws IOException {
+            if (frames != null) {
+                Framing.writeFrame(frames, req.toString());
+                return new JSONObject(Framing.readFrame(in));
+            }
+            os.writeObject(req.toString());
+            os.flush();
+            return new JSONObject(in.readUTF());
+        }
+
+        @Override
+        public void close() throws IOException {
+            sock.close();
+        }
+    }
+
+    private int start(int maxClients) throws IOException {
+        serv = new ServerSocket(0, maxClients);
+        ExecutorService executor = SockServer.newExecutor(true, maxClients);
+        Thread acceptor = new Thread(() -> {
+            try {
+                SockServer.serve(serv, executor, maxClients);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return serv.getLocalPort();
+    }
+
+    @After
+    public void stop() throws IOException {
+        if (serv != null) serv.close();
+    }
+
+    private static JSONObject echo(String data) {
+        JSONObject req = new JSONObject();
+        req.put("type", "echo");
+        req.put("data", data);
+        return req;
+    }
+
+    // sends the first half of the request, waits until every client has done
+    // so, then sends the rest; the server holds all of these requests at once
+    private static JSONObject sendSplit(Client client, JSONObject req, CyclicBarrier halfSent) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Framing.writeFrame(new DataOutputStream(bytes), req.toString());
+        byte[] frame = bytes.toByteArray();
+        OutputStream out = client.sock.getOutputStream();
+        out.write(frame, 0, frame.length / 2);
+        out.flush();
+        halfSent.await(60, TimeUnit.SECONDS);
+        out.write(frame, frame.length / 2, frame.length - frame.length / 2);
+        out.flush();
+        return new JSONObject(Framing.readFrame(client.in));
+    }
+
+    // all clients connected at once, each on its own thread sends rounds echo
+    // requests over the framed protocol; returns requests per second. The
+    // clients keep their connections until all are done, so a server that
+    // serves fewer of them at a time never answers the rest and the test fails
+    private static double run(int port, int clients, int rounds) throws Exception {
+        List<Client> connected = new ArrayList<>();
+        ExecutorService drivers = Executors.newFixedThreadPool(clients);
+        CyclicBarrier halfSent = new CyclicBarrier(clients);
+        try {
+            // a handler answers the magic bytes, so once all are connected every
+            // client has its own handler running in the server
+            for (int i = 0; i < clients; i++) {
+                connected.add(new Client(port, true));
+            }
+            long start = System.nanoTime();
+            List<Future<?>> done = new ArrayList<>();
+            for (int c = 0; c < clients; c++) {
+                Client client = connected.get(c);
+                String name = "client " + c;
+                done.add(drivers.submit(() -> {
+                    for (int round = 0; round < rounds; round++) {
+                        String data = name + " round " + round;
+                        JSONObject res = round == 0 ? sendSplit(client, echo(data), halfSent)
+                            : client.send(echo(data));
+                        assertTrue(res.toString(), res.getBoolean("ok"));
+                        assertEquals("Here is your echo: " + data, res.getString("echo"));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : done) {
+                f.get();
+            }
+            return clients * rounds / ((System.nanoTime() - start) / 1e9);
+        } finally {
+            drivers.shutdownNow();
+            for (Client client : connected) {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void manyConcurrentClientsGetTheirOwnAnswers() throws Exception {
+        int port = start(1500);
+        for (int clients : new int[] {1, 100, 1200}) {
+            double perSecond = run(port, clients, 5);
+            System.out.println(clients + " concurrent clients: " + Math.round(perSecond) + " requests/s");
+        }
+    }
+
+    @Test
+    public void clientsBeyondTheLimitWaitForAFreeSlot() throws Exception {
+        int port = start(2);
+        // closed halfway through to free a slot
+        Client first = new Client(port);
+        try (Client second = new Client(port)) {
+            assertTrue(first.send(echo("1")).getBoolean("ok"));
+            assertTrue(second.send(echo("2")).getBoolean("ok"));
+
+            try (Client third = new Client(port)) {
+                // connected by the kernel, but the server does not take it yet
+                third.sock.setSoTimeout(500);
+                third.os.writeObject(echo("3").toString());
+                third.os.flush();
+                try {
+                    third.in.readUTF();
+                    fail("served beyond maxClients");
+                } catch (SocketTimeoutException e) {
+                    // expected
+                }
+
+                // the first one leaving makes room
+                first.close();
+                third.sock.setSoTimeout(10000);
+                assertEquals("Here is your echo: 3", new JSONObject(third.in.readUTF()).getString("echo"));
+            }
+        } finally {
+            first.close();
+        }
+    }
+}
@@ -402,5 +402,105 @@ public class Testing {
         assertTrue("Inventory should contain default items", containsDefaultItems);
     }
 
+    // BATCH
+    @Test
+    public void batchAnswersInOrder() {
+        SockServer.clearInventory();
+        JSONArray requests = new JSONArray();
+        for (int i = 0; i < 20; i++) {
+            requests.put(new JSONObject().put("type", "echo").put("data", "item " + i));
+        }
+        requests.put(new JSONObject().put("type", "inventory").put("task", "add")
+            .put("productName", "Helmet").put("quantity", 3));
+        requests.put(new JSONObject().put("type", "inventory").put("task", "buy")
+            .put("productName", "Helmet").put("quantity", 2));
+        requests.put(new JSONObject().put("type", "inventory").put("task", "buy")
+            .put("productName", "Helmet").put("quantity", 2));
+        requests.put(new JSONObject().put("type", "inventory").put("task", "view"));
+        requests.put(new JSONObject().put("type", "add").put("num1", "1").put("num2", "x"));
+        requests.put("not an object");
+        requests.put(new JSONObject().put("type", "batch").put("requests", new JSONArray()));
+
+        JSONObject req = new JSONObject();
+        req.put("type", "batch");
+        req.put("requests", requests);
+        JSONObject res = SockServer.handleRequest(req.toString());
+
+        assertEquals("batch", res.getString("type"));
+        assertTrue(res.getBoolean("ok"));
+        JSONArray results = res.getJSONArray("results");
+        assertEquals(requests.length(), results.length());
+        for (int i = 0; i < 20; i++) {
+            assertEquals("Here is your echo: item " + i, results.getJSONObject(i).getString("echo"));
+        }
+        // the changes happen in the order they were sent
+        assertTrue(results.getJSONObject(20).getBoolean("ok"));
+        assertTrue(results.getJSONObject(21).getBoolean("ok"));
+        assertEquals("Product Helmet not available in quantity 2", results.getJSONObject(22).getString("message"));
+        assertEquals(1, results.getJSONObject(23).getJSONArray("inventory").getJSONObject(0).getInt("quantity"));
+        // failed items do not fail the batch
+        assertFalse(results.getJSONObject(24).getBoolean("ok"));
+        assertEquals("req not JSON", results.getJSONObject(25).getString("message"));
+        assertEquals("Batch requests cannot be nested", results.getJSONObject(26).getString("message"));
+    }
+
+    @Test
+    public void batchWithoutRequests() {
+        JSONObject res = SockServer.handleRequest("{\"type\":\"batch\"}");
+        assertFalse(res.getBoolean("ok"));
+        assertEquals("Field requests does not exist in request", res.getString("message"));
+
+        res = SockServer.handleRequest("{\"type\":\"batch\",\"requests\":\"echo\"}");
+        assertFalse(res.getBoolean("ok"));
+        assertEquals("Field requests needs to be of type: array", res.getString("message"));
+
+        res = SockServer.handleRequest("{\"type\":\"batch\",\"requests\":[]}");
+        assertTrue(res.getBoolean("ok"));
+        assertEquals(0, res.getJSONArray("results").length());
+
+        JSONArray tooMany = new JSONArray();
+        for (int i = 0; i <= SockServer.MAX_BATCH; i++) {
+            tooMany.put(new JSONObject().put("type", "echo").put("data", "x"));
+        }
+        res = SockServer.handleRequest(new JSONObject().put("type", "batch").put("requests", tooMany).toString());
+        assertFalse(res.getBoolean("ok"));
+    }
+
+    // EXACT SUMS AND HISTOGRAMS
+    @Test
+    public void addManyBeyondInt() {
+        JSONObject req = new JSONObject();
+        req.put("type", "addmany");
+        req.put("nums", new JSONArray("[2147483647, \"2147483647\", 99999999999999999999999]"));
+
+        JSONObject res = SockServer.addmany(req);
+
+        assertTrue(res.getBoolean("ok"));
+        assertEquals("100000000000004294967293", new JSONObject(res.toString()).get("result").toString());
+    }
+
+    @Test
+    public void charCountHistogram() {
+        JSONObject req = new JSONObject();
+        req.put("type", "charcount");
+        req.put("histogram", true);
+        req.put("count", "hello world");
+
+        JSONObject res = SockServer.charCount(req);
+
+        assertTrue(res.getBoolean("ok"));
+        JSONObject result = res.getJSONObject("result");
+        assertEquals(8, result.length());
+        assertEquals(3, result.getInt("l"));
+        assertEquals(1, result.getInt(" "));
+
+        // only the characters asked for, also those not there
+        req.put("find", "loz");
+        result = SockServer.charCount(req).getJSONObject("result");
+        assertEquals(3, result.length());
+        assertEquals(3, result.getInt("l"));
+        assertEquals(2, result.getInt("o"));
+        assertEquals(0, result.getInt("z"));
+    }
 
 }
\ No newline at end of file